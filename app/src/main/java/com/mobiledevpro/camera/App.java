@@ -5,6 +5,9 @@ import android.content.Context;
 
 import com.crashlytics.android.Crashlytics;
 import com.crashlytics.android.core.CrashlyticsCore;
+import com.mobiledevpro.smcamera.BufferPool;
+import com.mobiledevpro.smcamera.CameraPrewarmer;
+import com.mobiledevpro.smcamera.CameraTrace;
 
 import io.fabric.sdk.android.Fabric;
 
@@ -20,6 +23,9 @@ import io.fabric.sdk.android.Fabric;
  */
 
 public class App extends Application {
+    //Crashlytics is initialized anyway if the camera is not started during this time
+    private static final long CRASHLYTICS_INIT_TIMEOUT_MS = 5000;
+
     private static App sApp;
 
     @Override
@@ -29,6 +35,18 @@ public class App extends Application {
             sApp = this;
         }
 
+        //camera startup tracing costs nothing when disabled
+        CameraTrace.setEnabled(BuildConfig.DEBUG);
+        BufferPool.get().setLeakTrackingEnabled(BuildConfig.DEBUG);
+
+        //SCamera is initialized in background while the activity is being created
+        CameraPrewarmer.prewarm(this);
+
+        //crash reporting is not needed for the first frame
+        CameraPrewarmer.runAfterFirstFrame(this::initCrashlytics, CRASHLYTICS_INIT_TIMEOUT_MS);
+    }
+
+    private void initCrashlytics() {
         Crashlytics crashlyticsKit = new Crashlytics.Builder()
                 .core(new CrashlyticsCore.Builder().disabled(BuildConfig.DEBUG).build())
                 .build();
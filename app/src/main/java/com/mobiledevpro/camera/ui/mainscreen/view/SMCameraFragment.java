@@ -116,6 +116,10 @@ public class SMCameraFragment extends BaseFragment implements ISMCamera.View, Te
                         .setVideoStabilisationEnabled(true)
                         .setAudioEnabled(true)
                         .setManualPhotoExposureEnabled(true)
+                        .setWarmRestartEnabled(true)
+                        .setStandbyTimeoutMs(10000)
+                        .setPhotoRingSize(4)
+                        .setZslRingSize(3)
                         .setRotation(getActivity().getWindow().getWindowManager().getDefaultDisplay().getRotation())
         );
         if (mCameraPreview.isAvailable()) {
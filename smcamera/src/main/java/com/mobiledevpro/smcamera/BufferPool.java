@@ -0,0 +1,263 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Size-classed pool of heap arrays and direct buffers for JPEG bytes
+ * <p>
+ * Capacity is rounded up to a size class (quarter steps between powers of two),
+ * so buffers of similar sized photos are reused. Pool never holds more than the memory cap
+ * (idle and borrowed buffers together): idle buffers are evicted first, then acquire fails
+ * and the caller should fall back (e.g. drop a frame).
+ * <p>
+ * Leak tracking keeps the acquire stack trace of every borrowed buffer, it's intended for debug builds.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SIZE_CLASS = 64 * 1024;
+    private static final long DEFAULT_MEMORY_CAP = 48 * 1024 * 1024;
+
+    private static BufferPool sPool;
+
+    private final Map<Integer, ArrayDeque<byte[]>> mIdleArrays = new HashMap<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> mIdleBuffers = new HashMap<>();
+    //borrowed buffer -> acquire stack trace (or null if leak tracking is disabled)
+    private final Map<Object, Throwable> mBorrowed = new IdentityHashMap<>();
+
+    private long mMemoryCap = DEFAULT_MEMORY_CAP;
+    private boolean mIsLeakTrackingEnabled;
+    private long mIdleBytes;
+    private long mBorrowedBytes;
+
+    //statistics
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mRejectedCount;
+
+    private BufferPool() {
+    }
+
+    public static synchronized BufferPool get() {
+        if (sPool == null) sPool = new BufferPool();
+        return sPool;
+    }
+
+    /**
+     * Max memory of idle and borrowed buffers together
+     */
+    public synchronized void setMemoryCap(long bytes) {
+        mMemoryCap = bytes;
+        trimIdle(0);
+    }
+
+    public synchronized void setLeakTrackingEnabled(boolean isEnabled) {
+        mIsLeakTrackingEnabled = isEnabled;
+    }
+
+    public synchronized boolean isLeakTrackingEnabled() {
+        return mIsLeakTrackingEnabled;
+    }
+
+    /**
+     * @return Array of the size class capacity (not less than minCapacity) or null if the memory cap is reached
+     */
+    @Nullable
+    synchronized byte[] acquireArray(int minCapacity) {
+        int sizeClass = getSizeClass(minCapacity);
+        byte[] array = poll(mIdleArrays, sizeClass);
+        if (array == null) {
+            if (!reserve(sizeClass)) return null;
+            array = new byte[sizeClass];
+        }
+        onBorrowed(array, sizeClass);
+        return array;
+    }
+
+    /**
+     * @return Cleared direct buffer of the size class capacity or null if the memory cap is reached
+     */
+    @Nullable
+    synchronized ByteBuffer acquireDirect(int minCapacity) {
+        int sizeClass = getSizeClass(minCapacity);
+        ByteBuffer buffer = poll(mIdleBuffers, sizeClass);
+        if (buffer == null) {
+            if (!reserve(sizeClass)) return null;
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        }
+        buffer.clear();
+        onBorrowed(buffer, sizeClass);
+        return buffer;
+    }
+
+    synchronized void release(@NonNull byte[] array) {
+        if (!onReleased(array, array.length)) return;
+        offer(mIdleArrays, array.length, array);
+    }
+
+    synchronized void release(@NonNull ByteBuffer buffer) {
+        if (!onReleased(buffer, buffer.capacity())) return;
+        offer(mIdleBuffers, buffer.capacity(), buffer);
+    }
+
+    /**
+     * Drops all idle buffers
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<byte[]> queue : mIdleArrays.values()) mEvictionCount += queue.size();
+        for (ArrayDeque<ByteBuffer> queue : mIdleBuffers.values()) mEvictionCount += queue.size();
+        mIdleArrays.clear();
+        mIdleBuffers.clear();
+        mIdleBytes = 0;
+    }
+
+    /**
+     * Logs buffers which have been acquired and not released yet
+     *
+     * @return Number of borrowed buffers
+     */
+    public synchronized int checkLeaks() {
+        for (Map.Entry<Object, Throwable> entry : mBorrowed.entrySet()) {
+            Object buffer = entry.getKey();
+            int capacity = buffer instanceof byte[] ? ((byte[]) buffer).length : ((ByteBuffer) buffer).capacity();
+            if (entry.getValue() != null) {
+                Log.e(Constants.LOG_TAG_ERROR, "BufferPool.checkLeaks: " + capacity + " bytes are not released", entry.getValue());
+            } else {
+                Log.e(Constants.LOG_TAG_ERROR, "BufferPool.checkLeaks: " + capacity + " bytes are not released");
+            }
+        }
+        return mBorrowed.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Acquires which have failed because of the memory cap
+     */
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    public synchronized long getBorrowedBytes() {
+        return mBorrowedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Buffer pool: hits " + mHitCount +
+                ", misses " + mMissCount +
+                ", evictions " + mEvictionCount +
+                ", rejected " + mRejectedCount +
+                ", idle " + mIdleBytes / 1024 + " KB" +
+                ", borrowed " + mBorrowedBytes / 1024 + " KB (" + mBorrowed.size() + ")" +
+                ", cap " + mMemoryCap / 1024 + " KB";
+    }
+
+    /**
+     * Rounds the capacity up to a quarter step between neighbour powers of two
+     */
+    static int getSizeClass(int capacity) {
+        if (capacity <= MIN_SIZE_CLASS) return MIN_SIZE_CLASS;
+        int highestBit = Integer.highestOneBit(capacity - 1);
+        int step = highestBit / 4;
+        return (capacity + step - 1) / step * step;
+    }
+
+    private <T> T poll(Map<Integer, ArrayDeque<T>> idle, int sizeClass) {
+        ArrayDeque<T> queue = idle.get(sizeClass);
+        T item = queue == null ? null : queue.poll();
+        if (item == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mIdleBytes -= sizeClass;
+        return item;
+    }
+
+    private <T> void offer(Map<Integer, ArrayDeque<T>> idle, int sizeClass, T item) {
+        ArrayDeque<T> queue = idle.get(sizeClass);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            idle.put(sizeClass, queue);
+        }
+        queue.add(item);
+        mIdleBytes += sizeClass;
+        //cap could be decreased while the buffer was borrowed
+        trimIdle(0);
+    }
+
+    /**
+     * Makes room for a new buffer, evicting idle ones if it's needed
+     */
+    private boolean reserve(int sizeClass) {
+        if (mBorrowedBytes + sizeClass > mMemoryCap) {
+            mRejectedCount++;
+            return false;
+        }
+        trimIdle(sizeClass);
+        return true;
+    }
+
+    /**
+     * Evicts idle buffers until there is room for the given number of bytes under the cap
+     */
+    private void trimIdle(long bytesNeeded) {
+        trimIdle(mIdleArrays, bytesNeeded);
+        trimIdle(mIdleBuffers, bytesNeeded);
+    }
+
+    private <T> void trimIdle(Map<Integer, ArrayDeque<T>> idle, long bytesNeeded) {
+        Iterator<Map.Entry<Integer, ArrayDeque<T>>> iterator = idle.entrySet().iterator();
+        while (mIdleBytes + mBorrowedBytes + bytesNeeded > mMemoryCap && iterator.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<T>> entry = iterator.next();
+            while (!entry.getValue().isEmpty() && mIdleBytes + mBorrowedBytes + bytesNeeded > mMemoryCap) {
+                entry.getValue().poll();
+                mIdleBytes -= entry.getKey();
+                mEvictionCount++;
+            }
+            if (entry.getValue().isEmpty()) iterator.remove();
+        }
+    }
+
+    private void onBorrowed(Object buffer, int sizeClass) {
+        mBorrowedBytes += sizeClass;
+        mBorrowed.put(buffer, mIsLeakTrackingEnabled ? new Throwable("Acquired here") : null);
+    }
+
+    /**
+     * @return False if the buffer doesn't belong to the pool or has already been released
+     */
+    private boolean onReleased(Object buffer, int sizeClass) {
+        if (!mBorrowed.containsKey(buffer)) {
+            Log.e(Constants.LOG_TAG_ERROR, "BufferPool.release: buffer is not borrowed from the pool");
+            return false;
+        }
+        mBorrowed.remove(buffer);
+        mBorrowedBytes -= sizeClass;
+        return true;
+    }
+}
@@ -0,0 +1,283 @@
+package com.mobiledevpro.smcamera;
+
+import android.media.Image;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Burst photo capture
+ * <p>
+ * Frames are captured into the ring of ImageReader images and saved one by one.
+ * When the saver falls behind, backpressure is applied: the oldest image which is waiting
+ * for saving is copied to a pooled buffer to free its slot (or dropped if the pool is full),
+ * or capture of the next frames is paused until there is a free slot.
+ */
+public final class BurstCapture {
+
+    public enum Backpressure {
+        //all frames are requested at once, the oldest unsaved frame is copied out or dropped if the ring is full
+        DROP_OLDEST,
+        //next frame is requested only when there is a free slot in the ring, nothing is dropped
+        PAUSE_CAPTURE
+    }
+
+    private final int mFrameCount;
+    private final Backpressure mBackpressure;
+    private final int mRingSize;
+    private final long mRequestId;
+
+    //photos which are waiting for saving, oldest first
+    private final LinkedList<PhotoWriter.Photo> mPendingPhotos = new LinkedList<>();
+    private final List<File> mSavedFiles = new ArrayList<>();
+    //timestamps of the photos which are being written, in the write order
+    private final ArrayDeque<Long> mWritingTimestamps = new ArrayDeque<>();
+    private final Map<Long, File> mFilesByTimestamp = new HashMap<>();
+    //acquired from the reader and not closed yet
+    private int mAcquiredCount;
+    private final Runnable mOnImageClosed = this::onImageClosed;
+
+    private int mSubmittedCount;
+    private int mCapturedCount;
+    private int mSavedCount;
+    private int mDroppedCount;
+    private int mCopiedCount;
+    private long mStartedAt;
+    private long mFirstFrameAt;
+    private long mLastFrameAt;
+
+    /**
+     * @param requestId Id of the burst (bracket) request, it's reported with the result
+     */
+    BurstCapture(int frameCount, @NonNull Backpressure backpressure, int ringSize, long requestId) {
+        mFrameCount = frameCount;
+        mBackpressure = backpressure;
+        mRingSize = ringSize;
+        mRequestId = requestId;
+        mStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    long getRequestId() {
+        return mRequestId;
+    }
+
+    Backpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return Number of frames which can be requested now
+     */
+    synchronized int getFramesToSubmit() {
+        int remaining = mFrameCount - mSubmittedCount;
+        if (mBackpressure == Backpressure.DROP_OLDEST) return remaining;
+        //frames which are in flight or not saved yet occupy the ring
+        int inFlight = mSubmittedCount - mSavedCount - mDroppedCount;
+        return Math.max(0, Math.min(remaining, mRingSize - inFlight));
+    }
+
+    /**
+     * @return False if all images of the ring are acquired, next image should wait in the reader
+     */
+    synchronized boolean hasFreeSlot() {
+        return mAcquiredCount < mRingSize;
+    }
+
+    synchronized void onSubmitted(int count) {
+        mSubmittedCount += count;
+    }
+
+    /**
+     * Makes room in the ring for the next image: the oldest pending image is copied
+     * to a pooled buffer, or the photo of that image is dropped if the pool is full.
+     * Photos which have already been copied don't hold a slot, they are kept.
+     *
+     * @return True if a photo has been dropped
+     */
+    synchronized boolean makeRoom(@NonNull BufferPool pool) {
+        //image which is being saved cannot be released
+        if (mAcquiredCount < mRingSize || mPendingPhotos.isEmpty()) return false;
+
+        ListIterator<PhotoWriter.Photo> iterator = mPendingPhotos.listIterator();
+        while (iterator.hasNext()) {
+            PhotoWriter.Photo photo = iterator.next();
+            if (!photo.holdsImage()) continue;
+            if (photo.detachFromImage(pool)) {
+                mCopiedCount++;
+                return false;
+            }
+            iterator.remove();
+            photo.release();
+            mDroppedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void onImageAcquired(@NonNull Image image) {
+        long now = SystemClock.elapsedRealtime();
+        if (mCapturedCount == 0) mFirstFrameAt = now;
+        mLastFrameAt = now;
+        mCapturedCount++;
+        mAcquiredCount++;
+        mPendingPhotos.add(PhotoWriter.Photo.of(image, mOnImageClosed));
+    }
+
+    /**
+     * Frame has been requested but it will not come to the reader
+     */
+    synchronized void onCaptureFailed() {
+        mDroppedCount++;
+    }
+
+    synchronized PhotoWriter.Photo pollPendingPhoto() {
+        PhotoWriter.Photo photo = mPendingPhotos.poll();
+        if (photo != null) mWritingTimestamps.add(photo.getTimestampNs());
+        return photo;
+    }
+
+    /**
+     * Photos are written one by one, so it's the oldest polled photo
+     */
+    synchronized void onPhotoSaved(@NonNull File file) {
+        mSavedCount++;
+        mSavedFiles.add(file);
+        Long timestamp = mWritingTimestamps.poll();
+        if (timestamp != null) mFilesByTimestamp.put(timestamp, file);
+    }
+
+    /**
+     * @return Null if the frame with this sensor timestamp has not been saved
+     */
+    synchronized File getSavedFile(long timestampNs) {
+        return mFilesByTimestamp.get(timestampNs);
+    }
+
+    synchronized boolean isFinished() {
+        return mSavedCount + mDroppedCount >= mFrameCount;
+    }
+
+    /**
+     * Closes images which are still waiting for saving, e.g. when the camera is closed
+     */
+    synchronized void cancel() {
+        PhotoWriter.Photo photo;
+        while ((photo = mPendingPhotos.poll()) != null) {
+            photo.release();
+            mDroppedCount++;
+        }
+    }
+
+    private synchronized void onImageClosed() {
+        mAcquiredCount--;
+    }
+
+    synchronized Result toResult() {
+        return new Result(
+                mFrameCount,
+                mCapturedCount,
+                mSavedCount,
+                mDroppedCount,
+                mCopiedCount,
+                SystemClock.elapsedRealtime() - mStartedAt,
+                mCapturedCount > 1 && mLastFrameAt > mFirstFrameAt ?
+                        (mCapturedCount - 1) * 1000d / (mLastFrameAt - mFirstFrameAt) : 0,
+                mSavedFiles
+        );
+    }
+
+    /**
+     * Result of the burst capture
+     */
+    public static final class Result {
+        private final int requestedCount;
+        private final int capturedCount;
+        private final int savedCount;
+        private final int droppedCount;
+        private final int copiedCount;
+        private final long durationMs;
+        private final double framesPerSecond;
+        private final List<File> files;
+
+        private Result(int requestedCount,
+                       int capturedCount,
+                       int savedCount,
+                       int droppedCount,
+                       int copiedCount,
+                       long durationMs,
+                       double framesPerSecond,
+                       List<File> files) {
+            this.requestedCount = requestedCount;
+            this.capturedCount = capturedCount;
+            this.savedCount = savedCount;
+            this.droppedCount = droppedCount;
+            this.copiedCount = copiedCount;
+            this.durationMs = durationMs;
+            this.framesPerSecond = framesPerSecond;
+            this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        }
+
+        public int getRequestedCount() {
+            return requestedCount;
+        }
+
+        public int getCapturedCount() {
+            return capturedCount;
+        }
+
+        public int getSavedCount() {
+            return savedCount;
+        }
+
+        public int getDroppedCount() {
+            return droppedCount;
+        }
+
+        /**
+         * Frames which have been copied out of the image ring because the saver was behind
+         */
+        public int getCopiedCount() {
+            return copiedCount;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * Sustained capture rate from the first to the last captured frame
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        public List<File> getFiles() {
+            return files;
+        }
+
+        @Override
+        public String toString() {
+            return "Burst: requested " + requestedCount +
+                    ", captured " + capturedCount +
+                    ", saved " + savedCount +
+                    ", dropped " + droppedCount +
+                    ", copied " + copiedCount +
+                    ", " + durationMs + " ms" +
+                    ", " + String.format(Locale.US, "%.1f", framesPerSecond) + " fps";
+        }
+    }
+}
@@ -0,0 +1,771 @@
+package com.mobiledevpro.smcamera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
+import android.util.Size;
+
+import com.samsung.android.sdk.camera.SCameraCharacteristics;
+import com.samsung.android.sdk.camera.SCameraManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of camera characteristics.
+ * <p>
+ * Keeps the values CameraHelper needs (lens facing, stabilization modes, phase AF, flash,
+ * sensor orientation, stream configurations and AE fps ranges) for every camera id and persists
+ * a compact snapshot to disk. The snapshot is bound to the firmware fingerprint,
+ * so after a system update it is dropped and the camera service is queried again.
+ */
+@TargetApi(21)
+class CameraCharacteristicsCache {
+
+    //pseudo format for class based outputs (SurfaceTexture, MediaRecorder)
+    static final int FORMAT_PRIVATE = 0x22;
+
+    private static final String SNAPSHOT_FILE_NAME = "sm_camera_characteristics.bin";
+    private static final int SNAPSHOT_MAGIC = 0x534D4343;
+    private static final int SNAPSHOT_VERSION = 5;
+
+    private static final int[] CACHED_FORMATS = {ImageFormat.JPEG, ImageFormat.YUV_420_888, ImageFormat.RAW_SENSOR};
+
+    private static CameraCharacteristicsCache sCache;
+
+    private final File mSnapshotFile;
+    private final String mFingerprint;
+    private final Map<String, CameraInfo> mCameras = new LinkedHashMap<>();
+    private boolean mIsSnapshotLoaded;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private CameraCharacteristicsCache(File snapshotDir) {
+        mSnapshotFile = new File(snapshotDir, SNAPSHOT_FILE_NAME);
+        mFingerprint = Build.FINGERPRINT == null ? "" : Build.FINGERPRINT;
+    }
+
+    static synchronized CameraCharacteristicsCache get(@NonNull Context context) {
+        if (sCache == null) {
+            sCache = new CameraCharacteristicsCache(context.getApplicationContext().getCacheDir());
+        }
+        return sCache;
+    }
+
+    /**
+     * Resolves camera by facing.
+     * Camera service is called only when there is no valid snapshot for this firmware
+     * or the snapshot has no camera with this facing.
+     *
+     * @param manager      Camera manager, used on cache miss only
+     * @param isBackCamera True - back camera, false - front camera
+     * @return Camera info or null if there is no camera with such facing
+     */
+    synchronized CameraInfo getCameraInfo(@NonNull SCameraManager manager, boolean isBackCamera) throws CameraAccessException {
+        loadSnapshot();
+
+        int lensFacing = isBackCamera ? SCameraCharacteristics.LENS_FACING_BACK : SCameraCharacteristics.LENS_FACING_FRONT;
+        CameraInfo cameraInfo = findByFacing(lensFacing);
+        if (cameraInfo != null) {
+            mHitCount.incrementAndGet();
+            return cameraInfo;
+        }
+
+        //snapshot can be written by a partial query, so a missing facing is queried again
+        mMissCount.incrementAndGet();
+        queryCameras(manager);
+        saveSnapshot();
+        return findByFacing(lensFacing);
+    }
+
+    /**
+     * Returns cached camera info by id without calling the camera service.
+     */
+    synchronized CameraInfo getCameraInfo(String cameraId) {
+        return mCameras.get(cameraId);
+    }
+
+    /**
+     * Drops cached values, the next lookup will call the camera service.
+     */
+    synchronized void invalidate() {
+        mCameras.clear();
+        if (mSnapshotFile.exists() && !mSnapshotFile.delete()) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraCharacteristicsCache.invalidate(): cannot delete " + mSnapshotFile);
+        }
+    }
+
+    int getHitCount() {
+        return mHitCount.get();
+    }
+
+    int getMissCount() {
+        return mMissCount.get();
+    }
+
+    private CameraInfo findByFacing(int lensFacing) {
+        for (CameraInfo cameraInfo : mCameras.values()) {
+            if (cameraInfo.getLensFacing() == lensFacing) return cameraInfo;
+        }
+        return null;
+    }
+
+    private void queryCameras(SCameraManager manager) throws CameraAccessException {
+        mCameras.clear();
+        for (String id : manager.getCameraIdList()) {
+            mCameras.put(id, CameraInfo.from(id, manager.getCameraCharacteristics(id)));
+        }
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraCharacteristicsCache.queryCameras(): cameras " + mCameras.keySet());
+    }
+
+    private void loadSnapshot() {
+        if (mIsSnapshotLoaded) return;
+        mIsSnapshotLoaded = true;
+        if (!mSnapshotFile.exists()) return;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) return;
+            if (!mFingerprint.equals(input.readUTF())) {
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraCharacteristicsCache.loadSnapshot(): firmware has been changed, snapshot is dropped");
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                CameraInfo cameraInfo = CameraInfo.read(input);
+                mCameras.put(cameraInfo.getCameraId(), cameraInfo);
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraCharacteristicsCache.loadSnapshot: IOException: " + e.getLocalizedMessage(), e);
+            mCameras.clear();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+    }
+
+    private void saveSnapshot() {
+        File tempFile = new File(mSnapshotFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeUTF(mFingerprint);
+            output.writeInt(mCameras.size());
+            for (CameraInfo cameraInfo : mCameras.values()) {
+                cameraInfo.write(output);
+            }
+            output.close();
+            output = null;
+            //replace the old snapshot only when the new one has been fully written
+            if (!tempFile.renameTo(mSnapshotFile)) {
+                Log.e(Constants.LOG_TAG_ERROR, "CameraCharacteristicsCache.saveSnapshot: cannot rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraCharacteristicsCache.saveSnapshot: IOException: " + e.getLocalizedMessage(), e);
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Cached characteristics of one camera
+     */
+    static class CameraInfo {
+        private final String mCameraId;
+        private final int mLensFacing;
+        private final int mSensorOrientation;
+        private final boolean mIsFlashAvailable;
+        private final boolean mIsPhaseAfAvailable;
+        private final boolean mIsFixedFocus;
+        private final int[] mOisOperationModes;
+        private final int[] mOpticalStabilizationModes;
+        private final int[] mVideoStabilizationModes;
+        private final int[] mCapabilities;
+        private final int mTimestampSource;
+        private final ExposureRanges mExposureRanges;
+        private final List<StreamConfig> mStreamConfigs;
+        private final List<HighSpeedConfig> mHighSpeedConfigs;
+        private final List<FpsRange> mAeFpsRanges;
+
+        private CameraInfo(String cameraId,
+                           int lensFacing,
+                           int sensorOrientation,
+                           boolean isFlashAvailable,
+                           boolean isPhaseAfAvailable,
+                           boolean isFixedFocus,
+                           int[] oisOperationModes,
+                           int[] opticalStabilizationModes,
+                           int[] videoStabilizationModes,
+                           int[] capabilities,
+                           int timestampSource,
+                           ExposureRanges exposureRanges,
+                           List<StreamConfig> streamConfigs,
+                           List<HighSpeedConfig> highSpeedConfigs,
+                           List<FpsRange> aeFpsRanges) {
+            mCameraId = cameraId;
+            mLensFacing = lensFacing;
+            mSensorOrientation = sensorOrientation;
+            mIsFlashAvailable = isFlashAvailable;
+            mIsPhaseAfAvailable = isPhaseAfAvailable;
+            mIsFixedFocus = isFixedFocus;
+            mOisOperationModes = oisOperationModes;
+            mOpticalStabilizationModes = opticalStabilizationModes;
+            mVideoStabilizationModes = videoStabilizationModes;
+            mCapabilities = capabilities;
+            mTimestampSource = timestampSource;
+            mExposureRanges = exposureRanges;
+            mStreamConfigs = Collections.unmodifiableList(streamConfigs);
+            mHighSpeedConfigs = Collections.unmodifiableList(highSpeedConfigs);
+            mAeFpsRanges = Collections.unmodifiableList(aeFpsRanges);
+        }
+
+        String getCameraId() {
+            return mCameraId;
+        }
+
+        int getLensFacing() {
+            return mLensFacing;
+        }
+
+        int getSensorOrientation() {
+            return mSensorOrientation;
+        }
+
+        boolean isFlashAvailable() {
+            return mIsFlashAvailable;
+        }
+
+        boolean isPhaseAfAvailable() {
+            return mIsPhaseAfAvailable;
+        }
+
+        /**
+         * LENS_INFO_MINIMUM_FOCUS_DISTANCE is 0, there is no AF
+         */
+        boolean isFixedFocus() {
+            return mIsFixedFocus;
+        }
+
+        /**
+         * Samsung OIS operation modes (empty for non-Samsung devices)
+         */
+        int[] getOisOperationModes() {
+            return mOisOperationModes;
+        }
+
+        int[] getOpticalStabilizationModes() {
+            return mOpticalStabilizationModes;
+        }
+
+        int[] getVideoStabilizationModes() {
+            return mVideoStabilizationModes;
+        }
+
+        /**
+         * REQUEST_AVAILABLE_CAPABILITIES
+         */
+        boolean hasCapability(int capability) {
+            for (int value : mCapabilities) {
+                if (value == capability) return true;
+            }
+            return false;
+        }
+
+        /**
+         * True if sensor timestamps are in the elapsedRealtimeNanos() time base
+         */
+        boolean isTimestampRealtime() {
+            return mTimestampSource == SCameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+
+        ExposureRanges getExposureRanges() {
+            return mExposureRanges;
+        }
+
+        List<StreamConfig> getStreamConfigs() {
+            return mStreamConfigs;
+        }
+
+        /**
+         * Output configurations for the format
+         *
+         * @param format {@link ImageFormat} or {@link #FORMAT_PRIVATE}
+         */
+        List<StreamConfig> getStreamConfigs(int format) {
+            List<StreamConfig> configs = new ArrayList<>();
+            for (StreamConfig config : mStreamConfigs) {
+                if (config.getFormat() == format) configs.add(config);
+            }
+            return configs;
+        }
+
+        List<HighSpeedConfig> getHighSpeedConfigs() {
+            return mHighSpeedConfigs;
+        }
+
+        /**
+         * CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES
+         */
+        List<FpsRange> getAeFpsRanges() {
+            return mAeFpsRanges;
+        }
+
+        private static CameraInfo from(String cameraId, SCameraCharacteristics characteristics) {
+            List<StreamConfig> streamConfigs = new ArrayList<>();
+            List<HighSpeedConfig> highSpeedConfigs = new ArrayList<>();
+
+            StreamConfigurationMap map = characteristics.get(SCameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (map != null) {
+                for (int format : CACHED_FORMATS) {
+                    if (!map.isOutputSupportedFor(format)) continue;
+                    Size[] sizes = map.getOutputSizes(format);
+                    if (sizes == null) continue;
+                    for (Size size : sizes) {
+                        streamConfigs.add(new StreamConfig(
+                                format,
+                                size.getWidth(),
+                                size.getHeight(),
+                                map.getOutputMinFrameDuration(format, size),
+                                map.getOutputStallDuration(format, size)));
+                    }
+                }
+
+                Size[] privateSizes = map.getOutputSizes(SurfaceTexture.class);
+                if (privateSizes != null) {
+                    for (Size size : privateSizes) {
+                        streamConfigs.add(new StreamConfig(
+                                FORMAT_PRIVATE,
+                                size.getWidth(),
+                                size.getHeight(),
+                                map.getOutputMinFrameDuration(SurfaceTexture.class, size),
+                                map.getOutputStallDuration(SurfaceTexture.class, size)));
+                    }
+                }
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    for (Size size : map.getHighSpeedVideoSizes()) {
+                        for (Range<Integer> fpsRange : map.getHighSpeedVideoFpsRangesFor(size)) {
+                            highSpeedConfigs.add(new HighSpeedConfig(
+                                    size.getWidth(),
+                                    size.getHeight(),
+                                    fpsRange.getLower(),
+                                    fpsRange.getUpper()));
+                        }
+                    }
+                }
+            }
+
+            List<FpsRange> aeFpsRanges = new ArrayList<>();
+            Range<Integer>[] availableFpsRanges = characteristics.get(SCameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            if (availableFpsRanges != null) {
+                for (Range<Integer> range : availableFpsRanges) {
+                    aeFpsRanges.add(new FpsRange(range.getLower(), range.getUpper()));
+                }
+            }
+
+            Boolean isFlashAvailable = characteristics.get(SCameraCharacteristics.FLASH_INFO_AVAILABLE);
+            Integer sensorOrientation = characteristics.get(SCameraCharacteristics.SENSOR_ORIENTATION);
+            Integer timestampSource = characteristics.get(SCameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            Float minFocusDistance = characteristics.get(SCameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+
+            return new CameraInfo(
+                    cameraId,
+                    characteristics.get(SCameraCharacteristics.LENS_FACING),
+                    sensorOrientation == null ? 0 : sensorOrientation,
+                    isFlashAvailable != null && isFlashAvailable,
+                    characteristics.getKeys().contains(SCameraCharacteristics.PHASE_AF_INFO_AVAILABLE) &&
+                            characteristics.get(SCameraCharacteristics.PHASE_AF_INFO_AVAILABLE),
+                    minFocusDistance == null || minFocusDistance == 0,
+                    getIntArray(characteristics, SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION_OPERATION_MODE),
+                    getIntArray(characteristics, SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION),
+                    getIntArray(characteristics, SCameraCharacteristics.CONTROL_AVAILABLE_VIDEO_STABILIZATION_MODES),
+                    getIntArray(characteristics, SCameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES),
+                    timestampSource == null ? SCameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_UNKNOWN : timestampSource,
+                    ExposureRanges.from(characteristics),
+                    streamConfigs,
+                    highSpeedConfigs,
+                    aeFpsRanges
+            );
+        }
+
+        private static int[] getIntArray(SCameraCharacteristics characteristics, SCameraCharacteristics.Key<int[]> key) {
+            if (!characteristics.getKeys().contains(key)) return new int[0];
+            int[] values = characteristics.get(key);
+            return values == null ? new int[0] : values;
+        }
+
+        private static CameraInfo read(DataInputStream input) throws IOException {
+            String cameraId = input.readUTF();
+            int lensFacing = input.readInt();
+            int sensorOrientation = input.readInt();
+            boolean isFlashAvailable = input.readBoolean();
+            boolean isPhaseAfAvailable = input.readBoolean();
+            boolean isFixedFocus = input.readBoolean();
+            int[] oisOperationModes = readIntArray(input);
+            int[] opticalStabilizationModes = readIntArray(input);
+            int[] videoStabilizationModes = readIntArray(input);
+            int[] capabilities = readIntArray(input);
+            int timestampSource = input.readInt();
+            ExposureRanges exposureRanges = ExposureRanges.read(input);
+
+            int count = input.readInt();
+            List<StreamConfig> streamConfigs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                streamConfigs.add(new StreamConfig(
+                        input.readInt(),
+                        input.readInt(),
+                        input.readInt(),
+                        input.readLong(),
+                        input.readLong()));
+            }
+
+            count = input.readInt();
+            List<HighSpeedConfig> highSpeedConfigs = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                highSpeedConfigs.add(new HighSpeedConfig(
+                        input.readInt(),
+                        input.readInt(),
+                        input.readInt(),
+                        input.readInt()));
+            }
+
+            count = input.readInt();
+            List<FpsRange> aeFpsRanges = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                aeFpsRanges.add(new FpsRange(input.readInt(), input.readInt()));
+            }
+
+            return new CameraInfo(
+                    cameraId,
+                    lensFacing,
+                    sensorOrientation,
+                    isFlashAvailable,
+                    isPhaseAfAvailable,
+                    isFixedFocus,
+                    oisOperationModes,
+                    opticalStabilizationModes,
+                    videoStabilizationModes,
+                    capabilities,
+                    timestampSource,
+                    exposureRanges,
+                    streamConfigs,
+                    highSpeedConfigs,
+                    aeFpsRanges
+            );
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeUTF(mCameraId);
+            output.writeInt(mLensFacing);
+            output.writeInt(mSensorOrientation);
+            output.writeBoolean(mIsFlashAvailable);
+            output.writeBoolean(mIsPhaseAfAvailable);
+            output.writeBoolean(mIsFixedFocus);
+            writeIntArray(output, mOisOperationModes);
+            writeIntArray(output, mOpticalStabilizationModes);
+            writeIntArray(output, mVideoStabilizationModes);
+            writeIntArray(output, mCapabilities);
+            output.writeInt(mTimestampSource);
+            mExposureRanges.write(output);
+
+            output.writeInt(mStreamConfigs.size());
+            for (StreamConfig config : mStreamConfigs) {
+                output.writeInt(config.getFormat());
+                output.writeInt(config.getWidth());
+                output.writeInt(config.getHeight());
+                output.writeLong(config.getMinFrameDurationNs());
+                output.writeLong(config.getStallDurationNs());
+            }
+
+            output.writeInt(mHighSpeedConfigs.size());
+            for (HighSpeedConfig config : mHighSpeedConfigs) {
+                output.writeInt(config.getWidth());
+                output.writeInt(config.getHeight());
+                output.writeInt(config.getFpsMin());
+                output.writeInt(config.getFpsMax());
+            }
+
+            output.writeInt(mAeFpsRanges.size());
+            for (FpsRange range : mAeFpsRanges) {
+                output.writeInt(range.getLower());
+                output.writeInt(range.getUpper());
+            }
+        }
+
+        private static int[] readIntArray(DataInputStream input) throws IOException {
+            int[] values = new int[input.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = input.readInt();
+            }
+            return values;
+        }
+
+        private static void writeIntArray(DataOutputStream output, int[] values) throws IOException {
+            output.writeInt(values.length);
+            for (int value : values) {
+                output.writeInt(value);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Camera " + mCameraId + " facing " + mLensFacing + " orientation " + mSensorOrientation +
+                    " streams " + mStreamConfigs.size() + " high speed " + mHighSpeedConfigs.size() +
+                    " AE fps ranges " + mAeFpsRanges;
+        }
+    }
+
+    /**
+     * AE compensation and manual sensor ranges, zero ranges if they are not supported
+     */
+    static class ExposureRanges {
+        private final int mCompensationMin;
+        private final int mCompensationMax;
+        private final int mCompensationStepNumerator;
+        private final int mCompensationStepDenominator;
+        private final long mExposureTimeMinNs;
+        private final long mExposureTimeMaxNs;
+        private final int mSensitivityMin;
+        private final int mSensitivityMax;
+
+        ExposureRanges(int compensationMin,
+                       int compensationMax,
+                       int compensationStepNumerator,
+                       int compensationStepDenominator,
+                       long exposureTimeMinNs,
+                       long exposureTimeMaxNs,
+                       int sensitivityMin,
+                       int sensitivityMax) {
+            mCompensationMin = compensationMin;
+            mCompensationMax = compensationMax;
+            mCompensationStepNumerator = compensationStepNumerator;
+            mCompensationStepDenominator = compensationStepDenominator;
+            mExposureTimeMinNs = exposureTimeMinNs;
+            mExposureTimeMaxNs = exposureTimeMaxNs;
+            mSensitivityMin = sensitivityMin;
+            mSensitivityMax = sensitivityMax;
+        }
+
+        /**
+         * AE compensation range in steps
+         */
+        int getCompensationMin() {
+            return mCompensationMin;
+        }
+
+        int getCompensationMax() {
+            return mCompensationMax;
+        }
+
+        /**
+         * Size of the AE compensation step in EV
+         */
+        double getCompensationStepEv() {
+            return mCompensationStepDenominator == 0 ? 0 : (double) mCompensationStepNumerator / mCompensationStepDenominator;
+        }
+
+        long getExposureTimeMinNs() {
+            return mExposureTimeMinNs;
+        }
+
+        long getExposureTimeMaxNs() {
+            return mExposureTimeMaxNs;
+        }
+
+        int getSensitivityMin() {
+            return mSensitivityMin;
+        }
+
+        int getSensitivityMax() {
+            return mSensitivityMax;
+        }
+
+        private static ExposureRanges from(SCameraCharacteristics characteristics) {
+            Range<Integer> compensation = characteristics.get(SCameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+            Rational step = characteristics.get(SCameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+            Range<Long> exposureTime = characteristics.get(SCameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+            Range<Integer> sensitivity = characteristics.get(SCameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            return new ExposureRanges(
+                    compensation == null ? 0 : compensation.getLower(),
+                    compensation == null ? 0 : compensation.getUpper(),
+                    step == null ? 0 : step.getNumerator(),
+                    step == null ? 0 : step.getDenominator(),
+                    exposureTime == null ? 0 : exposureTime.getLower(),
+                    exposureTime == null ? 0 : exposureTime.getUpper(),
+                    sensitivity == null ? 0 : sensitivity.getLower(),
+                    sensitivity == null ? 0 : sensitivity.getUpper()
+            );
+        }
+
+        private static ExposureRanges read(DataInputStream input) throws IOException {
+            return new ExposureRanges(
+                    input.readInt(),
+                    input.readInt(),
+                    input.readInt(),
+                    input.readInt(),
+                    input.readLong(),
+                    input.readLong(),
+                    input.readInt(),
+                    input.readInt()
+            );
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeInt(mCompensationMin);
+            output.writeInt(mCompensationMax);
+            output.writeInt(mCompensationStepNumerator);
+            output.writeInt(mCompensationStepDenominator);
+            output.writeLong(mExposureTimeMinNs);
+            output.writeLong(mExposureTimeMaxNs);
+            output.writeInt(mSensitivityMin);
+            output.writeInt(mSensitivityMax);
+        }
+    }
+
+    /**
+     * One output configuration of the stream configuration map
+     */
+    static class StreamConfig {
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mMinFrameDurationNs;
+        private final long mStallDurationNs;
+
+        StreamConfig(int format, int width, int height, long minFrameDurationNs, long stallDurationNs) {
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mMinFrameDurationNs = minFrameDurationNs;
+            mStallDurationNs = stallDurationNs;
+        }
+
+        int getFormat() {
+            return mFormat;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        long getMinFrameDurationNs() {
+            return mMinFrameDurationNs;
+        }
+
+        long getStallDurationNs() {
+            return mStallDurationNs;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " format " + mFormat;
+        }
+    }
+
+    /**
+     * One size and fps range pair for constrained high speed sessions
+     */
+    static class HighSpeedConfig {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFpsMin;
+        private final int mFpsMax;
+
+        HighSpeedConfig(int width, int height, int fpsMin, int fpsMax) {
+            mWidth = width;
+            mHeight = height;
+            mFpsMin = fpsMin;
+            mFpsMax = fpsMax;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        int getFpsMin() {
+            return mFpsMin;
+        }
+
+        int getFpsMax() {
+            return mFpsMax;
+        }
+
+        @Override
+        public String toString() {
+            return mWidth + "x" + mHeight + " @ " + mFpsMin + "-" + mFpsMax + "FPS";
+        }
+    }
+
+    /**
+     * AE target fps range, a plain value, so stream selection can run on the JVM
+     */
+    static class FpsRange {
+        private final int mLower;
+        private final int mUpper;
+
+        FpsRange(int lower, int upper) {
+            mLower = lower;
+            mUpper = upper;
+        }
+
+        int getLower() {
+            return mLower;
+        }
+
+        int getUpper() {
+            return mUpper;
+        }
+
+        Range<Integer> toRange() {
+            return new Range<>(mLower, mUpper);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mLower + ", " + mUpper + "]";
+        }
+    }
+}
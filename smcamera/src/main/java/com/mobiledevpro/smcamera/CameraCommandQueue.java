@@ -0,0 +1,352 @@
+package com.mobiledevpro.smcamera;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.TextureView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Completable;
+import io.reactivex.subjects.CompletableSubject;
+
+/**
+ * Serialized queue of camera commands
+ * <p>
+ * Commands are executed one by one in the order of submission, the next one is started when the previous one is completed.
+ * Redundant commands at the tail of the queue are coalesced:
+ * a run of restarts becomes one restart with the latest texture size,
+ * a run of settings changes and flashlight toggles becomes one change with the latest settings.
+ * A stop (or standby) cancels pending start and restart (they fail with CancellationException),
+ * pending settings changes are kept, the camera which is not opened just stores them for the next start.
+ * A command which has not finished in time fails with TimeoutException, so the queue is not blocked by it.
+ */
+class CameraCommandQueue {
+
+    private static final long COMMAND_TIMEOUT_MS = 15000;
+    //burst and bracket get more time per frame
+    private static final long FRAME_TIMEOUT_MS = 1000;
+
+    enum CommandType {
+        START,
+        STOP,
+        STANDBY,
+        RESTART,
+        APPLY_SETTINGS,
+        RECORD_VIDEO_TOGGLE,
+        TAKE_PICTURE,
+        TAKE_BURST,
+        TAKE_BRACKET,
+        TAKE_ZSL_PICTURE
+    }
+
+    private final ICameraHelperAsync mCameraHelper;
+    private final ArrayDeque<Command> mPendingCommands = new ArrayDeque<>();
+    private Command mRunningCommand;
+
+    //counters
+    private int mMaxQueueDepth;
+    private long mEnqueuedCount;
+    private long mExecutedCount;
+    private long mCoalescedCount;
+    private long mCancelledCount;
+
+    CameraCommandQueue(@NonNull ICameraHelperAsync cameraHelper) {
+        mCameraHelper = cameraHelper;
+    }
+
+    Completable start(Context context,
+                      TextureView textureView,
+                      int textureWidth,
+                      int textureHeight,
+                      @NonNull CameraSettings cameraSettings) {
+        return enqueue(CommandType.START, () ->
+                mCameraHelper.startCameraAsync(context, textureView, textureWidth, textureHeight, cameraSettings)
+        );
+    }
+
+    Completable stop(Context context) {
+        return enqueue(CommandType.STOP, () -> mCameraHelper.stopCameraAsync(context));
+    }
+
+    Completable enterStandby(Context context) {
+        return enqueue(CommandType.STANDBY, () -> mCameraHelper.enterStandbyAsync(context));
+    }
+
+    /**
+     * Restart is executed with the settings which are actual at the moment of execution
+     */
+    Completable restart(Context context,
+                        TextureView textureView,
+                        int textureWidth,
+                        int textureHeight,
+                        @NonNull CameraSettings cameraSettings) {
+        return enqueue(CommandType.RESTART, () ->
+                mCameraHelper.restartCameraAsync(context, textureView, textureWidth, textureHeight, cameraSettings)
+        );
+    }
+
+    Completable applySettings(Context context, @NonNull CameraSettings cameraSettings) {
+        //settings can be changed before the command is executed
+        CameraSettings settings = cameraSettings.snapshot().toSettings();
+        return enqueue(new SettingsChange(context, settings, null));
+    }
+
+    /**
+     * Flashlight toggle is folded into the pending settings change
+     */
+    Completable setFlashlightOn(Context context, boolean isOn) {
+        return enqueue(new SettingsChange(context, null, isOn));
+    }
+
+    Completable startStopVideoRecording() {
+        return enqueue(CommandType.RECORD_VIDEO_TOGGLE, mCameraHelper::startStopVideoRecordingAsync);
+    }
+
+    /**
+     * Completes when the photo has been saved, result is delivered by RxEventOnPhotoCaptureFinished
+     */
+    Completable takePicture() {
+        return enqueue(CommandType.TAKE_PICTURE, () -> mCameraHelper.takePictureAsync().toCompletable());
+    }
+
+    /**
+     * Completes when all frames of the burst have been saved or dropped
+     */
+    Completable takeBurst(int frameCount, @NonNull BurstCapture.Backpressure backpressure) {
+        return enqueue(CommandType.TAKE_BURST, COMMAND_TIMEOUT_MS + frameCount * FRAME_TIMEOUT_MS, () ->
+                mCameraHelper.takeBurstAsync(frameCount, backpressure).toCompletable()
+        );
+    }
+
+    /**
+     * Completes when all frames of the bracket have been saved or dropped
+     */
+    Completable takeBracket(@NonNull ExposureBracket bracket) {
+        return enqueue(CommandType.TAKE_BRACKET, COMMAND_TIMEOUT_MS + bracket.getFrameCount() * FRAME_TIMEOUT_MS, () ->
+                mCameraHelper.takeBracketAsync(bracket).toCompletable()
+        );
+    }
+
+    /**
+     * Completes when the ZSL frame has been saved, result is delivered by RxEventOnZslCaptureFinished
+     */
+    Completable takeZslPicture() {
+        //shutter press time is taken now, the command can wait in the queue
+        long shutterAtNs = SystemClock.elapsedRealtimeNanos();
+        return enqueue(CommandType.TAKE_ZSL_PICTURE, () -> mCameraHelper.takeZslPictureAsync(shutterAtNs).toCompletable());
+    }
+
+    synchronized int getQueueDepth() {
+        return mPendingCommands.size();
+    }
+
+    synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    synchronized long getEnqueuedCount() {
+        return mEnqueuedCount;
+    }
+
+    synchronized long getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    synchronized long getCancelledCount() {
+        return mCancelledCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Queue depth " + mPendingCommands.size() +
+                " (max " + mMaxQueueDepth + ")" +
+                ", enqueued " + mEnqueuedCount +
+                ", executed " + mExecutedCount +
+                ", coalesced " + mCoalescedCount +
+                ", cancelled " + mCancelledCount;
+    }
+
+    private Completable enqueue(CommandType type, Callable<Completable> action) {
+        return enqueue(type, COMMAND_TIMEOUT_MS, action);
+    }
+
+    /**
+     * Command is added to the queue on subscription
+     */
+    private Completable enqueue(CommandType type, long timeoutMs, Callable<Completable> action) {
+        return Completable.defer(() -> {
+            CompletableSubject result = CompletableSubject.create();
+            enqueue(new Command(type, timeoutMs, action, null, result));
+            return result;
+        });
+    }
+
+    private Completable enqueue(SettingsChange change) {
+        return Completable.defer(() -> {
+            CompletableSubject result = CompletableSubject.create();
+            enqueue(new Command(CommandType.APPLY_SETTINGS, COMMAND_TIMEOUT_MS, null, change, result));
+            return result;
+        });
+    }
+
+    private void enqueue(Command command) {
+        List<CompletableSubject> cancelledResults = new ArrayList<>();
+        CancellationException cancellation = new CancellationException("Cancelled by " + command.type);
+        synchronized (this) {
+            mEnqueuedCount++;
+            Command pending = coalesce(command, cancelledResults);
+            if (pending == null) {
+                mPendingCommands.add(command);
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mPendingCommands.size());
+            }
+        }
+        //cancelled commands are finished outside of the lock
+        for (CompletableSubject result : cancelledResults) {
+            result.onError(cancellation);
+        }
+        executeNext();
+    }
+
+    /**
+     * @return Pending command which has absorbed the new one or null if the new one should be added
+     */
+    private Command coalesce(Command command, List<CompletableSubject> cancelledResults) {
+        switch (command.type) {
+            case RESTART:
+            case APPLY_SETTINGS:
+                //the latest command replaces the last pending one of the same type,
+                //an earlier one is not pulled forward over the commands which have been submitted after it
+                Command last = mPendingCommands.peekLast();
+                if (last == null || last.type != command.type) return null;
+                if (last.settingsChange != null) {
+                    last.settingsChange.merge(command.settingsChange);
+                } else {
+                    last.action = command.action;
+                }
+                last.results.addAll(command.results);
+                mCoalescedCount++;
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraCommandQueue.coalesce(): " + command.type);
+                return last;
+            case STOP:
+            case STANDBY:
+                //there is no reason to start the camera which is going to be stopped
+                Iterator<Command> iterator = mPendingCommands.iterator();
+                while (iterator.hasNext()) {
+                    Command pending = iterator.next();
+                    if (pending.type == CommandType.START ||
+                            pending.type == CommandType.RESTART) {
+                        iterator.remove();
+                        cancelledResults.addAll(pending.results);
+                        mCancelledCount++;
+                        Log.d(Constants.LOG_TAG_DEBUG, "CameraCommandQueue.coalesce(): " + pending.type + " cancelled by " + command.type);
+                    }
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private void executeNext() {
+        Command command;
+        synchronized (this) {
+            if (mRunningCommand != null || mPendingCommands.isEmpty()) return;
+            command = mPendingCommands.poll();
+            mRunningCommand = command;
+            mExecutedCount++;
+        }
+
+        Completable completable;
+        try {
+            completable = command.settingsChange != null ? command.settingsChange.apply() : command.action.call();
+        } catch (Exception e) {
+            completable = Completable.error(e);
+        }
+        completable.timeout(command.timeoutMs, TimeUnit.MILLISECONDS, Completable.error(
+                new TimeoutException(command.type + " has not finished in " + command.timeoutMs + " ms")
+        )).subscribe(
+                () -> onCommandFinished(command, null),
+                throwable -> onCommandFinished(command, throwable)
+        );
+    }
+
+    private void onCommandFinished(Command command, Throwable throwable) {
+        synchronized (this) {
+            mRunningCommand = null;
+        }
+        for (CompletableSubject result : command.results) {
+            if (throwable == null) {
+                result.onComplete();
+            } else {
+                result.onError(throwable);
+            }
+        }
+        executeNext();
+    }
+
+    private static class Command {
+        private final CommandType type;
+        private final long timeoutMs;
+        private final List<CompletableSubject> results = new ArrayList<>(1);
+        private Callable<Completable> action;
+        //APPLY_SETTINGS only
+        private final SettingsChange settingsChange;
+
+        private Command(CommandType type,
+                        long timeoutMs,
+                        Callable<Completable> action,
+                        SettingsChange settingsChange,
+                        CompletableSubject result) {
+            this.type = type;
+            this.timeoutMs = timeoutMs;
+            this.action = action;
+            this.settingsChange = settingsChange;
+            results.add(result);
+        }
+    }
+
+    /**
+     * Pending settings: the latest full settings and (or) the latest flashlight state on top of them
+     */
+    private class SettingsChange {
+        private Context context;
+        private CameraSettings settings;
+        private Boolean isFlashlightOn;
+
+        private SettingsChange(Context context, @Nullable CameraSettings settings, @Nullable Boolean isFlashlightOn) {
+            this.context = context;
+            this.settings = settings;
+            this.isFlashlightOn = isFlashlightOn;
+        }
+
+        private void merge(SettingsChange change) {
+            context = change.context;
+            if (change.settings != null) {
+                //full settings already have the latest flashlight state
+                settings = change.settings;
+                isFlashlightOn = null;
+            }
+            if (change.isFlashlightOn != null) isFlashlightOn = change.isFlashlightOn;
+        }
+
+        private Completable apply() {
+            if (settings == null) return mCameraHelper.setFlashlightOnAsync(isFlashlightOn);
+            if (isFlashlightOn != null) settings.setFlashlightOn(isFlashlightOn);
+            return mCameraHelper.applySettingsAsync(context, settings);
+        }
+    }
+}
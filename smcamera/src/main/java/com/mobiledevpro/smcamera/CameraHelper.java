@@ -12,10 +12,13 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.media.Image;
 import android.media.ImageReader;
-import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
@@ -26,23 +29,34 @@ import com.samsung.android.sdk.SsdkUnsupportedException;
 import com.samsung.android.sdk.camera.SCamera;
 import com.samsung.android.sdk.camera.SCameraCaptureSession;
 import com.samsung.android.sdk.camera.SCameraCharacteristics;
+import com.samsung.android.sdk.camera.SCameraConstrainedHighSpeedCaptureSession;
 import com.samsung.android.sdk.camera.SCameraDevice;
 import com.samsung.android.sdk.camera.SCameraManager;
 import com.samsung.android.sdk.camera.SCaptureFailure;
 import com.samsung.android.sdk.camera.SCaptureRequest;
+import com.samsung.android.sdk.camera.SCaptureResult;
 import com.samsung.android.sdk.camera.STotalCaptureResult;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Completable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.Disposables;
+import io.reactivex.schedulers.Schedulers;
 
 /**
  * Camera helper
@@ -54,14 +68,20 @@ import java.util.concurrent.TimeUnit;
  * #MobileDevPro
  */
 @TargetApi(21)
-class CameraHelper implements ICameraHelper {
-
-    private static final int CAMERA_STATE_IDLE = 0;
-    private static final int CAMERA_STATE_START_PREVIEW = 1;
-    private static final int CAMERA_STATE_PREVIEW = 2;
-    private static final int CAMERA_STATE_RECORD_VIDEO = 3;
-    private static final int CAMERA_STATE_CLOSING = 4;
-    private static final int CAMERA_STATE_TAKE_PICTURE = 5;
+class CameraHelper implements ICameraHelper, ICameraHelperAsync {
+
+    //max wait for SCamera pre-initialization which is in progress on the first start
+    private static final long PREWARM_WAIT_MS = 2000;
+    //still results which wait for their JPEG images to be written
+    private static final int CAPTURE_RESULTS_CAPACITY = 16;
+    //PREVIEW size of the guaranteed stream combinations (1080p), the recorder should fit it when RAW is used
+    private static final int RAW_MAX_RECORDER_SIDE = 1920;
+    private static final int RAW_MAX_RECORDER_SHORT_SIDE = 1080;
+    //max wait for the event which finishes an async request, bursts get more time per frame
+    private static final long REQUEST_TIMEOUT_MS = 10000;
+    private static final long REQUEST_FRAME_TIMEOUT_MS = 1000;
+    //request ids start from 1
+    private static final long NO_REQUEST_ID = 0;
 
     private static CameraHelper sHelper;
 
@@ -72,61 +92,201 @@ class CameraHelper implements ICameraHelper {
     private SCameraManager mSCameraManager;
     private SCameraDevice mSCameraDevice;
     private SCameraCaptureSession mSCameraSession;
-    private SCameraCharacteristics mCharacteristics;
+    private volatile CameraCharacteristicsCache.CameraInfo mCameraInfo;
     private SCaptureRequest.Builder mPreviewBuilder;
     private SCaptureRequest.Builder mPhotoCaptureBuilder;
     private ImageReader mImageReader;
+    private final CaptureResultStore mCaptureResults = new CaptureResultStore(CAPTURE_RESULTS_CAPACITY);
     private ImageSaver mImageSaver = new ImageSaver();
+    private volatile BurstCapture mBurstCapture;
+    //not null if the photo reader is the YUV ring of zero shutter lag frames
+    private volatile ZslCapture mZslCapture;
+    //AF/AE precapture of the photo which is being taken
+    private volatile PrecaptureSequence mPrecaptureSequence;
+    //ids of the async requests, events which finish a request carry its id
+    private final AtomicLong mRequestIds = new AtomicLong();
+    //the latest start or restart request, a new capture session reports it as ready
+    private volatile long mReadyRequestId;
+    //exposure bracket which is being captured by mBurstCapture
+    private volatile ExposureBracket.Capture mBracketCapture;
+    //metered exposure for EV brackets
+    private volatile STotalCaptureResult mLastPreviewResult;
+    //RAW_SENSOR output of still captures, null if RAW is disabled or not supported
+    private ImageReader mRawImageReader;
+    private volatile RawCapture mRawCapture;
+    //DNG metadata, it's not in the characteristics cache
+    private SCameraCharacteristics mRawCharacteristics;
+    //the session with the RAW output has failed to configure on this camera, RAW is not used until the camera is reopened
+    private boolean mIsRawSessionFailed;
 
     private String mCameraId;
-    private int mCameraState = CAMERA_STATE_IDLE;
+    private final CameraStateMachine mCameraState = new CameraStateMachine();
 
     private int mLastOrientation = 270;
     private Size mPreviewSize;
+    private Size mPhotoSize;
     private VideoParameter mVideoParameter;
+    //size and fps range of the constrained high speed session, null - regular session
+    private CameraCharacteristicsCache.HighSpeedConfig mHighSpeedConfig;
+    private volatile StreamNegotiator.Result mStreamConfiguration;
     private TextureView mTextureView;
+    private SurfaceTexture mPreviewSurfaceTexture;
 
     private HandlerThread mBackgroundHandlerThread;
     private Handler mBackgroundHandler;
-
-    private MediaRecorder mMediaRecorder;
+    //prepares outputs in parallel with opening of the camera device
+    private HandlerThread mPrepareHandlerThread;
+    private Handler mPrepareHandler;
+    private volatile CameraStartupPipeline mStartupPipeline;
+
+    private IVideoEncoder mVideoEncoder;
+    private VideoEncoderConfig mVideoEncoderConfig;
+    //back-to-back recording, mVideoEncoder is not used then
+    private volatile DoubleBufferedRecorder mDoubleBufferedRecorder;
+    //stop of the recording, 0 - the recorder is ready for the next start
+    private long mRecordingStoppedAt;
+    //sensor frame rate of the current recording
+    private volatile FrameRateMeter mFrameRateMeter;
     private File mVideoFilesDir;
     private File mPhotoFilesDir;
 
-    private CameraSettings mCameraExternalSettings;
-    private File mRecordedVideoFile;
+    private volatile CameraSettingsSnapshot mCameraExternalSettings;
+    //request level settings (e.g. flashlight) have been changed while a picture was taken,
+    //they are applied when the camera is back to the preview
+    private volatile boolean mIsRequestUpdatePending;
+    private int mTextureWidth, mTextureHeight;
+    private final LoopRecording mLoopRecording;
+
+    //restart timing, 0 - there is no restart in progress
+    private long mRestartStartedAt;
+    private boolean mIsWarmRestart;
+
+    //releases the device when standby is expired
+    private Disposable mStandbyTimer = Disposables.disposed();
+    //activity which shows errors of the camera threads, it's not kept while the camera is in standby or stopped
+    private volatile Context mErrorContext;
+
+    //all lifecycle calls are executed here, so UI thread never waits for camera I/O
+    private final Scheduler mControlScheduler = Schedulers.from(
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "CameraControlThread"))
+    );
 
     private SCameraCaptureSession.CaptureCallback mSessionCaptureCallback = new SCameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureProgressed(SCameraCaptureSession session,
+                                        SCaptureRequest request,
+                                        SCaptureResult partialResult) {
+            PrecaptureSequence precapture = mPrecaptureSequence;
+            if (precapture != null) precapture.onCaptureResult(partialResult, true);
+        }
+
         @Override
         public void onCaptureCompleted(SCameraCaptureSession session,
                                        SCaptureRequest request,
                                        STotalCaptureResult result) {
-            // Depends on the current state and capture result, app will take next action.
-            switch (getCameraState()) {
+            CameraStartupPipeline pipeline = mStartupPipeline;
+            if (pipeline != null && !pipeline.isFinished() && pipeline.finish()) {
+                onStartupFinished(pipeline);
+            }
+
+            mLastPreviewResult = result;
 
-                case CAMERA_STATE_IDLE:
-                case CAMERA_STATE_PREVIEW:
-                case CAMERA_STATE_CLOSING:
-                    // do nothing
-                    break;
+            FrameRateMeter meter = mFrameRateMeter;
+            if (meter != null) {
+                Long timestampNs = result.get(SCaptureResult.SENSOR_TIMESTAMP);
+                if (timestampNs != null) meter.onFrame(timestampNs);
             }
+
+            ZslCapture zsl = mZslCapture;
+            if (zsl != null) zsl.onCaptureCompleted(result);
+
+            PrecaptureSequence precapture = mPrecaptureSequence;
+            if (precapture != null) precapture.onCaptureResult(result, false);
         }
     };
 
     private ImageReader.OnImageAvailableListener mImageCallback = reader -> {
-        if (getCameraState() == CAMERA_STATE_CLOSING)
+        if (isCameraClosed())
+            return;
+        ZslCapture zsl = mZslCapture;
+        if (zsl != null) {
+            zsl.onImageAvailable(reader);
             return;
+        }
+        if (mBurstCapture != null) {
+            acquireBurstImages(reader, mBurstCapture);
+            return;
+        }
         Image image = reader.acquireNextImage();
-        mImageSaver.save(image, createNewPhotoFile());
+        PrecaptureSequence precapture = mPrecaptureSequence;
+        mPrecaptureSequence = null;
+        mImageSaver.save(image, precapture == null ? NO_REQUEST_ID : precapture.getRequestId(), precapture == null ? null : precapture.finish());
+    };
+
+    private ImageReader.OnImageAvailableListener mRawImageCallback = reader -> {
+        if (isCameraClosed())
+            return;
+        RawCapture raw = mRawCapture;
+        if (raw == null) return;
+        RawCapture.RawFrame frame = raw.onImageAvailable(reader);
+        if (frame != null) mImageSaver.saveDng(raw, frame, getJpegOrientation());
+    };
+
+    //requests of the precapture sequence, they are sent on the camera thread
+    private final PrecaptureSequence.Actions mPrecaptureActions = new PrecaptureSequence.Actions() {
+        @Override
+        public void triggerAf() {
+            captureTrigger(SCaptureRequest.CONTROL_AF_TRIGGER, SCaptureRequest.CONTROL_AF_TRIGGER_START);
+        }
+
+        @Override
+        public void triggerAePrecapture() {
+            captureTrigger(SCaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER, SCaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+        }
+
+        @Override
+        public void captureStill() {
+            CameraHelper.this.captureStill();
+        }
+    };
+
+    //rotation of the loop recording, called on the encoder threads
+    private final IVideoEncoder.SegmentCallback mSegmentCallback = new IVideoEncoder.SegmentCallback() {
+        @NonNull
+        @Override
+        public File createSegmentFile() {
+            return mLoopRecording.createSegmentFile();
+        }
+
+        @Override
+        public void onSegmentFinished(@NonNull IVideoEncoder.Segment segment) {
+            CameraSettingsSnapshot settings = mCameraExternalSettings != null ?
+                    mCameraExternalSettings :
+                    new CameraSettings().snapshot();
+            mLoopRecording.onSegmentFinished(segment, settings.getLoopMaxSegments(), settings.getLoopQuotaBytes());
+            RxEventBus.getInstance().setEvent(new RxEventOnVideoSegmentFinished(segment));
+        }
     };
 
     private CameraHelper(@NonNull File videoFilesDir,
                          @NonNull File photoFilesDir) {
         mVideoFilesDir = videoFilesDir;
         mPhotoFilesDir = photoFilesDir;
+        mLoopRecording = new LoopRecording(videoFilesDir);
 
         Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.CameraHelper(): Video files dir: " + mVideoFilesDir);
         Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.CameraHelper(): Photo files dir: " + photoFilesDir);
+
+        mCameraState.addListener((fromState, toState) ->
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onStateChanged(): " +
+                        CameraStateMachine.getStateName(fromState) + " -> " + CameraStateMachine.getStateName(toState))
+        );
+        mCameraState.addListener((fromState, toState) -> {
+            Handler handler = mBackgroundHandler;
+            if (toState == CameraStateMachine.CAMERA_STATE_PREVIEW && mIsRequestUpdatePending && handler != null) {
+                handler.post(this::updateRepeatingRequest);
+            }
+        });
     }
 
     public static CameraHelper init(@NonNull File videoFilesDir,
@@ -135,6 +295,8 @@ class CameraHelper implements ICameraHelper {
             sHelper = new CameraHelper(
                     videoFilesDir,
                     photoFilesDir);
+        //picks up SCamera which has been initialized at application start, if it's ready
+        sHelper.mControlScheduler.scheduleDirect(() -> sHelper.adoptPrewarmedSCamera(0));
         return sHelper;
     }
 
@@ -146,78 +308,490 @@ class CameraHelper implements ICameraHelper {
 
     @Override
     public boolean isFlashlightSupported() {
-        return mCharacteristics != null && mCharacteristics.get(SCameraCharacteristics.FLASH_INFO_AVAILABLE);
+        return mCameraInfo != null && mCameraInfo.isFlashAvailable();
+    }
+
+    @Override
+    public StreamNegotiator.Result getStreamConfiguration() {
+        return mStreamConfiguration;
+    }
+
+    @Override
+    public PreRollBuffer.Occupancy getPreRollOccupancy() {
+        IVideoEncoder encoder = mVideoEncoder;
+        return encoder != null ? encoder.getPreRollOccupancy() : null;
+    }
+
+    @Override
+    public void startCamera(Context context,
+                            TextureView textureView,
+                            int textureWidth,
+                            int textureHeight,
+                            @NonNull CameraSettings cameraSettings) {
+        runDetached("startCamera", startCameraAsync(context, textureView, textureWidth, textureHeight, cameraSettings));
+    }
+
+    @Override
+    public void stopCamera(Context context) {
+        runDetached("stopCamera", stopCameraAsync(context));
+    }
+
+    @Override
+    public void enterStandby(Context context) {
+        runDetached("enterStandby", enterStandbyAsync(context));
     }
 
     @Override
-    public synchronized void startCamera(Context context,
-                                         TextureView textureView,
-                                         int textureWidth,
-                                         int textureHeight,
-                                         @NonNull CameraSettings cameraSettings) {
+    public void restartCamera(Context context,
+                              TextureView textureView,
+                              int textureWidth,
+                              int textureHeight,
+                              @NonNull CameraSettings cameraSettings) {
+        runDetached("restartCamera", restartCameraAsync(context, textureView, textureWidth, textureHeight, cameraSettings));
+    }
+
+    @Override
+    public void applySettings(Context context, @NonNull CameraSettings cameraSettings) {
+        runDetached("applySettings", applySettingsAsync(context, cameraSettings));
+    }
+
+    @Override
+    public void startStopVideoRecording() {
+        runDetached("startStopVideoRecording", startStopVideoRecordingAsync());
+    }
+
+    @Override
+    public void takePicture() {
+        runDetached("takePicture", takePictureAsync().toCompletable());
+    }
+
+    @WorkerThread
+    @Override
+    public BurstCapture.Result takeBurst(int frameCount, @NonNull BurstCapture.Backpressure backpressure) {
+        return takeBurstAsync(frameCount, backpressure).blockingGet();
+    }
+
+    @WorkerThread
+    @Override
+    public ExposureBracket.Result takeBracket(@NonNull ExposureBracket bracket) {
+        return takeBracketAsync(bracket).blockingGet();
+    }
+
+    @WorkerThread
+    @Override
+    public ZslCapture.Result takeZslPicture() {
+        return takeZslPictureAsync(SystemClock.elapsedRealtimeNanos()).blockingGet();
+    }
+
+    @Override
+    public void setFlashlightOn(boolean isOn) {
+        runDetached("setFlashlightOn", setFlashlightOnAsync(isOn));
+    }
+
+    @Override
+    public Completable startCameraAsync(Context context,
+                                        TextureView textureView,
+                                        int textureWidth,
+                                        int textureHeight,
+                                        @NonNull CameraSettings cameraSettings) {
+        return runAndAwaitEvent(RxEventOnCameraReady.class, REQUEST_TIMEOUT_MS, requestId -> {
+            mReadyRequestId = requestId;
+            return startCameraInternal(context, textureView, textureWidth, textureHeight, cameraSettings);
+        }).toCompletable();
+    }
+
+    @Override
+    public Completable stopCameraAsync(Context context) {
+        return Completable.fromAction(() -> stopCameraInternal(context))
+                .subscribeOn(mControlScheduler);
+    }
+
+    @Override
+    public Completable enterStandbyAsync(Context context) {
+        return Completable.fromAction(() -> enterStandbyInternal(context))
+                .subscribeOn(mControlScheduler);
+    }
+
+    @Override
+    public Completable restartCameraAsync(Context context,
+                                          TextureView textureView,
+                                          int textureWidth,
+                                          int textureHeight,
+                                          @NonNull CameraSettings cameraSettings) {
+        return runAndAwaitEvent(RxEventOnCameraReady.class, REQUEST_TIMEOUT_MS, requestId -> {
+            mReadyRequestId = requestId;
+            restartCameraInternal(context, textureView, textureWidth, textureHeight, cameraSettings);
+            return true;
+        }).toCompletable();
+    }
+
+    @Override
+    public Completable applySettingsAsync(Context context, @NonNull CameraSettings cameraSettings) {
+        //snapshot is taken on the caller thread, the shared settings can be changed right after the call
+        CameraSettingsSnapshot settings = cameraSettings.snapshot();
+        return Completable.fromAction(() -> applySettingsInternal(context, settings))
+                .subscribeOn(mControlScheduler);
+    }
+
+    @Override
+    public Completable startStopVideoRecordingAsync() {
+        return Completable.fromAction(() -> {
+            //standby encoder is awaited out of the helper lock, so the camera threads are not blocked
+            DoubleBufferedRecorder recorder = mDoubleBufferedRecorder;
+            if (recorder != null && !recorder.awaitStandby())
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecordingAsync(): standby encoder is not ready");
+            startStopVideoRecordingInternal();
+        }).subscribeOn(mControlScheduler);
+    }
+
+    @Override
+    public Single<File> takePictureAsync() {
+        return runAndAwaitEvent(RxEventOnPhotoCaptureFinished.class, REQUEST_TIMEOUT_MS, this::takePictureInternal)
+                .map(event -> ((RxEventOnPhotoCaptureFinished) event).getOutputPhotoFile());
+    }
+
+    @Override
+    public Single<BurstCapture.Result> takeBurstAsync(int frameCount, @NonNull BurstCapture.Backpressure backpressure) {
+        return runAndAwaitEvent(RxEventOnBurstCaptureFinished.class, REQUEST_TIMEOUT_MS + frameCount * REQUEST_FRAME_TIMEOUT_MS,
+                requestId -> takeBurstInternal(frameCount, backpressure, requestId))
+                .map(event -> ((RxEventOnBurstCaptureFinished) event).getResult());
+    }
+
+    @Override
+    public Single<ExposureBracket.Result> takeBracketAsync(@NonNull ExposureBracket bracket) {
+        return runAndAwaitEvent(RxEventOnBracketCaptureFinished.class, REQUEST_TIMEOUT_MS + bracket.getFrameCount() * REQUEST_FRAME_TIMEOUT_MS,
+                requestId -> takeBracketInternal(bracket, requestId))
+                .map(event -> ((RxEventOnBracketCaptureFinished) event).getResult());
+    }
+
+    @Override
+    public Single<ZslCapture.Result> takeZslPictureAsync(long shutterAtNs) {
+        return runAndAwaitEvent(RxEventOnZslCaptureFinished.class, REQUEST_TIMEOUT_MS,
+                requestId -> takeZslPictureInternal(shutterAtNs, requestId))
+                .map(event -> ((RxEventOnZslCaptureFinished) event).getResult());
+    }
+
+    @Override
+    public Completable setFlashlightOnAsync(boolean isOn) {
+        return Completable.defer(() -> {
+            CameraSettingsSnapshot settings = mCameraExternalSettings;
+            if (settings == null) return Completable.complete();
+            return applySettingsAsync(mTextureView == null ? null : mTextureView.getContext(),
+                    settings.toSettings().setFlashlightOn(isOn));
+        });
+    }
+
+    /**
+     * Runs the action on the control thread and waits for the event which finishes it.
+     * Subscription to the events is made before the action is started, so the event cannot be missed.
+     * Every call gets its own request id, events of other requests are skipped.
+     * Errors of the camera device and session fail every call in flight, a failure of another request is skipped.
+     *
+     * @param eventClass Event which finishes the action
+     * @param timeoutMs  The call fails with TimeoutException if the event has not come
+     * @param action     Returns false if the action has not been started
+     */
+    private Single<Object> runAndAwaitEvent(Class<? extends RxRequestEvent> eventClass, long timeoutMs, RequestAction action) {
+        return Single.create(emitter -> {
+            long requestId = mRequestIds.incrementAndGet();
+            Disposable events = RxEventBus.getInstance().getEvents()
+                    .filter(event -> event instanceof RxEventOnCameraError ?
+                            ((RxEventOnCameraError) event).isFailing(requestId) :
+                            eventClass.isInstance(event) && ((RxRequestEvent) event).isFinishing(requestId))
+                    .firstElement()
+                    .subscribe(event -> {
+                        if (event instanceof RxEventOnCameraError) {
+                            emitter.tryOnError(((RxEventOnCameraError) event).getError());
+                        } else {
+                            emitter.onSuccess(event);
+                        }
+                    });
+            emitter.setDisposable(events);
+
+            mControlScheduler.scheduleDirect(() -> {
+                try {
+                    if (!action.run(requestId)) {
+                        emitter.tryOnError(new IllegalStateException("Camera is not ready"));
+                    }
+                } catch (Exception e) {
+                    emitter.tryOnError(e);
+                }
+            });
+        }).timeout(timeoutMs, TimeUnit.MILLISECONDS, Single.error(new TimeoutException(
+                eventClass.getSimpleName() + " has not come in " + timeoutMs + " ms")));
+    }
+
+    /**
+     * Call of the fire-and-forget API: it returns at once like before the async API,
+     * errors are shown by onCameraError, so they are logged only (e.g. a tap while the camera is not ready)
+     */
+    private void runDetached(String callName, Completable completable) {
+        completable.subscribe(() -> {
+        }, throwable -> Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper." + callName + "(): " + throwable.getLocalizedMessage()));
+    }
+
+    private interface RequestAction {
+        /**
+         * @return False if the action has not been started
+         */
+        boolean run(long requestId) throws Exception;
+    }
+
+    private synchronized boolean startCameraInternal(Context context,
+                                                     TextureView textureView,
+                                                     int textureWidth,
+                                                     int textureHeight,
+                                                     @NonNull CameraSettings cameraSettings) {
+        mErrorContext = context;
+        if (mCameraState.is(CameraStateMachine.CAMERA_STATE_STANDBY)) {
+            if (resumeFromStandby(textureView, textureWidth, textureHeight, cameraSettings.snapshot()))
+                return true;
+            //camera device should be changed, so it's a cold start
+            stopCameraInternal(context);
+        }
+
         mTextureView = textureView;
-        mCameraExternalSettings = cameraSettings;
+        mTextureWidth = textureWidth;
+        mTextureHeight = textureHeight;
+        mCameraExternalSettings = cameraSettings.snapshot();
 
-        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startCamera(): \n" +
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startCameraInternal(): \n" +
                 "Texture: W " + mTextureView.getWidth() + " H " + mTextureView.getHeight() + "\n" +
                 "Rotation: " + mCameraExternalSettings.getRotation() + "\n" +
                 "Aspect Ratio: " + String.valueOf(mCameraExternalSettings.getAspectRatio()) + "\n"
         );
 
-        if (!initSCamera(context)) return;
+        CameraTrace.begin(CameraTrace.Stage.HELPER_START);
+        if (!initSCamera(context)) return false;
+        if (!mCameraState.moveTo(CameraStateMachine.CAMERA_STATE_START_PREVIEW)) return false;
 
-        startBackgroundThread(context);
+        startBackgroundThread();
         try {
-            configureCameraParameters();
+            CameraStartupPipeline pipeline = new CameraStartupPipeline(() ->
+                    mBackgroundHandler.post(this::createPreviewSession)
+            );
+            mStartupPipeline = pipeline;
+
+            pipeline.begin(CameraStartupPipeline.Stage.CONFIGURE);
+            configureCameraParameters(context);
             configureTextureViewTransform(textureWidth, textureHeight);
+            pipeline.end(CameraStartupPipeline.Stage.CONFIGURE);
+
+            //device is opened asynchronously, outputs are prepared at the same time
             openCamera();
+            mPrepareHandler.post(() -> prepareOutputs(pipeline));
+            return true;
+        } catch (RuntimeException e) {
+            onCameraError(context, e.getLocalizedMessage());
+            return false;
+        } finally {
+            CameraTrace.end(CameraTrace.Stage.HELPER_START);
+        }
+    }
+
+    private synchronized void stopCameraInternal(Context context) {
+        try {
+            releaseCamera();
         } catch (RuntimeException e) {
             showAlertDialog(context, e.getLocalizedMessage(), true);
         }
     }
 
-    @Override
-    public synchronized void stopCamera(Context context) {
+    /**
+     * Closes the device and stops the camera threads, no activity is needed for it
+     */
+    private synchronized void releaseCamera() throws RuntimeException {
+        mStandbyTimer.dispose();
+        mErrorContext = null;
+        //camera callbacks which are still in the queue are ignored from now
+        mCameraState.moveTo(CameraStateMachine.CAMERA_STATE_CLOSING);
         stopBackgroundThread();
         try {
             closeCamera();
-        } catch (RuntimeException e) {
-            showAlertDialog(context, e.getLocalizedMessage(), true);
+        } finally {
+            mTextureView = null;
+            mCameraState.moveTo(CameraStateMachine.CAMERA_STATE_IDLE);
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.releaseCamera(): " + mCameraState + "\n" + BufferPool.get());
+            //photos which are still being written hold their buffers, so leaks are checked after them
+            if (BufferPool.get().isLeakTrackingEnabled()) {
+                mImageSaver.runAfterPendingWrites(BufferPool.get()::checkLeaks);
+            }
         }
+    }
+
+    private synchronized void enterStandbyInternal(Context context) {
+        CameraSettingsSnapshot settings = mCameraExternalSettings;
+        int timeoutMs = settings == null ? 0 : settings.getStandbyTimeoutMs();
+        if (timeoutMs <= 0 ||
+                mSCameraDevice == null ||
+                mBackgroundHandler == null ||
+                !mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_STANDBY)) {
+            stopCameraInternal(context);
+            return;
+        }
+
+        //preview surface is released with the stopped view, the device, recorder and image reader are kept
+        mBackgroundHandler.post(() -> {
+            stopPreview();
+            if (mSCameraSession != null) {
+                mSCameraSession.close();
+                mSCameraSession = null;
+            }
+        });
         mTextureView = null;
+        mPreviewSurfaceTexture = null;
+
+        //activity can be destroyed while the camera is in standby, so errors are only reported by the event
+        mErrorContext = null;
+        mStandbyTimer.dispose();
+        mStandbyTimer = Completable.timer(timeoutMs, TimeUnit.MILLISECONDS, mControlScheduler)
+                .subscribe(this::onStandbyExpired);
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.enterStandbyInternal(): device is kept open for " + timeoutMs + " ms");
     }
 
-    @Override
-    public void restartCamera(Context context,
-                              TextureView textureView,
-                              int textureWidth,
-                              int textureHeight,
-                              @NonNull CameraSettings cameraSettings) {
-        stopCamera(context);
-        initSCamera(context);
-        startCamera(context, textureView, textureWidth, textureHeight, cameraSettings);
+    private synchronized void onStandbyExpired() {
+        if (!mCameraState.is(CameraStateMachine.CAMERA_STATE_STANDBY)) return;
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onStandbyExpired(): release the camera device");
+        try {
+            releaseCamera();
+        } catch (RuntimeException e) {
+            onCameraError(null, e.getLocalizedMessage());
+        }
     }
 
-    @Override
-    public synchronized void startStopVideoRecording() {
-        if (getCameraState() == CAMERA_STATE_PREVIEW) {
-            setCameraState(CAMERA_STATE_RECORD_VIDEO);
+    /**
+     * Reattaches the preview surface and restarts the repeating request, the device is already opened
+     *
+     * @return False if the camera device should be reopened for the new settings
+     */
+    private boolean resumeFromStandby(TextureView textureView,
+                                      int textureWidth,
+                                      int textureHeight,
+                                      @NonNull CameraSettingsSnapshot settings) {
+        if (mSCameraDevice == null ||
+                CameraSettingsDiff.between(mCameraExternalSettings, settings).getTier() == CameraSettingsDiff.Tier.CAMERA_DEVICE)
+            return false;
+
+        mStandbyTimer.dispose();
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.resumeFromStandby(): ");
+        //preview surface has been released, so the capture session is always rebuilt
+        restartCameraWarm(textureView, textureWidth, textureHeight, settings, SystemClock.elapsedRealtime());
+        return true;
+    }
+
+    private synchronized void restartCameraInternal(Context context,
+                                                    TextureView textureView,
+                                                    int textureWidth,
+                                                    int textureHeight,
+                                                    @NonNull CameraSettings cameraSettings) {
+        long restartStartedAt = SystemClock.elapsedRealtime();
+        CameraSettingsSnapshot settings = cameraSettings.snapshot();
+        if (settings.isWarmRestartEnabled() && isWarmRestartPossible(settings)) {
+            restartCameraWarm(textureView, textureWidth, textureHeight, settings, restartStartedAt);
+            return;
+        }
+
+        restartCameraFull(context, textureView, textureWidth, textureHeight, cameraSettings, restartStartedAt);
+    }
+
+    private synchronized void applySettingsInternal(Context context, @NonNull CameraSettingsSnapshot settings) {
+        CameraSettingsDiff diff = CameraSettingsDiff.between(mCameraExternalSettings, settings);
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.applySettingsInternal(): " + diff);
+
+        if (mCameraState.is(CameraStateMachine.CAMERA_STATE_STANDBY) &&
+                diff.getTier() == CameraSettingsDiff.Tier.CAMERA_DEVICE) {
+            //another device is needed, there is no reason to keep this one
+            stopCameraInternal(context);
+        }
+
+        if (mSCameraDevice == null || mTextureView == null) {
+            //camera is not opened or it's in standby, settings will be applied on start
+            mCameraExternalSettings = settings;
+            return;
+        }
+
+        if (mCameraState.is(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO) &&
+                diff.getTier().compareTo(CameraSettingsDiff.Tier.CAPTURE_SESSION) >= 0) {
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.applySettingsInternal(): cannot be applied while recording");
+            return;
+        }
+
+        long startedAt = SystemClock.elapsedRealtime();
+        switch (diff.getTier()) {
+            case NONE:
+                mCameraExternalSettings = settings;
+                if (diff.isChanged(CameraSettingsDiff.Field.ROTATION)) {
+                    configureTextureViewTransform(mTextureWidth, mTextureHeight);
+                }
+                break;
+            case REPEATING_REQUEST:
+                mCameraExternalSettings = settings;
+                mBackgroundHandler.post(this::updateRepeatingRequest);
+                break;
+            case CAPTURE_SESSION:
+                if (isWarmRestartPossible(settings)) {
+                    restartCameraWarm(mTextureView, mTextureWidth, mTextureHeight, settings, startedAt);
+                } else {
+                    restartCameraFull(context, mTextureView, mTextureWidth, mTextureHeight, settings.toSettings(), startedAt);
+                }
+                break;
+            case CAMERA_DEVICE:
+                restartCameraFull(context, mTextureView, mTextureWidth, mTextureHeight, settings.toSettings(), startedAt);
+                break;
+        }
+    }
+
+    private synchronized void startStopVideoRecordingInternal() {
+        if (mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_RECORD_VIDEO) ||
+                mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_RECORD_VIDEO)) {
             //start video recording
-            mMediaRecorder.start();
-            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecording(): START RECORD");
-        } else if (getCameraState() == CAMERA_STATE_RECORD_VIDEO) {
+            if (mDoubleBufferedRecorder != null) {
+                Surface surface;
+                try {
+                    surface = mDoubleBufferedRecorder.start();
+                } catch (RuntimeException e) {
+                    //standby encoder is not ready, the preview goes on
+                    mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO, CameraStateMachine.CAMERA_STATE_PREVIEW);
+                    throw e;
+                }
+                setEncoderTargetEnabled(surface, true);
+            } else {
+                mVideoEncoder.start();
+                if (!mVideoEncoder.isInputConsumedBeforeStart())
+                    setEncoderTargetEnabled(mVideoEncoder.getInputSurface(), true);
+            }
+            mFrameRateMeter = new FrameRateMeter(mVideoParameter.getFpsRange().getUpper());
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecordingInternal(): START RECORD " + mVideoEncoderConfig);
+        } else if (mDoubleBufferedRecorder != null &&
+                mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO, CameraStateMachine.CAMERA_STATE_PREVIEW)) {
+            //stop video recording, the session is kept and the standby encoder is ready
+            mRecordingStoppedAt = SystemClock.elapsedRealtime();
+            setEncoderTargetEnabled(mDoubleBufferedRecorder.getRecordingSurface(), false);
+            mDoubleBufferedRecorder.stop();
+            onFrameRateMeasured();
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecordingInternal(): STOP RECORD");
+            onRecorderReady();
+        } else if (mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO, CameraStateMachine.CAMERA_STATE_START_PREVIEW)) {
             //stop video recording
-            mMediaRecorder.stop();
-            mMediaRecorder.reset();
+            mRecordingStoppedAt = SystemClock.elapsedRealtime();
+            if (!mVideoEncoder.isInputConsumedBeforeStart())
+                setEncoderTargetEnabled(mVideoEncoder.getInputSurface(), false);
+            IVideoEncoder.Stats stats = mVideoEncoder.stop();
+            onFrameRateMeasured();
+            //the last segment of the loop recording
+            File outputFile = mVideoEncoder.getOutputFile();
+            mVideoEncoder.release();
+            mVideoEncoder = null;
 
             RxEventBus.getInstance().setEvent(
-                    new RxEventOnVideoCaptureFinished(mRecordedVideoFile)
+                    new RxEventOnVideoCaptureFinished(outputFile, stats)
             );
 
-            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecording(): STOP RECORD");
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startStopVideoRecordingInternal(): STOP RECORD" +
+                    (stats != null ? ", " + stats : ""));
 
             mBackgroundHandler.post(() -> {
-                prepareMediaRecorder();
+                prepareVideoEncoder();
                 //start preview again
                 createPreviewSession();
             });
@@ -225,45 +799,297 @@ class CameraHelper implements ICameraHelper {
         }
     }
 
-    @Override
-    public synchronized void takePicture() {
-        if (getCameraState() == CAMERA_STATE_CLOSING) return;
+    /**
+     * @return False if the camera is not ready to take a picture
+     */
+    private synchronized boolean takePictureInternal(long requestId) {
+        //there is no photo output in the constrained high speed session
+        if (mImageReader == null) return false;
+        //photo reader is the ZSL ring, a still capture request has no JPEG output
+        if (mZslCapture != null) return takeZslPictureInternal(SystemClock.elapsedRealtimeNanos(), requestId);
+        //the image is matched to the request of the running sequence, so there is one still capture at a time
+        if (mPrecaptureSequence != null) return false;
+        //while recording a picture is captured without leaving the recording state
+        if (!mCameraState.is(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO) &&
+                !mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_TAKE_PICTURE))
+            return false;
         // Sets orientation
         mPhotoCaptureBuilder.set(SCaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+
+        //triggers would be visible in the video, so the photo is taken as is while recording
+        boolean isRecording = mCameraState.is(CameraStateMachine.CAMERA_STATE_RECORD_VIDEO);
+        Integer afMode = mPreviewBuilder.get(SCaptureRequest.CONTROL_AF_MODE);
+        Integer aeMode = mPreviewBuilder.get(SCaptureRequest.CONTROL_AE_MODE);
+        //AF state of a fixed focus lens is always INACTIVE, there is nothing to lock
+        boolean isFixedFocus = mCameraInfo != null && mCameraInfo.isFixedFocus();
+        PrecaptureSequence precapture = new PrecaptureSequence(
+                !isRecording && !isFixedFocus && afMode != null &&
+                        afMode != SCaptureRequest.CONTROL_AF_MODE_OFF &&
+                        afMode != SCaptureRequest.CONTROL_AF_MODE_EDOF,
+                !isRecording && aeMode != null && aeMode != SCaptureRequest.CONTROL_AE_MODE_OFF,
+                mPrecaptureActions,
+                requestId
+        );
+        mPrecaptureSequence = precapture;
+        mBackgroundHandler.post(precapture::start);
+        return true;
+    }
+
+    /**
+     * Sends a single preview request with the trigger. Called on the camera thread.
+     */
+    private <T> void captureTrigger(SCaptureRequest.Key<T> key, T value) {
+        if (mSCameraSession == null || isCameraClosed()) return;
+        try {
+            mPreviewBuilder.set(key, value);
+            mSCameraSession.capture(mPreviewBuilder.build(), mSessionCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Precapture trigger failed. Error: " + e.getLocalizedMessage());
+        } finally {
+            //repeating request should not repeat the trigger
+            mPreviewBuilder.set(key, null);
+        }
+    }
+
+    /**
+     * Fires the still request when the precapture is finished. Called on the camera thread.
+     */
+    private void captureStill() {
+        PrecaptureSequence precapture = mPrecaptureSequence;
+        RawCapture raw = mRawCapture;
+        if (mSCameraSession == null || isCameraClosed()) return;
         try {
-            mSCameraSession.capture(mPhotoCaptureBuilder.build(), new SCameraCaptureSession.CaptureCallback() {
+            //RAW output is added to single photos only, bursts stay JPEG
+            if (raw != null) mPhotoCaptureBuilder.addTarget(mRawImageReader.getSurface());
+            SCaptureRequest request = mPhotoCaptureBuilder.build();
+            if (raw != null) mPhotoCaptureBuilder.removeTarget(mRawImageReader.getSurface());
+
+            long requestedAtNs = SystemClock.elapsedRealtimeNanos();
+            mSCameraSession.capture(request, new SCameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(SCameraCaptureSession session, SCaptureRequest request, long timestamp, long frameNumber) {
+                    //capture-to-DNG latency is measured from the request
+                    if (raw != null) raw.onCaptureStarted(timestamp, requestedAtNs);
+                }
+
+                @Override
+                public void onCaptureCompleted(SCameraCaptureSession session, SCaptureRequest request, STotalCaptureResult result) {
+                    mCaptureResults.put(result);
+                    if (raw != null) {
+                        RawCapture.RawFrame frame = raw.onCaptureCompleted(result);
+                        if (frame != null) mImageSaver.saveDng(raw, frame, getJpegOrientation());
+                    }
+                    if (precapture != null && precapture.isAfLockNeeded()) {
+                        //continuous AF is resumed
+                        captureTrigger(SCaptureRequest.CONTROL_AF_TRIGGER, SCaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+                    }
+                    mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_PREVIEW);
+                }
+
                 @Override
                 public void onCaptureFailed(SCameraCaptureSession session, SCaptureRequest request, SCaptureFailure failure) {
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
-                    throw new RuntimeException("Photo capture failed. Error: " + failure.toString());
+                    if (isCameraClosed()) return;
+                    mPrecaptureSequence = null;
+                    mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_PREVIEW);
+                    //the session is fine, so only this picture fails
+                    onCameraError(mErrorContext, new CameraRequestException(
+                            precapture == null ? NO_REQUEST_ID : precapture.getRequestId(),
+                            "Photo capture failed. Error: " + failure.toString()));
                 }
             }, mBackgroundHandler);
-
         } catch (CameraAccessException e) {
+            mPrecaptureSequence = null;
+            mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_PREVIEW);
             throw new RuntimeException("Photo capture failed. Error: " + e.getLocalizedMessage());
         }
     }
 
-    @Override
-    public void setFlashlightOn(boolean isOn) {
-        mBackgroundHandler.post(() -> {
-            try {
-                if (mCharacteristics.get(SCameraCharacteristics.FLASH_INFO_AVAILABLE)) {
-                    mPreviewBuilder.set(SCaptureRequest.FLASH_MODE,
-                            isOn ? SCaptureRequest.FLASH_MODE_TORCH : SCaptureRequest.FLASH_MODE_OFF);
-                    mSCameraSession.setRepeatingRequest(mPreviewBuilder.build(),
-                            mSessionCaptureCallback,
-                            mBackgroundHandler);
-
-                    mPhotoCaptureBuilder.set(SCaptureRequest.FLASH_MODE, isOn
-                            ? SCaptureRequest.FLASH_MODE_SINGLE
-                            : SCaptureRequest.FLASH_MODE_OFF);
-                    mPhotoCaptureBuilder.set(SCaptureRequest.CONTROL_AE_MODE,
-                            isOn ? SCaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH : SCaptureRequest.CONTROL_AE_MODE_ON);
+    /**
+     * Takes the ZSL frame which is the closest to the shutter press and encodes it on the I/O thread.
+     * If merge is enabled, the next closest frames are taken as well and merged with it before the encoding.
+     * There is no capture request, so it doesn't change the camera state and works while recording.
+     *
+     * @return False if ZSL is disabled or there are no frames yet
+     */
+    private synchronized boolean takeZslPictureInternal(long shutterAtNs, long requestId) {
+        ZslCapture zsl = mZslCapture;
+        if (zsl == null ||
+                !mCameraState.isIn(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_RECORD_VIDEO))
+            return false;
+
+        CameraSettingsSnapshot settings = mCameraExternalSettings;
+        List<ZslCapture.Frame> frames = zsl.takeClosestFrames(shutterAtNs, settings == null ? 1 : settings.getZslMergeFrames());
+        if (frames.isEmpty()) return false;
+        mImageSaver.saveZslFrames(frames, getJpegOrientation(), getFrameDurationNs(frames.get(0).getResult()), requestId);
+        return true;
+    }
+
+    /**
+     * Frame duration from the capture result or from the target fps range
+     */
+    private long getFrameDurationNs(@Nullable STotalCaptureResult result) {
+        Long frameDuration = result == null ? null : result.get(SCaptureResult.SENSOR_FRAME_DURATION);
+        if (frameDuration != null) return frameDuration;
+        return 1000000000L / mVideoParameter.getFpsRange().getUpper();
+    }
+
+    /**
+     * @return False if the camera is not ready to take a burst
+     */
+    private synchronized boolean takeBurstInternal(int frameCount, @NonNull BurstCapture.Backpressure backpressure, long requestId) {
+        if (frameCount < 1 || mZslCapture != null || mImageReader == null) return false;
+        if (!mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_TAKE_PICTURE))
+            return false;
+
+        mPhotoCaptureBuilder.set(SCaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+        BurstCapture burst = new BurstCapture(frameCount, backpressure, mImageReader.getMaxImages(), requestId);
+        mBurstCapture = burst;
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.takeBurstInternal(): " + frameCount + " frames, " +
+                backpressure + ", ring " + mImageReader.getMaxImages());
+        mBackgroundHandler.post(() -> submitBurstFrames(burst));
+        return true;
+    }
+
+    /**
+     * Captures the bracket as a single burst, frames are saved like burst frames
+     *
+     * @return False if the camera is not ready or the photo reader is the ZSL ring
+     */
+    private synchronized boolean takeBracketInternal(@NonNull ExposureBracket bracket, long requestId) {
+        if (mZslCapture != null || mImageReader == null || mCameraInfo == null) return false;
+        if (!mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_TAKE_PICTURE))
+            return false;
+
+        ExposureBracket.Capture capture;
+        try {
+            mPhotoCaptureBuilder.set(SCaptureRequest.JPEG_ORIENTATION, getJpegOrientation());
+            capture = bracket.newCapture(mPhotoCaptureBuilder, mPreviewBuilder, mCameraInfo, mLastPreviewResult);
+        } catch (RuntimeException e) {
+            mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_PREVIEW);
+            throw e;
+        }
+
+        //all frames are requested at once, the saver backpressure copies them out of the ring
+        BurstCapture burst = new BurstCapture(bracket.getFrameCount(), BurstCapture.Backpressure.DROP_OLDEST,
+                mImageReader.getMaxImages(), requestId);
+        capture.setBurst(burst);
+        mBracketCapture = capture;
+        mBurstCapture = burst;
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.takeBracketInternal(): " + bracket.getFrameCount() + " frames");
+        mBackgroundHandler.post(() -> submitBracketFrames(capture));
+        return true;
+    }
+
+    /**
+     * Submits all frames of the bracket as one burst. Called on the camera thread.
+     */
+    private void submitBracketFrames(ExposureBracket.Capture capture) {
+        BurstCapture burst = capture.getBurst();
+        if (mBurstCapture != burst || mSCameraSession == null) return;
+        try {
+            mSCameraSession.captureBurst(capture.getRequests(), new SCameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(SCameraCaptureSession session, SCaptureRequest request, STotalCaptureResult result) {
+                    if (!capture.isFrame(request)) return;
+                    mCaptureResults.put(result);
+                    capture.onCaptureCompleted(request, result);
                 }
-            } catch (CameraAccessException e) {
-                throw new RuntimeException("Failed to turn " + (isOn ? "on" : "off") + " the flashlight. Error: " + e.getLocalizedMessage());
+
+                @Override
+                public void onCaptureFailed(SCameraCaptureSession session, SCaptureRequest request, SCaptureFailure failure) {
+                    if (isCameraClosed() || !capture.isFrame(request)) return;
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.submitBracketFrames(): frame failed " + failure.getReason());
+                    burst.onCaptureFailed();
+                    onBurstFrameFinished(burst);
+                }
+            }, mBackgroundHandler);
+            burst.onSubmitted(capture.getFrameCount());
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Bracket capture failed. Error: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Requests as many frames as backpressure allows. Called on the camera thread.
+     */
+    private void submitBurstFrames(BurstCapture burst) {
+        if (mBurstCapture != burst || mSCameraSession == null) return;
+        int count = burst.getFramesToSubmit();
+        if (count == 0) return;
+
+        SCaptureRequest request = mPhotoCaptureBuilder.build();
+        List<SCaptureRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            requests.add(request);
+        }
+        try {
+            mSCameraSession.captureBurst(requests, new SCameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(SCameraCaptureSession session, SCaptureRequest request, STotalCaptureResult result) {
+                    mCaptureResults.put(result);
+                }
+
+                @Override
+                public void onCaptureFailed(SCameraCaptureSession session, SCaptureRequest request, SCaptureFailure failure) {
+                    if (isCameraClosed()) return;
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.submitBurstFrames(): frame failed " + failure.getReason());
+                    burst.onCaptureFailed();
+                    onBurstFrameFinished(burst);
+                }
+            }, mBackgroundHandler);
+            burst.onSubmitted(count);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Burst capture failed. Error: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Acquires images while there are free slots in the ring, applies backpressure otherwise
+     */
+    private void acquireBurstImages(ImageReader reader, BurstCapture burst) {
+        while (true) {
+            if (burst.makeRoom(BufferPool.get())) {
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.acquireBurstImages(): saver is behind, oldest frame in the ring is dropped");
+                onBurstFrameFinished(burst);
+            }
+            //the image waits in the reader until the saver frees a slot
+            if (!burst.hasFreeSlot()) return;
+
+            Image image = reader.acquireNextImage();
+            if (image == null) return;
+            burst.onImageAcquired(image);
+            mImageSaver.saveBurstImage(burst);
+        }
+    }
+
+    /**
+     * Frame of the burst has been saved or dropped
+     */
+    private void onBurstFrameFinished(BurstCapture burst) {
+        if (burst.isFinished()) {
+            if (mBurstCapture != burst) return;
+            mBurstCapture = null;
+            mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE, CameraStateMachine.CAMERA_STATE_PREVIEW);
+
+            ExposureBracket.Capture bracket = mBracketCapture;
+            if (bracket != null && bracket.getBurst() == burst) {
+                mBracketCapture = null;
+                ExposureBracket.Result bracketResult = bracket.toResult();
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onBurstFrameFinished(): " + bracketResult);
+                RxEventBus.getInstance().setEvent(new RxEventOnBracketCaptureFinished(burst.getRequestId(), bracketResult));
+                return;
             }
+
+            BurstCapture.Result result = burst.toResult();
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onBurstFrameFinished(): " + result);
+            RxEventBus.getInstance().setEvent(new RxEventOnBurstCaptureFinished(burst.getRequestId(), result));
+            return;
+        }
+
+        mBackgroundHandler.post(() -> {
+            //images which are waiting in the reader and next frames of the paused burst
+            if (mImageReader != null) acquireBurstImages(mImageReader, burst);
+            if (burst.getBackpressure() == BurstCapture.Backpressure.PAUSE_CAPTURE) submitBurstFrames(burst);
         });
     }
 
@@ -271,14 +1097,20 @@ class CameraHelper implements ICameraHelper {
      * Starts background thread that callback from camera will posted.
      * NOTE: calls in onStart or onResume
      */
-    private void startBackgroundThread(Context context) throws RuntimeException {
+    private void startBackgroundThread() throws RuntimeException {
         mBackgroundHandlerThread = new HandlerThread("CameraThread");
+        //threads live through the standby, so the activity is not captured here
         mBackgroundHandlerThread.setUncaughtExceptionHandler((thread, throwable) -> {
             Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.startBackgroundThread(): " + throwable.getLocalizedMessage());
-            showAlertDialog(context, throwable.getLocalizedMessage(), true);
+            onCameraError(mErrorContext, throwable);
         });
         mBackgroundHandlerThread.start();
         mBackgroundHandler = new Handler(mBackgroundHandlerThread.getLooper());
+
+        mPrepareHandlerThread = new HandlerThread("CameraPrepareThread");
+        mPrepareHandlerThread.setUncaughtExceptionHandler(mBackgroundHandlerThread.getUncaughtExceptionHandler());
+        mPrepareHandlerThread.start();
+        mPrepareHandler = new Handler(mPrepareHandlerThread.getLooper());
     }
 
     /**
@@ -286,6 +1118,17 @@ class CameraHelper implements ICameraHelper {
      * NOTE: calls in onStop or onPause
      */
     private void stopBackgroundThread() {
+        if (mPrepareHandlerThread != null) {
+            mPrepareHandlerThread.quitSafely();
+            try {
+                mPrepareHandlerThread.join();
+                mPrepareHandlerThread = null;
+                mPrepareHandler = null;
+            } catch (InterruptedException e) {
+                Log.e(Constants.LOG_TAG_ERROR, "CameraHelper.stopBackgroundThread: InterruptedException: " + e.getLocalizedMessage(), e);
+            }
+        }
+
         if (mBackgroundHandlerThread != null) {
             mBackgroundHandlerThread.quitSafely();
             try {
@@ -299,6 +1142,138 @@ class CameraHelper implements ICameraHelper {
     }
 
 
+    /**
+     * Check if the camera can be restarted without reopening the device
+     */
+    private boolean isWarmRestartPossible(CameraSettingsSnapshot settings) {
+        return mSCamera != null &&
+                mSCameraDevice != null &&
+                mBackgroundHandler != null &&
+                mCameraInfo != null &&
+                mCameraState.isIn(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_START_PREVIEW) &&
+                CameraSettingsDiff.between(mCameraExternalSettings, settings).getTier() != CameraSettingsDiff.Tier.CAMERA_DEVICE;
+    }
+
+    /**
+     * Restarts the camera with reopening of the device
+     */
+    private void restartCameraFull(Context context,
+                                   TextureView textureView,
+                                   int textureWidth,
+                                   int textureHeight,
+                                   @NonNull CameraSettings cameraSettings,
+                                   long restartStartedAt) {
+        stopCameraInternal(context);
+        mIsWarmRestart = false;
+        mRestartStartedAt = restartStartedAt;
+        startCameraInternal(context, textureView, textureWidth, textureHeight, cameraSettings);
+    }
+
+    /**
+     * Restarts the camera keeping SCamera, the camera thread and the opened device.
+     * Recorder and image reader are rebuilt only if the output sizes have been changed,
+     * capture session is rebuilt only if outputs or preview surface have been changed.
+     */
+    private synchronized void restartCameraWarm(TextureView textureView,
+                                                int textureWidth,
+                                                int textureHeight,
+                                                @NonNull CameraSettingsSnapshot settings,
+                                                long restartStartedAt) {
+        CameraSettingsDiff diff = CameraSettingsDiff.between(mCameraExternalSettings, settings);
+        mCameraExternalSettings = settings;
+        Size prevPhotoSize = mPhotoSize;
+        configureOutputSizes();
+
+        boolean isRecorderChanged = !createVideoEncoderConfig().equals(mVideoEncoderConfig) ||
+                isBackToBackRecording() != (mDoubleBufferedRecorder != null);
+        int zslRingSize = getZslRingSize();
+        boolean isImageReaderChanged = mHighSpeedConfig != null ?
+                mImageReader != null :
+                !mPhotoSize.equals(prevPhotoSize) ||
+                        mImageReader == null ||
+                        mImageReader.getImageFormat() != getPhotoReaderFormat(zslRingSize) ||
+                        mImageReader.getMaxImages() != getPhotoReaderMaxImages(zslRingSize) ||
+                        (mRawImageReader != null) != (getRawSize(zslRingSize) != null);
+        boolean isPreviewChanged = textureView != mTextureView ||
+                textureView.getSurfaceTexture() != mPreviewSurfaceTexture;
+        //session type is changed even if the outputs are the same
+        boolean isHighSpeedChanged = (mHighSpeedConfig != null) !=
+                (mSCameraSession instanceof SCameraConstrainedHighSpeedCaptureSession);
+
+        mTextureView = textureView;
+        mTextureWidth = textureWidth;
+        mTextureHeight = textureHeight;
+        configureTextureViewTransform(textureWidth, textureHeight);
+
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.restartCameraWarm(): " + diff + ", " +
+                "recorder changed " + isRecorderChanged +
+                ", image reader changed " + isImageReaderChanged +
+                ", preview changed " + isPreviewChanged +
+                ", high speed changed " + isHighSpeedChanged);
+
+        mIsWarmRestart = true;
+        mRestartStartedAt = restartStartedAt;
+
+        if (!isRecorderChanged && !isImageReaderChanged && !isPreviewChanged && !isHighSpeedChanged) {
+            //outputs are the same, update request parameters if it's needed
+            if (diff.getTier() == CameraSettingsDiff.Tier.REPEATING_REQUEST) {
+                mBackgroundHandler.post(this::updateRepeatingRequest);
+            }
+            onRestartFinished();
+            RxEventBus.getInstance().setEvent(new RxEventOnCameraReady(mReadyRequestId));
+            return;
+        }
+
+        mBackgroundHandler.post(() -> {
+            stopPreview();
+            if (mSCameraSession != null) {
+                mSCameraSession.close();
+                mSCameraSession = null;
+            }
+
+            if (isImageReaderChanged) {
+                closeImageReader();
+                createImageReader();
+            }
+
+            if (isRecorderChanged) {
+                releaseVideoEncoder();
+                prepareVideoEncoder();
+            }
+
+            createPreviewSession();
+        });
+    }
+
+    /**
+     * Reports restart duration if there is a restart in progress
+     */
+    private void onRestartFinished() {
+        if (mRestartStartedAt == 0) return;
+        long durationMs = SystemClock.elapsedRealtime() - mRestartStartedAt;
+        mRestartStartedAt = 0;
+
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onRestartFinished(): " +
+                (mIsWarmRestart ? "warm" : "full") + " restart took " + durationMs + " ms");
+        RxEventBus.getInstance().setEvent(new RxEventOnCameraRestarted(mIsWarmRestart, durationMs));
+    }
+
+    /**
+     * Takes SCamera instance from {@link CameraPrewarmer}
+     *
+     * @param waitMs Time to wait for the pre-initialization which is in progress
+     * @return True if the prewarmed instance has been taken
+     */
+    private synchronized boolean adoptPrewarmedSCamera(long waitMs) {
+        if (mSCamera != null) return false;
+        SCamera sCamera = CameraPrewarmer.takeSCamera(waitMs);
+        if (sCamera == null) return false;
+        mSCamera = sCamera;
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.adoptPrewarmedSCamera(): prewarmed in " +
+                CameraPrewarmer.getPrewarmDurationMs() + " ms");
+        return true;
+    }
+
     /**
      * Init camera
      *
@@ -307,6 +1282,7 @@ class CameraHelper implements ICameraHelper {
      */
     private boolean initSCamera(Context context) {
         if (mSCamera != null) return true;
+        if (adoptPrewarmedSCamera(PREWARM_WAIT_MS)) return true;
         mSCamera = new SCamera();
         String message;
         try {
@@ -322,63 +1298,252 @@ class CameraHelper implements ICameraHelper {
             } else {
                 message = "Fail to initialize SCamera.\n" + message;
             }
-            showAlertDialog(context, message, true);
+            onCameraError(context, message);
         }
 
         return false;
     }
 
-    private void configureCameraParameters() {
+    private void configureCameraParameters(Context context) {
         try {
             if (!mCameraOpenCloseLock.tryAcquire(3000, TimeUnit.MILLISECONDS)) {
                 throw new RuntimeException("Timeout (3 sec) waiting to lock camera opening.");
             }
 
-            //Getting camera id
-            mCameraId = getCameraId(mCameraExternalSettings == null || mCameraExternalSettings.isUseBackCamera());
-            if (mCameraId == null) {
+            //Getting camera id and characteristics (from the cache if it's possible)
+            CameraCharacteristicsCache characteristicsCache = CameraCharacteristicsCache.get(context);
+            mCameraInfo = characteristicsCache.getCameraInfo(
+                    mSCamera.getSCameraManager(),
+                    mCameraExternalSettings == null || mCameraExternalSettings.isUseBackCamera()
+            );
+            if (mCameraInfo == null) {
                 throw new RuntimeException("Cannot get camera parameters. Error: camera id is null. Please, try again.");
             }
+            mCameraId = mCameraInfo.getCameraId();
+            mIsRawSessionFailed = false;
 
-            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.openCamera(): Camera ID " + mCameraId);
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.configureCameraParameters(): " + mCameraInfo + "\n" +
+                    "Characteristics cache: hits " + characteristicsCache.getHitCount() + " misses " + characteristicsCache.getMissCount());
 
-            // acquires camera characteristics
-            mCharacteristics = mSCamera.getSCameraManager().getCameraCharacteristics(mCameraId);
+            configureOutputSizes();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera opening. Error: " + e.getLocalizedMessage());
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Cannot get camera parameters. Error: " + e.getLocalizedMessage());
+        }
+    }
 
-           /* for (Size videoSize : mCharacteristics.get(SCameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getHighSpeedVideoSizes()) {
-                for (Range<Integer> fpsRange : mCharacteristics.get(SCameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).getHighSpeedVideoFpsRangesFor(videoSize)) {
-                    //we will record constant fps video
-                    if (fpsRange.getLower().equals(fpsRange.getUpper())) {
-                        mVideoParameterList.add(new VideoParameter(videoSize, fpsRange));
-                    }
-                }
-            }
-            */
+    /**
+     * Resolves video, photo and preview sizes and the fps range from the camera settings
+     * and the stream configurations of the camera
+     */
+    private void configureOutputSizes() {
+        CameraSettingsSnapshot settings = mCameraExternalSettings != null ? mCameraExternalSettings : new CameraSettings().snapshot();
+        StreamNegotiator.Result streams = new StreamNegotiator(mCameraInfo.getStreamConfigs(), mCameraInfo.getAeFpsRanges())
+                .negotiate(
+                        settings.getAspectRatio(),
+                        settings.getTargetFps(),
+                        settings.getMaxVideoHeight(),
+                        settings.getZslRingSize() > 0
+                );
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.configureOutputSizes(): " + streams);
+
+        mStreamConfiguration = streams;
+        mHighSpeedConfig = settings.getHighSpeedFps() > 0 ?
+                new HighSpeedNegotiator(mCameraInfo.getHighSpeedConfigs())
+                        .select(settings.getAspectRatio(), settings.getHighSpeedFps(), settings.getMaxVideoHeight()) :
+                null;
+        if (mHighSpeedConfig != null) {
+            //preview and video outputs of the high speed session should be of the same size
+            Size size = new Size(mHighSpeedConfig.getWidth(), mHighSpeedConfig.getHeight());
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.configureOutputSizes(): high speed " + mHighSpeedConfig);
+            mVideoParameter = new VideoParameter(size, new Range<>(mHighSpeedConfig.getFpsMin(), mHighSpeedConfig.getFpsMax()));
+            mPreviewSize = size;
+            mPhotoSize = size;
+            return;
+        }
+        if (settings.getHighSpeedFps() > 0) {
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.configureOutputSizes(): high speed " + settings.getHighSpeedFps() +
+                    " fps is not supported for the aspect ratio, regular session is used. Advertised: " + mCameraInfo.getHighSpeedConfigs());
+        }
+
+        mVideoParameter = new VideoParameter(streams.getVideoSize(), streams.getFpsRange());
+        mPreviewSize = streams.getPreviewSize();
+        mPhotoSize = streams.getStillSize();
+    }
+
+    /**
+     * Prepares media recorder, output file and image reader.
+     * Runs on the prepare thread while the camera device is being opened.
+     */
+    private void prepareOutputs(CameraStartupPipeline pipeline) throws RuntimeException {
+        pipeline.begin(CameraStartupPipeline.Stage.PREPARE_RECORDER);
+        prepareVideoEncoder();
+        pipeline.end(CameraStartupPipeline.Stage.PREPARE_RECORDER);
+
+        pipeline.begin(CameraStartupPipeline.Stage.PREPARE_IMAGE_READER);
+        createImageReader();
+        pipeline.end(CameraStartupPipeline.Stage.PREPARE_IMAGE_READER);
+
+        pipeline.onBranchFinished();
+    }
+
+    /**
+     * Reports timings of the startup stages
+     */
+    private void onStartupFinished(CameraStartupPipeline pipeline) {
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onStartupFinished(): " + pipeline);
+        CameraPrewarmer.onFirstFrame();
+        RxEventBus.getInstance().setEvent(new RxEventOnCameraStartupFinished(pipeline));
+    }
+
+    /**
+     * Configures an ImageReader for photo capture: JPEG images of still capture requests
+     * or YUV ring of the recent preview frames if ZSL is enabled
+     */
+    private void createImageReader() {
+        if (mHighSpeedConfig != null) {
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createImageReader(): no photo output in high speed mode");
+            return;
+        }
+        int zslRingSize = getZslRingSize();
+        mImageReader = ImageReader.newInstance(
+                mPhotoSize.getWidth(),
+                mPhotoSize.getHeight(),
+                getPhotoReaderFormat(zslRingSize),
+                getPhotoReaderMaxImages(zslRingSize)
+        );
+        mZslCapture = zslRingSize > 0 ? new ZslCapture(zslRingSize, mCameraInfo.isTimestampRealtime()) : null;
+        mImageReader.setOnImageAvailableListener(mImageCallback, mBackgroundHandler);
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createImageReader(): " + mPhotoSize +
+                (zslRingSize > 0 ? " ZSL ring " + zslRingSize : " JPEG ring " + mImageReader.getMaxImages()));
 
-            // TODO: 18.05.18 need to add ability to change FPS from app settings (30 or 60)
-            Range<Integer> fpsRange = new Range<>(30, 30);
+        Size rawSize = getRawSize(zslRingSize);
+        if (rawSize != null) createRawImageReader(rawSize);
+    }
 
-            Size videoSize, photoSize;
-            if (mCameraExternalSettings == null || mCameraExternalSettings.getAspectRatio() == (double) 16 / 9) {
-                videoSize = new Size(1280, 720);
-                photoSize = new Size(1280, 720);
+    /**
+     * RAW_SENSOR reader of the full sensor size, it has as many images as the JPEG ring
+     */
+    private void createRawImageReader(Size rawSize) {
+        try {
+            mRawCharacteristics = mSCamera.getSCameraManager().getCameraCharacteristics(mCameraId);
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Cannot get camera characteristics for RAW capture. Error: " + e.getLocalizedMessage());
+        }
+        mRawImageReader = ImageReader.newInstance(
+                rawSize.getWidth(),
+                rawSize.getHeight(),
+                ImageFormat.RAW_SENSOR,
+                getPhotoReaderMaxImages(0)
+        );
+        mRawCapture = new RawCapture();
+        mRawImageReader.setOnImageAvailableListener(mRawImageCallback, mBackgroundHandler);
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createRawImageReader(): " + rawSize + " ring " + mRawImageReader.getMaxImages());
+    }
+
+    private void closeImageReader() {
+        ZslCapture zsl = mZslCapture;
+        mZslCapture = null;
+        if (mImageReader != null) {
+            ImageReader reader = mImageReader;
+            mImageReader = null;
+            if (zsl != null) {
+                //frames taken from the ring are planes of the reader until they are encoded
+                reader.setOnImageAvailableListener(null, null);
+                zsl.clear(reader::close);
             } else {
-                videoSize = new Size(640, 480);
-                photoSize = new Size(640, 480);
+                closeAfterPendingWrites(reader);
             }
+        }
 
-            mVideoParameter = new VideoParameter(videoSize, fpsRange);
-            // Configures an ImageReader
-            mImageReader = ImageReader.newInstance(photoSize.getWidth(), photoSize.getHeight(), ImageFormat.JPEG, 1);
-            mImageReader.setOnImageAvailableListener(mImageCallback, mBackgroundHandler);
+        closeRawImageReader();
+    }
 
+    private void closeRawImageReader() {
+        RawCapture raw = mRawCapture;
+        mRawCapture = null;
+        if (raw != null) {
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.closeRawImageReader(): " + raw);
+            raw.clear();
+        }
+        if (mRawImageReader != null) {
+            closeAfterPendingWrites(mRawImageReader);
+            mRawImageReader = null;
+        }
+    }
 
-            mPreviewSize = mVideoParameter.getVideoSize();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening. Error: " + e.getLocalizedMessage());
-        } catch (CameraAccessException e) {
-            throw new RuntimeException("Cannot get camera parameters. Error: " + e.getLocalizedMessage());
+    /**
+     * Images which are still being written are planes of the reader, so it's closed on the I/O thread after them.
+     * New images are not acquired from it anymore.
+     */
+    private void closeAfterPendingWrites(ImageReader reader) {
+        reader.setOnImageAvailableListener(null, null);
+        mImageSaver.runAfterPendingWrites(reader::close);
+    }
+
+    /**
+     * The largest RAW_SENSOR size if RAW is enabled and the camera supports it.
+     * <p>
+     * The session has the recorder output as well, so it's preview + recorder + JPEG + RAW.
+     * The only guaranteed 4-stream combination of RAW capable cameras is PRIV PREVIEW + PRIV PREVIEW + JPEG MAXIMUM + RAW MAXIMUM,
+     * so RAW is used with a single recorder surface of up to 1080p only (not with ZSL or back-to-back recording).
+     * If the session still cannot be configured, it's created again without RAW.
+     *
+     * @return Null if there is no RAW output
+     */
+    @Nullable
+    private Size getRawSize(int zslRingSize) {
+        if (mCameraExternalSettings == null || !mCameraExternalSettings.isRawEnabled() ||
+                zslRingSize > 0 || mCameraInfo == null || mIsRawSessionFailed ||
+                !mCameraInfo.hasCapability(SCameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_RAW))
+            return null;
+        Size videoSize = mVideoParameter == null ? null : mVideoParameter.getVideoSize();
+        if (isBackToBackRecording() || videoSize == null ||
+                Math.max(videoSize.getWidth(), videoSize.getHeight()) > RAW_MAX_RECORDER_SIDE ||
+                Math.min(videoSize.getWidth(), videoSize.getHeight()) > RAW_MAX_RECORDER_SHORT_SIDE) {
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.getRawSize(): RAW is not guaranteed with the recorder " + videoSize +
+                    (isBackToBackRecording() ? " (back-to-back)" : "") + ", RAW is disabled");
+            return null;
+        }
+
+        Size rawSize = null;
+        for (CameraCharacteristicsCache.StreamConfig config : mCameraInfo.getStreamConfigs(ImageFormat.RAW_SENSOR)) {
+            if (rawSize == null || (long) config.getWidth() * config.getHeight() > (long) rawSize.getWidth() * rawSize.getHeight()) {
+                rawSize = new Size(config.getWidth(), config.getHeight());
+            }
         }
+        return rawSize;
+    }
+
+    /**
+     * ZSL ring size if the camera can stream YUV frames of the photo size at the preview frame rate
+     *
+     * @return 0 if ZSL is disabled or not supported
+     */
+    private int getZslRingSize() {
+        int ringSize = mCameraExternalSettings == null ? 0 : mCameraExternalSettings.getZslRingSize();
+        if (ringSize == 0 || mCameraInfo == null) return 0;
+
+        long frameDurationNs = 1000000000L / mVideoParameter.getFpsRange().getUpper();
+        for (CameraCharacteristicsCache.StreamConfig config : mCameraInfo.getStreamConfigs(ImageFormat.YUV_420_888)) {
+            if (config.getWidth() == mPhotoSize.getWidth() &&
+                    config.getHeight() == mPhotoSize.getHeight() &&
+                    config.getMinFrameDurationNs() <= frameDurationNs) {
+                return ringSize;
+            }
+        }
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.getZslRingSize(): YUV " + mPhotoSize + " is not supported at preview rate, ZSL is disabled");
+        return 0;
+    }
+
+    private static int getPhotoReaderFormat(int zslRingSize) {
+        return zslRingSize > 0 ? ImageFormat.YUV_420_888 : ImageFormat.JPEG;
+    }
+
+    private int getPhotoReaderMaxImages(int zslRingSize) {
+        if (zslRingSize > 0) return ZslCapture.getMaxImages(zslRingSize);
+        return mCameraExternalSettings == null ? 1 : mCameraExternalSettings.getPhotoRingSize();
     }
 
     /**
@@ -388,31 +1553,34 @@ class CameraHelper implements ICameraHelper {
         try {
 
             mSCameraManager = mSCamera.getSCameraManager();
+            CameraStartupPipeline pipeline = mStartupPipeline;
+            pipeline.begin(CameraStartupPipeline.Stage.OPEN_CAMERA);
 
             // Opening the camera device
             mSCameraManager.openCamera(mCameraId, new SCameraDevice.StateCallback() {
                 @Override
                 public void onDisconnected(SCameraDevice sCameraDevice) {
                     mCameraOpenCloseLock.release();
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
+                    if (isCameraClosed()) return;
                     throw new RuntimeException("Camera disconnected.");
                 }
 
                 @Override
                 public void onError(SCameraDevice sCameraDevice, int i) {
                     mCameraOpenCloseLock.release();
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
+                    if (isCameraClosed()) return;
                     throw new RuntimeException("Error while camera open.");
                 }
 
                 public void onOpened(SCameraDevice cameraDevice) {
                     Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onOpened(): " + cameraDevice.toString());
                     mCameraOpenCloseLock.release();
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
+                    if (isCameraClosed()) return;
                     mSCameraDevice = cameraDevice;
+                    pipeline.end(CameraStartupPipeline.Stage.OPEN_CAMERA);
 
-                    prepareMediaRecorder();
-                    createPreviewSession();
+                    //session will be created when outputs are ready
+                    pipeline.onBranchFinished();
                 }
             }, mBackgroundHandler);
 
@@ -428,6 +1596,15 @@ class CameraHelper implements ICameraHelper {
         try {
             mCameraOpenCloseLock.acquire();
 
+            BurstCapture burst = mBurstCapture;
+            if (burst != null) {
+                mBurstCapture = null;
+                burst.cancel();
+            }
+            mPrecaptureSequence = null;
+            mBracketCapture = null;
+            mCaptureResults.clear();
+
             stopPreview();
 
             if (mSCameraSession != null) {
@@ -440,72 +1617,43 @@ class CameraHelper implements ICameraHelper {
                 mSCameraDevice = null;
             }
 
-            if (mImageReader != null) {
-                mImageReader.close();
-                mImageReader = null;
-            }
-
-            if (null != mMediaRecorder) {
-                mMediaRecorder.reset();
-                mMediaRecorder.release();
-                mMediaRecorder = null;
-            }
+            closeImageReader();
 
-            mSCameraManager = null;
-            mSCamera = null;
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing. Error: " + e.getLocalizedMessage());
-        } finally {
-            mCameraOpenCloseLock.release();
-        }
-    }
-
-    /**
-     * Determine ID of the camera
-     *
-     * @param isBackCamera True - use back camera
-     * @return Camera ID
-     * @throws CameraAccessException
-     */
-    private String getCameraId(boolean isBackCamera) throws CameraAccessException {
-        if (mSCamera == null) return null;
-        // Find camera device that facing to given facing parameter.
-        for (String id : mSCamera.getSCameraManager().getCameraIdList()) {
-            SCameraCharacteristics cameraCharacteristics = mSCamera.getSCameraManager().getCameraCharacteristics(id);
-            if (isBackCamera) {
-                if (cameraCharacteristics.get(SCameraCharacteristics.LENS_FACING) == SCameraCharacteristics.LENS_FACING_BACK) {
-                    return id;
-                }
-            } else {
-                if (cameraCharacteristics.get(SCameraCharacteristics.LENS_FACING) == SCameraCharacteristics.LENS_FACING_FRONT) {
-                    return id;
-                }
-            }
-        }
-
-        return null;
-    }
+            releaseVideoEncoder();
 
-    private synchronized int getCameraState() {
-        return mCameraState;
+            mSCameraManager = null;
+            mSCamera = null;
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while trying to lock camera closing. Error: " + e.getLocalizedMessage());
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
     }
 
-    private synchronized void setCameraState(int state) {
-        mCameraState = state;
+    /**
+     * Lock-free check for camera callbacks which come after the camera has been stopped
+     */
+    private boolean isCameraClosed() {
+        return mCameraState.isIn(CameraStateMachine.CAMERA_STATE_CLOSING, CameraStateMachine.CAMERA_STATE_IDLE);
     }
 
     private void createPreviewSession() throws RuntimeException {
         if (null == mSCamera || null == mSCameraDevice || null == mSCameraManager /*|| !mTextureView.isAvailable()*/)
             return;
 
+        //rejected while the camera is closing
+        if (!mCameraState.moveTo(CameraStateMachine.CAMERA_STATE_START_PREVIEW)) return;
+
         try {
-            setCameraState(CAMERA_STATE_START_PREVIEW);
 
             Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): Preview size: " + mPreviewSize + " Video size: " + mVideoParameter.getVideoSize());
 
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
+            mPreviewSurfaceTexture = texture;
             Surface previewSurface = new Surface(texture);
-            Surface recorderSurface = mMediaRecorder.getSurface();
+            List<Surface> recorderSurfaces = mDoubleBufferedRecorder != null ?
+                    mDoubleBufferedRecorder.getSurfaces() :
+                    Collections.singletonList(mVideoEncoder.getInputSurface());
 
             // Create a request for video recording.
             mPreviewBuilder = mSCameraDevice.createCaptureRequest(SCameraDevice.TEMPLATE_RECORD);
@@ -513,65 +1661,84 @@ class CameraHelper implements ICameraHelper {
             mPreviewBuilder.set(SCaptureRequest.CONTROL_AE_MODE, SCaptureRequest.CONTROL_AE_MODE_ON);
             mPreviewBuilder.set(SCaptureRequest.CONTROL_AF_MODE, SCaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
             mPreviewBuilder.set(SCaptureRequest.CONTROL_AWB_MODE, SCaptureRequest.CONTROL_AWB_MODE_AUTO);
-            //setup video stabilization
-            setVideoStabilization(mCameraExternalSettings != null && mCameraExternalSettings.isVideoStabilisationEnabled());
+            //setup video stabilization, it's not supported by the high speed session
+            if (mHighSpeedConfig == null)
+                setVideoStabilization(mCameraExternalSettings != null && mCameraExternalSettings.isVideoStabilisationEnabled());
             mPreviewBuilder.addTarget(previewSurface);
-            mPreviewBuilder.addTarget(recorderSurface);
+            //MediaCodec input gets frames only while recording
+            if (mDoubleBufferedRecorder == null && mVideoEncoder.isInputConsumedBeforeStart())
+                mPreviewBuilder.addTarget(mVideoEncoder.getInputSurface());
+            //every frame goes to the ZSL ring as well
+            if (mZslCapture != null) mPreviewBuilder.addTarget(mImageReader.getSurface());
 
             // Create a request for image capture
             mPhotoCaptureBuilder = mSCameraDevice.createCaptureRequest(SCameraDevice.TEMPLATE_STILL_CAPTURE);
             mPhotoCaptureBuilder.set(SCaptureRequest.CONTROL_AE_MODE, SCaptureRequest.CONTROL_AE_MODE_ON);
-            mPhotoCaptureBuilder.set(SCaptureRequest.CONTROL_AF_MODE, SCaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            //the same AF mode as the repeating request, otherwise the AF lock of the precapture is lost
+            mPhotoCaptureBuilder.set(SCaptureRequest.CONTROL_AF_MODE, SCaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
             mPreviewBuilder.set(SCaptureRequest.CONTROL_AWB_MODE, SCaptureRequest.CONTROL_AWB_MODE_AUTO);
-            mPhotoCaptureBuilder.addTarget(mImageReader.getSurface());
+            if (mImageReader != null) mPhotoCaptureBuilder.addTarget(mImageReader.getSurface());
+            setFlashlight(mCameraExternalSettings != null && mCameraExternalSettings.isFlashlightOn());
 
 
             // Enable Phase AF, if device supports it.
-            if (mCharacteristics.getKeys().contains(SCameraCharacteristics.PHASE_AF_INFO_AVAILABLE) &&
-                    mCharacteristics.get(SCameraCharacteristics.PHASE_AF_INFO_AVAILABLE)) {
+            if (mCameraInfo.isPhaseAfAvailable()) {
                 mPreviewBuilder.set(SCaptureRequest.PHASE_AF_MODE, SCaptureRequest.PHASE_AF_MODE_ON);
                 mPhotoCaptureBuilder.set(SCaptureRequest.PHASE_AF_MODE, SCaptureRequest.PHASE_AF_MODE_ON);
             }
 
-            List<SCaptureRequest.Key<?>> listOfAvailableCharacteristics = mCharacteristics.getAvailableCaptureRequestKeys();
+            List<SCaptureRequest.Key<?>> listOfAvailableCharacteristics = mPreviewBuilder.build().getKeys();
             Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): Camera characteristics before settings: " +
                     logCameraCharacteristics(listOfAvailableCharacteristics));
 
-
-            // limit preview fps up to 30.
-           /* int requestListSize = mVideoParameter.mFpsRange.getUpper() > 30 ? mVideoParameter.mFpsRange.getUpper() / 30 : 1;
-
-            mRepeatingList = new ArrayList<>();
-            mRepeatingList.add(mPreviewBuilder.build());
-            mPreviewBuilder.removeTarget(previewSurface);
-            for (int i = 0; i < requestListSize - 1; i++) {
-                mRepeatingList.add(mPreviewBuilder.build());
-            }
-*/
             Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): Camera characteristics after settings: " +
                     logCameraCharacteristics(listOfAvailableCharacteristics));
 
             // Creates a SCameraCaptureSession here.
-            List<Surface> outputSurface = Arrays.asList(
-                    previewSurface,
-                    recorderSurface,
-                    mImageReader.getSurface()
-            );
-            mSCameraDevice.createCaptureSession(outputSurface, new SCameraCaptureSession.StateCallback() {
+            List<Surface> outputSurface = new ArrayList<>(Collections.singletonList(previewSurface));
+            if (mImageReader != null) outputSurface.add(mImageReader.getSurface());
+            outputSurface.addAll(recorderSurfaces);
+            if (mRawImageReader != null) outputSurface.add(mRawImageReader.getSurface());
+            CameraStartupPipeline pipeline = mStartupPipeline;
+            if (pipeline != null && !pipeline.isFinished())
+                pipeline.begin(CameraStartupPipeline.Stage.CREATE_SESSION);
+            //the session is ready for the request which has configured it
+            long readyRequestId = mReadyRequestId;
+
+            SCameraCaptureSession.StateCallback sessionCallback = new SCameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigureFailed(SCameraCaptureSession sCameraCaptureSession) {
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
+                    if (isCameraClosed()) return;
+                    if (mRawImageReader != null) {
+                        //RAW stream is the one which is not guaranteed, the session is created again without it
+                        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): session with RAW has failed, RAW is disabled");
+                        mIsRawSessionFailed = true;
+                        closeRawImageReader();
+                        createPreviewSession();
+                        return;
+                    }
                     throw new RuntimeException("Fail to create camera capture session.");
                 }
 
                 @Override
                 public void onConfigured(SCameraCaptureSession sCameraCaptureSession) {
-                    if (getCameraState() == CAMERA_STATE_CLOSING) return;
+                    if (isCameraClosed()) return;
                     mSCameraSession = sCameraCaptureSession;
+                    if (pipeline != null && !pipeline.isFinished()) {
+                        pipeline.end(CameraStartupPipeline.Stage.CREATE_SESSION);
+                        pipeline.begin(CameraStartupPipeline.Stage.FIRST_FRAME);
+                    }
 
-                    startPreview();
+                    startPreview(readyRequestId);
                 }
-            }, mBackgroundHandler);
+            };
+
+            if (mHighSpeedConfig != null) {
+                //only preview and video outputs of the high speed size are allowed
+                mSCameraDevice.createConstrainedHighSpeedCaptureSession(outputSurface, sessionCallback, mBackgroundHandler);
+            } else {
+                mSCameraDevice.createCaptureSession(outputSurface, sessionCallback, mBackgroundHandler);
+            }
 
         } catch (CameraAccessException e) {
             throw new RuntimeException("Failed to create camera capture session. Error: " + e.getLocalizedMessage());
@@ -579,54 +1746,197 @@ class CameraHelper implements ICameraHelper {
     }
 
     /**
-     * Prepares the media recorder to begin recording.
+     * Prepares the video encoder to begin recording (both encoders for back-to-back recording).
+     */
+    private void prepareVideoEncoder() throws RuntimeException {
+        VideoEncoderConfig config = createVideoEncoderConfig();
+        mVideoEncoderConfig = config;
+        if (isBackToBackRecording()) {
+            mDoubleBufferedRecorder = new DoubleBufferedRecorder(new DoubleBufferedRecorder.EncoderFactory() {
+                @NonNull
+                @Override
+                public File createOutputFile() {
+                    return createRecordingFile(config);
+                }
+
+                @NonNull
+                @Override
+                public IVideoEncoder create(@NonNull File outputFile, @NonNull Surface inputSurface) {
+                    return createVideoEncoder(config, outputFile, inputSurface);
+                }
+            }, (file, stats) -> {
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onRecordingFinished(): " + file.getName() +
+                        (stats != null ? ", " + stats : ""));
+                RxEventBus.getInstance().setEvent(new RxEventOnVideoCaptureFinished(file, stats));
+            }, mPrepareHandler);
+            return;
+        }
+
+        mVideoEncoder = createVideoEncoder(config, createRecordingFile(config), null);
+    }
+
+    private File createRecordingFile(@NonNull VideoEncoderConfig config) {
+        return config.getSegmentDurationSec() > 0 ?
+                mLoopRecording.createSegmentFile() :
+                createNewVideoFile();
+    }
+
+    /**
+     * MediaRecorder is used if the MediaCodec encoder cannot be prepared.
+     *
+     * @param inputSurface Persistent input surface, null - the encoder creates its own
      */
-    private void prepareMediaRecorder() throws RuntimeException {
+    private IVideoEncoder createVideoEncoder(@NonNull VideoEncoderConfig config,
+                                             @NonNull File outputFile,
+                                             @Nullable Surface inputSurface) throws RuntimeException {
+        IVideoEncoder.SegmentCallback segmentCallback = config.getSegmentDurationSec() > 0 ? mSegmentCallback : null;
+        if (config.getBackend() == VideoEncoderConfig.Backend.MEDIA_CODEC) {
+            IVideoEncoder encoder = new MediaCodecEncoder();
+            encoder.setSegmentCallback(segmentCallback);
+            try {
+                encoder.prepare(config, outputFile, inputSurface);
+                return encoder;
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG_ERROR, "CameraHelper.createVideoEncoder: MediaCodec fallback to MediaRecorder", e);
+                encoder.release();
+            }
+        }
+
+        //requested config is kept by the caller, so the fallback is not retried until settings are changed
+        IVideoEncoder encoder = new MediaRecorderEncoder();
+        encoder.setSegmentCallback(segmentCallback);
         try {
-            mRecordedVideoFile = createNewVideoFile();
-            mMediaRecorder = new MediaRecorder();
-            mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-            if (mCameraExternalSettings != null && mCameraExternalSettings.isAudioEnabled())
-                mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-
-            mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-            mMediaRecorder.setOutputFile(mRecordedVideoFile.getAbsolutePath());
-
-            int bitrate = 384000;
-            if (mVideoParameter.getVideoSize().getWidth() * mVideoParameter.getVideoSize().getHeight() >= 1920 * 1080) {
-                bitrate = 14000000;
-            } else if (mVideoParameter.getVideoSize().getWidth() * mVideoParameter.getVideoSize().getHeight() >= 1280 * 720) {
-                bitrate = 9730000;
-            } else if (mVideoParameter.getVideoSize().getWidth() * mVideoParameter.getVideoSize().getHeight() >= 640 * 480) {
-                bitrate = 2500000;
-            } else if (mVideoParameter.getVideoSize().getWidth() * mVideoParameter.getVideoSize().getHeight() >= 320 * 240) {
-                bitrate = 622000;
-            }
-            mMediaRecorder.setVideoEncodingBitRate(bitrate);
-
-            mMediaRecorder.setVideoFrameRate(mVideoParameter.getFpsRange().getUpper());
-            mMediaRecorder.setVideoSize(mVideoParameter.getVideoSize().getWidth(), mVideoParameter.getVideoSize().getHeight());
-            mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-            if (mCameraExternalSettings != null && mCameraExternalSettings.isAudioEnabled())
-                mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-            mMediaRecorder.setOrientationHint(getJpegOrientation());
-            mMediaRecorder.prepare();
+            encoder.prepare(config.toMediaRecorder(), outputFile, inputSurface);
+            return encoder;
         } catch (IOException e) {
+            encoder.release();
             throw new RuntimeException("Prepare MediaRecorder error: " + e.getLocalizedMessage());
         }
     }
 
+    /**
+     * Back-to-back recording needs persistent input surfaces of API 23.
+     * Not in high speed mode: the session has only one video output.
+     */
+    private boolean isBackToBackRecording() {
+        return mHighSpeedConfig == null &&
+                mCameraExternalSettings != null &&
+                mCameraExternalSettings.isBackToBackRecordingEnabled() &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    /**
+     * Reports the time from the stop of the recording to the moment the next one can be started
+     */
+    private void onRecorderReady() {
+        if (mRecordingStoppedAt == 0) return;
+        long latencyMs = SystemClock.elapsedRealtime() - mRecordingStoppedAt;
+        mRecordingStoppedAt = 0;
+
+        boolean isDoubleBuffered = mDoubleBufferedRecorder != null;
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onRecorderReady(): stop to start latency " + latencyMs + " ms" +
+                (isDoubleBuffered ? ", double-buffered" : ", session rebuilt"));
+        RxEventBus.getInstance().setEvent(new RxEventOnVideoRecorderReady(isDoubleBuffered, latencyMs));
+    }
+
+    private VideoEncoderConfig createVideoEncoderConfig() {
+        CameraSettingsSnapshot settings = mCameraExternalSettings != null ?
+                mCameraExternalSettings :
+                new CameraSettings().snapshot();
+        return new VideoEncoderConfig(
+                settings.getVideoEncoderBackend(),
+                settings.getVideoCodec(),
+                settings.getVideoProfile(),
+                settings.getIFrameIntervalSec(),
+                settings.getBitrateMode(),
+                settings.getVideoBitrate(),
+                mVideoParameter.getVideoSize().getWidth(),
+                mVideoParameter.getVideoSize().getHeight(),
+                mVideoParameter.getFpsRange().getUpper(),
+                settings.isAudioEnabled(),
+                getJpegOrientation(),
+                mCameraInfo.isTimestampRealtime(),
+                settings.getLoopSegmentDurationSec(),
+                //standby encoder of back-to-back recording doesn't get frames
+                isBackToBackRecording() ? 0 : settings.getPreRollSec(),
+                settings.getPreRollMaxBytes()
+        );
+    }
+
+    private void releaseVideoEncoder() {
+        if (mVideoEncoder != null) {
+            mVideoEncoder.release();
+            mVideoEncoder = null;
+        }
+        if (mDoubleBufferedRecorder != null) {
+            mDoubleBufferedRecorder.release();
+            mDoubleBufferedRecorder = null;
+        }
+        mVideoEncoderConfig = null;
+        mRecordingStoppedAt = 0;
+    }
+
+    /**
+     * Adds (removes) the encoder input to the repeating request, for encoders which
+     * cannot get frames while they are not started
+     */
+    private void setEncoderTargetEnabled(@Nullable Surface encoderSurface, boolean isEnabled) throws RuntimeException {
+        if (mSCameraSession == null || mPreviewBuilder == null || encoderSurface == null) return;
+        if (isEnabled) {
+            mPreviewBuilder.addTarget(encoderSurface);
+        } else {
+            mPreviewBuilder.removeTarget(encoderSurface);
+        }
+        try {
+            setRepeatingRequest();
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Failed to update recording request. Error: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Sets the preview builder as the repeating request. The high speed session gets a burst of it:
+     * one request per frame of the preview rate, the preview surface is a target of the first one only.
+     */
+    private void setRepeatingRequest() throws CameraAccessException {
+        if (mSCameraSession instanceof SCameraConstrainedHighSpeedCaptureSession) {
+            List<SCaptureRequest> requests = ((SCameraConstrainedHighSpeedCaptureSession) mSCameraSession)
+                    .createHighSpeedRequestList(mPreviewBuilder.build());
+            mSCameraSession.setRepeatingBurst(requests, mSessionCaptureCallback, mBackgroundHandler);
+        } else {
+            mSCameraSession.setRepeatingRequest(mPreviewBuilder.build(), mSessionCaptureCallback, mBackgroundHandler);
+        }
+    }
+
+    /**
+     * Reports the sensor frame rate of the finished recording
+     */
+    private void onFrameRateMeasured() {
+        FrameRateMeter meter = mFrameRateMeter;
+        mFrameRateMeter = null;
+        if (meter == null) return;
+        FrameRateMeter.Result result = meter.getResult();
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onFrameRateMeasured(): " + result +
+                (mHighSpeedConfig != null ? ", high speed" : ""));
+        RxEventBus.getInstance().setEvent(new RxEventOnVideoFrameRateMeasured(result, mHighSpeedConfig != null));
+    }
+
     /**
      * Starts a preview.
+     *
+     * @param readyRequestId Start or restart request which is finished by the preview
      */
-    private void startPreview() throws RuntimeException {
+    private void startPreview(long readyRequestId) throws RuntimeException {
         try {
+            CameraTrace.begin(CameraTrace.Stage.START_PREVIEW);
             // Starts displaying the preview.
-            mSCameraSession.setRepeatingRequest(mPreviewBuilder.build(),
-                    mSessionCaptureCallback,
-                    mBackgroundHandler);
-            setCameraState(CAMERA_STATE_PREVIEW);
-            RxEventBus.getInstance().setEvent(new RxEventOnCameraReady());
+            setRepeatingRequest();
+            mCameraState.compareAndSet(CameraStateMachine.CAMERA_STATE_START_PREVIEW, CameraStateMachine.CAMERA_STATE_PREVIEW);
+            CameraTrace.end(CameraTrace.Stage.START_PREVIEW);
+            onRestartFinished();
+            onRecorderReady();
+            CameraTrace.begin(CameraTrace.Stage.CAMERA_READY_EVENT);
+            RxEventBus.getInstance().setEvent(new RxEventOnCameraReady(readyRequestId));
         } catch (CameraAccessException e) {
             throw new RuntimeException("Fail to start preview. Error: " + e.getLocalizedMessage());
         }
@@ -645,17 +1955,62 @@ class CameraHelper implements ICameraHelper {
         }
     }
 
+    /**
+     * Applies request level settings (flashlight, stabilization) to the running preview.
+     * It's the cheapest reconfiguration: outputs and capture session stay the same.
+     */
+    private void updateRepeatingRequest() throws RuntimeException {
+        if (mSCameraSession == null || mPreviewBuilder == null || mPhotoCaptureBuilder == null) return;
+        if (!mCameraState.isIn(CameraStateMachine.CAMERA_STATE_PREVIEW, CameraStateMachine.CAMERA_STATE_RECORD_VIDEO)) {
+            //builders are used by the capture, the settings are applied when it's finished
+            //(a new session takes them from the settings anyway)
+            if (!mCameraState.is(CameraStateMachine.CAMERA_STATE_TAKE_PICTURE)) return;
+            mIsRequestUpdatePending = true;
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.updateRepeatingRequest(): pending until the picture is taken");
+            //the capture could be finished before the flag is set
+            if (mCameraState.is(CameraStateMachine.CAMERA_STATE_PREVIEW)) mBackgroundHandler.post(this::updateRepeatingRequest);
+            return;
+        }
+        mIsRequestUpdatePending = false;
+
+        CameraSettingsSnapshot settings = mCameraExternalSettings;
+        setFlashlight(settings.isFlashlightOn());
+        if (mHighSpeedConfig == null) setVideoStabilization(settings.isVideoStabilisationEnabled());
+        try {
+            setRepeatingRequest();
+        } catch (CameraAccessException e) {
+            throw new RuntimeException("Failed to update preview request. Error: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Set flashlight mode for preview and photo capture requests
+     *
+     * @param isOn Flashlight must be turned on
+     */
+    private void setFlashlight(boolean isOn) {
+        if (!mCameraInfo.isFlashAvailable()) return;
+
+        mPreviewBuilder.set(SCaptureRequest.FLASH_MODE,
+                isOn ? SCaptureRequest.FLASH_MODE_TORCH : SCaptureRequest.FLASH_MODE_OFF);
+        mPhotoCaptureBuilder.set(SCaptureRequest.FLASH_MODE, isOn
+                ? SCaptureRequest.FLASH_MODE_SINGLE
+                : SCaptureRequest.FLASH_MODE_OFF);
+        mPhotoCaptureBuilder.set(SCaptureRequest.CONTROL_AE_MODE,
+                isOn ? SCaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH : SCaptureRequest.CONTROL_AE_MODE_ON);
+    }
+
     /**
      * Returns required orientation that the jpeg picture needs to be rotated to be displayed upright.
      */
     private int getJpegOrientation() {
         int degrees = mLastOrientation;
 
-        if (mCharacteristics.get(SCameraCharacteristics.LENS_FACING) == SCameraCharacteristics.LENS_FACING_FRONT) {
+        if (mCameraInfo.getLensFacing() == SCameraCharacteristics.LENS_FACING_FRONT) {
             degrees = -degrees;
         }
 
-        return (mCharacteristics.get(SCameraCharacteristics.SENSOR_ORIENTATION) + degrees + 360) % 360;
+        return (mCameraInfo.getSensorOrientation() + degrees + 360) % 360;
     }
 
     /**
@@ -683,8 +2038,10 @@ class CameraHelper implements ICameraHelper {
             matrix.postRotate(90 * rotation, centerX, centerY);
         }
 
-        mTextureView.setTransform(matrix);
+        //buffer size is applied right away, the session is created with it
         mTextureView.getSurfaceTexture().setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        TextureView textureView = mTextureView;
+        textureView.post(() -> textureView.setTransform(matrix));
     }
 
     /**
@@ -695,59 +2052,41 @@ class CameraHelper implements ICameraHelper {
     private void setVideoStabilization(boolean isOn) {
 
         //Set OIS for SAMSUNG DEVICES
-        if (mCharacteristics.getKeys().contains(SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION_OPERATION_MODE)) {
-            for (int oisMode : mCharacteristics.get(SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION_OPERATION_MODE)) {
-                switch (oisMode) {
-                    case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_OPERATION_MODE_VIDEO:
-                        Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): ois mode: video");
-                        mPreviewBuilder.set(SCaptureRequest.LENS_OPTICAL_STABILIZATION_OPERATION_MODE, SCaptureRequest.LENS_OPTICAL_STABILIZATION_OPERATION_MODE_VIDEO);
-                        mPreviewBuilder.set(
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
-                                isOn ? SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON : SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_OFF
-                        );
-                        return;
-                }
-
+        for (int oisMode : mCameraInfo.getOisOperationModes()) {
+            switch (oisMode) {
+                case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_OPERATION_MODE_VIDEO:
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.createPreviewSession(): ois mode: video");
+                    mPreviewBuilder.set(SCaptureRequest.LENS_OPTICAL_STABILIZATION_OPERATION_MODE, SCaptureRequest.LENS_OPTICAL_STABILIZATION_OPERATION_MODE_VIDEO);
+                    mPreviewBuilder.set(
+                            SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
+                            isOn ? SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON : SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_OFF
+                    );
+                    return;
             }
         }
 
         //set OIS for NON-SAMSUNG DEVICES and for devices which are support OIS
-        if (mCharacteristics.getKeys().contains(SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION)) {
-            for (int ois : mCharacteristics.get(SCameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION)) {
-                switch (ois) {
-                    case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_MODE_ON:
-                        //turn off
-                        if (!isOn) mPreviewBuilder.set(
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_OFF);
-                        return;
-                    case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_MODE_OFF:
-                        //turn on
-                        if (isOn) mPreviewBuilder.set(
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON);
-                        return;
-                }
+        //NOTE: the value is always set explicitly, the same builder is reused when the setting is toggled
+        for (int ois : mCameraInfo.getOpticalStabilizationModes()) {
+            switch (ois) {
+                case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_MODE_ON:
+                case SCameraCharacteristics.LENS_OPTICAL_STABILIZATION_MODE_OFF:
+                    mPreviewBuilder.set(
+                            SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
+                            isOn ? SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON : SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_OFF);
+                    return;
             }
         }
 
         //set software video stabilization for non-Samsung devices or for devices which are not supported OIS
-        if (mCharacteristics.getKeys().contains(SCameraCharacteristics.CONTROL_AVAILABLE_VIDEO_STABILIZATION_MODES)) {
-            for (int mode : mCharacteristics.get(SCameraCharacteristics.CONTROL_AVAILABLE_VIDEO_STABILIZATION_MODES)) {
-                switch (mode) {
-                    case SCameraCharacteristics.CONTROL_VIDEO_STABILIZATION_MODE_ON:
-                        //turn off
-                        if (!isOn) mPreviewBuilder.set(
-                                SCaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_OFF);
-                        return;
-                    case SCameraCharacteristics.CONTROL_VIDEO_STABILIZATION_MODE_OFF:
-                        //turn on
-                        if (isOn) mPreviewBuilder.set(
-                                SCaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
-                                SCaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON);
-                        return;
-                }
+        for (int mode : mCameraInfo.getVideoStabilizationModes()) {
+            switch (mode) {
+                case SCameraCharacteristics.CONTROL_VIDEO_STABILIZATION_MODE_ON:
+                case SCameraCharacteristics.CONTROL_VIDEO_STABILIZATION_MODE_OFF:
+                    mPreviewBuilder.set(
+                            SCaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
+                            isOn ? SCaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_ON : SCaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_OFF);
+                    return;
             }
         }
 
@@ -764,11 +2103,37 @@ class CameraHelper implements ICameraHelper {
         return logString.toString();
     }
 
+    /**
+     * Notifies subscribers about the error and shows it to user
+     *
+     * @param context Null if there is no activity (camera is in standby or stopped), the error is only notified
+     */
+    private void onCameraError(@Nullable Context context, String message) {
+        onCameraError(context, new RuntimeException(message));
+    }
+
+    /**
+     * @param error CameraRequestException fails only its request, other errors fail all requests in flight
+     */
+    private void onCameraError(@Nullable Context context, Throwable error) {
+        String message = error.getLocalizedMessage();
+        RxEventBus.getInstance().setEvent(new RxEventOnCameraError(error));
+        if (context == null) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraHelper.onCameraError: " + message);
+            return;
+        }
+        showAlertDialog(context, message, true);
+    }
+
     /**
      * Shows alert dialog.
      */
     private void showAlertDialog(final Context context, String message,
                                  final boolean finishActivity) {
+        if (!(context instanceof Activity)) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraHelper.showAlertDialog: " + message);
+            return;
+        }
         final AlertDialog.Builder dialog = new AlertDialog.Builder(context, R.style.CommonAppTheme_AlertDialog);
         dialog.setMessage(message)
                 .setTitle(R.string.dialog_title_error)
@@ -817,41 +2182,145 @@ class CameraHelper implements ICameraHelper {
         return new File(mPhotoFilesDir + File.separator + "temp_photo_" + timeStamp + ".jpeg");
     }
 
+    private File createNewRawFile() throws RuntimeException {
+        if (!mPhotoFilesDir.exists()) mPhotoFilesDir.mkdirs();
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.getDefault()).format(new Date());
+        return new File(mPhotoFilesDir + File.separator + "temp_photo_" + timeStamp + ".dng");
+    }
+
     /**
      * Save image to file.
+     * Files are written on the I/O thread, camera thread only submits images.
      */
     private class ImageSaver {
-        void save(final Image image, File imageFile) {
+        private final PhotoWriter mPhotoWriter = new PhotoWriter(mCaptureResults);
 
-            mBackgroundHandler.post(() -> {
-                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                byte[] bytes = new byte[buffer.remaining()];
-                buffer.get(bytes);
-                FileOutputStream output = null;
-                try {
-                    output = new FileOutputStream(imageFile);
-                    output.write(bytes);
+        void runAfterPendingWrites(Runnable action) {
+            mPhotoWriter.runAfterPendingWrites(action);
+        }
+
+        /**
+         * Saves the oldest pending image of the burst
+         */
+        void saveBurstImage(BurstCapture burst) {
+            //the image is taken when the write is started, so it still can be dropped while waiting
+            mPhotoWriter.write(burst::pollPendingPhoto, CameraHelper.this::createNewPhotoFile, new PhotoWriter.Callback() {
+                @Override
+                public void onWritten(@NonNull File file, @NonNull PhotoWriter.WriteStats stats) {
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.saveBurstImage(): " + stats);
+                    burst.onPhotoSaved(file);
+                    onBurstFrameFinished(burst);
+                }
+
+                @Override
+                public void onError(@NonNull IOException e) {
+                    onSaveError(e, burst.getRequestId());
+                }
+            });
+        }
 
+        /**
+         * Encodes the ZSL frames, the first one is the closest to the shutter press.
+         * Several frames are merged into one photo. Images are returned to the reader when they are read.
+         */
+        void saveZslFrames(List<ZslCapture.Frame> frames, int jpegOrientation, long frameDurationNs, long requestId) {
+            ZslCapture.Frame frame = frames.get(0);
+            PhotoWriter.Callback callback = new PhotoWriter.Callback() {
+                @Override
+                public void onWritten(@NonNull File file, @NonNull PhotoWriter.WriteStats stats) {
+                    ZslCapture.Result result = new ZslCapture.Result(
+                            file,
+                            frame.getShutterToFrameNs(),
+                            frameDurationNs,
+                            frame.getResult() != null,
+                            frames.size()
+                    );
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.saveZslFrames(): " + result + "\n" + stats);
+                    RxEventBus.getInstance().setEvent(new RxEventOnZslCaptureFinished(requestId, result));
+                    RxEventBus.getInstance().setEvent(new RxEventOnPhotoCaptureFinished(requestId, file, null));
+                }
+
+                @Override
+                public void onError(@NonNull IOException e) {
+                    onSaveError(e, requestId);
+                }
+            };
+            if (frames.size() == 1) {
+                mPhotoWriter.encodeYuv(frame.getImage(), frame.getResult(), jpegOrientation, frame::release,
+                        CameraHelper.this::createNewPhotoFile, callback);
+                return;
+            }
+
+            List<Image> images = new ArrayList<>(frames.size());
+            for (ZslCapture.Frame taken : frames) {
+                images.add(taken.getImage());
+            }
+            mPhotoWriter.encodeMergedYuv(images, frame.getResult(), jpegOrientation, () -> {
+                for (ZslCapture.Frame taken : frames) {
+                    taken.release();
+                }
+            }, CameraHelper.this::createNewPhotoFile, callback);
+        }
+
+        /**
+         * @param requestId  Picture request of the image, 0 if there is no request in flight
+         * @param precapture Null if the photo has been taken without AF/AE precapture
+         */
+        void save(final Image image, long requestId, @Nullable PrecaptureSequence.Result precapture) {
+            PhotoWriter.Photo photo = PhotoWriter.Photo.of(image);
+            RawCapture raw = mRawCapture;
+            mPhotoWriter.write(() -> photo, CameraHelper.this::createNewPhotoFile, new PhotoWriter.Callback() {
+                @Override
+                public void onWritten(@NonNull File file, @NonNull PhotoWriter.WriteStats stats) {
+                    Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.save(): " + stats + (precapture != null ? "\n" + precapture : ""));
                     RxEventBus.getInstance().setEvent(
-                            new RxEventOnPhotoCaptureFinished(imageFile)
+                            new RxEventOnPhotoCaptureFinished(requestId, file, precapture)
                     );
-                } catch (IOException e) {
-                    throw new RuntimeException("Cannot save photo picture. Error: " + e.getLocalizedMessage());
-                } finally {
-                    // after using the image object, should be called the close().
-                    image.close();
-                    if (null != output) {
-                        try {
-                            output.close();
-                        } catch (IOException e) {
-                            //do nothing
-                        }
-                    }
+                    if (raw != null) onRawPairSaved(raw.onJpegSaved(photo.getTimestampNs(), file));
                 }
 
-                // TODO: 22.05.18 casllback to UI after image has been saved
+                @Override
+                public void onError(@NonNull IOException e) {
+                    onSaveError(e, requestId);
+                }
             });
         }
+
+        /**
+         * Writes the RAW frame to DNG, it's linked to the JPEG of the same shot by the sensor timestamp
+         */
+        void saveDng(RawCapture raw, RawCapture.RawFrame frame, int jpegOrientation) {
+            long timestampNs = frame.getImage().getTimestamp();
+            mPhotoWriter.writeDng(frame.getImage(), frame.getResult(), mRawCharacteristics, jpegOrientation,
+                    CameraHelper.this::createNewRawFile, new PhotoWriter.Callback() {
+                        @Override
+                        public void onWritten(@NonNull File file, @NonNull PhotoWriter.WriteStats stats) {
+                            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.saveDng(): " + stats);
+                            onRawPairSaved(raw.onDngSaved(timestampNs, file, stats));
+                        }
+
+                        @Override
+                        public void onError(@NonNull IOException e) {
+                            //RAW files are not awaited by a request
+                            onSaveError(e, NO_REQUEST_ID);
+                        }
+                    });
+        }
+
+        private void onRawPairSaved(@Nullable RawCapture.Result result) {
+            if (result == null) return;
+            Log.d(Constants.LOG_TAG_DEBUG, "CameraHelper.onRawPairSaved(): " + result);
+            RxEventBus.getInstance().setEvent(new RxEventOnRawCaptureFinished(result));
+        }
+
+        /**
+         * Error is shown like other camera errors, but only the request of the photo fails
+         */
+        private void onSaveError(IOException e, long requestId) {
+            Log.e(Constants.LOG_TAG_ERROR, "CameraHelper.onSaveError: " + e.getLocalizedMessage(), e);
+            onCameraError(mErrorContext, new CameraRequestException(requestId,
+                    "Cannot save photo picture. Error: " + e.getLocalizedMessage()));
+        }
     }
 
 
@@ -891,36 +2360,275 @@ class CameraHelper implements ICameraHelper {
 
     //RX Events
 
-    static class RxEventOnCameraReady {
+    /**
+     * Event which finishes an async request of the helper
+     */
+    interface RxRequestEvent {
+        boolean isFinishing(long requestId);
+    }
+
+    static class RxEventOnCameraReady implements RxRequestEvent {
+        private long requestId;
+
+        private RxEventOnCameraReady(long requestId) {
+            this.requestId = requestId;
+        }
+
+        /**
+         * A newer start or restart has replaced the earlier ones, so it finishes them too
+         */
+        @Override
+        public boolean isFinishing(long requestId) {
+            return this.requestId >= requestId;
+        }
+    }
+
+    static class RxEventOnCameraError {
+        private Throwable error;
+
+        RxEventOnCameraError(Throwable error) {
+            this.error = error;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Errors of the camera device and session fail every request, a failed request fails only itself
+         */
+        boolean isFailing(long requestId) {
+            if (!(error instanceof CameraRequestException)) return true;
+            return ((CameraRequestException) error).getRequestId() == requestId;
+        }
+    }
+
+    /**
+     * Failure of a single request (e.g. a photo which cannot be saved), the camera keeps working
+     */
+    static class CameraRequestException extends RuntimeException {
+        private final long requestId;
+
+        /**
+         * @param requestId NO_REQUEST_ID if no request is waiting for the result
+         */
+        CameraRequestException(long requestId, String message) {
+            super(message);
+            this.requestId = requestId;
+        }
+
+        long getRequestId() {
+            return requestId;
+        }
+    }
+
+    static class RxEventOnCameraRestarted {
+        private boolean isWarmRestart;
+        private long durationMs;
+
+        RxEventOnCameraRestarted(boolean isWarmRestart, long durationMs) {
+            this.isWarmRestart = isWarmRestart;
+            this.durationMs = durationMs;
+        }
+
+        public boolean isWarmRestart() {
+            return isWarmRestart;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+    }
+
+    static class RxEventOnCameraStartupFinished {
+        private CameraStartupPipeline pipeline;
+
+        RxEventOnCameraStartupFinished(CameraStartupPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        public long getTimeToFirstFrameMs() {
+            return pipeline.getTimeToFirstFrameMs();
+        }
+
+        public long getStageDurationMs(CameraStartupPipeline.Stage stage) {
+            return pipeline.getStageDurationMs(stage);
+        }
     }
 
     static class RxEventOnVideoCaptureFinished {
         private File outputVideoFile;
+        private IVideoEncoder.Stats encoderStats;
 
         private RxEventOnVideoCaptureFinished() {
         }
 
-        RxEventOnVideoCaptureFinished(File outputVideoFile) {
+        RxEventOnVideoCaptureFinished(File outputVideoFile, @Nullable IVideoEncoder.Stats encoderStats) {
             this.outputVideoFile = outputVideoFile;
+            this.encoderStats = encoderStats;
         }
 
         public File getOutputVideoFile() {
             return outputVideoFile;
         }
+
+        /**
+         * Null for the MediaRecorder backend
+         */
+        @Nullable
+        public IVideoEncoder.Stats getEncoderStats() {
+            return encoderStats;
+        }
     }
 
-    static class RxEventOnPhotoCaptureFinished {
-        private File outputPhotoFile;
+    static class RxEventOnVideoRecorderReady {
+        private boolean isDoubleBuffered;
+        private long stopToStartLatencyMs;
+
+        RxEventOnVideoRecorderReady(boolean isDoubleBuffered, long stopToStartLatencyMs) {
+            this.isDoubleBuffered = isDoubleBuffered;
+            this.stopToStartLatencyMs = stopToStartLatencyMs;
+        }
+
+        public boolean isDoubleBuffered() {
+            return isDoubleBuffered;
+        }
+
+        /**
+         * Time from the stop of the recording to the moment the next recording can be started
+         */
+        public long getStopToStartLatencyMs() {
+            return stopToStartLatencyMs;
+        }
+    }
+
+    static class RxEventOnVideoFrameRateMeasured {
+        private FrameRateMeter.Result result;
+        private boolean isHighSpeed;
+
+        RxEventOnVideoFrameRateMeasured(FrameRateMeter.Result result, boolean isHighSpeed) {
+            this.result = result;
+            this.isHighSpeed = isHighSpeed;
+        }
+
+        public FrameRateMeter.Result getResult() {
+            return result;
+        }
+
+        /**
+         * Recorded with the constrained high speed session
+         */
+        public boolean isHighSpeed() {
+            return isHighSpeed;
+        }
+    }
+
+    static class RxEventOnVideoSegmentFinished {
+        private IVideoEncoder.Segment segment;
+
+        RxEventOnVideoSegmentFinished(IVideoEncoder.Segment segment) {
+            this.segment = segment;
+        }
+
+        public IVideoEncoder.Segment getSegment() {
+            return segment;
+        }
+    }
+
+    static class RxEventOnBurstCaptureFinished implements RxRequestEvent {
+        private long requestId;
+        private BurstCapture.Result result;
+
+        private RxEventOnBurstCaptureFinished(long requestId, BurstCapture.Result result) {
+            this.requestId = requestId;
+            this.result = result;
+        }
+
+        @Override
+        public boolean isFinishing(long requestId) {
+            return this.requestId == requestId;
+        }
 
-        private RxEventOnPhotoCaptureFinished() {
+        public BurstCapture.Result getResult() {
+            return result;
+        }
+    }
+
+    static class RxEventOnBracketCaptureFinished implements RxRequestEvent {
+        private long requestId;
+        private ExposureBracket.Result result;
+
+        private RxEventOnBracketCaptureFinished(long requestId, ExposureBracket.Result result) {
+            this.requestId = requestId;
+            this.result = result;
+        }
+
+        @Override
+        public boolean isFinishing(long requestId) {
+            return this.requestId == requestId;
+        }
+
+        public ExposureBracket.Result getResult() {
+            return result;
+        }
+    }
+
+    static class RxEventOnZslCaptureFinished implements RxRequestEvent {
+        private long requestId;
+        private ZslCapture.Result result;
+
+        private RxEventOnZslCaptureFinished(long requestId, ZslCapture.Result result) {
+            this.requestId = requestId;
+            this.result = result;
+        }
+
+        @Override
+        public boolean isFinishing(long requestId) {
+            return this.requestId == requestId;
         }
 
-        private RxEventOnPhotoCaptureFinished(File outputPhotoFile) {
+        public ZslCapture.Result getResult() {
+            return result;
+        }
+    }
+
+    static class RxEventOnRawCaptureFinished {
+        private RawCapture.Result result;
+
+        private RxEventOnRawCaptureFinished(RawCapture.Result result) {
+            this.result = result;
+        }
+
+        public RawCapture.Result getResult() {
+            return result;
+        }
+    }
+
+    static class RxEventOnPhotoCaptureFinished implements RxRequestEvent {
+        private long requestId;
+        private File outputPhotoFile;
+        private PrecaptureSequence.Result precaptureResult;
+
+        private RxEventOnPhotoCaptureFinished(long requestId, File outputPhotoFile, PrecaptureSequence.Result precaptureResult) {
+            this.requestId = requestId;
             this.outputPhotoFile = outputPhotoFile;
+            this.precaptureResult = precaptureResult;
+        }
+
+        @Override
+        public boolean isFinishing(long requestId) {
+            return this.requestId == requestId;
         }
 
         public File getOutputPhotoFile() {
             return outputPhotoFile;
         }
+
+        /**
+         * Null if the photo has been taken without AF/AE precapture (ZSL, while recording)
+         */
+        public PrecaptureSequence.Result getPrecaptureResult() {
+            return precaptureResult;
+        }
     }
 }
@@ -0,0 +1,178 @@
+package com.mobiledevpro.smcamera;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.samsung.android.sdk.camera.SCamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Camera pre-initialization at application start
+ * <p>
+ * SCamera SDK initialization, characteristics lookup and camera id resolution are done
+ * on a background thread as soon as the process starts, so the first camera start
+ * picks up a ready SCamera instance and a warm characteristics cache.
+ * Non-critical work (e.g. crash reporting SDKs) can be deferred until the first preview frame.
+ * <p>
+ * Call {@link #prewarm(Context)} from Application.onCreate().
+ */
+public final class CameraPrewarmer {
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static long sProcessStartedAt;
+    private static CountDownLatch sPrewarmLatch;
+    private static SCamera sSCamera;
+    private static volatile long sPrewarmDurationMs = -1;
+
+    //deferred until the first frame
+    private static final List<Runnable> sDeferredTasks = new ArrayList<>();
+    private static boolean sIsFirstFrameShown;
+    private static long sProcessStartToFirstFrameMs = -1;
+
+    private CameraPrewarmer() {
+    }
+
+    /**
+     * Starts pre-initialization on a background thread, subsequent calls are ignored
+     */
+    public static synchronized void prewarm(@NonNull Context context) {
+        if (sPrewarmLatch != null) return;
+        //SCamera requires camera2 API
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+        sProcessStartedAt = getProcessStartedAt();
+        sPrewarmLatch = new CountDownLatch(1);
+
+        Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            long startedAt = SystemClock.elapsedRealtime();
+            try {
+                SCamera sCamera = new SCamera();
+                sCamera.initialize(appContext);
+                //resolves the camera id and fills the characteristics cache
+                CameraCharacteristicsCache.get(appContext).getCameraInfo(sCamera.getSCameraManager(), true);
+                synchronized (CameraPrewarmer.class) {
+                    sSCamera = sCamera;
+                }
+            } catch (Exception e) {
+                //camera helper will initialize SCamera itself and show the error
+                Log.e(Constants.LOG_TAG_ERROR, "CameraPrewarmer.prewarm: " + e.getLocalizedMessage(), e);
+            } finally {
+                sPrewarmDurationMs = SystemClock.elapsedRealtime() - startedAt;
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraPrewarmer.prewarm(): done in " + sPrewarmDurationMs + " ms");
+                sPrewarmLatch.countDown();
+            }
+        }, "CameraPrewarmThread");
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the main thread after the first preview frame.
+     *
+     * @param timeoutMs Task is run anyway after this time, e.g. if the camera is not started at all
+     */
+    public static void runAfterFirstFrame(@NonNull Runnable task, long timeoutMs) {
+        synchronized (CameraPrewarmer.class) {
+            if (!sIsFirstFrameShown) {
+                sDeferredTasks.add(task);
+                sMainHandler.postDelayed(() -> runDeferredTask(task), timeoutMs);
+                return;
+            }
+        }
+        sMainHandler.post(task);
+    }
+
+    /**
+     * Time from the process start to the first preview frame, -1 if the frame has not been shown yet
+     */
+    public static synchronized long getProcessStartToFirstFrameMs() {
+        return sProcessStartToFirstFrameMs;
+    }
+
+    public static long getPrewarmDurationMs() {
+        return sPrewarmDurationMs;
+    }
+
+    /**
+     * Takes the prewarmed SCamera instance, it can be taken only once
+     *
+     * @param waitMs Time to wait for the pre-initialization which is in progress
+     * @return Null if there was no pre-initialization or it has failed
+     */
+    @Nullable
+    static SCamera takeSCamera(long waitMs) {
+        CountDownLatch latch;
+        synchronized (CameraPrewarmer.class) {
+            latch = sPrewarmLatch;
+        }
+        if (latch == null) return null;
+        try {
+            if (!latch.await(waitMs, TimeUnit.MILLISECONDS)) return null;
+        } catch (InterruptedException e) {
+            return null;
+        }
+        synchronized (CameraPrewarmer.class) {
+            SCamera sCamera = sSCamera;
+            sSCamera = null;
+            return sCamera;
+        }
+    }
+
+    /**
+     * Called by camera helper on every first preview frame
+     */
+    static void onFirstFrame() {
+        synchronized (CameraPrewarmer.class) {
+            if (sIsFirstFrameShown) return;
+            sIsFirstFrameShown = true;
+            if (sProcessStartedAt > 0) {
+                sProcessStartToFirstFrameMs = SystemClock.elapsedRealtime() - sProcessStartedAt;
+                Log.d(Constants.LOG_TAG_DEBUG, "CameraPrewarmer.onFirstFrame(): process start to first frame " +
+                        sProcessStartToFirstFrameMs + " ms");
+            }
+        }
+        sMainHandler.post(CameraPrewarmer::runDeferredTasks);
+    }
+
+    private static void runDeferredTasks() {
+        List<Runnable> tasks;
+        synchronized (CameraPrewarmer.class) {
+            tasks = new ArrayList<>(sDeferredTasks);
+            sDeferredTasks.clear();
+        }
+        //timeout callbacks of these tasks do nothing then
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs the task by timeout if it has not been run on the first frame
+     */
+    private static void runDeferredTask(Runnable task) {
+        synchronized (CameraPrewarmer.class) {
+            if (!sDeferredTasks.remove(task)) return;
+        }
+        task.run();
+    }
+
+    private static long getProcessStartedAt() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return Process.getStartElapsedRealtime();
+        }
+        //the closest point to the process start on older versions
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -16,6 +16,28 @@ public class CameraSettings {
     private boolean isManualPhotoExposureEnabled;
     private double aspectRatio = (double) 16 / 9;
     private int rotation;
+    private boolean isWarmRestartEnabled;
+    private boolean isFlashlightOn;
+    private int standbyTimeoutMs;
+    private int photoRingSize = 2;
+    private int zslRingSize;
+    private int zslMergeFrames = 1;
+    private boolean isRawEnabled;
+    private int targetFps = 30;
+    private int maxVideoHeight = 720;
+    private VideoEncoderConfig.Backend videoEncoderBackend = VideoEncoderConfig.Backend.MEDIA_RECORDER;
+    private VideoEncoderConfig.Codec videoCodec = VideoEncoderConfig.Codec.H264;
+    private int videoProfile;
+    private int iFrameIntervalSec = 1;
+    private VideoEncoderConfig.BitrateMode bitrateMode = VideoEncoderConfig.BitrateMode.VBR;
+    private int videoBitrate;
+    private boolean isBackToBackRecordingEnabled;
+    private int loopSegmentDurationSec;
+    private int loopMaxSegments = 10;
+    private long loopQuotaBytes;
+    private int preRollSec;
+    private long preRollMaxBytes = 16 * 1024 * 1024;
+    private int highSpeedFps;
 
     public CameraSettings() {
     }
@@ -73,4 +95,280 @@ public class CameraSettings {
         this.rotation = rotation;
         return this;
     }
+
+    public boolean isWarmRestartEnabled() {
+        return isWarmRestartEnabled;
+    }
+
+    /**
+     * Keep the camera device and the camera thread open on restart and rebuild only changed outputs
+     */
+    public CameraSettings setWarmRestartEnabled(boolean warmRestartEnabled) {
+        isWarmRestartEnabled = warmRestartEnabled;
+        return this;
+    }
+
+    public boolean isFlashlightOn() {
+        return isFlashlightOn;
+    }
+
+    public CameraSettings setFlashlightOn(boolean flashlightOn) {
+        isFlashlightOn = flashlightOn;
+        return this;
+    }
+
+    public int getStandbyTimeoutMs() {
+        return standbyTimeoutMs;
+    }
+
+    /**
+     * Keep the camera device open for this time after the screen has been stopped,
+     * so returning to the screen only restarts the preview. 0 - standby is disabled.
+     */
+    public CameraSettings setStandbyTimeoutMs(int standbyTimeoutMs) {
+        this.standbyTimeoutMs = standbyTimeoutMs;
+        return this;
+    }
+
+    public int getPhotoRingSize() {
+        return photoRingSize;
+    }
+
+    /**
+     * Number of photo images which can be captured before the oldest one is saved (ImageReader maxImages).
+     * Bigger ring allows faster burst capture but costs memory of a full size JPEG per image.
+     */
+    public CameraSettings setPhotoRingSize(int photoRingSize) {
+        this.photoRingSize = Math.max(1, photoRingSize);
+        return this;
+    }
+
+    public int getZslRingSize() {
+        return zslRingSize;
+    }
+
+    /**
+     * Number of the recent full size frames which are kept for zero shutter lag photo capture.
+     * Each frame costs memory of a full size YUV image. 0 - ZSL is disabled.
+     */
+    public CameraSettings setZslRingSize(int zslRingSize) {
+        this.zslRingSize = Math.max(0, zslRingSize);
+        return this;
+    }
+
+    public int getZslMergeFrames() {
+        return zslMergeFrames;
+    }
+
+    /**
+     * Number of the ZSL frames around the shutter press which are aligned and merged into one photo
+     * to reduce noise, up to the ZSL ring size. 1 - the closest frame is encoded as it is.
+     */
+    public CameraSettings setZslMergeFrames(int zslMergeFrames) {
+        this.zslMergeFrames = Math.max(1, zslMergeFrames);
+        return this;
+    }
+
+    public boolean isRawEnabled() {
+        return isRawEnabled;
+    }
+
+    /**
+     * Photo is also saved to DNG if the camera supports RAW capture (not with zero shutter lag).
+     * Each photo costs memory of a full size RAW image until it's written.
+     */
+    public CameraSettings setRawEnabled(boolean rawEnabled) {
+        isRawEnabled = rawEnabled;
+        return this;
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    /**
+     * Frame rate of preview and video, it's lowered if the camera cannot sustain it
+     */
+    public CameraSettings setTargetFps(int targetFps) {
+        this.targetFps = Math.max(1, targetFps);
+        return this;
+    }
+
+    public int getMaxVideoHeight() {
+        return maxVideoHeight;
+    }
+
+    /**
+     * Video quality target: the largest video size of the aspect ratio up to this height is used (e.g. 720, 1080)
+     */
+    public CameraSettings setMaxVideoHeight(int maxVideoHeight) {
+        this.maxVideoHeight = Math.max(1, maxVideoHeight);
+        return this;
+    }
+
+    public VideoEncoderConfig.Backend getVideoEncoderBackend() {
+        return videoEncoderBackend;
+    }
+
+    /**
+     * MediaCodec backend reports encoder latency and output rate, MediaRecorder is used if it fails to prepare
+     */
+    public CameraSettings setVideoEncoderBackend(VideoEncoderConfig.Backend videoEncoderBackend) {
+        this.videoEncoderBackend = videoEncoderBackend;
+        return this;
+    }
+
+    public VideoEncoderConfig.Codec getVideoCodec() {
+        return videoCodec;
+    }
+
+    public CameraSettings setVideoCodec(VideoEncoderConfig.Codec videoCodec) {
+        this.videoCodec = videoCodec;
+        return this;
+    }
+
+    public int getVideoProfile() {
+        return videoProfile;
+    }
+
+    /**
+     * MediaCodecInfo.CodecProfileLevel value of the codec (MediaCodec backend only), 0 - default profile
+     */
+    public CameraSettings setVideoProfile(int videoProfile) {
+        this.videoProfile = Math.max(0, videoProfile);
+        return this;
+    }
+
+    public int getIFrameIntervalSec() {
+        return iFrameIntervalSec;
+    }
+
+    /**
+     * Key frame interval (MediaCodec backend only)
+     */
+    public CameraSettings setIFrameIntervalSec(int iFrameIntervalSec) {
+        this.iFrameIntervalSec = Math.max(0, iFrameIntervalSec);
+        return this;
+    }
+
+    public VideoEncoderConfig.BitrateMode getBitrateMode() {
+        return bitrateMode;
+    }
+
+    /**
+     * MediaCodec backend only, the codec default is used if the mode is not supported
+     */
+    public CameraSettings setBitrateMode(VideoEncoderConfig.BitrateMode bitrateMode) {
+        this.bitrateMode = bitrateMode;
+        return this;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    /**
+     * Bits per second, 0 - by the video size
+     */
+    public CameraSettings setVideoBitrate(int videoBitrate) {
+        this.videoBitrate = Math.max(0, videoBitrate);
+        return this;
+    }
+
+    public boolean isBackToBackRecordingEnabled() {
+        return isBackToBackRecordingEnabled;
+    }
+
+    /**
+     * Keep a second prepared encoder, so the next recording can be started right after the stop
+     * without restarting the preview (API 23+). Costs the memory of one more encoder.
+     */
+    public CameraSettings setBackToBackRecordingEnabled(boolean backToBackRecordingEnabled) {
+        isBackToBackRecordingEnabled = backToBackRecordingEnabled;
+        return this;
+    }
+
+    public int getLoopSegmentDurationSec() {
+        return loopSegmentDurationSec;
+    }
+
+    /**
+     * Loop recording: video is rotated into segments of this duration without rebuilding the capture session.
+     * MediaRecorder backend needs API 26 and rotates by the estimated segment size. 0 - loop recording is disabled.
+     */
+    public CameraSettings setLoopSegmentDurationSec(int loopSegmentDurationSec) {
+        this.loopSegmentDurationSec = Math.max(0, loopSegmentDurationSec);
+        return this;
+    }
+
+    public int getLoopMaxSegments() {
+        return loopMaxSegments;
+    }
+
+    /**
+     * Number of the recent loop segments which are kept, the oldest ones are deleted
+     */
+    public CameraSettings setLoopMaxSegments(int loopMaxSegments) {
+        this.loopMaxSegments = Math.max(1, loopMaxSegments);
+        return this;
+    }
+
+    public long getLoopQuotaBytes() {
+        return loopQuotaBytes;
+    }
+
+    /**
+     * Disk quota of the loop segments, the oldest ones are deleted while it's exceeded
+     * (the last segment is always kept). 0 - only the number of segments is limited.
+     */
+    public CameraSettings setLoopQuotaBytes(long loopQuotaBytes) {
+        this.loopQuotaBytes = Math.max(0, loopQuotaBytes);
+        return this;
+    }
+
+    public int getPreRollSec() {
+        return preRollSec;
+    }
+
+    /**
+     * Recording starts with the encoded video of this duration before the start (MediaCodec backend,
+     * not with back-to-back recording). The encoder runs all the time of the preview. 0 - pre-roll is disabled.
+     */
+    public CameraSettings setPreRollSec(int preRollSec) {
+        this.preRollSec = Math.max(0, preRollSec);
+        return this;
+    }
+
+    public long getPreRollMaxBytes() {
+        return preRollMaxBytes;
+    }
+
+    /**
+     * Memory cap of the pre-roll buffer, the pre-roll is shorter if the encoded video doesn't fit it
+     */
+    public CameraSettings setPreRollMaxBytes(long preRollMaxBytes) {
+        this.preRollMaxBytes = Math.max(0, preRollMaxBytes);
+        return this;
+    }
+
+    public int getHighSpeedFps() {
+        return highSpeedFps;
+    }
+
+    /**
+     * Constrained high speed recording, e.g. 120 or 240 fps (API 23+). The highest constant frame rate
+     * up to this one which the camera advertises is used, otherwise the camera works as usual.
+     * Photo capture, ZSL, RAW and back-to-back recording are not available in this mode. 0 - disabled.
+     */
+    public CameraSettings setHighSpeedFps(int highSpeedFps) {
+        this.highSpeedFps = Math.max(0, highSpeedFps);
+        return this;
+    }
+
+    /**
+     * Immutable copy of the current values
+     */
+    CameraSettingsSnapshot snapshot() {
+        return new CameraSettingsSnapshot(this);
+    }
 }
@@ -0,0 +1,158 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Difference between two camera settings snapshots
+ * <p>
+ * Every changed field is mapped to the cheapest reconfiguration tier which can apply it.
+ * The tier of the diff is the most expensive tier of its changed fields.
+ */
+final class CameraSettingsDiff {
+
+    /**
+     * Reconfiguration tiers, from the cheapest to the most expensive
+     */
+    enum Tier {
+        //nothing to do on the camera thread (e.g. texture transform only)
+        NONE,
+        //update of the repeating request
+        REPEATING_REQUEST,
+        //rebuild of outputs and the capture session
+        CAPTURE_SESSION,
+        //reopen of the camera device
+        CAMERA_DEVICE
+    }
+
+    enum Field {
+        USE_BACK_CAMERA(Tier.CAMERA_DEVICE),
+        VIDEO_STABILISATION(Tier.REPEATING_REQUEST),
+        FLASHLIGHT(Tier.REPEATING_REQUEST),
+        AUDIO(Tier.CAPTURE_SESSION),
+        ASPECT_RATIO(Tier.CAPTURE_SESSION),
+        PHOTO_RING_SIZE(Tier.CAPTURE_SESSION),
+        ZSL_RING_SIZE(Tier.CAPTURE_SESSION),
+        RAW(Tier.CAPTURE_SESSION),
+        TARGET_FPS(Tier.CAPTURE_SESSION),
+        MAX_VIDEO_HEIGHT(Tier.CAPTURE_SESSION),
+        VIDEO_ENCODER(Tier.CAPTURE_SESSION),
+        BACK_TO_BACK_RECORDING(Tier.CAPTURE_SESSION),
+        LOOP_SEGMENT_DURATION(Tier.CAPTURE_SESSION),
+        PRE_ROLL(Tier.CAPTURE_SESSION),
+        HIGH_SPEED(Tier.CAPTURE_SESSION),
+        //applied to the next finished segment
+        LOOP_QUOTA(Tier.NONE),
+        ROTATION(Tier.NONE),
+        MANUAL_PHOTO_EXPOSURE(Tier.NONE),
+        //applied to the next ZSL photo
+        ZSL_MERGE_FRAMES(Tier.NONE),
+        WARM_RESTART(Tier.NONE),
+        STANDBY_TIMEOUT(Tier.NONE);
+
+        private final Tier tier;
+
+        Field(Tier tier) {
+            this.tier = tier;
+        }
+
+        Tier getTier() {
+            return tier;
+        }
+    }
+
+    private final Set<Field> mChangedFields;
+    private final Tier mTier;
+
+    private CameraSettingsDiff(Set<Field> changedFields, Tier tier) {
+        mChangedFields = Collections.unmodifiableSet(changedFields);
+        mTier = tier;
+    }
+
+    /**
+     * Classifies changes between snapshots
+     *
+     * @param oldSettings Applied settings, null if the camera has not been configured yet
+     * @param newSettings Settings to apply
+     */
+    static CameraSettingsDiff between(@Nullable CameraSettingsSnapshot oldSettings,
+                                      @NonNull CameraSettingsSnapshot newSettings) {
+        if (oldSettings == null) {
+            return new CameraSettingsDiff(EnumSet.allOf(Field.class), Tier.CAMERA_DEVICE);
+        }
+
+        EnumSet<Field> changedFields = EnumSet.noneOf(Field.class);
+        if (oldSettings.isUseBackCamera() != newSettings.isUseBackCamera())
+            changedFields.add(Field.USE_BACK_CAMERA);
+        if (oldSettings.isVideoStabilisationEnabled() != newSettings.isVideoStabilisationEnabled())
+            changedFields.add(Field.VIDEO_STABILISATION);
+        if (oldSettings.isFlashlightOn() != newSettings.isFlashlightOn())
+            changedFields.add(Field.FLASHLIGHT);
+        if (oldSettings.isAudioEnabled() != newSettings.isAudioEnabled())
+            changedFields.add(Field.AUDIO);
+        if (Double.compare(oldSettings.getAspectRatio(), newSettings.getAspectRatio()) != 0)
+            changedFields.add(Field.ASPECT_RATIO);
+        if (oldSettings.getPhotoRingSize() != newSettings.getPhotoRingSize())
+            changedFields.add(Field.PHOTO_RING_SIZE);
+        if (oldSettings.getZslRingSize() != newSettings.getZslRingSize())
+            changedFields.add(Field.ZSL_RING_SIZE);
+        if (oldSettings.isRawEnabled() != newSettings.isRawEnabled())
+            changedFields.add(Field.RAW);
+        if (oldSettings.getTargetFps() != newSettings.getTargetFps())
+            changedFields.add(Field.TARGET_FPS);
+        if (oldSettings.getMaxVideoHeight() != newSettings.getMaxVideoHeight())
+            changedFields.add(Field.MAX_VIDEO_HEIGHT);
+        if (!oldSettings.isVideoEncoderEqual(newSettings))
+            changedFields.add(Field.VIDEO_ENCODER);
+        if (oldSettings.isBackToBackRecordingEnabled() != newSettings.isBackToBackRecordingEnabled())
+            changedFields.add(Field.BACK_TO_BACK_RECORDING);
+        if (oldSettings.getLoopSegmentDurationSec() != newSettings.getLoopSegmentDurationSec())
+            changedFields.add(Field.LOOP_SEGMENT_DURATION);
+        if (oldSettings.getPreRollSec() != newSettings.getPreRollSec() ||
+                oldSettings.getPreRollMaxBytes() != newSettings.getPreRollMaxBytes())
+            changedFields.add(Field.PRE_ROLL);
+        if (oldSettings.getHighSpeedFps() != newSettings.getHighSpeedFps())
+            changedFields.add(Field.HIGH_SPEED);
+        if (oldSettings.getLoopMaxSegments() != newSettings.getLoopMaxSegments() ||
+                oldSettings.getLoopQuotaBytes() != newSettings.getLoopQuotaBytes())
+            changedFields.add(Field.LOOP_QUOTA);
+        if (oldSettings.getRotation() != newSettings.getRotation())
+            changedFields.add(Field.ROTATION);
+        if (oldSettings.isManualPhotoExposureEnabled() != newSettings.isManualPhotoExposureEnabled())
+            changedFields.add(Field.MANUAL_PHOTO_EXPOSURE);
+        if (oldSettings.getZslMergeFrames() != newSettings.getZslMergeFrames())
+            changedFields.add(Field.ZSL_MERGE_FRAMES);
+        if (oldSettings.isWarmRestartEnabled() != newSettings.isWarmRestartEnabled())
+            changedFields.add(Field.WARM_RESTART);
+        if (oldSettings.getStandbyTimeoutMs() != newSettings.getStandbyTimeoutMs())
+            changedFields.add(Field.STANDBY_TIMEOUT);
+
+        Tier tier = Tier.NONE;
+        for (Field field : changedFields) {
+            if (field.getTier().compareTo(tier) > 0) tier = field.getTier();
+        }
+
+        return new CameraSettingsDiff(changedFields, tier);
+    }
+
+    Tier getTier() {
+        return mTier;
+    }
+
+    boolean isChanged(Field field) {
+        return mChangedFields.contains(field);
+    }
+
+    Set<Field> getChangedFields() {
+        return mChangedFields;
+    }
+
+    @Override
+    public String toString() {
+        return mTier + " " + mChangedFields;
+    }
+}
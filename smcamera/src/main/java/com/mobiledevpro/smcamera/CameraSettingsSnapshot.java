@@ -0,0 +1,253 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Immutable copy of {@link CameraSettings}
+ * <p>
+ * CameraHelper works with snapshots only, so the settings object which is shared with presenter
+ * can be changed at any time without affecting the camera thread.
+ */
+final class CameraSettingsSnapshot {
+    private final boolean useBackCamera;
+    private final boolean isVideoStabilisationEnabled;
+    private final boolean isAudioEnabled;
+    private final boolean isManualPhotoExposureEnabled;
+    private final double aspectRatio;
+    private final int rotation;
+    private final boolean isWarmRestartEnabled;
+    private final boolean isFlashlightOn;
+    private final int standbyTimeoutMs;
+    private final int photoRingSize;
+    private final int zslRingSize;
+    private final int zslMergeFrames;
+    private final boolean isRawEnabled;
+    private final int targetFps;
+    private final int maxVideoHeight;
+    private final VideoEncoderConfig.Backend videoEncoderBackend;
+    private final VideoEncoderConfig.Codec videoCodec;
+    private final int videoProfile;
+    private final int iFrameIntervalSec;
+    private final VideoEncoderConfig.BitrateMode bitrateMode;
+    private final int videoBitrate;
+    private final boolean isBackToBackRecordingEnabled;
+    private final int loopSegmentDurationSec;
+    private final int loopMaxSegments;
+    private final long loopQuotaBytes;
+    private final int preRollSec;
+    private final long preRollMaxBytes;
+    private final int highSpeedFps;
+
+    CameraSettingsSnapshot(@NonNull CameraSettings settings) {
+        useBackCamera = settings.isUseBackCamera();
+        isVideoStabilisationEnabled = settings.isVideoStabilisationEnabled();
+        isAudioEnabled = settings.isAudioEnabled();
+        isManualPhotoExposureEnabled = settings.isManualPhotoExposureEnabled();
+        aspectRatio = settings.getAspectRatio();
+        rotation = settings.getRotation();
+        isWarmRestartEnabled = settings.isWarmRestartEnabled();
+        isFlashlightOn = settings.isFlashlightOn();
+        standbyTimeoutMs = settings.getStandbyTimeoutMs();
+        photoRingSize = settings.getPhotoRingSize();
+        zslRingSize = settings.getZslRingSize();
+        zslMergeFrames = settings.getZslMergeFrames();
+        isRawEnabled = settings.isRawEnabled();
+        targetFps = settings.getTargetFps();
+        maxVideoHeight = settings.getMaxVideoHeight();
+        videoEncoderBackend = settings.getVideoEncoderBackend();
+        videoCodec = settings.getVideoCodec();
+        videoProfile = settings.getVideoProfile();
+        iFrameIntervalSec = settings.getIFrameIntervalSec();
+        bitrateMode = settings.getBitrateMode();
+        videoBitrate = settings.getVideoBitrate();
+        isBackToBackRecordingEnabled = settings.isBackToBackRecordingEnabled();
+        loopSegmentDurationSec = settings.getLoopSegmentDurationSec();
+        loopMaxSegments = settings.getLoopMaxSegments();
+        loopQuotaBytes = settings.getLoopQuotaBytes();
+        preRollSec = settings.getPreRollSec();
+        preRollMaxBytes = settings.getPreRollMaxBytes();
+        highSpeedFps = settings.getHighSpeedFps();
+    }
+
+    boolean isUseBackCamera() {
+        return useBackCamera;
+    }
+
+    boolean isVideoStabilisationEnabled() {
+        return isVideoStabilisationEnabled;
+    }
+
+    boolean isAudioEnabled() {
+        return isAudioEnabled;
+    }
+
+    boolean isManualPhotoExposureEnabled() {
+        return isManualPhotoExposureEnabled;
+    }
+
+    double getAspectRatio() {
+        return aspectRatio;
+    }
+
+    int getRotation() {
+        return rotation;
+    }
+
+    boolean isWarmRestartEnabled() {
+        return isWarmRestartEnabled;
+    }
+
+    boolean isFlashlightOn() {
+        return isFlashlightOn;
+    }
+
+    int getStandbyTimeoutMs() {
+        return standbyTimeoutMs;
+    }
+
+    int getPhotoRingSize() {
+        return photoRingSize;
+    }
+
+    int getZslRingSize() {
+        return zslRingSize;
+    }
+
+    int getZslMergeFrames() {
+        return zslMergeFrames;
+    }
+
+    boolean isRawEnabled() {
+        return isRawEnabled;
+    }
+
+    int getTargetFps() {
+        return targetFps;
+    }
+
+    int getMaxVideoHeight() {
+        return maxVideoHeight;
+    }
+
+    VideoEncoderConfig.Backend getVideoEncoderBackend() {
+        return videoEncoderBackend;
+    }
+
+    VideoEncoderConfig.Codec getVideoCodec() {
+        return videoCodec;
+    }
+
+    int getVideoProfile() {
+        return videoProfile;
+    }
+
+    int getIFrameIntervalSec() {
+        return iFrameIntervalSec;
+    }
+
+    VideoEncoderConfig.BitrateMode getBitrateMode() {
+        return bitrateMode;
+    }
+
+    int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    boolean isBackToBackRecordingEnabled() {
+        return isBackToBackRecordingEnabled;
+    }
+
+    int getLoopSegmentDurationSec() {
+        return loopSegmentDurationSec;
+    }
+
+    int getLoopMaxSegments() {
+        return loopMaxSegments;
+    }
+
+    long getLoopQuotaBytes() {
+        return loopQuotaBytes;
+    }
+
+    int getPreRollSec() {
+        return preRollSec;
+    }
+
+    long getPreRollMaxBytes() {
+        return preRollMaxBytes;
+    }
+
+    int getHighSpeedFps() {
+        return highSpeedFps;
+    }
+
+    /**
+     * True if the encoder settings are the same (the video size and audio are compared separately)
+     */
+    boolean isVideoEncoderEqual(@NonNull CameraSettingsSnapshot other) {
+        return videoEncoderBackend == other.videoEncoderBackend &&
+                videoCodec == other.videoCodec &&
+                videoProfile == other.videoProfile &&
+                iFrameIntervalSec == other.iFrameIntervalSec &&
+                bitrateMode == other.bitrateMode &&
+                videoBitrate == other.videoBitrate;
+    }
+
+    /**
+     * Mutable copy of this snapshot
+     */
+    CameraSettings toSettings() {
+        return new CameraSettings()
+                .setUseBackCamera(useBackCamera)
+                .setVideoStabilisationEnabled(isVideoStabilisationEnabled)
+                .setAudioEnabled(isAudioEnabled)
+                .setManualPhotoExposureEnabled(isManualPhotoExposureEnabled)
+                .setAspectRatio(aspectRatio)
+                .setRotation(rotation)
+                .setWarmRestartEnabled(isWarmRestartEnabled)
+                .setFlashlightOn(isFlashlightOn)
+                .setStandbyTimeoutMs(standbyTimeoutMs)
+                .setPhotoRingSize(photoRingSize)
+                .setZslRingSize(zslRingSize)
+                .setZslMergeFrames(zslMergeFrames)
+                .setRawEnabled(isRawEnabled)
+                .setTargetFps(targetFps)
+                .setMaxVideoHeight(maxVideoHeight)
+                .setVideoEncoderBackend(videoEncoderBackend)
+                .setVideoCodec(videoCodec)
+                .setVideoProfile(videoProfile)
+                .setIFrameIntervalSec(iFrameIntervalSec)
+                .setBitrateMode(bitrateMode)
+                .setVideoBitrate(videoBitrate)
+                .setBackToBackRecordingEnabled(isBackToBackRecordingEnabled)
+                .setLoopSegmentDurationSec(loopSegmentDurationSec)
+                .setLoopMaxSegments(loopMaxSegments)
+                .setLoopQuotaBytes(loopQuotaBytes)
+                .setPreRollSec(preRollSec)
+                .setPreRollMaxBytes(preRollMaxBytes)
+                .setHighSpeedFps(highSpeedFps);
+    }
+
+    @Override
+    public String toString() {
+        return "Back camera " + useBackCamera +
+                ", stabilisation " + isVideoStabilisationEnabled +
+                ", audio " + isAudioEnabled +
+                ", aspect ratio " + aspectRatio +
+                ", rotation " + rotation +
+                ", flashlight " + isFlashlightOn +
+                ", standby timeout " + standbyTimeoutMs + " ms" +
+                ", photo ring " + photoRingSize +
+                ", ZSL ring " + zslRingSize +
+                ", ZSL merge " + zslMergeFrames +
+                ", RAW " + isRawEnabled +
+                ", target " + targetFps + " fps" +
+                ", max video height " + maxVideoHeight +
+                ", encoder " + videoEncoderBackend + " " + videoCodec +
+                ", back-to-back recording " + isBackToBackRecordingEnabled +
+                ", loop segment " + loopSegmentDurationSec + " s" +
+                " x " + loopMaxSegments + ", quota " + loopQuotaBytes / (1024 * 1024) + " MB" +
+                ", pre-roll " + preRollSec + " s, " + preRollMaxBytes / (1024 * 1024) + " MB" +
+                ", high speed " + highSpeedFps + " fps";
+    }
+}
@@ -0,0 +1,111 @@
+package com.mobiledevpro.smcamera;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Camera startup pipeline
+ * <p>
+ * Startup is split into two branches which run in parallel:
+ * opening of the camera device (camera thread) and preparation of outputs
+ * (media recorder, output file and image reader on the prepare thread).
+ * Capture session is created as soon as both branches are finished.
+ * Every stage is timed, so time to the first frame can be compared between launches.
+ */
+class CameraStartupPipeline {
+
+    enum Stage {
+        CONFIGURE(CameraTrace.Stage.CONFIGURE),
+        OPEN_CAMERA(CameraTrace.Stage.OPEN_CAMERA),
+        PREPARE_RECORDER(CameraTrace.Stage.PREPARE_RECORDER),
+        PREPARE_IMAGE_READER(CameraTrace.Stage.PREPARE_IMAGE_READER),
+        CREATE_SESSION(CameraTrace.Stage.CREATE_SESSION),
+        FIRST_FRAME(CameraTrace.Stage.FIRST_FRAME);
+
+        private final CameraTrace.Stage traceStage;
+
+        Stage(CameraTrace.Stage traceStage) {
+            this.traceStage = traceStage;
+        }
+    }
+
+    private static final int BRANCH_COUNT = 2;
+
+    private final long mStartedAt;
+    private final long[] mStageBegin = new long[Stage.values().length];
+    private final long[] mStageEnd = new long[Stage.values().length];
+    private final AtomicInteger mPendingBranches = new AtomicInteger(BRANCH_COUNT);
+    private final Runnable mOnBranchesFinished;
+    private volatile boolean mIsFinished;
+
+    /**
+     * @param onBranchesFinished Runs on the thread of the last finished branch
+     */
+    CameraStartupPipeline(@NonNull Runnable onBranchesFinished) {
+        mStartedAt = SystemClock.elapsedRealtimeNanos();
+        mOnBranchesFinished = onBranchesFinished;
+    }
+
+    void begin(Stage stage) {
+        mStageBegin[stage.ordinal()] = SystemClock.elapsedRealtimeNanos();
+        CameraTrace.begin(stage.traceStage);
+    }
+
+    void end(Stage stage) {
+        mStageEnd[stage.ordinal()] = SystemClock.elapsedRealtimeNanos();
+        CameraTrace.end(stage.traceStage);
+    }
+
+    /**
+     * Marks one of the parallel branches (device open or outputs preparation) as finished
+     */
+    void onBranchFinished() {
+        if (mPendingBranches.decrementAndGet() == 0) {
+            mOnBranchesFinished.run();
+        }
+    }
+
+    /**
+     * Finishes the pipeline on the first preview frame
+     *
+     * @return False if it has already been finished
+     */
+    boolean finish() {
+        if (mIsFinished) return false;
+        end(Stage.FIRST_FRAME);
+        mIsFinished = true;
+        return true;
+    }
+
+    boolean isFinished() {
+        return mIsFinished;
+    }
+
+    long getStageDurationMs(Stage stage) {
+        int i = stage.ordinal();
+        if (mStageBegin[i] == 0 || mStageEnd[i] == 0) return -1;
+        return (mStageEnd[i] - mStageBegin[i]) / 1000000;
+    }
+
+    long getTimeToFirstFrameMs() {
+        long firstFrameAt = mStageEnd[Stage.FIRST_FRAME.ordinal()];
+        return firstFrameAt == 0 ? -1 : (firstFrameAt - mStartedAt) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder("Time to first frame ")
+                .append(getTimeToFirstFrameMs())
+                .append(" ms");
+        for (Stage stage : Stage.values()) {
+            summary.append("\n")
+                    .append(stage)
+                    .append(": ")
+                    .append(getStageDurationMs(stage))
+                    .append(" ms");
+        }
+        return summary.toString();
+    }
+}
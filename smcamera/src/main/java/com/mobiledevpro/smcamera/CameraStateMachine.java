@@ -0,0 +1,166 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camera state machine
+ * <p>
+ * State is changed with compare-and-set only and every transition is validated against
+ * the transition table. Reads are lock-free, so capture callbacks never take a monitor.
+ * Illegal transitions are rejected (counted and logged) instead of throwing,
+ * because most of them come from the camera thread.
+ */
+class CameraStateMachine {
+
+    static final int CAMERA_STATE_IDLE = 0;
+    static final int CAMERA_STATE_START_PREVIEW = 1;
+    static final int CAMERA_STATE_PREVIEW = 2;
+    static final int CAMERA_STATE_RECORD_VIDEO = 3;
+    static final int CAMERA_STATE_CLOSING = 4;
+    static final int CAMERA_STATE_TAKE_PICTURE = 5;
+    //device is open, preview is stopped
+    static final int CAMERA_STATE_STANDBY = 6;
+
+    private static final String[] STATE_NAMES = {
+            "IDLE", "START_PREVIEW", "PREVIEW", "RECORD_VIDEO", "CLOSING", "TAKE_PICTURE", "STANDBY"
+    };
+
+    //bit mask of allowed target states for every state
+    private static final int[] TRANSITIONS = new int[STATE_NAMES.length];
+
+    static {
+        allow(CAMERA_STATE_IDLE, CAMERA_STATE_START_PREVIEW, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_START_PREVIEW, CAMERA_STATE_START_PREVIEW, CAMERA_STATE_PREVIEW, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_PREVIEW, CAMERA_STATE_START_PREVIEW, CAMERA_STATE_RECORD_VIDEO, CAMERA_STATE_TAKE_PICTURE, CAMERA_STATE_STANDBY, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_RECORD_VIDEO, CAMERA_STATE_START_PREVIEW, CAMERA_STATE_PREVIEW, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_TAKE_PICTURE, CAMERA_STATE_PREVIEW, CAMERA_STATE_RECORD_VIDEO, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_STANDBY, CAMERA_STATE_START_PREVIEW, CAMERA_STATE_CLOSING);
+        allow(CAMERA_STATE_CLOSING, CAMERA_STATE_IDLE);
+    }
+
+    interface OnTransitionListener {
+        /**
+         * Called on the thread which made the transition
+         */
+        void onTransition(int fromState, int toState);
+    }
+
+    private final AtomicInteger mState = new AtomicInteger(CAMERA_STATE_IDLE);
+    private final CopyOnWriteArrayList<OnTransitionListener> mListeners = new CopyOnWriteArrayList<>();
+
+    //contention counters
+    private final AtomicLong mTransitionCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mCasRetryCount = new AtomicLong();
+
+    private static void allow(int fromState, int... toStates) {
+        for (int toState : toStates) {
+            TRANSITIONS[fromState] |= 1 << toState;
+        }
+    }
+
+    static boolean isAllowed(int fromState, int toState) {
+        return (TRANSITIONS[fromState] & (1 << toState)) != 0;
+    }
+
+    static String getStateName(int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : String.valueOf(state);
+    }
+
+    /**
+     * Lock-free read of the current state
+     */
+    int get() {
+        return mState.get();
+    }
+
+    boolean is(int state) {
+        return mState.get() == state;
+    }
+
+    boolean isIn(int state1, int state2) {
+        int state = mState.get();
+        return state == state1 || state == state2;
+    }
+
+    /**
+     * Moves to the next state if the current state is the expected one
+     *
+     * @return False if the current state is not the expected one or the transition is not allowed
+     */
+    boolean compareAndSet(int expectedState, int nextState) {
+        if (!isAllowed(expectedState, nextState)) {
+            reject(expectedState, nextState);
+            return false;
+        }
+        if (!mState.compareAndSet(expectedState, nextState)) return false;
+        onTransition(expectedState, nextState);
+        return true;
+    }
+
+    /**
+     * Moves to the next state from any state which allows it
+     *
+     * @return False if the transition from the current state is not allowed
+     */
+    boolean moveTo(int nextState) {
+        while (true) {
+            int state = mState.get();
+            if (!isAllowed(state, nextState)) {
+                reject(state, nextState);
+                return false;
+            }
+            if (mState.compareAndSet(state, nextState)) {
+                onTransition(state, nextState);
+                return true;
+            }
+            //state has been changed by another thread
+            mCasRetryCount.incrementAndGet();
+        }
+    }
+
+    void addListener(@NonNull OnTransitionListener listener) {
+        mListeners.add(listener);
+    }
+
+    void removeListener(@NonNull OnTransitionListener listener) {
+        mListeners.remove(listener);
+    }
+
+    long getTransitionCount() {
+        return mTransitionCount.get();
+    }
+
+    long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    long getCasRetryCount() {
+        return mCasRetryCount.get();
+    }
+
+    private void onTransition(int fromState, int toState) {
+        mTransitionCount.incrementAndGet();
+        for (OnTransitionListener listener : mListeners) {
+            listener.onTransition(fromState, toState);
+        }
+    }
+
+    private void reject(int fromState, int toState) {
+        mRejectedCount.incrementAndGet();
+        Log.d(Constants.LOG_TAG_DEBUG, "CameraStateMachine.reject(): " + getStateName(fromState) + " -> " + getStateName(toState));
+    }
+
+    @Override
+    public String toString() {
+        return "State " + getStateName(mState.get()) +
+                ", transitions " + mTransitionCount.get() +
+                ", rejected " + mRejectedCount.get() +
+                ", CAS retries " + mCasRetryCount.get();
+    }
+}
@@ -0,0 +1,193 @@
+package com.mobiledevpro.smcamera;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Camera lifecycle tracing
+ * <p>
+ * Begin/end spans of lifecycle stages are recorded with a monotonic clock into a ring buffer
+ * which is allocated once. Trace can be exported as Chrome trace-event JSON
+ * (chrome://tracing, Perfetto) or queried for per-stage percentiles across launches.
+ * <p>
+ * Tracing is disabled by default, every call costs a single field check then.
+ */
+public final class CameraTrace {
+
+    public enum Stage {
+        //from the presenter start request to the camera ready event
+        STARTUP,
+        HELPER_START,
+        CONFIGURE,
+        OPEN_CAMERA,
+        PREPARE_RECORDER,
+        PREPARE_IMAGE_READER,
+        CREATE_SESSION,
+        START_PREVIEW,
+        FIRST_FRAME,
+        //delivery of the camera ready event to the presenter
+        CAMERA_READY_EVENT
+    }
+
+    private static final int CAPACITY = 1024;
+    private static final Stage[] STAGES = Stage.values();
+
+    private static volatile boolean sIsEnabled;
+
+    //ring buffer
+    private static final int[] sStage = new int[CAPACITY];
+    private static final int[] sLaunch = new int[CAPACITY];
+    private static final int[] sThreadId = new int[CAPACITY];
+    private static final long[] sBeginNs = new long[CAPACITY];
+    private static final long[] sEndNs = new long[CAPACITY];
+    private static int sNextIndex;
+    private static int sCount;
+
+    //begin time of open spans
+    private static final long[] sOpenBeginNs = new long[STAGES.length];
+    private static int sLaunchId;
+
+    private CameraTrace() {
+    }
+
+    public static void setEnabled(boolean isEnabled) {
+        sIsEnabled = isEnabled;
+    }
+
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    /**
+     * Starts a new launch, following spans will be grouped with it
+     */
+    static void beginLaunch() {
+        if (!sIsEnabled) return;
+        synchronized (CameraTrace.class) {
+            sLaunchId++;
+            Arrays.fill(sOpenBeginNs, 0);
+        }
+    }
+
+    static void begin(Stage stage) {
+        if (!sIsEnabled) return;
+        sOpenBeginNs[stage.ordinal()] = System.nanoTime();
+    }
+
+    static void end(Stage stage) {
+        if (!sIsEnabled) return;
+        long endNs = System.nanoTime();
+        long beginNs = sOpenBeginNs[stage.ordinal()];
+        //span has not been started or has already been finished
+        if (beginNs == 0) return;
+        sOpenBeginNs[stage.ordinal()] = 0;
+        record(stage, beginNs, endNs);
+    }
+
+    private static synchronized void record(Stage stage, long beginNs, long endNs) {
+        int i = sNextIndex;
+        sStage[i] = stage.ordinal();
+        sLaunch[i] = sLaunchId;
+        sThreadId[i] = Process.myTid();
+        sBeginNs[i] = beginNs;
+        sEndNs[i] = endNs;
+        sNextIndex = (i + 1) % CAPACITY;
+        if (sCount < CAPACITY) sCount++;
+    }
+
+    public static synchronized void reset() {
+        sNextIndex = 0;
+        sCount = 0;
+        Arrays.fill(sOpenBeginNs, 0);
+    }
+
+    /**
+     * Percentile of the stage duration across recorded launches
+     *
+     * @param percentile From 0 to 100
+     * @return Duration in milliseconds or -1 if the stage has not been recorded
+     */
+    public static synchronized double getStagePercentileMs(@NonNull Stage stage, double percentile) {
+        long[] durations = getStageDurationsNs(stage);
+        if (durations.length == 0) return -1;
+        Arrays.sort(durations);
+        //nearest-rank method
+        int rank = (int) Math.ceil(percentile / 100 * durations.length);
+        int index = Math.min(Math.max(rank - 1, 0), durations.length - 1);
+        return durations[index] / 1000000d;
+    }
+
+    /**
+     * p50, p90 and p99 of every recorded stage, in milliseconds
+     */
+    public static synchronized Map<Stage, double[]> getStagePercentiles() {
+        Map<Stage, double[]> percentiles = new EnumMap<>(Stage.class);
+        for (Stage stage : STAGES) {
+            if (getStageDurationsNs(stage).length == 0) continue;
+            percentiles.put(stage, new double[]{
+                    getStagePercentileMs(stage, 50),
+                    getStagePercentileMs(stage, 90),
+                    getStagePercentileMs(stage, 99)
+            });
+        }
+        return percentiles;
+    }
+
+    /**
+     * Exports recorded spans as Chrome trace-event JSON
+     */
+    public static String exportChromeTrace() {
+        StringWriter writer = new StringWriter();
+        try {
+            exportChromeTrace(writer);
+        } catch (IOException e) {
+            //StringWriter doesn't throw
+        }
+        return writer.toString();
+    }
+
+    public static synchronized void exportChromeTrace(@NonNull Writer writer) throws IOException {
+        int pid = Process.myPid();
+        writer.write("{\"traceEvents\":[");
+        int first = (sNextIndex - sCount + CAPACITY) % CAPACITY;
+        for (int n = 0; n < sCount; n++) {
+            int i = (first + n) % CAPACITY;
+            if (n > 0) writer.write(',');
+            writer.write("{\"name\":\"");
+            writer.write(STAGES[sStage[i]].name());
+            writer.write("\",\"cat\":\"camera\",\"ph\":\"X\",\"ts\":");
+            writer.write(Long.toString(sBeginNs[i] / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString((sEndNs[i] - sBeginNs[i]) / 1000));
+            writer.write(",\"pid\":");
+            writer.write(Integer.toString(pid));
+            writer.write(",\"tid\":");
+            writer.write(Integer.toString(sThreadId[i]));
+            writer.write(",\"args\":{\"launch\":");
+            writer.write(Integer.toString(sLaunch[i]));
+            writer.write("}}");
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}");
+        writer.flush();
+    }
+
+    private static long[] getStageDurationsNs(Stage stage) {
+        int count = 0;
+        for (int i = 0; i < sCount; i++) {
+            if (sStage[i] == stage.ordinal()) count++;
+        }
+        long[] durations = new long[count];
+        int n = 0;
+        for (int i = 0; i < sCount; i++) {
+            if (sStage[i] == stage.ordinal()) durations[n++] = sEndNs[i] - sBeginNs[i];
+        }
+        return durations;
+    }
+}
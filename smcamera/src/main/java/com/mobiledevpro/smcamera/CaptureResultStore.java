@@ -0,0 +1,74 @@
+package com.mobiledevpro.smcamera;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.samsung.android.sdk.camera.SCaptureResult;
+import com.samsung.android.sdk.camera.STotalCaptureResult;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Capture results of still requests by sensor timestamp, so a saved image can be matched to its result.
+ * Results are put on the camera thread and taken on the I/O thread, the oldest ones are dropped.
+ */
+class CaptureResultStore {
+
+    private final int mCapacity;
+    private final Map<Long, STotalCaptureResult> mResults = new LinkedHashMap<>();
+    //incremented by clear(), so waiting for a result of the closed session ends
+    private int mGeneration;
+
+    /**
+     * @param capacity Results which can wait for their images, e.g. the photo ring size plus the burst in flight
+     */
+    CaptureResultStore(int capacity) {
+        mCapacity = capacity;
+    }
+
+    synchronized void put(@NonNull STotalCaptureResult result) {
+        Long timestampNs = result.get(SCaptureResult.SENSOR_TIMESTAMP);
+        if (timestampNs == null) return;
+        mResults.put(timestampNs, result);
+        if (mResults.size() > mCapacity) {
+            Iterator<STotalCaptureResult> iterator = mResults.values().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the result, since the image may come before the result of its capture
+     *
+     * @param timeoutMs Max time to wait if the result has not come yet
+     * @return Null if the result has not come in time, it has been dropped or the store has been cleared
+     */
+    @Nullable
+    synchronized STotalCaptureResult take(long timestampNs, long timeoutMs) {
+        int generation = mGeneration;
+        long deadlineMs = SystemClock.elapsedRealtime() + timeoutMs;
+        STotalCaptureResult result = mResults.remove(timestampNs);
+        while (result == null && generation == mGeneration) {
+            long leftMs = deadlineMs - SystemClock.elapsedRealtime();
+            if (leftMs <= 0) break;
+            try {
+                wait(leftMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            result = mResults.remove(timestampNs);
+        }
+        return result;
+    }
+
+    synchronized void clear() {
+        mResults.clear();
+        mGeneration++;
+        notifyAll();
+    }
+}
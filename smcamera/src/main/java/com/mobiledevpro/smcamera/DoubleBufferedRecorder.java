@@ -0,0 +1,253 @@
+package com.mobiledevpro.smcamera;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Two video encoders on persistent input surfaces for back-to-back recording
+ * <p>
+ * Both surfaces are outputs of the capture session, the repeating request targets the surface
+ * of the recording encoder only. While one encoder records (or finishes its file), the other one
+ * is prepared, so the next recording is started by the repeating request update
+ * without rebuilding the capture session. Stopped encoder is finished on the prepare thread.
+ * <p>
+ * Only the standby encoder has an output file: the other one is prepared when the recording starts,
+ * and the file of the standby encoder which has never recorded is deleted on release.
+ */
+@TargetApi(23)
+final class DoubleBufferedRecorder {
+
+    //the standby encoder is prepared while the previous recording runs, it's longer only on a slow disk
+    private static final long STANDBY_WAIT_MS = 3000;
+
+    interface EncoderFactory {
+        @NonNull
+        File createOutputFile();
+
+        /**
+         * Called on the prepare thread for the next recordings
+         *
+         * @throws RuntimeException if the encoder cannot be prepared
+         */
+        @NonNull
+        IVideoEncoder create(@NonNull File outputFile, @NonNull Surface inputSurface);
+    }
+
+    interface Callback {
+        /**
+         * Called on the prepare thread when the file is finished
+         */
+        void onRecordingFinished(@NonNull File file, @Nullable IVideoEncoder.Stats stats);
+    }
+
+    private final EncoderFactory mFactory;
+    private final Callback mCallback;
+    private final Handler mPrepareHandler;
+    private final Slot[] mSlots;
+
+    //guarded by this
+    private Slot mStandbySlot;
+    private Slot mRecordingSlot;
+    private boolean mIsReleased;
+
+    /**
+     * Prepares the standby encoder on the caller thread
+     */
+    DoubleBufferedRecorder(@NonNull EncoderFactory factory,
+                           @NonNull Callback callback,
+                           @NonNull Handler prepareHandler) {
+        mFactory = factory;
+        mCallback = callback;
+        mPrepareHandler = prepareHandler;
+        mSlots = new Slot[]{new Slot(), new Slot()};
+        mSlots[0].encoder = mFactory.create(mFactory.createOutputFile(), mSlots[0].surface);
+        mStandbySlot = mSlots[0];
+    }
+
+    /**
+     * Surfaces which should be outputs of the capture session
+     */
+    List<Surface> getSurfaces() {
+        return Arrays.asList(mSlots[0].surface, mSlots[1].surface);
+    }
+
+    /**
+     * Waits while the standby encoder is being prepared, it should be called out of the caller locks
+     * before {@link #start()}
+     *
+     * @return False if the encoder is not ready in time
+     */
+    synchronized boolean awaitStandby() {
+        //preparation has failed before, it's tried again
+        if (mRecordingSlot == null && mStandbySlot.encoder == null && !mStandbySlot.isBusy && !mIsReleased) {
+            Slot standby = mStandbySlot;
+            mPrepareHandler.post(() -> prepare(standby));
+        }
+        long waitUntil = SystemClock.elapsedRealtime() + STANDBY_WAIT_MS;
+        while (mRecordingSlot == null && mStandbySlot.encoder == null && !mIsReleased) {
+            long waitMs = waitUntil - SystemClock.elapsedRealtime();
+            if (waitMs <= 0) return false;
+            try {
+                wait(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts the standby encoder and prepares the other one for the next recording
+     *
+     * @return Surface to add to the repeating request
+     * @throws RuntimeException The standby encoder is not ready, see {@link #awaitStandby()}
+     */
+    synchronized Surface start() throws RuntimeException {
+        if (mIsReleased) throw new IllegalStateException("Recorder is released");
+        if (mRecordingSlot != null) throw new IllegalStateException("Recording is in progress");
+        if (mStandbySlot.encoder == null) throw new RuntimeException("Standby video encoder is not ready");
+
+        mRecordingSlot = mStandbySlot;
+        mStandbySlot = getOtherSlot(mRecordingSlot);
+        mRecordingSlot.encoder.start();
+        mRecordingSlot.isStarted = true;
+        //after the finish of the previous recording of the slot, they are on the same thread
+        Slot standby = mStandbySlot;
+        mPrepareHandler.post(() -> prepare(standby));
+        return mRecordingSlot.surface;
+    }
+
+    /**
+     * Input surface of the recording encoder, null if it's not recording
+     */
+    @Nullable
+    synchronized Surface getRecordingSurface() {
+        return mRecordingSlot != null ? mRecordingSlot.surface : null;
+    }
+
+    /**
+     * Finishes the recording on the prepare thread, the other encoder is ready for the next start.
+     * The surface of the recording should be removed from the repeating request before.
+     */
+    synchronized void stop() {
+        if (mRecordingSlot == null) return;
+        Slot slot = mRecordingSlot;
+        mRecordingSlot = null;
+        mPrepareHandler.post(() -> finish(slot));
+    }
+
+    /**
+     * True if the next recording can be started without waiting
+     */
+    synchronized boolean isStandbyReady() {
+        return mRecordingSlot == null && mStandbySlot.encoder != null;
+    }
+
+    /**
+     * Surfaces are released when the slots are finished, so it should be called after the capture session is closed
+     */
+    synchronized void release() {
+        mIsReleased = true;
+        for (Slot slot : mSlots) {
+            //slot which is being finished or prepared is released by the prepare thread
+            if (!slot.isBusy) slot.release();
+        }
+        notifyAll();
+    }
+
+    private void finish(Slot slot) {
+        IVideoEncoder encoder;
+        synchronized (this) {
+            if (mIsReleased) return;
+            slot.isBusy = true;
+            encoder = slot.encoder;
+            slot.encoder = null;
+            slot.isStarted = false;
+        }
+
+        long startedAt = SystemClock.elapsedRealtime();
+        IVideoEncoder.Stats stats = null;
+        try {
+            stats = encoder.stop();
+        } catch (RuntimeException e) {
+            //MediaRecorder throws if nothing has been recorded
+            Log.e(Constants.LOG_TAG_ERROR, "DoubleBufferedRecorder.finish: " + e.getLocalizedMessage(), e);
+        }
+        //the last segment of the loop recording
+        File file = encoder.getOutputFile();
+        encoder.release();
+        mCallback.onRecordingFinished(file, stats);
+        Log.d(Constants.LOG_TAG_DEBUG, "DoubleBufferedRecorder.finish(): " + file.getName() +
+                " finished in " + (SystemClock.elapsedRealtime() - startedAt) + " ms");
+
+        synchronized (this) {
+            slot.isBusy = false;
+            if (mIsReleased) slot.release();
+        }
+    }
+
+    /**
+     * Prepares the encoder of the standby slot on the prepare thread, its output file is created here
+     */
+    private void prepare(Slot slot) {
+        synchronized (this) {
+            if (mIsReleased || slot != mStandbySlot || slot.encoder != null) return;
+            slot.isBusy = true;
+        }
+
+        //prepared out of the lock, so the state checks are not blocked
+        IVideoEncoder next = null;
+        try {
+            next = mFactory.create(mFactory.createOutputFile(), slot.surface);
+        } catch (RuntimeException e) {
+            //the next start fails as the standby encoder is not ready
+            Log.e(Constants.LOG_TAG_ERROR, "DoubleBufferedRecorder.prepare: " + e.getLocalizedMessage(), e);
+        }
+
+        synchronized (this) {
+            slot.isBusy = false;
+            slot.encoder = next;
+            if (mIsReleased) {
+                slot.release();
+                return;
+            }
+            notifyAll();
+        }
+    }
+
+    private Slot getOtherSlot(Slot slot) {
+        return slot == mSlots[0] ? mSlots[1] : mSlots[0];
+    }
+
+    private final class Slot {
+        private final Surface surface = MediaCodec.createPersistentInputSurface();
+        private IVideoEncoder encoder;
+        //the encoder has been started, its file is a recording
+        private boolean isStarted;
+        //the slot is being finished or prepared on the prepare thread
+        private boolean isBusy;
+
+        private void release() {
+            if (encoder != null) {
+                File file = encoder.getOutputFile();
+                encoder.release();
+                //standby file without a recording
+                if (!isStarted && file.exists() && !file.delete())
+                    Log.d(Constants.LOG_TAG_DEBUG, "DoubleBufferedRecorder.release(): cannot delete " + file.getName());
+                encoder = null;
+            }
+            surface.release();
+        }
+    }
+}
@@ -0,0 +1,562 @@
+package com.mobiledevpro.smcamera;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.samsung.android.sdk.camera.SCaptureResult;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Splices EXIF (APP1 segment) with capture metadata into the JPEG byte stream on the way to disk
+ * <p>
+ * The image is not decoded: APP1 is written right after SOI and the rest of the stream is written as is.
+ * EXIF of the camera (if any) is replaced by the merged one: the new tags are added to its IFDs or replace
+ * the same tags, GPS and interoperability IFDs and the thumbnail are kept (the thumbnail is dropped
+ * if the segment doesn't fit into 64 KB).
+ * Segment has exposure time, ISO, aperture, focal length, focus distance, capture time
+ * and the sensor timestamp (as the unique image id), it's built in a few microseconds.
+ */
+final class ExifInjector {
+
+    static final int ORIENTATION_NORMAL = 1;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int SOI_LENGTH = 2;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    //TIFF types
+    private static final short TYPE_ASCII = 2;
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+
+    //tags, IFDs are written sorted by tag
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_F_NUMBER = 0x829D;
+    private static final int TAG_ISO = 0x8827;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_SUBJECT_DISTANCE = 0x9206;
+    private static final int TAG_FOCAL_LENGTH = 0x920A;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+    private static final int TAG_INTEROP_IFD = 0xA005;
+    private static final int TAG_IMAGE_UNIQUE_ID = 0xA420;
+
+    private ExifInjector() {
+    }
+
+    /**
+     * Builds APP1 segment (marker and length included)
+     *
+     * @param result          Capture result of the image, null - only orientation and timestamp are written
+     * @param exifOrientation EXIF orientation value
+     * @param timestampNs     Sensor timestamp of the image
+     * @param captureTimeMs   Wall clock time of the capture
+     * @param cameraJpeg      JPEG stream of the camera, the new tags are merged into its EXIF (if any)
+     * @param pooled          Array of the segment is taken from the pool and added here,
+     *                        it should be released after the write
+     */
+    static ByteBuffer buildApp1(@Nullable SCaptureResult result,
+                                int exifOrientation,
+                                long timestampNs,
+                                long captureTimeMs,
+                                @Nullable ByteBuffer cameraJpeg,
+                                @NonNull List<byte[]> pooled) {
+        TreeMap<Integer, Entry> ifd0 = new TreeMap<>();
+        put(ifd0, Entry.ascii(TAG_MAKE, Build.MANUFACTURER));
+        put(ifd0, Entry.ascii(TAG_MODEL, Build.MODEL));
+        put(ifd0, Entry.shortValue(TAG_ORIENTATION, exifOrientation));
+
+        TreeMap<Integer, Entry> exif = new TreeMap<>();
+        if (result != null) {
+            Long exposureTimeNs = result.get(SCaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposureTimeNs != null) put(exif, Entry.rational(TAG_EXPOSURE_TIME, exposureTimeNs / 1000, 1000000));
+            Float aperture = result.get(SCaptureResult.LENS_APERTURE);
+            if (aperture != null) put(exif, Entry.rational(TAG_F_NUMBER, Math.round(aperture * 100), 100));
+            Integer sensitivity = result.get(SCaptureResult.SENSOR_SENSITIVITY);
+            if (sensitivity != null) put(exif, Entry.shortValue(TAG_ISO, Math.min(sensitivity, 0xFFFF)));
+            Float focusDistance = result.get(SCaptureResult.LENS_FOCUS_DISTANCE);
+            if (focusDistance != null) {
+                //diopters to meters, 0 diopters is infinity
+                put(exif, focusDistance > 0 ?
+                        Entry.rational(TAG_SUBJECT_DISTANCE, Math.round(1000 / focusDistance), 1000) :
+                        Entry.rational(TAG_SUBJECT_DISTANCE, 0xFFFFFFFFL, 1));
+            }
+            Float focalLength = result.get(SCaptureResult.LENS_FOCAL_LENGTH);
+            if (focalLength != null) put(exif, Entry.rational(TAG_FOCAL_LENGTH, Math.round(focalLength * 1000), 1000));
+        }
+        String dateTime = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US).format(new Date(captureTimeMs));
+        put(exif, Entry.ascii(TAG_DATE_TIME_ORIGINAL, dateTime));
+        put(exif, Entry.ascii(TAG_SUB_SEC_TIME_ORIGINAL, String.format(Locale.US, "%03d", captureTimeMs % 1000)));
+        put(exif, Entry.ascii(TAG_IMAGE_UNIQUE_ID, String.format(Locale.US, "%032x", timestampNs)));
+
+        TiffDirectories camera = cameraJpeg != null ? TiffDirectories.read(cameraJpeg) : null;
+        if (camera != null) {
+            ByteBuffer app1 = camera.merge(ifd0, exif, true, pooled);
+            //the thumbnail doesn't fit into the segment with the new tags
+            if (app1 == null) app1 = camera.merge(ifd0, exif, false, pooled);
+            if (app1 != null) return app1;
+            Log.d(Constants.LOG_TAG_DEBUG, "ExifInjector.buildApp1(): camera EXIF is too long, it's not kept");
+        }
+        ByteBuffer app1 = writeApp1(ifd0, exif, null, null, null, null, pooled);
+        if (app1 == null) throw new IllegalStateException("EXIF segment is too long");
+        return app1;
+    }
+
+    /**
+     * Offset right after SOI and the camera EXIF (if it's the first segment after SOI)
+     *
+     * @return Offset from which the JPEG stream is written after the new APP1
+     * @throws IOException The stream doesn't start with SOI
+     */
+    static int findImageStart(@NonNull ByteBuffer jpeg) throws IOException {
+        int start = jpeg.position();
+        if (jpeg.remaining() < SOI_LENGTH ||
+                (jpeg.get(start) & 0xFF) != 0xFF ||
+                (jpeg.get(start + 1) & 0xFF) != MARKER_SOI)
+            throw new IOException("Not a JPEG stream");
+
+        int offset = start + SOI_LENGTH;
+        if (isExifSegment(jpeg, offset)) {
+            return offset + 2 + getSegmentLength(jpeg, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Orientation from the camera EXIF, so it's not lost when the segment is replaced
+     *
+     * @return Default value if there is no EXIF or orientation tag
+     */
+    static int readOrientation(@NonNull ByteBuffer jpeg, int defaultValue) {
+        int segment = jpeg.position() + SOI_LENGTH;
+        if (!isExifSegment(jpeg, segment)) return defaultValue;
+        int segmentEnd = Math.min(segment + 2 + getSegmentLength(jpeg, segment), jpeg.limit());
+
+        int tiff = segment + 4 + EXIF_HEADER.length;
+        if (tiff + 8 > segmentEnd) return defaultValue;
+        ByteBuffer buffer = jpeg.duplicate();
+        buffer.order(jpeg.get(tiff) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        int ifd = tiff + buffer.getInt(tiff + 4);
+        if (ifd < tiff || ifd + 2 > segmentEnd) return defaultValue;
+        int count = buffer.getShort(ifd) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segmentEnd) break;
+            if ((buffer.getShort(entry) & 0xFFFF) == TAG_ORIENTATION) {
+                return buffer.getShort(entry + 8) & 0xFFFF;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Stream which writes APP1 right after SOI of the encoded JPEG, other bytes are passed as is
+     */
+    static OutputStream wrap(@NonNull OutputStream output, @NonNull ByteBuffer app1) {
+        return new FilterOutputStream(output) {
+            private int mWritten;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                if (++mWritten == SOI_LENGTH) writeApp1();
+            }
+
+            @Override
+            public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                if (mWritten >= SOI_LENGTH) {
+                    out.write(b, off, len);
+                    mWritten += len;
+                    return;
+                }
+                int head = Math.min(len, SOI_LENGTH - mWritten);
+                out.write(b, off, head);
+                mWritten += head;
+                if (mWritten == SOI_LENGTH) writeApp1();
+                if (len > head) {
+                    out.write(b, off + head, len - head);
+                    mWritten += len - head;
+                }
+            }
+
+            private void writeApp1() throws IOException {
+                out.write(app1.array(), app1.arrayOffset() + app1.position(), app1.remaining());
+            }
+        };
+    }
+
+    /**
+     * EXIF orientation value of the clockwise rotation
+     */
+    static int toExifOrientation(int degrees) {
+        switch (degrees) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    private static boolean isExifSegment(ByteBuffer jpeg, int offset) {
+        if (offset + 4 + EXIF_HEADER.length > jpeg.limit()) return false;
+        if ((jpeg.get(offset) & 0xFF) != 0xFF || (jpeg.get(offset + 1) & 0xFF) != MARKER_APP1) return false;
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (jpeg.get(offset + 4 + i) != EXIF_HEADER[i]) return false;
+        }
+        return true;
+    }
+
+    private static int getSegmentLength(ByteBuffer jpeg, int offset) {
+        return ((jpeg.get(offset + 2) & 0xFF) << 8) | (jpeg.get(offset + 3) & 0xFF);
+    }
+
+    private static void put(Map<Integer, Entry> ifd, Entry entry) {
+        ifd.put(entry.tag, entry);
+    }
+
+    /**
+     * Lays out the TIFF structure: IFD0, EXIF IFD, interoperability IFD, GPS IFD, IFD1 and the thumbnail
+     *
+     * @return Null if the segment is longer than 64 KB
+     */
+    @Nullable
+    private static ByteBuffer writeApp1(Map<Integer, Entry> ifd0Tags,
+                                        Map<Integer, Entry> exifTags,
+                                        @Nullable Map<Integer, Entry> interopTags,
+                                        @Nullable Map<Integer, Entry> gpsTags,
+                                        @Nullable Map<Integer, Entry> ifd1Tags,
+                                        @Nullable ByteBuffer thumbnail,
+                                        List<byte[]> pooled) {
+        //pointers are LONG values, so lengths are known before the offsets
+        TreeMap<Integer, Entry> ifd0 = new TreeMap<>(ifd0Tags);
+        TreeMap<Integer, Entry> exif = new TreeMap<>(exifTags);
+        put(ifd0, Entry.longValue(TAG_EXIF_IFD, 0));
+        if (gpsTags != null) put(ifd0, Entry.longValue(TAG_GPS_IFD, 0));
+        if (interopTags != null) put(exif, Entry.longValue(TAG_INTEROP_IFD, 0));
+        TreeMap<Integer, Entry> ifd1 = null;
+        if (ifd1Tags != null && thumbnail != null) {
+            ifd1 = new TreeMap<>(ifd1Tags);
+            put(ifd1, Entry.longValue(TAG_JPEG_INTERCHANGE_FORMAT, 0));
+            put(ifd1, Entry.longValue(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, thumbnail.remaining()));
+        }
+
+        int exifOffset = 8 + getIfdLength(ifd0.values());
+        int interopOffset = exifOffset + getIfdLength(exif.values());
+        int gpsOffset = interopOffset + (interopTags != null ? getIfdLength(interopTags.values()) : 0);
+        int ifd1Offset = gpsOffset + (gpsTags != null ? getIfdLength(gpsTags.values()) : 0);
+        int thumbnailOffset = ifd1Offset + (ifd1 != null ? getIfdLength(ifd1.values()) : 0);
+        int tiffLength = thumbnailOffset + (ifd1 != null ? thumbnail.remaining() : 0);
+        int segmentLength = 2 + EXIF_HEADER.length + tiffLength;
+        if (segmentLength > 0xFFFF) return null;
+
+        put(ifd0, Entry.longValue(TAG_EXIF_IFD, exifOffset));
+        if (gpsTags != null) put(ifd0, Entry.longValue(TAG_GPS_IFD, gpsOffset));
+        if (interopTags != null) put(exif, Entry.longValue(TAG_INTEROP_IFD, interopOffset));
+        if (ifd1 != null) put(ifd1, Entry.longValue(TAG_JPEG_INTERCHANGE_FORMAT, thumbnailOffset));
+
+        byte[] array = BufferPool.get().acquireArray(2 + segmentLength);
+        if (array != null) {
+            pooled.add(array);
+        } else {
+            //the photo is not dropped if the pool is full
+            array = new byte[2 + segmentLength];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(array, 0, 2 + segmentLength).order(ByteOrder.BIG_ENDIAN);
+        buffer.put((byte) 0xFF).put((byte) MARKER_APP1).putShort((short) segmentLength);
+        buffer.put(EXIF_HEADER);
+        int tiffStart = buffer.position();
+        buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+
+        writeIfd(buffer, tiffStart, ifd0.values(), ifd1 != null ? ifd1Offset : 0);
+        writeIfd(buffer, tiffStart, exif.values(), 0);
+        if (interopTags != null) writeIfd(buffer, tiffStart, interopTags.values(), 0);
+        if (gpsTags != null) writeIfd(buffer, tiffStart, gpsTags.values(), 0);
+        if (ifd1 != null) {
+            writeIfd(buffer, tiffStart, ifd1.values(), 0);
+            buffer.put(thumbnail.duplicate());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Entries, next IFD offset and values which don't fit into entries
+     */
+    private static int getIfdLength(Collection<Entry> entries) {
+        int length = 2 + entries.size() * 12 + 4;
+        for (Entry entry : entries) {
+            if (entry.value.length > 4) length += entry.value.length;
+        }
+        return length;
+    }
+
+    private static void writeIfd(ByteBuffer buffer, int tiffStart, Collection<Entry> entries, int nextIfdOffset) {
+        int ifdStart = buffer.position() - tiffStart;
+        int dataOffset = ifdStart + 2 + entries.size() * 12 + 4;
+
+        buffer.putShort((short) entries.size());
+        for (Entry entry : entries) {
+            buffer.putShort((short) entry.tag);
+            buffer.putShort(entry.type);
+            buffer.putInt(entry.count);
+            if (entry.value.length > 4) {
+                buffer.putInt(dataOffset);
+                dataOffset += entry.value.length;
+            } else {
+                //values up to 4 bytes are left aligned in the entry
+                buffer.put(entry.value);
+                for (int i = entry.value.length; i < 4; i++) buffer.put((byte) 0);
+            }
+        }
+        buffer.putInt(nextIfdOffset);
+        for (Entry entry : entries) {
+            if (entry.value.length > 4) buffer.put(entry.value);
+        }
+    }
+
+    /**
+     * IFDs of the camera EXIF, offsets are resolved, values are converted to big endian.
+     * Pointers (EXIF, GPS, interoperability IFDs and the thumbnail) are removed from the tags,
+     * they are written again with the new offsets. MakerNote is copied as is.
+     */
+    private static final class TiffDirectories {
+        private final ByteBuffer mBuffer;
+        private final int mTiff;
+        private final int mEnd;
+
+        private TreeMap<Integer, Entry> mIfd0;
+        private TreeMap<Integer, Entry> mExif;
+        private TreeMap<Integer, Entry> mInterop;
+        private TreeMap<Integer, Entry> mGps;
+        private TreeMap<Integer, Entry> mIfd1;
+        //view of the camera JPEG, it's not copied
+        private ByteBuffer mThumbnail;
+        private int mNextIfdOffset;
+
+        private TiffDirectories(ByteBuffer buffer, int tiff, int end) {
+            mBuffer = buffer;
+            mTiff = tiff;
+            mEnd = end;
+        }
+
+        /**
+         * @return Null if there is no EXIF right after SOI or its IFD0 is broken
+         */
+        @Nullable
+        static TiffDirectories read(@NonNull ByteBuffer jpeg) {
+            int segment = jpeg.position() + SOI_LENGTH;
+            if (!isExifSegment(jpeg, segment)) return null;
+            int segmentEnd = Math.min(segment + 2 + getSegmentLength(jpeg, segment), jpeg.limit());
+            int tiff = segment + 4 + EXIF_HEADER.length;
+            if (tiff + 8 > segmentEnd) return null;
+            ByteBuffer buffer = jpeg.duplicate();
+            buffer.order(jpeg.get(tiff) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+            TiffDirectories directories = new TiffDirectories(buffer, tiff, segmentEnd);
+            directories.mIfd0 = directories.readIfd(buffer.getInt(tiff + 4));
+            if (directories.mIfd0 == null) return null;
+            int ifd1Offset = directories.mNextIfdOffset;
+
+            directories.mExif = directories.readIfd(directories.removePointer(directories.mIfd0, TAG_EXIF_IFD));
+            directories.mGps = directories.readIfd(directories.removePointer(directories.mIfd0, TAG_GPS_IFD));
+            if (directories.mExif != null) {
+                directories.mInterop = directories.readIfd(directories.removePointer(directories.mExif, TAG_INTEROP_IFD));
+            }
+            directories.readThumbnail(ifd1Offset);
+            return directories;
+        }
+
+        /**
+         * @param ifd0          New IFD0 tags, they replace the camera ones
+         * @param exif          New EXIF IFD tags, they replace the camera ones
+         * @param withThumbnail False - IFD1 and the thumbnail are dropped
+         * @return Null if the merged segment is longer than 64 KB
+         */
+        @Nullable
+        ByteBuffer merge(Map<Integer, Entry> ifd0, Map<Integer, Entry> exif, boolean withThumbnail, List<byte[]> pooled) {
+            TreeMap<Integer, Entry> mergedIfd0 = new TreeMap<>(mIfd0);
+            mergedIfd0.putAll(ifd0);
+            TreeMap<Integer, Entry> mergedExif = mExif != null ? new TreeMap<>(mExif) : new TreeMap<>();
+            mergedExif.putAll(exif);
+            return writeApp1(mergedIfd0, mergedExif, mInterop, mGps,
+                    withThumbnail ? mIfd1 : null,
+                    withThumbnail ? mThumbnail : null,
+                    pooled);
+        }
+
+        private void readThumbnail(int ifd1Offset) {
+            if (ifd1Offset == 0) return;
+            TreeMap<Integer, Entry> ifd1 = readIfd(ifd1Offset);
+            if (ifd1 == null) return;
+            int offset = removePointer(ifd1, TAG_JPEG_INTERCHANGE_FORMAT);
+            int length = removePointer(ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+            //uncompressed (strip) thumbnails are not kept
+            if (offset <= 0 || length <= 0 || ifd1.containsKey(TAG_STRIP_OFFSETS)) return;
+            if (mTiff + (long) offset + length > mEnd) return;
+            mThumbnail = mBuffer.duplicate();
+            mThumbnail.limit(mTiff + offset + length);
+            mThumbnail.position(mTiff + offset);
+            mIfd1 = ifd1;
+        }
+
+        /**
+         * @return Null if the IFD is out of the segment
+         */
+        @Nullable
+        private TreeMap<Integer, Entry> readIfd(int offset) {
+            int ifd = mTiff + offset;
+            if (offset <= 0 || ifd + 2 > mEnd) return null;
+            int count = mBuffer.getShort(ifd) & 0xFFFF;
+            if (ifd + 2 + count * 12 + 4 > mEnd) return null;
+
+            TreeMap<Integer, Entry> entries = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                Entry entry = readEntry(ifd + 2 + i * 12);
+                if (entry != null) put(entries, entry);
+            }
+            mNextIfdOffset = mBuffer.getInt(ifd + 2 + count * 12);
+            return entries;
+        }
+
+        /**
+         * @return Null if the type is unknown or the value is out of the segment
+         */
+        @Nullable
+        private Entry readEntry(int position) {
+            int tag = mBuffer.getShort(position) & 0xFFFF;
+            short type = mBuffer.getShort(position + 2);
+            int count = mBuffer.getInt(position + 4);
+            int unitSize = getUnitSize(type);
+            if (unitSize == 0 || count < 0) return null;
+            long size = (long) count * getTypeSize(type);
+            if (size > mEnd - mTiff) return null;
+
+            int valuePosition = size > 4 ? mTiff + mBuffer.getInt(position + 8) : position + 8;
+            if (valuePosition < mTiff || valuePosition + size > mEnd) return null;
+            //values longer than 4 bytes start at a word boundary
+            byte[] value = new byte[(int) (size > 4 ? size + size % 2 : size)];
+            for (int i = 0; i < size; i += unitSize) {
+                for (int j = 0; j < unitSize; j++) {
+                    int source = mBuffer.order() == ByteOrder.BIG_ENDIAN ? j : unitSize - 1 - j;
+                    value[i + j] = mBuffer.get(valuePosition + i + source);
+                }
+            }
+            return new Entry(tag, type, count, value);
+        }
+
+        /**
+         * @return Offset of SHORT or LONG pointer, 0 if there is no tag
+         */
+        private static int removePointer(Map<Integer, Entry> ifd, int tag) {
+            Entry entry = ifd.remove(tag);
+            if (entry == null) return 0;
+            ByteBuffer value = ByteBuffer.wrap(entry.value);
+            if (entry.type == TYPE_SHORT) return value.getShort() & 0xFFFF;
+            if (entry.type == TYPE_LONG) return value.getInt();
+            return 0;
+        }
+
+        /**
+         * Bytes of the value element which are swapped to change the byte order, 0 - unknown type
+         */
+        private static int getUnitSize(short type) {
+            switch (type) {
+                case 1: //BYTE
+                case 2: //ASCII
+                case 6: //SBYTE
+                case 7: //UNDEFINED
+                    return 1;
+                case 3: //SHORT
+                case 8: //SSHORT
+                    return 2;
+                case 4: //LONG
+                case 5: //RATIONAL, numerator and denominator
+                case 9: //SLONG
+                case 10: //SRATIONAL
+                case 11: //FLOAT
+                    return 4;
+                case 12: //DOUBLE
+                    return 8;
+                default:
+                    return 0;
+            }
+        }
+
+        private static int getTypeSize(short type) {
+            return type == TYPE_RATIONAL || type == 10 ? 8 : getUnitSize(type);
+        }
+    }
+
+    /**
+     * IFD entry with the big endian value
+     */
+    private static class Entry {
+        private final int tag;
+        private final short type;
+        private final int count;
+        private final byte[] value;
+
+        private Entry(int tag, short type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+
+        private static Entry ascii(int tag, String text) {
+            byte[] bytes = (text == null ? "" : text).getBytes(ASCII);
+            byte[] value = new byte[bytes.length + 1];
+            System.arraycopy(bytes, 0, value, 0, bytes.length);
+            //values are word aligned, ASCII is padded with zero
+            if (value.length % 2 != 0 && value.length > 4) {
+                byte[] padded = new byte[value.length + 1];
+                System.arraycopy(value, 0, padded, 0, value.length);
+                return new Entry(tag, TYPE_ASCII, value.length, padded);
+            }
+            return new Entry(tag, TYPE_ASCII, value.length, value);
+        }
+
+        private static Entry shortValue(int tag, int value) {
+            return new Entry(tag, TYPE_SHORT, 1, new byte[]{(byte) (value >> 8), (byte) value});
+        }
+
+        private static Entry longValue(int tag, long value) {
+            return new Entry(tag, TYPE_LONG, 1, ByteBuffer.allocate(4).putInt((int) value).array());
+        }
+
+        private static Entry rational(int tag, long numerator, long denominator) {
+            return new Entry(tag, TYPE_RATIONAL, 1,
+                    ByteBuffer.allocate(8).putInt((int) numerator).putInt((int) denominator).array());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.samsung.android.sdk.camera.SCameraCharacteristics;
+import com.samsung.android.sdk.camera.SCaptureRequest;
+import com.samsung.android.sdk.camera.SCaptureResult;
+import com.samsung.android.sdk.camera.STotalCaptureResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Exposure bracket: still frames with different exposures which are captured by a single burst,
+ * so the frames come from consecutive sensor readouts.
+ * <p>
+ * EV bracket is converted to manual exposure time and ISO around the metered preview exposure
+ * if the camera supports manual sensor control, otherwise AE compensation is used.
+ * AE is locked on the metered exposure then, and each compensation step is settled by a few preview frames
+ * of the same burst before its still frame, since AE applies a new compensation with a delay.
+ */
+public final class ExposureBracket {
+
+    private static final long MAX_BRACKET_EXPOSURE_NS = 250000000L;
+    //preview frames before the still frame of a new AE compensation step
+    private static final int AE_SETTLE_FRAMES = 4;
+
+    private final double[] mEvOffsets;
+    private final long[] mExposureTimesNs;
+    private final int[] mSensitivities;
+
+    private ExposureBracket(double[] evOffsets, long[] exposureTimesNs, int[] sensitivities) {
+        mEvOffsets = evOffsets;
+        mExposureTimesNs = exposureTimesNs;
+        mSensitivities = sensitivities;
+    }
+
+    /**
+     * Bracket of EV offsets from the metered exposure, e.g. -2, 0, +2
+     */
+    public static ExposureBracket ofEv(@NonNull double... evOffsets) {
+        if (evOffsets.length == 0) throw new IllegalArgumentException("Bracket cannot be empty");
+        return new ExposureBracket(evOffsets.clone(), null, null);
+    }
+
+    /**
+     * Bracket of manual values, it requires manual sensor control
+     */
+    public static ExposureBracket ofManual(@NonNull long[] exposureTimesNs, @NonNull int[] sensitivities) {
+        if (exposureTimesNs.length == 0 || exposureTimesNs.length != sensitivities.length)
+            throw new IllegalArgumentException("Exposure times and sensitivities should have the same non-zero length");
+        return new ExposureBracket(null, exposureTimesNs.clone(), sensitivities.clone());
+    }
+
+    public int getFrameCount() {
+        return mEvOffsets != null ? mEvOffsets.length : mExposureTimesNs.length;
+    }
+
+    /**
+     * Builds still requests of the bracket, the builders are restored after that
+     *
+     * @param settleBuilder Preview request, AE compensation steps are settled by it
+     * @param meteredResult Last preview result, manual values of EV bracket are calculated from it
+     * @throws UnsupportedOperationException Manual bracket on a camera without manual sensor control
+     */
+    Capture newCapture(@NonNull SCaptureRequest.Builder builder,
+                       @NonNull SCaptureRequest.Builder settleBuilder,
+                       @NonNull CameraCharacteristicsCache.CameraInfo cameraInfo,
+                       @Nullable STotalCaptureResult meteredResult) {
+        CameraCharacteristicsCache.ExposureRanges ranges = cameraInfo.getExposureRanges();
+        boolean isManualSupported = cameraInfo.hasCapability(SCameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR);
+        if (mEvOffsets == null && !isManualSupported)
+            throw new UnsupportedOperationException("Manual sensor control is not supported");
+
+        Long meteredExposureNs = meteredResult == null ? null : meteredResult.get(SCaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer meteredSensitivity = meteredResult == null ? null : meteredResult.get(SCaptureResult.SENSOR_SENSITIVITY);
+        boolean isManual = mEvOffsets == null ||
+                (isManualSupported && meteredExposureNs != null && meteredSensitivity != null);
+
+        Integer aeMode = builder.get(SCaptureRequest.CONTROL_AE_MODE);
+        Integer compensation = builder.get(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION);
+        Boolean aeLock = builder.get(SCaptureRequest.CONTROL_AE_LOCK);
+        Integer settleCompensation = settleBuilder.get(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION);
+        Boolean settleAeLock = settleBuilder.get(SCaptureRequest.CONTROL_AE_LOCK);
+
+        List<SCaptureRequest> requests = new ArrayList<>(getFrameCount());
+        List<Frame> frames = new ArrayList<>(getFrameCount());
+        Integer lastCompensationSteps = null;
+        for (int i = 0; i < getFrameCount(); i++) {
+            double evOffset = mEvOffsets != null ? mEvOffsets[i] : Double.NaN;
+            long exposureTimeNs = 0;
+            int sensitivity = 0;
+            int compensationSteps = 0;
+
+            if (isManual) {
+                if (mEvOffsets != null) {
+                    //exposure time is changed first, ISO covers the rest (e.g. when the time is too long for a handheld shot)
+                    double exposure = meteredExposureNs * meteredSensitivity * Math.pow(2, evOffset);
+                    exposureTimeNs = clamp((long) (exposure / meteredSensitivity),
+                            ranges.getExposureTimeMinNs(), Math.min(ranges.getExposureTimeMaxNs(), MAX_BRACKET_EXPOSURE_NS));
+                    sensitivity = (int) clamp(Math.round(exposure / exposureTimeNs),
+                            ranges.getSensitivityMin(), ranges.getSensitivityMax());
+                } else {
+                    exposureTimeNs = clamp(mExposureTimesNs[i], ranges.getExposureTimeMinNs(), ranges.getExposureTimeMaxNs());
+                    sensitivity = (int) clamp(mSensitivities[i], ranges.getSensitivityMin(), ranges.getSensitivityMax());
+                }
+                builder.set(SCaptureRequest.CONTROL_AE_MODE, SCaptureRequest.CONTROL_AE_MODE_OFF);
+                builder.set(SCaptureRequest.SENSOR_EXPOSURE_TIME, exposureTimeNs);
+                builder.set(SCaptureRequest.SENSOR_SENSITIVITY, sensitivity);
+            } else {
+                double stepEv = ranges.getCompensationStepEv();
+                compensationSteps = stepEv > 0 ? (int) clamp(Math.round(evOffset / stepEv),
+                        ranges.getCompensationMin(), ranges.getCompensationMax()) : 0;
+                //the compensation is applied to the locked exposure, so the steps don't depend on metering
+                builder.set(SCaptureRequest.CONTROL_AE_LOCK, true);
+                builder.set(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, compensationSteps);
+                if (lastCompensationSteps == null || lastCompensationSteps != compensationSteps) {
+                    settleBuilder.set(SCaptureRequest.CONTROL_AE_LOCK, true);
+                    settleBuilder.set(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, compensationSteps);
+                    SCaptureRequest settleRequest = settleBuilder.build();
+                    for (int j = 0; j < AE_SETTLE_FRAMES; j++) {
+                        requests.add(settleRequest);
+                    }
+                    lastCompensationSteps = compensationSteps;
+                }
+            }
+            builder.setTag(i);
+            requests.add(builder.build());
+            frames.add(new Frame(i, evOffset, exposureTimeNs, sensitivity, compensationSteps));
+        }
+
+        builder.set(SCaptureRequest.CONTROL_AE_MODE, aeMode);
+        builder.set(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, compensation);
+        builder.set(SCaptureRequest.CONTROL_AE_LOCK, aeLock);
+        builder.set(SCaptureRequest.SENSOR_EXPOSURE_TIME, null);
+        builder.set(SCaptureRequest.SENSOR_SENSITIVITY, null);
+        builder.setTag(null);
+        if (!isManual) {
+            settleBuilder.set(SCaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, settleCompensation);
+            settleBuilder.set(SCaptureRequest.CONTROL_AE_LOCK, settleAeLock);
+        }
+
+        return new Capture(requests, frames, isManual);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        if (max <= 0) return value;
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Bracket which is being captured
+     */
+    static class Capture {
+        private final List<SCaptureRequest> mRequests;
+        private final List<Frame> mFrames;
+        private final boolean mIsManual;
+        private BurstCapture mBurst;
+
+        private Capture(List<SCaptureRequest> requests, List<Frame> frames, boolean isManual) {
+            mRequests = requests;
+            mFrames = frames;
+            mIsManual = isManual;
+        }
+
+        /**
+         * Still frames and the settling preview frames of the burst
+         */
+        List<SCaptureRequest> getRequests() {
+            return mRequests;
+        }
+
+        /**
+         * @return False for a settling preview frame
+         */
+        boolean isFrame(@NonNull SCaptureRequest request) {
+            return request.getTag() instanceof Integer;
+        }
+
+        int getFrameCount() {
+            return mFrames.size();
+        }
+
+        void setBurst(@NonNull BurstCapture burst) {
+            mBurst = burst;
+        }
+
+        BurstCapture getBurst() {
+            return mBurst;
+        }
+
+        /**
+         * Applied values of the frame, request tag is the frame index
+         */
+        synchronized void onCaptureCompleted(@NonNull SCaptureRequest request, @NonNull STotalCaptureResult result) {
+            Object tag = request.getTag();
+            if (!(tag instanceof Integer)) return;
+            mFrames.get((Integer) tag).onCaptureCompleted(result);
+        }
+
+        synchronized Result toResult() {
+            BurstCapture.Result burstResult = mBurst.toResult();
+            for (Frame frame : mFrames) {
+                frame.file = mBurst.getSavedFile(frame.timestampNs);
+            }
+            return new Result(mFrames, mIsManual, burstResult);
+        }
+    }
+
+    /**
+     * Requested and applied exposure of a frame
+     */
+    public static final class Frame {
+        private final int index;
+        private final double requestedEv;
+        private final long requestedExposureTimeNs;
+        private final int requestedSensitivity;
+        private final int requestedCompensation;
+
+        private long timestampNs;
+        private long exposureTimeNs;
+        private int sensitivity;
+        private int compensation;
+        private File file;
+
+        private Frame(int index, double requestedEv, long requestedExposureTimeNs, int requestedSensitivity, int requestedCompensation) {
+            this.index = index;
+            this.requestedEv = requestedEv;
+            this.requestedExposureTimeNs = requestedExposureTimeNs;
+            this.requestedSensitivity = requestedSensitivity;
+            this.requestedCompensation = requestedCompensation;
+        }
+
+        private void onCaptureCompleted(STotalCaptureResult result) {
+            Long timestamp = result.get(SCaptureResult.SENSOR_TIMESTAMP);
+            Long exposureTime = result.get(SCaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer appliedSensitivity = result.get(SCaptureResult.SENSOR_SENSITIVITY);
+            Integer appliedCompensation = result.get(SCaptureResult.CONTROL_AE_EXPOSURE_COMPENSATION);
+            timestampNs = timestamp == null ? 0 : timestamp;
+            exposureTimeNs = exposureTime == null ? 0 : exposureTime;
+            sensitivity = appliedSensitivity == null ? 0 : appliedSensitivity;
+            compensation = appliedCompensation == null ? 0 : appliedCompensation;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * NaN for the manual bracket
+         */
+        public double getRequestedEv() {
+            return requestedEv;
+        }
+
+        /**
+         * 0 if AE compensation has been used
+         */
+        public long getRequestedExposureTimeNs() {
+            return requestedExposureTimeNs;
+        }
+
+        public int getRequestedSensitivity() {
+            return requestedSensitivity;
+        }
+
+        /**
+         * AE compensation in steps, 0 for manual frames
+         */
+        public int getRequestedCompensation() {
+            return requestedCompensation;
+        }
+
+        public long getSensorTimestampNs() {
+            return timestampNs;
+        }
+
+        /**
+         * Applied exposure time from the capture result, 0 if it's unknown
+         */
+        public long getExposureTimeNs() {
+            return exposureTimeNs;
+        }
+
+        public int getSensitivity() {
+            return sensitivity;
+        }
+
+        public int getCompensation() {
+            return compensation;
+        }
+
+        /**
+         * Null if the frame has been dropped
+         */
+        @Nullable
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + index +
+                    (Double.isNaN(requestedEv) ? "" : String.format(Locale.US, " %+.1f EV", requestedEv)) +
+                    String.format(Locale.US, " %.2f ms", exposureTimeNs / 1000000d) +
+                    " ISO " + sensitivity +
+                    " comp " + compensation +
+                    " " + (file != null ? file.getName() : "dropped");
+        }
+    }
+
+    /**
+     * Frames of the bracket in the request order
+     */
+    public static final class Result {
+        private final List<Frame> frames;
+        private final boolean isManual;
+        private final BurstCapture.Result burstResult;
+
+        private Result(List<Frame> frames, boolean isManual, BurstCapture.Result burstResult) {
+            this.frames = Collections.unmodifiableList(new ArrayList<>(frames));
+            this.isManual = isManual;
+            this.burstResult = burstResult;
+        }
+
+        public List<Frame> getFrames() {
+            return frames;
+        }
+
+        /**
+         * Frames have been captured with manual exposure time and ISO (not AE compensation)
+         */
+        public boolean isManual() {
+            return isManual;
+        }
+
+        /**
+         * Capture rate, saved and dropped frames
+         */
+        public BurstCapture.Result getBurstResult() {
+            return burstResult;
+        }
+
+        @Override
+        public String toString() {
+            return "Bracket (" + (isManual ? "manual" : "AE compensation") + "): " + frames + ", " + burstResult;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multi-frame merge of YUV 4:2:0 frames (burst, ZSL ring or exposure bracket) into NV21
+ * <p>
+ * Frames are NV21 arrays or YUV_420_888 planes with their row and pixel strides, they are read in place.
+ * Frames are aligned to the first one by a global translation (coarse search on a downscaled luma,
+ * then refinement on the full resolution), then merged tile by tile on a fork-join pool.
+ * Everything works on primitive arrays, there is no allocation per pixel, and there is no Android
+ * dependency, so it can be run on the JVM with synthetic frames.
+ */
+public final class FrameMerger {
+
+    public enum Mode {
+        //burst of the same exposure: noise is averaged, pixels which differ from the reference (motion) get less weight
+        AVERAGE,
+        //exposure bracket: every pixel is weighted by how well it's exposed (single scale fusion)
+        EXPOSURE_FUSION
+    }
+
+    private static final int TILE_SIZE = 128;
+    //coarse alignment is searched on the luma downscaled by this factor
+    private static final int ALIGN_SCALE = 4;
+    //coarse search radius in downscaled pixels
+    private static final int ALIGN_RADIUS = 8;
+    //refinement radius in full pixels, offsets are even so chroma stays aligned
+    private static final int REFINE_RADIUS = 2;
+    private static final int REFINE_STEP = 4;
+
+    private static final int WEIGHT_ONE = 256;
+    //by luma value
+    private static final int[] EXPOSEDNESS_WEIGHTS = new int[256];
+    //by luma difference to the reference
+    private static final int[] SIMILARITY_WEIGHTS = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double distance = (i - 128) / 255d;
+            EXPOSEDNESS_WEIGHTS[i] = Math.max(1, (int) Math.round(WEIGHT_ONE * Math.exp(-distance * distance / 0.08)));
+            //differences up to the noise level are averaged completely
+            int excess = Math.max(0, i - 8);
+            SIMILARITY_WEIGHTS[i] = (int) Math.round(WEIGHT_ONE * Math.exp(-excess * excess / 288d));
+        }
+    }
+
+    private final ForkJoinPool mPool;
+
+    public FrameMerger() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public FrameMerger(@NonNull ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Aligns and merges the frames, the first frame is the reference
+     *
+     * @param output NV21 array of the frame size (width * height * 3 / 2)
+     */
+    public Result merge(@NonNull List<Frame> frames, @NonNull Mode mode, @NonNull byte[] output) {
+        if (frames.isEmpty()) throw new IllegalArgumentException("There are no frames to merge");
+        Frame reference = frames.get(0);
+        for (Frame frame : frames) {
+            if (frame.width != reference.width || frame.height != reference.height)
+                throw new IllegalArgumentException("Frames should have the same size");
+        }
+        if (output.length < reference.getNv21Size())
+            throw new IllegalArgumentException("Output array is too small: " + output.length);
+
+        int frameCount = frames.size();
+        int[] offsetsX = new int[frameCount];
+        int[] offsetsY = new int[frameCount];
+
+        long startedAt = System.nanoTime();
+        align(frames, offsetsX, offsetsY);
+        long alignedAt = System.nanoTime();
+
+        int tilesX = (reference.width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (reference.height + TILE_SIZE - 1) / TILE_SIZE;
+        mPool.invoke(new MergeTask(
+                new MergeJob(frames.toArray(new Frame[frameCount]), reference.width, reference.height,
+                        offsetsX, offsetsY, mode, output, tilesX),
+                0,
+                tilesX * tilesY
+        ));
+        long finishedAt = System.nanoTime();
+
+        return new Result(
+                reference.width,
+                reference.height,
+                offsetsX,
+                offsetsY,
+                alignedAt - startedAt,
+                finishedAt - alignedAt,
+                mPool.getParallelism()
+        );
+    }
+
+    /**
+     * Finds the translation of every frame relative to the reference, frames are aligned in parallel
+     */
+    private void align(List<Frame> frames, int[] offsetsX, int[] offsetsY) {
+        if (frames.size() < 2) return;
+        Frame reference = frames.get(0);
+        int[] referenceScaled = downscale(reference);
+
+        List<RecursiveAction> tasks = new ArrayList<>(frames.size() - 1);
+        for (int i = 1; i < frames.size(); i++) {
+            int index = i;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    Frame frame = frames.get(index);
+                    int[] scaled = downscale(frame);
+                    long coarse = searchCoarse(referenceScaled, scaled, reference.width / ALIGN_SCALE, reference.height / ALIGN_SCALE);
+                    int coarseX = (int) (coarse >> 32) * ALIGN_SCALE;
+                    int coarseY = (int) coarse * ALIGN_SCALE;
+                    long refined = searchRefined(reference, frame,
+                            getMean(referenceScaled), getMean(scaled), coarseX, coarseY);
+                    offsetsX[index] = (int) (refined >> 32);
+                    offsetsY[index] = (int) refined;
+                }
+            });
+        }
+        mPool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Box-filtered luma, the last element is the mean
+     */
+    private static int[] downscale(Frame frame) {
+        int width = frame.width / ALIGN_SCALE;
+        int height = frame.height / ALIGN_SCALE;
+        int[] scaled = new int[width * height + 1];
+        long total = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = 0;
+                for (int dy = 0; dy < ALIGN_SCALE; dy++) {
+                    int row = (y * ALIGN_SCALE + dy) * frame.yRowStride + x * ALIGN_SCALE;
+                    for (int dx = 0; dx < ALIGN_SCALE; dx++) {
+                        sum += frame.y[row + dx] & 0xFF;
+                    }
+                }
+                int value = sum / (ALIGN_SCALE * ALIGN_SCALE);
+                scaled[y * width + x] = value;
+                total += value;
+            }
+        }
+        scaled[width * height] = width * height > 0 ? (int) (total / (width * height)) : 0;
+        return scaled;
+    }
+
+    private static int getMean(int[] scaled) {
+        return scaled[scaled.length - 1];
+    }
+
+    /**
+     * Minimum of mean-normalized SAD in the search window (brightness of bracket frames is different)
+     *
+     * @return Offset packed as x << 32 | y
+     */
+    private static long searchCoarse(int[] reference, int[] frame, int width, int height) {
+        int referenceMean = getMean(reference);
+        int frameMean = getMean(frame);
+        long bestSad = Long.MAX_VALUE;
+        int bestX = 0;
+        int bestY = 0;
+        for (int offsetY = -ALIGN_RADIUS; offsetY <= ALIGN_RADIUS; offsetY++) {
+            for (int offsetX = -ALIGN_RADIUS; offsetX <= ALIGN_RADIUS; offsetX++) {
+                long sad = 0;
+                for (int y = ALIGN_RADIUS; y < height - ALIGN_RADIUS; y += 2) {
+                    int referenceRow = y * width;
+                    int frameRow = (y + offsetY) * width + offsetX;
+                    for (int x = ALIGN_RADIUS; x < width - ALIGN_RADIUS; x += 2) {
+                        sad += Math.abs(reference[referenceRow + x] - referenceMean - frame[frameRow + x] + frameMean);
+                    }
+                }
+                //the smaller shift wins on a tie
+                if (sad < bestSad ||
+                        (sad == bestSad && Math.abs(offsetX) + Math.abs(offsetY) < Math.abs(bestX) + Math.abs(bestY))) {
+                    bestSad = sad;
+                    bestX = offsetX;
+                    bestY = offsetY;
+                }
+            }
+        }
+        return ((long) bestX << 32) | (bestY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Refines the coarse offset on the central part of the full resolution luma
+     *
+     * @return Even offset packed as x << 32 | y
+     */
+    private static long searchRefined(Frame reference, Frame frame, int referenceMean, int frameMean, int coarseX, int coarseY) {
+        int width = reference.width;
+        int height = reference.height;
+        int margin = ALIGN_RADIUS * ALIGN_SCALE + REFINE_RADIUS;
+        int left = Math.max(margin, width / 4);
+        int right = Math.min(width - margin, width * 3 / 4);
+        int top = Math.max(margin, height / 4);
+        int bottom = Math.min(height - margin, height * 3 / 4);
+
+        long bestSad = Long.MAX_VALUE;
+        int bestX = coarseX;
+        int bestY = coarseY;
+        for (int offsetY = coarseY - REFINE_RADIUS; offsetY <= coarseY + REFINE_RADIUS; offsetY += 2) {
+            for (int offsetX = coarseX - REFINE_RADIUS; offsetX <= coarseX + REFINE_RADIUS; offsetX += 2) {
+                long sad = 0;
+                for (int y = top; y < bottom; y += REFINE_STEP) {
+                    int referenceRow = y * reference.yRowStride;
+                    int frameRow = (y + offsetY) * frame.yRowStride + offsetX;
+                    for (int x = left; x < right; x += REFINE_STEP) {
+                        sad += Math.abs((reference.y[referenceRow + x] & 0xFF) - referenceMean -
+                                (frame.y[frameRow + x] & 0xFF) + frameMean);
+                    }
+                }
+                if (sad < bestSad) {
+                    bestSad = sad;
+                    bestX = offsetX;
+                    bestY = offsetY;
+                }
+            }
+        }
+        return ((long) bestX << 32) | (bestY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Immutable parameters shared by all tiles
+     */
+    private static class MergeJob {
+        private final Frame[] frames;
+        private final int width;
+        private final int height;
+        private final int[] offsetsX;
+        private final int[] offsetsY;
+        private final Mode mode;
+        private final byte[] output;
+        private final int tilesX;
+
+        private MergeJob(Frame[] frames, int width, int height, int[] offsetsX, int[] offsetsY,
+                         Mode mode, byte[] output, int tilesX) {
+            this.frames = frames;
+            this.width = width;
+            this.height = height;
+            this.offsetsX = offsetsX;
+            this.offsetsY = offsetsY;
+            this.mode = mode;
+            this.output = output;
+            this.tilesX = tilesX;
+        }
+
+        void mergeTile(int tile) {
+            int x0 = (tile % tilesX) * TILE_SIZE;
+            int y0 = (tile / tilesX) * TILE_SIZE;
+            int x1 = Math.min(width, x0 + TILE_SIZE);
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            int chromaStart = width * height;
+            Frame reference = frames[0];
+            boolean isAverage = mode == Mode.AVERAGE;
+
+            for (int y = y0; y < y1; y++) {
+                boolean isChromaRow = (y & 1) == 0;
+                for (int x = x0; x < x1; x++) {
+                    boolean isChromaPixel = isChromaRow && (x & 1) == 0;
+                    int referenceLuma = reference.y[y * reference.yRowStride + x] & 0xFF;
+                    int weightSum = 0;
+                    int lumaSum = 0;
+                    int vSum = 0;
+                    int uSum = 0;
+
+                    for (int i = 0; i < frames.length; i++) {
+                        int sx = x + offsetsX[i];
+                        int sy = y + offsetsY[i];
+                        if (sx < 0 || sy < 0 || sx >= width || sy >= height) continue;
+                        Frame frame = frames[i];
+                        int luma = frame.y[sy * frame.yRowStride + sx] & 0xFF;
+                        int weight = isAverage ?
+                                SIMILARITY_WEIGHTS[Math.abs(luma - referenceLuma)] :
+                                EXPOSEDNESS_WEIGHTS[luma];
+                        weightSum += weight;
+                        lumaSum += weight * luma;
+                        if (isChromaPixel) {
+                            //offsets are even, so the chroma sample is aligned as well
+                            int chroma = (sy >> 1) * frame.uvRowStride + (sx >> 1) * frame.uvPixelStride;
+                            vSum += weight * (frame.v[frame.vOffset + chroma] & 0xFF);
+                            uSum += weight * (frame.u[frame.uOffset + chroma] & 0xFF);
+                        }
+                    }
+
+                    //reference is always in bounds and its own weight is not zero
+                    int half = weightSum >> 1;
+                    output[y * width + x] = (byte) ((lumaSum + half) / weightSum);
+                    if (isChromaPixel) {
+                        int chroma = chromaStart + (y >> 1) * width + x;
+                        output[chroma] = (byte) ((vSum + half) / weightSum);
+                        output[chroma + 1] = (byte) ((uSum + half) / weightSum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges a range of tiles, splits it in halves while there is more than one tile
+     */
+    private static class MergeTask extends RecursiveAction {
+        private final MergeJob mJob;
+        private final int mFromTile;
+        private final int mToTile;
+
+        private MergeTask(MergeJob job, int fromTile, int toTile) {
+            mJob = job;
+            mFromTile = fromTile;
+            mToTile = toTile;
+        }
+
+        @Override
+        protected void compute() {
+            if (mToTile - mFromTile <= 1) {
+                if (mToTile > mFromTile) mJob.mergeTile(mFromTile);
+                return;
+            }
+            int middle = (mFromTile + mToTile) >>> 1;
+            invokeAll(new MergeTask(mJob, mFromTile, middle), new MergeTask(mJob, middle, mToTile));
+        }
+    }
+
+    /**
+     * YUV 4:2:0 frame, width and height should be even
+     */
+    public static final class Frame {
+        private final int width;
+        private final int height;
+        private final byte[] y;
+        private final int yRowStride;
+        private final byte[] u;
+        private final int uOffset;
+        private final byte[] v;
+        private final int vOffset;
+        //U and V planes have the same strides
+        private final int uvRowStride;
+        private final int uvPixelStride;
+
+        /**
+         * NV21 frame (Y plane, then interleaved V and U)
+         */
+        public Frame(@NonNull byte[] nv21, int width, int height) {
+            this(width, height, nv21, width, nv21, width * height + 1, nv21, width * height, width, 2);
+            if (nv21.length < getNv21Size())
+                throw new IllegalArgumentException("NV21 array is too small: " + nv21.length);
+        }
+
+        private Frame(int width, int height,
+                      byte[] y, int yRowStride,
+                      byte[] u, int uOffset,
+                      byte[] v, int vOffset,
+                      int uvRowStride, int uvPixelStride) {
+            if ((width & 1) != 0 || (height & 1) != 0)
+                throw new IllegalArgumentException("Frame size should be even: " + width + "x" + height);
+            if (width < ALIGN_SCALE * (2 * ALIGN_RADIUS + 2) || height < ALIGN_SCALE * (2 * ALIGN_RADIUS + 2))
+                throw new IllegalArgumentException("Frame is too small for the alignment: " + width + "x" + height);
+            if (yRowStride < width || uvPixelStride < 1 || uvRowStride < (width / 2 - 1) * uvPixelStride + 1)
+                throw new IllegalArgumentException("Strides are not valid: Y row " + yRowStride +
+                        ", UV row " + uvRowStride + ", UV pixel " + uvPixelStride);
+            this.width = width;
+            this.height = height;
+            this.y = y;
+            this.yRowStride = yRowStride;
+            this.u = u;
+            this.uOffset = uOffset;
+            this.v = v;
+            this.vOffset = vOffset;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+        }
+
+        /**
+         * YUV_420_888 frame, e.g. planes of android.media.Image copied as they are.
+         * The last row of a plane can be shorter than the row stride.
+         */
+        public static Frame ofYuv420(int width, int height,
+                                     @NonNull byte[] y, int yRowStride,
+                                     @NonNull byte[] u, @NonNull byte[] v,
+                                     int uvRowStride, int uvPixelStride) {
+            Frame frame = new Frame(width, height, y, yRowStride, u, 0, v, 0, uvRowStride, uvPixelStride);
+            int uvSize = (height / 2 - 1) * uvRowStride + (width / 2 - 1) * uvPixelStride + 1;
+            if (y.length < (height - 1) * yRowStride + width || u.length < uvSize || v.length < uvSize)
+                throw new IllegalArgumentException("Planes are too small: Y " + y.length + ", U " + u.length + ", V " + v.length);
+            return frame;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        int getNv21Size() {
+            return width * height * 3 / 2;
+        }
+    }
+
+    /**
+     * Alignment offsets and timings of the merge
+     */
+    public static final class Result {
+        private final int width;
+        private final int height;
+        private final int[] offsetsX;
+        private final int[] offsetsY;
+        private final long alignNs;
+        private final long mergeNs;
+        private final int parallelism;
+
+        private Result(int width, int height, int[] offsetsX, int[] offsetsY, long alignNs, long mergeNs, int parallelism) {
+            this.width = width;
+            this.height = height;
+            this.offsetsX = offsetsX;
+            this.offsetsY = offsetsY;
+            this.alignNs = alignNs;
+            this.mergeNs = mergeNs;
+            this.parallelism = parallelism;
+        }
+
+        public int getFrameCount() {
+            return offsetsX.length;
+        }
+
+        /**
+         * Translation of the frame relative to the reference (frame 0) in pixels
+         */
+        public int getOffsetX(int frame) {
+            return offsetsX[frame];
+        }
+
+        public int getOffsetY(int frame) {
+            return offsetsY[frame];
+        }
+
+        public double getAlignMs() {
+            return alignNs / 1000000d;
+        }
+
+        public double getMergeMs() {
+            return mergeNs / 1000000d;
+        }
+
+        /**
+         * Input megapixels (all frames) per second of the whole merge, alignment included
+         */
+        public double getMegapixelsPerSecond() {
+            long totalNs = alignNs + mergeNs;
+            return totalNs > 0 ? (double) width * height * getFrameCount() * 1000d / totalNs : 0;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder offsets = new StringBuilder();
+            for (int i = 1; i < offsetsX.length; i++) {
+                offsets.append(i > 1 ? ", " : "").append(offsetsX[i]).append(":").append(offsetsY[i]);
+            }
+            return "Merge: " + getFrameCount() + " frames " + width + "x" + height +
+                    String.format(Locale.US, ", align %.1f ms, merge %.1f ms, %.1f MP/s", getAlignMs(), getMergeMs(), getMegapixelsPerSecond()) +
+                    ", " + parallelism + " threads" +
+                    ", offsets [" + offsets + "]";
+        }
+    }
+}
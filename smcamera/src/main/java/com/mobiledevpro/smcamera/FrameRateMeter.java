@@ -0,0 +1,133 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Achieved frame rate of the recording from sensor timestamps of the capture results
+ * <p>
+ * A timestamp which is not newer than the previous one is a duplicated frame (the same sensor frame delivered again),
+ * an interval longer than 1.5 frames is counted as dropped frames. The frame rate is measured on unique frames only,
+ * so with a high speed session it shows whether the sensor really runs at the requested rate.
+ */
+final class FrameRateMeter {
+
+    private final int mTargetFps;
+    private final long mFrameDurationNs;
+
+    //guarded by this
+    private long mFirstTimestampNs;
+    private long mLastTimestampNs;
+    private long mMaxIntervalNs;
+    private int mFrames;
+    private int mDuplicatedFrames;
+    private int mDroppedFrames;
+
+    FrameRateMeter(int targetFps) {
+        mTargetFps = targetFps;
+        mFrameDurationNs = 1000000000L / Math.max(1, targetFps);
+    }
+
+    /**
+     * Called on the camera thread for every capture result of the repeating request
+     */
+    synchronized void onFrame(long sensorTimestampNs) {
+        if (mFrames == 0) {
+            mFirstTimestampNs = sensorTimestampNs;
+            mLastTimestampNs = sensorTimestampNs;
+            mFrames = 1;
+            return;
+        }
+
+        long intervalNs = sensorTimestampNs - mLastTimestampNs;
+        if (intervalNs <= 0) {
+            mDuplicatedFrames++;
+            return;
+        }
+        if (intervalNs > mFrameDurationNs * 3 / 2) {
+            mDroppedFrames += (int) ((intervalNs + mFrameDurationNs / 2) / mFrameDurationNs) - 1;
+        }
+        mMaxIntervalNs = Math.max(mMaxIntervalNs, intervalNs);
+        mLastTimestampNs = sensorTimestampNs;
+        mFrames++;
+    }
+
+    @NonNull
+    synchronized Result getResult() {
+        return new Result(mTargetFps, mFrames, mLastTimestampNs - mFirstTimestampNs,
+                mDuplicatedFrames, mDroppedFrames, mMaxIntervalNs);
+    }
+
+    /**
+     * Frame rate metrics of the recording
+     */
+    public static final class Result {
+        private final int targetFps;
+        private final int frames;
+        private final long durationNs;
+        private final int duplicatedFrames;
+        private final int droppedFrames;
+        private final long maxIntervalNs;
+
+        private Result(int targetFps, int frames, long durationNs, int duplicatedFrames, int droppedFrames, long maxIntervalNs) {
+            this.targetFps = targetFps;
+            this.frames = frames;
+            this.durationNs = durationNs;
+            this.duplicatedFrames = duplicatedFrames;
+            this.droppedFrames = droppedFrames;
+            this.maxIntervalNs = maxIntervalNs;
+        }
+
+        public int getTargetFps() {
+            return targetFps;
+        }
+
+        /**
+         * Unique sensor frames
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * From the first to the last sensor timestamp
+         */
+        public long getDurationNs() {
+            return durationNs;
+        }
+
+        /**
+         * Unique frames per second, 0 if there are less than two frames
+         */
+        public double getAchievedFps() {
+            return durationNs > 0 ? (frames - 1) * 1000000000.0 / durationNs : 0;
+        }
+
+        /**
+         * Results with the timestamp of a previous frame
+         */
+        public int getDuplicatedFrames() {
+            return duplicatedFrames;
+        }
+
+        /**
+         * Estimated from the intervals which are longer than 1.5 frames
+         */
+        public int getDroppedFrames() {
+            return droppedFrames;
+        }
+
+        public long getMaxIntervalNs() {
+            return maxIntervalNs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f of %d fps", getAchievedFps(), targetFps) +
+                    ", " + frames + " frames in " + durationNs / 1000000 + " ms" +
+                    ", duplicated " + duplicatedFrames + ", dropped " + droppedFrames +
+                    ", max interval " + maxIntervalNs / 1000 + " us";
+        }
+    }
+}
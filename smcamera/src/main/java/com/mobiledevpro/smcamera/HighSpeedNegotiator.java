@@ -0,0 +1,75 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the size and fps range of the constrained high speed session from the advertised pairs
+ * <p>
+ * Only constant ranges (e.g. 120-120) are used, so the recorded video has a constant frame rate.
+ * The highest frame rate up to the target is taken first, then the largest size of the aspect ratio
+ * up to the max video height. Quality target is lowered rather than the frame rate.
+ */
+final class HighSpeedNegotiator {
+
+    private static final double ASPECT_RATIO_TOLERANCE = 0.02;
+
+    private final List<CameraCharacteristicsCache.HighSpeedConfig> mConfigs;
+
+    /**
+     * @param configs Size and fps range pairs of getHighSpeedVideoSizes() and getHighSpeedVideoFpsRangesFor()
+     */
+    HighSpeedNegotiator(@NonNull List<CameraCharacteristicsCache.HighSpeedConfig> configs) {
+        mConfigs = configs;
+    }
+
+    /**
+     * @param aspectRatio    Width to height of the video
+     * @param targetFps      Desired frame rate, e.g. 120 or 240
+     * @param maxVideoHeight Quality target of the video
+     * @return Null if there is no constant range up to the target for the aspect ratio
+     */
+    @Nullable
+    CameraCharacteristicsCache.HighSpeedConfig select(double aspectRatio, int targetFps, int maxVideoHeight) {
+        for (int fps : getFpsCandidates(targetFps)) {
+            CameraCharacteristicsCache.HighSpeedConfig config = findLargest(aspectRatio, fps, maxVideoHeight);
+            if (config == null) config = findLargest(aspectRatio, fps, Integer.MAX_VALUE);
+            if (config != null) return config;
+        }
+        return null;
+    }
+
+    /**
+     * Constant frame rates up to the target, the highest first
+     */
+    private List<Integer> getFpsCandidates(int targetFps) {
+        List<Integer> candidates = new ArrayList<>();
+        for (CameraCharacteristicsCache.HighSpeedConfig config : mConfigs) {
+            int fps = config.getFpsMax();
+            if (config.getFpsMin() == fps && fps <= targetFps && !candidates.contains(fps)) candidates.add(fps);
+        }
+        Collections.sort(candidates, Collections.reverseOrder());
+        return candidates;
+    }
+
+    @Nullable
+    private CameraCharacteristicsCache.HighSpeedConfig findLargest(double aspectRatio, int fps, int maxHeight) {
+        CameraCharacteristicsCache.HighSpeedConfig largest = null;
+        for (CameraCharacteristicsCache.HighSpeedConfig config : mConfigs) {
+            if (config.getFpsMin() != fps ||
+                    config.getFpsMax() != fps ||
+                    config.getHeight() > maxHeight ||
+                    Math.abs((double) config.getWidth() / config.getHeight() - aspectRatio) > ASPECT_RATIO_TOLERANCE)
+                continue;
+            if (largest == null ||
+                    (long) config.getWidth() * config.getHeight() > (long) largest.getWidth() * largest.getHeight()) {
+                largest = config;
+            }
+        }
+        return largest;
+    }
+}
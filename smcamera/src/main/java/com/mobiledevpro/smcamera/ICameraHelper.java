@@ -2,11 +2,18 @@ package com.mobiledevpro.smcamera;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.view.TextureView;
 
 /**
  * Interface for camera helper
  * <p>
+ * Lifecycle, settings, recording and single photo calls return at once, the work is done on the camera control thread,
+ * errors are shown by the helper and a call made while the camera is not ready is ignored.
+ * Burst, bracket and ZSL calls block until all frames are saved, they should be called on a worker thread.
+ * Use {@link ICameraHelperAsync} to get the completion and errors of every call.
+ * <p>
  * Created by Dmitriy V. Chernysh on 02.05.18.
  * <p>
  * https://instagr.am/mobiledevpro
@@ -22,6 +29,22 @@ public interface ICameraHelper {
 
     boolean isFlashlightSupported();
 
+    /**
+     * Sizes and fps range which have been negotiated for the current camera settings
+     *
+     * @return Null if the camera has not been started yet
+     */
+    @Nullable
+    StreamNegotiator.Result getStreamConfiguration();
+
+    /**
+     * Pre-roll buffer metrics while the preview is running
+     *
+     * @return Null if pre-roll is disabled (or not supported by the encoder) or the video is being recorded
+     */
+    @Nullable
+    PreRollBuffer.Occupancy getPreRollOccupancy();
+
     void startCamera(Context context,
                      TextureView textureView,
                      int textureWidth,
@@ -30,6 +53,12 @@ public interface ICameraHelper {
 
     void stopCamera(Context context);
 
+    /**
+     * Stop the preview but keep the camera device open for the standby timeout from the settings.
+     * Camera is stopped completely if standby is disabled or not possible.
+     */
+    void enterStandby(Context context);
+
     /**
      * Start or stop video recording
      */
@@ -40,6 +69,32 @@ public interface ICameraHelper {
      */
     void takePicture();
 
+    /**
+     * Take a burst of photo pictures, the call blocks until all frames are saved or dropped
+     *
+     * @param frameCount   Number of frames
+     * @param backpressure What to do when the photos are captured faster than they are saved
+     * @throws IllegalStateException The camera is not ready or another capture is in progress
+     * @throws RuntimeException      Camera error, TimeoutException is its cause if the frames have not been saved in time
+     */
+    @WorkerThread
+    BurstCapture.Result takeBurst(int frameCount, @NonNull BurstCapture.Backpressure backpressure);
+
+    /**
+     * Take an exposure bracket, all frames are captured by a single burst.
+     * The call blocks and throws like {@link #takeBurst(int, BurstCapture.Backpressure)}.
+     */
+    @WorkerThread
+    ExposureBracket.Result takeBracket(@NonNull ExposureBracket bracket);
+
+    /**
+     * Take the recent frame which is the closest to this call (zero shutter lag).
+     * ZSL ring should be enabled in the camera settings.
+     * The call blocks until the photo is saved and throws like {@link #takeBurst(int, BurstCapture.Backpressure)}.
+     */
+    @WorkerThread
+    ZslCapture.Result takeZslPicture();
+
     void restartCamera(Context context,
                        TextureView textureView,
                        int textureWidth,
@@ -47,4 +102,10 @@ public interface ICameraHelper {
                        @NonNull CameraSettings cameraSettings);
 
     void setFlashlightOn(boolean isOn);
+
+    /**
+     * Apply changed settings with the cheapest reconfiguration:
+     * repeating request update, capture session rebuild or reopen of the camera device
+     */
+    void applySettings(Context context, @NonNull CameraSettings cameraSettings);
 }
@@ -0,0 +1,79 @@
+package com.mobiledevpro.smcamera;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.TextureView;
+
+import java.io.File;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+
+/**
+ * Asynchronous interface for camera helper
+ * <p>
+ * Every call returns immediately, the work is done on the camera control thread.
+ * Nothing is started until the returned Completable/Single is subscribed.
+ */
+public interface ICameraHelperAsync {
+
+    /**
+     * Completes when the preview is started
+     */
+    Completable startCameraAsync(Context context,
+                                 TextureView textureView,
+                                 int textureWidth,
+                                 int textureHeight,
+                                 @NonNull CameraSettings cameraSettings);
+
+    /**
+     * Completes when the camera device is closed
+     */
+    Completable stopCameraAsync(Context context);
+
+    /**
+     * Completes when the preview is stopped (or the camera is stopped if standby is not possible).
+     * Camera device is released automatically when the standby timeout expires.
+     */
+    Completable enterStandbyAsync(Context context);
+
+    /**
+     * Completes when the preview is restarted
+     */
+    Completable restartCameraAsync(Context context,
+                                   TextureView textureView,
+                                   int textureWidth,
+                                   int textureHeight,
+                                   @NonNull CameraSettings cameraSettings);
+
+    /**
+     * Completes when the reconfiguration has been issued to the camera
+     */
+    Completable applySettingsAsync(Context context, @NonNull CameraSettings cameraSettings);
+
+    Completable startStopVideoRecordingAsync();
+
+    /**
+     * Emits photo file when it has been saved
+     */
+    Single<File> takePictureAsync();
+
+    /**
+     * Emits result when all frames of the burst have been saved or dropped
+     */
+    Single<BurstCapture.Result> takeBurstAsync(int frameCount, @NonNull BurstCapture.Backpressure backpressure);
+
+    /**
+     * Emits result with metadata of every frame when all frames of the bracket have been saved or dropped
+     */
+    Single<ExposureBracket.Result> takeBracketAsync(@NonNull ExposureBracket bracket);
+
+    /**
+     * Emits result when the ZSL frame has been encoded and saved
+     *
+     * @param shutterAtNs {@link android.os.SystemClock#elapsedRealtimeNanos()} of the shutter press
+     */
+    Single<ZslCapture.Result> takeZslPictureAsync(long shutterAtNs);
+
+    Completable setFlashlightOnAsync(boolean isOn);
+}
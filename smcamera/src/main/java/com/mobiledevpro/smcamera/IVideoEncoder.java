@@ -0,0 +1,202 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Video encoder backend which records camera frames from its input surface to a file
+ */
+interface IVideoEncoder {
+
+    /**
+     * Output rotation of the loop recording
+     */
+    interface SegmentCallback {
+        /**
+         * Called on the encoder thread, the file is used for the next segment
+         */
+        @NonNull
+        File createSegmentFile();
+
+        /**
+         * Called when the segment file is finished (in the order of segments)
+         */
+        void onSegmentFinished(@NonNull Segment segment);
+    }
+
+    /**
+     * Segments are used if the config has segment duration, it should be set before prepare()
+     */
+    void setSegmentCallback(@Nullable SegmentCallback callback);
+
+    /**
+     * Configures the encoder for the output file, the input surface is available after that
+     *
+     * @param inputSurface Persistent input surface (API 23+) which is kept by the caller,
+     *                     null - the encoder creates its own surface
+     */
+    void prepare(@NonNull VideoEncoderConfig config, @NonNull File outputFile, @Nullable Surface inputSurface) throws IOException;
+
+    /**
+     * Surface which should be added to the capture session
+     */
+    @NonNull
+    Surface getInputSurface();
+
+    /**
+     * File which is being written, the current segment of the loop recording.
+     * After stop() it's the last file of the recording.
+     */
+    @NonNull
+    File getOutputFile();
+
+    /**
+     * True if frames can be sent to the input surface before the start (they are dropped then),
+     * otherwise the surface should be added to the repeating request only while recording
+     */
+    boolean isInputConsumedBeforeStart();
+
+    /**
+     * Pre-roll buffer metrics before the start of recording
+     *
+     * @return Null if there is no pre-roll
+     */
+    @Nullable
+    PreRollBuffer.Occupancy getPreRollOccupancy();
+
+    void start();
+
+    /**
+     * Stops recording and finishes the file
+     *
+     * @return Null if the backend doesn't have statistics
+     */
+    @Nullable
+    Stats stop();
+
+    void release();
+
+    /**
+     * Finished segment of the loop recording
+     */
+    final class Segment {
+        private final File file;
+        private final long bytes;
+        private final long durationUs;
+        private final long gapUs;
+
+        Segment(File file, long bytes, long durationUs, long gapUs) {
+            this.file = file;
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+            this.gapUs = gapUs;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        /**
+         * Time between the last frame of the previous segment and the first frame of this one
+         * (a frame interval if no frames were dropped), 0 for the first segment, -1 if it's unknown
+         */
+        public long getGapUs() {
+            return gapUs;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + ": " + bytes / 1024 + " KB, " + durationUs / 1000 + " ms" +
+                    (gapUs >= 0 ? ", gap " + gapUs / 1000 + " ms" : "");
+        }
+    }
+
+    /**
+     * Encoder statistics of a recording
+     */
+    final class Stats {
+        private final String codecName;
+        private final int frames;
+        private final long bytes;
+        private final long durationUs;
+        private final long avgLatencyUs;
+        private final long maxLatencyUs;
+        private final long preRollUs;
+
+        Stats(String codecName, int frames, long bytes, long durationUs, long avgLatencyUs, long maxLatencyUs, long preRollUs) {
+            this.codecName = codecName;
+            this.frames = frames;
+            this.bytes = bytes;
+            this.durationUs = durationUs;
+            this.avgLatencyUs = avgLatencyUs;
+            this.maxLatencyUs = maxLatencyUs;
+            this.preRollUs = preRollUs;
+        }
+
+        public String getCodecName() {
+            return codecName;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Presentation time span of the encoded video
+         */
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        /**
+         * Time from the sensor timestamp of a frame to its encoded output, average of the recording
+         */
+        public double getAvgLatencyMs() {
+            return avgLatencyUs / 1000d;
+        }
+
+        public double getMaxLatencyMs() {
+            return maxLatencyUs / 1000d;
+        }
+
+        /**
+         * Video which has been written from the pre-roll buffer ahead of the recording (not a part of the other stats)
+         */
+        public long getPreRollUs() {
+            return preRollUs;
+        }
+
+        /**
+         * Encoded video bytes per second of the recording
+         */
+        public long getOutputBytesPerSecond() {
+            return durationUs > 0 ? bytes * 1000000L / durationUs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Encoder " + codecName + ": " + frames + " frames" +
+                    ", " + bytes / 1024 + " KB" +
+                    ", " + getOutputBytesPerSecond() / 1024 + " KB/s" +
+                    String.format(Locale.US, ", latency avg %.1f ms max %.1f ms", getAvgLatencyMs(), getMaxLatencyMs()) +
+                    (preRollUs > 0 ? ", pre-roll " + preRollUs / 1000 + " ms" : "");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Finished segments of the loop recording within the quota
+ * <p>
+ * Every finished segment is added to the queue and the oldest ones are deleted one by one
+ * while the number of segments or their total size exceeds the quota. The directory is scanned once,
+ * on construction, so segments of the previous runs count towards the quota too.
+ * The last segment is always kept.
+ */
+final class LoopRecording {
+
+    private static final String SEGMENT_PREFIX = "loop_video_";
+
+    private final File mDir;
+
+    //guarded by this
+    private final ArrayDeque<IVideoEncoder.Segment> mSegments = new ArrayDeque<>();
+    private long mTotalBytes;
+    private long mMaxGapUs;
+
+    LoopRecording(@NonNull File dir) {
+        mDir = dir;
+        loadSegments();
+    }
+
+    @NonNull
+    File createSegmentFile() {
+        if (!mDir.exists()) mDir.mkdirs();
+        //ASCII digits, so names are sorted by time
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmssSSS", Locale.US).format(new Date());
+        return new File(mDir, SEGMENT_PREFIX + timeStamp + ".mp4");
+    }
+
+    /**
+     * Adds the segment and deletes the oldest ones which don't fit the quota
+     *
+     * @param maxBytes 0 - only the number of segments is limited
+     */
+    synchronized void onSegmentFinished(@NonNull IVideoEncoder.Segment segment, int maxSegments, long maxBytes) {
+        mSegments.addLast(segment);
+        mTotalBytes += segment.getBytes();
+        mMaxGapUs = Math.max(mMaxGapUs, segment.getGapUs());
+
+        while (mSegments.size() > 1 &&
+                (mSegments.size() > maxSegments || (maxBytes > 0 && mTotalBytes > maxBytes))) {
+            IVideoEncoder.Segment oldest = mSegments.removeFirst();
+            mTotalBytes -= oldest.getBytes();
+            if (!oldest.getFile().delete())
+                Log.d(Constants.LOG_TAG_DEBUG, "LoopRecording.onSegmentFinished(): cannot delete " + oldest.getFile().getName());
+        }
+
+        Log.d(Constants.LOG_TAG_DEBUG, "LoopRecording.onSegmentFinished(): " + segment +
+                ", kept " + mSegments.size() + " segments, " + mTotalBytes / 1024 + " KB" +
+                ", max gap " + mMaxGapUs / 1000 + " ms");
+    }
+
+    /**
+     * Segments which are left from the previous runs, oldest first (the name is the creation time).
+     * Their duration is unknown, it's 0.
+     */
+    private void loadSegments() {
+        File[] files = mDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(".mp4"));
+        if (files == null) return;
+        Arrays.sort(files, (first, second) -> first.getName().compareTo(second.getName()));
+        for (File file : files) {
+            IVideoEncoder.Segment segment = new IVideoEncoder.Segment(file, file.length(), 0, -1);
+            mSegments.addLast(segment);
+            mTotalBytes += segment.getBytes();
+        }
+        Log.d(Constants.LOG_TAG_DEBUG, "LoopRecording.loadSegments(): " + mSegments.size() + " segments, " + mTotalBytes / 1024 + " KB");
+    }
+
+    /**
+     * The most recent finished segment
+     */
+    @Nullable
+    synchronized IVideoEncoder.Segment getLastSegment() {
+        return mSegments.peekLast();
+    }
+}
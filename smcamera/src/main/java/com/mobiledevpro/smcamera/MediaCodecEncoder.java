@@ -0,0 +1,588 @@
+package com.mobiledevpro.smcamera;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Video encoder backend on MediaCodec with Surface input and MediaMuxer
+ * <p>
+ * Codec, profile, I-frame interval and bitrate mode are configurable. Encoded output is drained
+ * on its own thread, audio (AAC) is read from AudioRecord and encoded on another one.
+ * Camera frames come with sensor timestamps, so the latency of a frame is measured from its timestamp
+ * to the moment its encoded output is available.
+ * <p>
+ * Codec is started on the start of recording, before that the input surface should not get frames.
+ * <p>
+ * With pre-roll the codec is started on prepare: encoded samples are kept in {@link PreRollBuffer} until
+ * the start of recording, then they are written ahead of the live samples. The pre-roll is written by chunks
+ * on the video thread, so the start of recording doesn't wait for it; live samples are queued meanwhile.
+ * <p>
+ * Loop recording segments are rotated at a key frame: the codec keeps running, the next muxer is started
+ * with the same track formats and the finished one is closed on its own thread, so no frames are dropped.
+ */
+@TargetApi(21)
+class MediaCodecEncoder implements IVideoEncoder {
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+    //the end of stream should come by this time after the stop
+    private static final long STOP_TIMEOUT_MS = 3000;
+
+    //pre-roll samples which are written per live video sample, so the drain thread keeps up with the codec
+    private static final int PRE_ROLL_CHUNK_SAMPLES = 16;
+
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BITRATE = 128000;
+
+    private VideoEncoderConfig mConfig;
+    private MediaCodec mVideoCodec;
+    private Surface mInputSurface;
+    private boolean mIsInputSurfaceOwned;
+    private MediaCodec mAudioCodec;
+    private AudioRecord mAudioRecord;
+    private MediaMuxer mMuxer;
+    private Thread mVideoThread;
+    private Thread mAudioThread;
+    private volatile boolean mIsStopRequested;
+    private volatile long mStopRequestedAt;
+    //encoder is released while the codecs are running (pre-roll without recording)
+    private volatile boolean mIsAborted;
+    //all samples go to the muxer, otherwise to the pre-roll buffer
+    private volatile boolean mIsRecording;
+    private PreRollBuffer mPreRoll;
+    private SegmentCallback mSegmentCallback;
+    private ExecutorService mSegmentFinisher;
+
+    //guarded by mMuxerLock
+    private final Object mMuxerLock = new Object();
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private boolean mIsMuxerStarted;
+    //muxer is started, the pre-roll is not written completely yet
+    private boolean mIsPreRollPending;
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+    private File mSegmentFile;
+    private long mPreRollUs;
+    //samples which come before the muxer is started (all tracks should be added first) or before the pre-roll is written
+    private final List<PendingSample> mPendingSamples = new ArrayList<>();
+
+    //written by the video thread only
+    private int mFrameCount;
+    private long mVideoBytes;
+    private long mFirstPtsUs = -1;
+    private long mLastPtsUs;
+    private long mLatencySumUs;
+    private long mMaxLatencyUs;
+    private long mSegmentFirstPtsUs = -1;
+    private long mSegmentGapUs;
+    private boolean mIsSyncFrameRequested;
+
+    @Override
+    public void setSegmentCallback(@Nullable SegmentCallback callback) {
+        mSegmentCallback = callback;
+    }
+
+    @Override
+    public void prepare(@NonNull VideoEncoderConfig config, @NonNull File outputFile, @Nullable Surface inputSurface) throws IOException {
+        mConfig = config;
+        String mime = config.getCodec() == VideoEncoderConfig.Codec.HEVC ?
+                MediaFormat.MIMETYPE_VIDEO_HEVC :
+                MediaFormat.MIMETYPE_VIDEO_AVC;
+        try {
+            mVideoCodec = MediaCodec.createEncoderByType(mime);
+            mVideoCodec.configure(createVideoFormat(config, mime, mVideoCodec), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (inputSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                mVideoCodec.setInputSurface(inputSurface);
+                mInputSurface = inputSurface;
+            } else {
+                mInputSurface = mVideoCodec.createInputSurface();
+                mIsInputSurfaceOwned = true;
+            }
+
+            if (config.isAudioEnabled()) prepareAudio();
+
+            mMuxer = createMuxer(outputFile);
+            mSegmentFile = outputFile;
+            if (mSegmentCallback != null && config.getSegmentDurationSec() > 0) {
+                mSegmentFinisher = Executors.newSingleThreadExecutor();
+            } else {
+                mSegmentCallback = null;
+            }
+
+            if (config.getPreRollSec() > 0) {
+                mPreRoll = new PreRollBuffer(config.getPreRollSec() * 1000000L, config.getPreRollMaxBytes());
+                startCodecs();
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            //codec doesn't support the format (e.g. HEVC or the profile)
+            release();
+            throw new IOException("Cannot configure " + mime + " encoder: " + e.getLocalizedMessage(), e);
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    @NonNull
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @NonNull
+    @Override
+    public File getOutputFile() {
+        synchronized (mMuxerLock) {
+            return mSegmentFile;
+        }
+    }
+
+    @Override
+    public boolean isInputConsumedBeforeStart() {
+        //without pre-roll frames would fill the surface queue of the stopped codec and stall the camera
+        return mPreRoll != null;
+    }
+
+    @Nullable
+    @Override
+    public PreRollBuffer.Occupancy getPreRollOccupancy() {
+        return mPreRoll != null && !mIsRecording ? mPreRoll.getOccupancy() : null;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mMuxerLock) {
+            mIsRecording = true;
+            //pre-roll is written if the track formats are known, otherwise when they come
+            if (mPreRoll != null) startMuxerIfReady();
+        }
+        if (mPreRoll == null) startCodecs();
+    }
+
+    private void startCodecs() {
+        mVideoCodec.start();
+        mVideoThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            drain(mVideoCodec, true);
+        }, "VideoEncoderThread");
+        mVideoThread.start();
+
+        if (mAudioCodec != null) {
+            mAudioCodec.start();
+            mAudioRecord.startRecording();
+            mAudioThread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                encodeAudio();
+            }, "AudioEncoderThread");
+            mAudioThread.start();
+        }
+    }
+
+    @Nullable
+    @Override
+    public Stats stop() {
+        mStopRequestedAt = SystemClock.elapsedRealtime();
+        mIsStopRequested = true;
+        mVideoCodec.signalEndOfInputStream();
+        join(mVideoThread);
+        join(mAudioThread);
+        if (mAudioRecord != null) mAudioRecord.stop();
+
+        synchronized (mMuxerLock) {
+            //recording is shorter than writing of the pre-roll
+            if (mIsPreRollPending) writePreRoll(Integer.MAX_VALUE);
+            if (!mIsMuxerStarted) {
+                Log.d(Constants.LOG_TAG_DEBUG, "MediaCodecEncoder.stop(): nothing has been encoded");
+            } else if (mSegmentFinisher != null) {
+                //after the segments which are being finished
+                finishSegmentAsync(mLastPtsUs);
+                mMuxer = null;
+            } else {
+                mMuxer.stop();
+            }
+        }
+        if (mSegmentFinisher != null) {
+            mSegmentFinisher.shutdown();
+            try {
+                mSegmentFinisher.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return new Stats(
+                mVideoCodec.getName(),
+                mFrameCount,
+                mVideoBytes,
+                mFirstPtsUs < 0 ? 0 : mLastPtsUs - mFirstPtsUs,
+                mFrameCount > 0 ? mLatencySumUs / mFrameCount : 0,
+                mMaxLatencyUs,
+                mPreRollUs
+        );
+    }
+
+    @Override
+    public void release() {
+        if (!mIsStopRequested) {
+            mIsAborted = true;
+            join(mVideoThread);
+            join(mAudioThread);
+        }
+        if (mPreRoll != null) mPreRoll.clear();
+        if (mVideoCodec != null) {
+            mVideoCodec.release();
+            mVideoCodec = null;
+        }
+        if (mInputSurface != null) {
+            if (mIsInputSurfaceOwned) mInputSurface.release();
+            mInputSurface = null;
+        }
+        if (mAudioCodec != null) {
+            mAudioCodec.release();
+            mAudioCodec = null;
+        }
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+        if (mSegmentFinisher != null) {
+            mSegmentFinisher.shutdownNow();
+            mSegmentFinisher = null;
+        }
+        if (mMuxer != null) {
+            try {
+                mMuxer.release();
+            } catch (IllegalStateException e) {
+                //muxer has not been started
+            }
+            mMuxer = null;
+        }
+    }
+
+    private static MediaFormat createVideoFormat(VideoEncoderConfig config, String mime, MediaCodec codec) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitrate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFps());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getIFrameIntervalSec());
+        if (config.getProfile() > 0) format.setInteger(MediaFormat.KEY_PROFILE, config.getProfile());
+        //high speed video: the codec should be clocked for the frame rate, not for the default 30 fps
+        if (config.getFps() > 30 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, config.getFps());
+
+        int bitrateMode = config.getBitrateMode() == VideoEncoderConfig.BitrateMode.CBR ?
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR :
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        MediaCodecInfo.EncoderCapabilities capabilities = codec.getCodecInfo().getCapabilitiesForType(mime).getEncoderCapabilities();
+        if (capabilities != null && capabilities.isBitrateModeSupported(bitrateMode)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, bitrateMode);
+        } else {
+            Log.d(Constants.LOG_TAG_DEBUG, "MediaCodecEncoder.createVideoFormat(): " + config.getBitrateMode() + " is not supported by " + codec.getName());
+        }
+        return format;
+    }
+
+    private MediaMuxer createMuxer(File file) throws IOException {
+        MediaMuxer muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        muxer.setOrientationHint(mConfig.getOrientationHint());
+        return muxer;
+    }
+
+    private void prepareAudio() throws IOException {
+        int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, AUDIO_SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, 4096) * 2);
+        if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED)
+            throw new IOException("AudioRecord is not initialized, check RECORD_AUDIO permission");
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, AUDIO_SAMPLE_RATE, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BITRATE);
+        mAudioCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        mAudioCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    /**
+     * Reads PCM into the codec and drains it until the end of stream
+     */
+    private void encodeAudio() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (!mIsAborted) {
+            boolean isLast = mIsStopRequested;
+            int index = mAudioCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+            if (index >= 0) {
+                ByteBuffer buffer = mAudioCodec.getInputBuffer(index);
+                buffer.clear();
+                int read = Math.max(mAudioRecord.read(buffer, buffer.remaining()), 0);
+                //PCM has been captured before the read returns
+                long ptsUs = getClockNs() / 1000 - read / 2 * 1000000L / AUDIO_SAMPLE_RATE;
+                mAudioCodec.queueInputBuffer(index, 0, read, ptsUs, isLast ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                if (isLast) {
+                    drain(mAudioCodec, false);
+                    return;
+                }
+            }
+            drainAvailable(mAudioCodec, info);
+        }
+    }
+
+    /**
+     * Drains the codec until the end of stream (or the stop timeout)
+     */
+    private void drain(MediaCodec codec, boolean isVideo) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (!mIsAborted) {
+            if (mIsStopRequested && SystemClock.elapsedRealtime() - mStopRequestedAt > STOP_TIMEOUT_MS) {
+                Log.d(Constants.LOG_TAG_DEBUG, "MediaCodecEncoder.drain(): end of stream timeout, video " + isVideo);
+                return;
+            }
+            int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                addTrack(codec.getOutputFormat(), isVideo);
+            } else if (index >= 0) {
+                writeOutput(codec, index, info, isVideo);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            }
+        }
+    }
+
+    /**
+     * Drains the output which is ready now, doesn't wait
+     */
+    private void drainAvailable(MediaCodec codec, MediaCodec.BufferInfo info) {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, 0);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                addTrack(codec.getOutputFormat(), false);
+            } else if (index >= 0) {
+                writeOutput(codec, index, info, false);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void writeOutput(MediaCodec codec, int index, MediaCodec.BufferInfo info, boolean isVideo) {
+        //codec config is a part of the track format
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            ByteBuffer data = codec.getOutputBuffer(index);
+            if (isVideo && mIsRecording) {
+                writePreRollChunk();
+                if (mSegmentCallback != null) rotateSegmentIfNeeded(codec, info);
+                onVideoSample(info);
+            }
+            writeSample(isVideo, data, info);
+        }
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    private void onVideoSample(MediaCodec.BufferInfo info) {
+        long latencyUs = getClockNs() / 1000 - info.presentationTimeUs;
+        mFrameCount++;
+        mVideoBytes += info.size;
+        mLatencySumUs += latencyUs;
+        mMaxLatencyUs = Math.max(mMaxLatencyUs, latencyUs);
+        if (mFirstPtsUs < 0) mFirstPtsUs = info.presentationTimeUs;
+        mLastPtsUs = info.presentationTimeUs;
+    }
+
+    /**
+     * Called on the video thread before the sample is written
+     */
+    private void rotateSegmentIfNeeded(MediaCodec codec, MediaCodec.BufferInfo info) {
+        if (mSegmentFirstPtsUs < 0) {
+            mSegmentFirstPtsUs = info.presentationTimeUs;
+            return;
+        }
+        if (info.presentationTimeUs - mSegmentFirstPtsUs < mConfig.getSegmentDurationSec() * 1000000L) return;
+
+        //the next segment should start with a key frame
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            if (!mIsSyncFrameRequested) {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                codec.setParameters(params);
+                mIsSyncFrameRequested = true;
+            }
+            return;
+        }
+
+        synchronized (mMuxerLock) {
+            //the segment is rotated after the pre-roll is written into it
+            if (!mIsMuxerStarted || mIsPreRollPending) return;
+            File nextFile = mSegmentCallback.createSegmentFile();
+            MediaMuxer nextMuxer;
+            try {
+                nextMuxer = createMuxer(nextFile);
+            } catch (IOException e) {
+                //current segment is continued, the rotation is tried again after the segment duration
+                Log.e(Constants.LOG_TAG_ERROR, "MediaCodecEncoder.rotateSegmentIfNeeded: " + e.getLocalizedMessage(), e);
+                mSegmentFirstPtsUs = info.presentationTimeUs;
+                mIsSyncFrameRequested = false;
+                return;
+            }
+            finishSegmentAsync(mLastPtsUs);
+            mMuxer = nextMuxer;
+            mSegmentFile = nextFile;
+            mVideoTrack = mMuxer.addTrack(mVideoFormat);
+            if (mAudioFormat != null) mAudioTrack = mMuxer.addTrack(mAudioFormat);
+            mMuxer.start();
+        }
+        mSegmentGapUs = info.presentationTimeUs - mLastPtsUs;
+        mSegmentFirstPtsUs = info.presentationTimeUs;
+        mIsSyncFrameRequested = false;
+    }
+
+    /**
+     * Finishes the current segment on the segment thread, called under the muxer lock
+     */
+    private void finishSegmentAsync(long lastPtsUs) {
+        MediaMuxer muxer = mMuxer;
+        File file = mSegmentFile;
+        long durationUs = mSegmentFirstPtsUs < 0 ? 0 : lastPtsUs - mSegmentFirstPtsUs;
+        long gapUs = mSegmentGapUs;
+        mSegmentFinisher.execute(() -> finishSegment(muxer, file, durationUs, gapUs));
+    }
+
+    private void finishSegment(MediaMuxer muxer, File file, long durationUs, long gapUs) {
+        try {
+            muxer.stop();
+        } catch (IllegalStateException e) {
+            Log.e(Constants.LOG_TAG_ERROR, "MediaCodecEncoder.finishSegment: " + e.getLocalizedMessage(), e);
+        }
+        muxer.release();
+        mSegmentCallback.onSegmentFinished(new Segment(file, file.length(), durationUs, gapUs));
+    }
+
+    private void addTrack(MediaFormat format, boolean isVideo) {
+        synchronized (mMuxerLock) {
+            if (isVideo) {
+                mVideoFormat = format;
+            } else {
+                mAudioFormat = format;
+            }
+            startMuxerIfReady();
+        }
+    }
+
+    /**
+     * Starts the muxer when the recording is started and all track formats are known, called under the muxer lock
+     */
+    private void startMuxerIfReady() {
+        if (mIsMuxerStarted || !mIsRecording) return;
+        if (mVideoFormat == null || (mAudioCodec != null && mAudioFormat == null)) return;
+
+        mVideoTrack = mMuxer.addTrack(mVideoFormat);
+        if (mAudioFormat != null) mAudioTrack = mMuxer.addTrack(mAudioFormat);
+        mMuxer.start();
+        mIsMuxerStarted = true;
+        if (mPreRoll != null) {
+            //it's written by the video thread, the caller (e.g. start of recording) doesn't wait for it
+            PreRollBuffer.Occupancy occupancy = mPreRoll.getOccupancy();
+            Log.d(Constants.LOG_TAG_DEBUG, "MediaCodecEncoder.startMuxerIfReady(): " + occupancy);
+            mPreRollUs = occupancy.getDurationUs();
+            mIsPreRollPending = true;
+            return;
+        }
+        writePendingSamples();
+    }
+
+    /**
+     * Writes the next chunk of the pre-roll, called on the video thread before a live video sample
+     */
+    private void writePreRollChunk() {
+        synchronized (mMuxerLock) {
+            if (mIsPreRollPending) writePreRoll(PRE_ROLL_CHUNK_SAMPLES);
+        }
+    }
+
+    /**
+     * Called under the muxer lock, the live samples which have been queued follow the pre-roll
+     */
+    private void writePreRoll(int maxSamples) {
+        if (!mPreRoll.writeTo(mMuxer, mVideoTrack, mAudioTrack, maxSamples)) return;
+        mIsPreRollPending = false;
+        writePendingSamples();
+    }
+
+    private void writePendingSamples() {
+        for (PendingSample sample : mPendingSamples) {
+            mMuxer.writeSampleData(sample.isVideo ? mVideoTrack : mAudioTrack, sample.data, sample.info);
+        }
+        mPendingSamples.clear();
+    }
+
+    private void writeSample(boolean isVideo, ByteBuffer data, MediaCodec.BufferInfo info) {
+        synchronized (mMuxerLock) {
+            if (mIsMuxerStarted && !mIsPreRollPending) {
+                mMuxer.writeSampleData(isVideo ? mVideoTrack : mAudioTrack, data, info);
+                return;
+            }
+            if (!mIsRecording) {
+                mPreRoll.add(isVideo, data, info);
+                return;
+            }
+            //the first video frames come before the audio format, they are copied until the muxer is started
+            //(or until the pre-roll is written)
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            ByteBuffer copy = ByteBuffer.allocate(info.size);
+            copy.put(data);
+            copy.flip();
+            MediaCodec.BufferInfo copyInfo = new MediaCodec.BufferInfo();
+            copyInfo.set(0, info.size, info.presentationTimeUs, info.flags);
+            mPendingSamples.add(new PendingSample(isVideo, copy, copyInfo));
+        }
+    }
+
+    /**
+     * Clock of the camera sensor timestamps
+     */
+    private long getClockNs() {
+        return mConfig.isTimestampRealtime() ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) return;
+        try {
+            thread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingSample {
+        private final boolean isVideo;
+        private final ByteBuffer data;
+        private final MediaCodec.BufferInfo info;
+
+        private PendingSample(boolean isVideo, ByteBuffer data, MediaCodec.BufferInfo info) {
+            this.isVideo = isVideo;
+            this.data = data;
+            this.info = info;
+        }
+    }
+}
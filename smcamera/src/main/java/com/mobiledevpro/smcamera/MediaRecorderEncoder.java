@@ -0,0 +1,150 @@
+package com.mobiledevpro.smcamera;
+
+import android.annotation.TargetApi;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Video encoder backend on MediaRecorder: H.264 (or HEVC on API 24+) and AMR_NB audio.
+ * Profile, I-frame interval and bitrate mode are not configurable here.
+ * Loop recording segments are rotated by setNextOutputFile() of API 26. MediaRecorder switches files
+ * by the file size only, so the segment size is estimated by the bitrate and the rotation gap is unknown.
+ */
+@TargetApi(21)
+class MediaRecorderEncoder implements IVideoEncoder {
+
+    private MediaRecorder mMediaRecorder;
+    private File mOutputFile;
+    private Surface mPersistentSurface;
+    private SegmentCallback mSegmentCallback;
+    private File mSegmentFile;
+    private File mNextSegmentFile;
+    private long mSegmentStartedAt;
+
+    @Override
+    public void setSegmentCallback(@Nullable SegmentCallback callback) {
+        mSegmentCallback = callback;
+    }
+
+    @Override
+    public void prepare(@NonNull VideoEncoderConfig config, @NonNull File outputFile, @Nullable Surface inputSurface) throws IOException {
+        mMediaRecorder = new MediaRecorder();
+        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        if (inputSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mMediaRecorder.setInputSurface(inputSurface);
+            mPersistentSurface = inputSurface;
+        }
+        if (config.isAudioEnabled())
+            mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+
+        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        mMediaRecorder.setOutputFile(outputFile.getAbsolutePath());
+        mOutputFile = outputFile;
+        mMediaRecorder.setVideoEncodingBitRate(config.getBitrate());
+        mMediaRecorder.setVideoFrameRate(config.getFps());
+        mMediaRecorder.setVideoSize(config.getWidth(), config.getHeight());
+        if (config.getCodec() == VideoEncoderConfig.Codec.HEVC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.HEVC);
+        } else {
+            if (config.getCodec() == VideoEncoderConfig.Codec.HEVC)
+                Log.d(Constants.LOG_TAG_DEBUG, "MediaRecorderEncoder.prepare(): HEVC is not supported, H.264 is used");
+            mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        }
+        if (config.isAudioEnabled())
+            mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
+        mMediaRecorder.setOrientationHint(config.getOrientationHint());
+        if (mSegmentCallback != null && config.getSegmentDurationSec() > 0) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mSegmentFile = outputFile;
+                mMediaRecorder.setMaxFileSize((long) config.getBitrate() / 8 * config.getSegmentDurationSec());
+                mMediaRecorder.setOnInfoListener(this::onInfo);
+            } else {
+                Log.d(Constants.LOG_TAG_DEBUG, "MediaRecorderEncoder.prepare(): segments need API 26, a single file is recorded");
+                mSegmentCallback = null;
+            }
+        }
+        if (config.getPreRollSec() > 0)
+            Log.d(Constants.LOG_TAG_DEBUG, "MediaRecorderEncoder.prepare(): pre-roll needs MediaCodec backend");
+        mMediaRecorder.prepare();
+    }
+
+    @NonNull
+    @Override
+    public Surface getInputSurface() {
+        return mPersistentSurface != null ? mPersistentSurface : mMediaRecorder.getSurface();
+    }
+
+    @NonNull
+    @Override
+    public File getOutputFile() {
+        return mSegmentFile != null ? mSegmentFile : mOutputFile;
+    }
+
+    @Override
+    public boolean isInputConsumedBeforeStart() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public PreRollBuffer.Occupancy getPreRollOccupancy() {
+        return null;
+    }
+
+    @Override
+    public void start() {
+        mMediaRecorder.start();
+        mSegmentStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    @Nullable
+    @Override
+    public Stats stop() {
+        mMediaRecorder.stop();
+        mMediaRecorder.reset();
+        if (mSegmentCallback != null) onSegmentFinished();
+        return null;
+    }
+
+    /**
+     * Called on the thread of the prepare() call
+     */
+    @TargetApi(26)
+    private void onInfo(MediaRecorder mr, int what, int extra) {
+        if (mMediaRecorder == null) return;
+        if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+            //otherwise the recording is stopped at the max file size
+            mNextSegmentFile = mSegmentCallback.createSegmentFile();
+            try {
+                mMediaRecorder.setNextOutputFile(mNextSegmentFile);
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG_ERROR, "MediaRecorderEncoder.onInfo: " + e.getLocalizedMessage(), e);
+            }
+        } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+            onSegmentFinished();
+            mSegmentFile = mNextSegmentFile;
+        }
+    }
+
+    private void onSegmentFinished() {
+        long now = SystemClock.elapsedRealtime();
+        mSegmentCallback.onSegmentFinished(new Segment(mSegmentFile, mSegmentFile.length(), (now - mSegmentStartedAt) * 1000, -1));
+        mSegmentStartedAt = now;
+    }
+
+    @Override
+    public void release() {
+        if (mMediaRecorder == null) return;
+        mMediaRecorder.reset();
+        mMediaRecorder.release();
+        mMediaRecorder = null;
+    }
+}
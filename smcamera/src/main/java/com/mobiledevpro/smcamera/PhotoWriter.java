@@ -0,0 +1,631 @@
+package com.mobiledevpro.smcamera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.samsung.android.sdk.camera.SCameraCharacteristics;
+import com.samsung.android.sdk.camera.SCaptureResult;
+import com.samsung.android.sdk.camera.SDngCreator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes JPEG images to files on a dedicated I/O thread
+ * <p>
+ * Image plane (direct ByteBuffer) is written through a FileChannel as is,
+ * without copying into a heap array. Camera thread only submits images and never waits for the disk.
+ * YUV images (zero shutter lag frames) are encoded to JPEG on the same thread,
+ * several frames of one shot are aligned and merged by {@link FrameMerger} before the encoding.
+ * EXIF with the capture result of the image is spliced into the JPEG stream while it's written.
+ * RAW_SENSOR images are written to DNG from the image plane as well.
+ */
+class PhotoWriter {
+
+    private static final int JPEG_QUALITY = 95;
+    //DNG is written by many small chunks (tags, rows), they are gathered before the disk
+    private static final int DNG_BUFFER_SIZE = 256 * 1024;
+    //JPEG image may come a few frames before the capture result, EXIF waits for it
+    private static final long CAPTURE_RESULT_TIMEOUT_MS = 500;
+
+    interface PhotoSource {
+        /**
+         * Called on the I/O thread when the write is started
+         *
+         * @return Null if there is nothing to write (e.g. the photo has been dropped)
+         */
+        @Nullable
+        Photo take();
+    }
+
+    interface FileSource {
+        /**
+         * Called on the I/O thread, so it can touch the disk
+         */
+        @NonNull
+        File create() throws IOException;
+    }
+
+    interface Callback {
+        /**
+         * Called on the I/O thread, the photo is already released
+         */
+        void onWritten(@NonNull File file, @NonNull WriteStats stats);
+
+        void onError(@NonNull IOException e);
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "CameraIoThread")
+    );
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final CaptureResultStore mCaptureResults;
+    private final FrameMerger mFrameMerger = new FrameMerger();
+
+    /**
+     * @param captureResults Results of still requests, JPEG images are matched to them by timestamp
+     */
+    PhotoWriter(@NonNull CaptureResultStore captureResults) {
+        mCaptureResults = captureResults;
+    }
+
+    void write(@NonNull PhotoSource photoSource,
+               @NonNull FileSource fileSource,
+               @NonNull Callback callback) {
+        submit(() -> {
+            Photo photo = photoSource.take();
+            if (photo == null) return null;
+            return new Job() {
+                @Override
+                long writeTo(File file) throws IOException {
+                    ByteBuffer data = photo.getData();
+                    //waiting for the result is not a part of the metadata time
+                    SCaptureResult result = mCaptureResults.take(photo.getTimestampNs(), CAPTURE_RESULT_TIMEOUT_MS);
+                    long startedAt = SystemClock.elapsedRealtimeNanos();
+                    ByteBuffer app1 = ExifInjector.buildApp1(
+                            result,
+                            ExifInjector.readOrientation(data, ExifInjector.ORIENTATION_NORMAL),
+                            photo.getTimestampNs(),
+                            photo.getCaptureTimeMs(),
+                            data,
+                            metadataArrays
+                    );
+                    metadataNs = SystemClock.elapsedRealtimeNanos() - startedAt;
+                    return write(data, app1, file);
+                }
+
+                @Override
+                void release() {
+                    photo.release();
+                }
+            };
+        }, fileSource, callback);
+    }
+
+    /**
+     * Encodes YUV_420_888 image to JPEG
+     *
+     * @param result          Capture result of the image, it's written to EXIF
+     * @param jpegOrientation Clockwise rotation of the image, it's written to EXIF
+     * @param release         Called on the I/O thread after encoding (even if it has failed), it closes the image
+     */
+    void encodeYuv(@NonNull Image image,
+                   @Nullable SCaptureResult result,
+                   int jpegOrientation,
+                   @NonNull Runnable release,
+                   @NonNull FileSource fileSource,
+                   @NonNull Callback callback) {
+        long captureTimeMs = System.currentTimeMillis();
+        submit(() -> new Job() {
+            @Override
+            long writeTo(File file) throws IOException {
+                long startedAt = SystemClock.elapsedRealtimeNanos();
+                ByteBuffer app1 = ExifInjector.buildApp1(
+                        result,
+                        ExifInjector.toExifOrientation(jpegOrientation),
+                        image.getTimestamp(),
+                        captureTimeMs,
+                        null,
+                        metadataArrays
+                );
+                metadataNs = SystemClock.elapsedRealtimeNanos() - startedAt;
+                return encodeYuv(image, app1, file);
+            }
+
+            @Override
+            void release() {
+                release.run();
+            }
+        }, fileSource, callback);
+    }
+
+    /**
+     * Aligns and merges YUV_420_888 images of the same size into one photo and encodes it to JPEG.
+     * The first image is the reference, the others are aligned to it.
+     *
+     * @param result          Capture result of the reference image, it's written to EXIF
+     * @param jpegOrientation Clockwise rotation of the image, it's written to EXIF
+     * @param release         Called on the I/O thread as soon as planes of the images are copied
+     *                        (or the encoding has failed), it closes the images
+     */
+    void encodeMergedYuv(@NonNull List<Image> images,
+                         @Nullable SCaptureResult result,
+                         int jpegOrientation,
+                         @NonNull Runnable release,
+                         @NonNull FileSource fileSource,
+                         @NonNull Callback callback) {
+        long captureTimeMs = System.currentTimeMillis();
+        submit(() -> new Job() {
+            @Override
+            long writeTo(File file) throws IOException {
+                long startedAt = SystemClock.elapsedRealtimeNanos();
+                ByteBuffer app1 = ExifInjector.buildApp1(
+                        result,
+                        ExifInjector.toExifOrientation(jpegOrientation),
+                        images.get(0).getTimestamp(),
+                        captureTimeMs,
+                        null,
+                        metadataArrays
+                );
+                metadataNs = SystemClock.elapsedRealtimeNanos() - startedAt;
+                return encodeMergedYuv(mFrameMerger, images, release, app1, file);
+            }
+
+            @Override
+            void release() {
+                release.run();
+            }
+        }, fileSource, callback);
+    }
+
+    /**
+     * Writes RAW_SENSOR image to DNG, the image is closed after writing
+     *
+     * @param jpegOrientation Clockwise rotation of the image, it's written to DNG tags
+     */
+    void writeDng(@NonNull Image image,
+                  @NonNull SCaptureResult result,
+                  @NonNull SCameraCharacteristics characteristics,
+                  int jpegOrientation,
+                  @NonNull FileSource fileSource,
+                  @NonNull Callback callback) {
+        submit(() -> new Job() {
+            @Override
+            long writeTo(File file) throws IOException {
+                return writeDng(image, result, characteristics, jpegOrientation, file);
+            }
+
+            @Override
+            void release() {
+                image.close();
+            }
+        }, fileSource, callback);
+    }
+
+    private void submit(@NonNull JobSource jobSource,
+                        @NonNull FileSource fileSource,
+                        @NonNull Callback callback) {
+        long submittedAt = SystemClock.elapsedRealtimeNanos();
+        int queueDepth = mQueueDepth.incrementAndGet();
+        mExecutor.execute(() -> {
+            try {
+                Job job = jobSource.take();
+                if (job == null) return;
+                long startedAt = SystemClock.elapsedRealtimeNanos();
+                File file;
+                long bytes;
+                try {
+                    file = fileSource.create();
+                    bytes = job.writeTo(file);
+                } catch (IOException e) {
+                    callback.onError(e);
+                    return;
+                } finally {
+                    job.release();
+                    releaseArrays(job.metadataArrays);
+                }
+                long finishedAt = SystemClock.elapsedRealtimeNanos();
+                callback.onWritten(file, new WriteStats(
+                        (startedAt - submittedAt) / 1000000,
+                        (finishedAt - startedAt) / 1000000,
+                        bytes,
+                        queueDepth,
+                        finishedAt - startedAt,
+                        job.metadataNs
+                ));
+            } finally {
+                mQueueDepth.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Runs the action on the I/O thread after all writes which have been submitted before it,
+     * e.g. closes the ImageReader once planes of its images are not read anymore
+     */
+    void runAfterPendingWrites(@NonNull Runnable action) {
+        mExecutor.execute(action);
+    }
+
+    /**
+     * Photos which are waiting for writing or being written now
+     */
+    int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * Writes SOI, the new APP1 and the rest of the JPEG stream by a single gathering write,
+     * the image bytes are not copied
+     */
+    private static long write(ByteBuffer jpeg, ByteBuffer app1, File file) throws IOException {
+        ByteBuffer soi = jpeg.duplicate();
+        ByteBuffer image = jpeg.duplicate();
+        try {
+            image.position(ExifInjector.findImageStart(jpeg));
+            soi.limit(soi.position() + 2);
+        } catch (IOException e) {
+            //not a JPEG stream, it's written as is
+            Log.e(Constants.LOG_TAG_ERROR, "PhotoWriter.write: " + e.getLocalizedMessage(), e);
+            soi.limit(soi.position());
+            app1.limit(app1.position());
+        }
+        ByteBuffer[] buffers = {soi, app1, image};
+
+        long bytes = 0;
+        try (FileOutputStream output = new FileOutputStream(file);
+             FileChannel channel = output.getChannel()) {
+            while (image.hasRemaining()) {
+                bytes += channel.write(buffers);
+            }
+        }
+        return bytes;
+    }
+
+    private static long encodeYuv(Image image, ByteBuffer app1, File file) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        List<byte[]> pooled = new ArrayList<>(1);
+        try {
+            byte[] nv21 = acquireArray(width * height * 3 / 2, pooled);
+            toNv21(image, nv21);
+            return compressNv21(nv21, width, height, app1, file);
+        } finally {
+            releaseArrays(pooled);
+        }
+    }
+
+    private static long encodeMergedYuv(FrameMerger merger,
+                                        List<Image> images,
+                                        Runnable release,
+                                        ByteBuffer app1,
+                                        File file) throws IOException {
+        int width = images.get(0).getWidth();
+        int height = images.get(0).getHeight();
+        List<byte[]> pooled = new ArrayList<>(images.size() * 3 + 1);
+        try {
+            List<FrameMerger.Frame> frames = new ArrayList<>(images.size());
+            for (Image image : images) {
+                frames.add(toMergerFrame(image, pooled));
+            }
+            //frames are read from the copies, so the images go back to the ZSL ring before the merge
+            release.run();
+
+            byte[] nv21 = acquireArray(width * height * 3 / 2, pooled);
+            FrameMerger.Result result;
+            try {
+                result = merger.merge(frames, FrameMerger.Mode.AVERAGE, nv21);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Frames cannot be merged", e);
+            }
+            Log.d(Constants.LOG_TAG_DEBUG, "PhotoWriter.encodeMergedYuv(): " + result);
+            return compressNv21(nv21, width, height, app1, file);
+        } finally {
+            releaseArrays(pooled);
+        }
+    }
+
+    private static long compressNv21(byte[] nv21, int width, int height, ByteBuffer app1, File file) throws IOException {
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        try (OutputStream output = ExifInjector.wrap(new BufferedOutputStream(new FileOutputStream(file)), app1)) {
+            if (!yuvImage.compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, output)) {
+                throw new IOException("JPEG encoding has failed");
+            }
+        }
+        return file.length();
+    }
+
+    /**
+     * @param pooled Arrays taken from the pool, they should be released after the encoding
+     */
+    private static byte[] acquireArray(int size, List<byte[]> pooled) {
+        byte[] array = BufferPool.get().acquireArray(size);
+        if (array == null) {
+            //encoding is not dropped if the pool is full
+            return new byte[size];
+        }
+        pooled.add(array);
+        return array;
+    }
+
+    private static void releaseArrays(List<byte[]> pooled) {
+        for (byte[] array : pooled) {
+            BufferPool.get().release(array);
+        }
+    }
+
+    /**
+     * Copies planes of YUV_420_888 image as they are, the merger reads them with their strides
+     */
+    private static FrameMerger.Frame toMergerFrame(Image image, List<byte[]> pooled) {
+        Image.Plane[] planes = image.getPlanes();
+        return FrameMerger.Frame.ofYuv420(
+                image.getWidth(),
+                image.getHeight(),
+                copyPlane(planes[0], pooled),
+                planes[0].getRowStride(),
+                copyPlane(planes[1], pooled),
+                copyPlane(planes[2], pooled),
+                planes[1].getRowStride(),
+                planes[1].getPixelStride()
+        );
+    }
+
+    private static byte[] copyPlane(Image.Plane plane, List<byte[]> pooled) {
+        ByteBuffer buffer = plane.getBuffer().duplicate();
+        buffer.rewind();
+        byte[] array = acquireArray(buffer.remaining(), pooled);
+        buffer.get(array, 0, buffer.remaining());
+        return array;
+    }
+
+    private static long writeDng(Image image,
+                                 SCaptureResult result,
+                                 SCameraCharacteristics characteristics,
+                                 int jpegOrientation,
+                                 File file) throws IOException {
+        //metadata is converted to DNG tags here, not on the camera thread
+        try (SDngCreator dngCreator = new SDngCreator(characteristics, result);
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(file), DNG_BUFFER_SIZE)) {
+            dngCreator.setOrientation(ExifInjector.toExifOrientation(jpegOrientation));
+            //pixels are read from the image plane by the native writer, the frame is not copied into the heap
+            dngCreator.writeImage(output, image);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            //image or metadata is not valid for DNG
+            throw new IOException("DNG writing has failed", e);
+        }
+        return file.length();
+    }
+
+    /**
+     * Copies planes of YUV_420_888 image to NV21 array (Y plane, then interleaved V and U)
+     */
+    private static void toNv21(Image image, byte[] nv21) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        int offset = 0;
+        ByteBuffer y = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        for (int row = 0; row < height; row++) {
+            y.position(row * yRowStride);
+            y.get(nv21, offset, width);
+            offset += width;
+        }
+
+        //U and V planes have the same strides
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        for (int row = 0; row < height / 2; row++) {
+            int rowStart = row * uvRowStride;
+            for (int col = 0; col < width / 2; col++) {
+                int index = rowStart + col * uvPixelStride;
+                nv21[offset++] = v.get(index);
+                nv21[offset++] = u.get(index);
+            }
+        }
+    }
+
+    private interface JobSource {
+        @Nullable
+        Job take();
+    }
+
+    /**
+     * Single file write on the I/O thread
+     */
+    private static abstract class Job {
+        //time of building the metadata segment
+        long metadataNs;
+        //pooled arrays of the metadata segment, they are released after the write
+        final List<byte[]> metadataArrays = new ArrayList<>(1);
+
+        /**
+         * @return Number of written bytes
+         */
+        abstract long writeTo(File file) throws IOException;
+
+        /**
+         * Called after the write, even if it has failed
+         */
+        abstract void release();
+    }
+
+    /**
+     * JPEG bytes which are either in the camera image or in a pooled buffer.
+     * Copy to a pooled buffer releases the image slot of the ImageReader.
+     */
+    static final class Photo {
+        private Image mImage;
+        private ByteBuffer mBuffer;
+        private final Runnable mOnImageClosed;
+        private final long mTimestampNs;
+        private final long mCaptureTimeMs;
+
+        private Photo(@NonNull Image image, @Nullable Runnable onImageClosed) {
+            mImage = image;
+            mOnImageClosed = onImageClosed;
+            mTimestampNs = image.getTimestamp();
+            mCaptureTimeMs = System.currentTimeMillis();
+        }
+
+        static Photo of(@NonNull Image image) {
+            return new Photo(image, null);
+        }
+
+        /**
+         * @param onImageClosed Called when the image is closed (after the write or the copy)
+         */
+        static Photo of(@NonNull Image image, @NonNull Runnable onImageClosed) {
+            return new Photo(image, onImageClosed);
+        }
+
+        /**
+         * Sensor timestamp of the image, it's kept after the copy
+         */
+        long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        /**
+         * Wall clock time when the image has been acquired
+         */
+        long getCaptureTimeMs() {
+            return mCaptureTimeMs;
+        }
+
+        boolean holdsImage() {
+            return mImage != null;
+        }
+
+        /**
+         * Copies JPEG bytes into a pooled direct buffer and closes the image
+         *
+         * @return False if the pool has no memory for it, the image is kept then
+         */
+        boolean detachFromImage(@NonNull BufferPool pool) {
+            if (mImage == null) return true;
+            ByteBuffer data = mImage.getPlanes()[0].getBuffer();
+            ByteBuffer buffer = pool.acquireDirect(data.remaining());
+            if (buffer == null) return false;
+            buffer.put(data);
+            buffer.flip();
+            mBuffer = buffer;
+            closeImage();
+            return true;
+        }
+
+        ByteBuffer getData() {
+            return mImage != null ? mImage.getPlanes()[0].getBuffer() : mBuffer;
+        }
+
+        void release() {
+            if (mImage != null) {
+                closeImage();
+            } else if (mBuffer != null) {
+                BufferPool.get().release(mBuffer);
+                mBuffer = null;
+            }
+        }
+
+        private void closeImage() {
+            mImage.close();
+            mImage = null;
+            if (mOnImageClosed != null) mOnImageClosed.run();
+        }
+    }
+
+    /**
+     * Statistics of a single photo write
+     */
+    static class WriteStats {
+        private final long queueWaitMs;
+        private final long writeMs;
+        private final long bytes;
+        private final int queueDepth;
+        private final long writeNs;
+        private final long metadataNs;
+
+        private WriteStats(long queueWaitMs, long writeMs, long bytes, int queueDepth, long writeNs, long metadataNs) {
+            this.queueWaitMs = queueWaitMs;
+            this.writeMs = writeMs;
+            this.bytes = bytes;
+            this.queueDepth = queueDepth;
+            this.writeNs = writeNs;
+            this.metadataNs = metadataNs;
+        }
+
+        /**
+         * Time from the submission to the start of the write
+         */
+        long getQueueWaitMs() {
+            return queueWaitMs;
+        }
+
+        long getWriteMs() {
+            return writeMs;
+        }
+
+        long getLatencyMs() {
+            return queueWaitMs + writeMs;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Queue depth at the moment of submission, including this photo
+         */
+        int getQueueDepth() {
+            return queueDepth;
+        }
+
+        long getWriteNs() {
+            return writeNs;
+        }
+
+        /**
+         * Time of building the EXIF segment, it's a part of the write time
+         */
+        long getMetadataUs() {
+            return metadataNs / 1000;
+        }
+
+        long getBytesPerSecond() {
+            return writeNs > 0 ? bytes * 1000000000L / writeNs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Write: " + bytes + " bytes" +
+                    ", latency " + getLatencyMs() + " ms (queue " + queueWaitMs + " ms, write " + writeMs + " ms)" +
+                    ", queue depth " + queueDepth +
+                    ", metadata " + getMetadataUs() + " us" +
+                    ", " + getBytesPerSecond() / 1024 + " KB/s";
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.mobiledevpro.smcamera;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Ring buffer of the recent encoded video and audio samples for pre-roll recording
+ * <p>
+ * The buffer always starts with a video key frame, so it's trimmed by whole GOPs: the oldest GOP is dropped
+ * while the rest still covers the pre-roll duration, or while the memory cap is exceeded.
+ * Sample buffers are reused, so there is no allocation per frame once the buffer is full.
+ */
+@TargetApi(21)
+public final class PreRollBuffer {
+
+    private final long mDurationUs;
+    private final long mMaxBytes;
+
+    //guarded by this
+    private final ArrayDeque<Sample> mSamples = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+    private final ArrayDeque<Long> mKeyFramePts = new ArrayDeque<>();
+    private long mLastVideoPtsUs;
+    private long mBytes;
+    //capacity of the sample buffers and the free ones
+    private long mAllocatedBytes;
+    private int mDroppedGops;
+
+    /**
+     * @param durationUs Pre-roll duration which is kept
+     * @param maxBytes   Memory cap of the sample buffers
+     */
+    PreRollBuffer(long durationUs, long maxBytes) {
+        mDurationUs = durationUs;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Copies the encoded sample, codec config samples should not be added
+     */
+    synchronized void add(boolean isVideo, @NonNull ByteBuffer data, @NonNull MediaCodec.BufferInfo info) {
+        boolean isKeyFrame = isVideo && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        //the buffer starts with a key frame
+        if (mSamples.isEmpty() && !isKeyFrame) return;
+        if (info.size > mMaxBytes) {
+            clearLocked();
+            return;
+        }
+
+        ByteBuffer buffer = obtainBuffer(info.size);
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        buffer.put(data);
+        buffer.flip();
+        mSamples.addLast(new Sample(isVideo, buffer, info.size, info.presentationTimeUs, info.flags));
+        mBytes += info.size;
+        if (isKeyFrame) mKeyFramePts.addLast(info.presentationTimeUs);
+        if (isVideo) mLastVideoPtsUs = info.presentationTimeUs;
+
+        trim();
+    }
+
+    /**
+     * Writes the oldest samples to the muxer and removes them, so a long pre-roll is written by chunks
+     * between the live samples
+     *
+     * @param maxSamples Samples which are written by this call
+     * @return True if all samples have been written
+     */
+    synchronized boolean writeTo(@NonNull MediaMuxer muxer, int videoTrack, int audioTrack, int maxSamples) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < maxSamples && !mSamples.isEmpty(); i++) {
+            Sample sample = mSamples.pollFirst();
+            if (sample.isVideo || audioTrack >= 0) {
+                info.set(0, sample.size, sample.ptsUs, sample.flags);
+                muxer.writeSampleData(sample.isVideo ? videoTrack : audioTrack, sample.data, info);
+            }
+            if (sample.isVideo && (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) mKeyFramePts.pollFirst();
+            recycle(sample);
+        }
+        if (!mSamples.isEmpty()) return false;
+        clearLocked();
+        return true;
+    }
+
+    synchronized void clear() {
+        clearLocked();
+        mFreeBuffers.clear();
+        mAllocatedBytes = 0;
+    }
+
+    @NonNull
+    synchronized Occupancy getOccupancy() {
+        return new Occupancy(getDurationUsLocked(), mDurationUs, mBytes, mAllocatedBytes, mMaxBytes,
+                mSamples.size(), mKeyFramePts.size(), mDroppedGops);
+    }
+
+    private long getDurationUsLocked() {
+        return mKeyFramePts.isEmpty() ? 0 : mLastVideoPtsUs - mKeyFramePts.peekFirst();
+    }
+
+    private void trim() {
+        //free buffers are dropped first
+        dropFreeBuffers();
+
+        while (mKeyFramePts.size() > 1 &&
+                (mAllocatedBytes > mMaxBytes || mLastVideoPtsUs - getSecondKeyFramePts() >= mDurationUs)) {
+            dropOldestGop();
+            dropFreeBuffers();
+        }
+
+        //a single GOP doesn't fit the cap
+        if (mAllocatedBytes > mMaxBytes) {
+            clearLocked();
+            dropFreeBuffers();
+        }
+    }
+
+    private void dropFreeBuffers() {
+        while (mAllocatedBytes > mMaxBytes && !mFreeBuffers.isEmpty()) {
+            mAllocatedBytes -= mFreeBuffers.pollFirst().capacity();
+        }
+    }
+
+    private long getSecondKeyFramePts() {
+        Iterator<Long> iterator = mKeyFramePts.iterator();
+        iterator.next();
+        return iterator.next();
+    }
+
+    private void dropOldestGop() {
+        mKeyFramePts.pollFirst();
+        long nextKeyFramePts = mKeyFramePts.peekFirst();
+        while (!mSamples.isEmpty()) {
+            Sample sample = mSamples.peekFirst();
+            if (sample.isVideo && sample.ptsUs == nextKeyFramePts &&
+                    (sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) break;
+            recycle(mSamples.pollFirst());
+        }
+        mDroppedGops++;
+    }
+
+    private void clearLocked() {
+        while (!mSamples.isEmpty()) {
+            recycle(mSamples.pollFirst());
+        }
+        mKeyFramePts.clear();
+        mBytes = 0;
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        Iterator<ByteBuffer> iterator = mFreeBuffers.iterator();
+        while (iterator.hasNext()) {
+            ByteBuffer buffer = iterator.next();
+            if (buffer.capacity() >= size) {
+                iterator.remove();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        mAllocatedBytes += size;
+        return ByteBuffer.allocate(size);
+    }
+
+    private void recycle(Sample sample) {
+        mBytes -= sample.size;
+        mFreeBuffers.addLast(sample.data);
+    }
+
+    private static class Sample {
+        private final boolean isVideo;
+        private final ByteBuffer data;
+        private final int size;
+        private final long ptsUs;
+        private final int flags;
+
+        private Sample(boolean isVideo, ByteBuffer data, int size, long ptsUs, int flags) {
+            this.isVideo = isVideo;
+            this.data = data;
+            this.size = size;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+    }
+
+    /**
+     * Pre-roll buffer metrics
+     */
+    public static final class Occupancy {
+        private final long durationUs;
+        private final long targetDurationUs;
+        private final long bytes;
+        private final long allocatedBytes;
+        private final long maxBytes;
+        private final int samples;
+        private final int keyFrames;
+        private final int droppedGops;
+
+        private Occupancy(long durationUs, long targetDurationUs, long bytes, long allocatedBytes, long maxBytes,
+                          int samples, int keyFrames, int droppedGops) {
+            this.durationUs = durationUs;
+            this.targetDurationUs = targetDurationUs;
+            this.bytes = bytes;
+            this.allocatedBytes = allocatedBytes;
+            this.maxBytes = maxBytes;
+            this.samples = samples;
+            this.keyFrames = keyFrames;
+            this.droppedGops = droppedGops;
+        }
+
+        /**
+         * Video duration which would be written on the start of recording
+         */
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        public long getTargetDurationUs() {
+            return targetDurationUs;
+        }
+
+        /**
+         * Encoded bytes in the buffer
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Memory of the sample buffers (including the free ones which are reused), up to the max bytes
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public int getKeyFrames() {
+            return keyFrames;
+        }
+
+        /**
+         * GOPs which have been dropped from the head since the encoder was prepared
+         */
+        public int getDroppedGops() {
+            return droppedGops;
+        }
+
+        @Override
+        public String toString() {
+            return "Pre-roll " + durationUs / 1000 + " of " + targetDurationUs / 1000 + " ms" +
+                    ", " + bytes / 1024 + " KB in " + samples + " samples, " + keyFrames + " key frames" +
+                    ", memory " + allocatedBytes / 1024 + " of " + maxBytes / 1024 + " KB";
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.mobiledevpro.smcamera;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.samsung.android.sdk.camera.SCaptureResult;
+
+import java.util.Arrays;
+
+/**
+ * Precapture sequence of a still photo
+ * <p>
+ * AF is triggered and locked first, then AE precapture metering is triggered and awaited,
+ * then the still request is fired. Sequence is driven by capture results of the repeating request,
+ * every phase has a timeout (checked on every result, they come at the frame rate),
+ * so a photo is taken anyway if the camera doesn't converge.
+ */
+public final class PrecaptureSequence {
+
+    public enum Phase {
+        //AF trigger is sent, waiting for the focus lock
+        AF_LOCK,
+        //AE precapture trigger is sent, waiting for the start of metering
+        AE_PRECAPTURE,
+        //waiting for the end of metering
+        AE_CONVERGE,
+        //still request is sent, waiting for the image
+        CAPTURE
+    }
+
+    /**
+     * Requests which are sent by the sequence, called on the camera thread
+     */
+    interface Actions {
+        void triggerAf();
+
+        void triggerAePrecapture();
+
+        void captureStill();
+    }
+
+    private static final long AF_LOCK_TIMEOUT_MS = 1000;
+    private static final long AE_PRECAPTURE_TIMEOUT_MS = 500;
+    private static final long AE_CONVERGE_TIMEOUT_MS = 1000;
+
+    private final boolean mIsAfLockNeeded;
+    private final boolean mIsAePrecaptureNeeded;
+    private final Actions mActions;
+    private final long mRequestId;
+
+    //null - not started yet or finished
+    private Phase mPhase;
+    private long mStartedAt;
+    private long mPhaseStartedAt;
+    private final long[] mPhaseDurationsMs = new long[Phase.values().length];
+    private final boolean[] mTimedOutPhases = new boolean[Phase.values().length];
+
+    /**
+     * @param isAfLockNeeded       AF mode is not fixed (OFF or EDOF) and the lens is not fixed focus
+     * @param isAePrecaptureNeeded AE mode is not OFF
+     * @param requestId            Id of the picture request, it's reported with the photo
+     */
+    PrecaptureSequence(boolean isAfLockNeeded, boolean isAePrecaptureNeeded, @NonNull Actions actions, long requestId) {
+        mIsAfLockNeeded = isAfLockNeeded;
+        mIsAePrecaptureNeeded = isAePrecaptureNeeded;
+        mActions = actions;
+        mRequestId = requestId;
+    }
+
+    long getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * Sends the first trigger (or the still request if nothing should be awaited)
+     */
+    synchronized void start() {
+        mStartedAt = SystemClock.elapsedRealtime();
+        if (mIsAfLockNeeded) {
+            moveTo(Phase.AF_LOCK);
+        } else if (mIsAePrecaptureNeeded) {
+            moveTo(Phase.AE_PRECAPTURE);
+        } else {
+            moveTo(Phase.CAPTURE);
+        }
+    }
+
+    /**
+     * Called for every capture result (partial or total) of the session.
+     * A partial result can lack AF and AE states, they may come with the next part of the same frame.
+     * The state is taken as not reported by the camera (nothing to wait for) only if a total result lacks it.
+     *
+     * @param isPartial Result of onCaptureProgressed
+     */
+    synchronized void onCaptureResult(@NonNull SCaptureResult result, boolean isPartial) {
+        if (mPhase == null) return;
+        switch (mPhase) {
+            case AF_LOCK:
+                Integer afState = result.get(SCaptureResult.CONTROL_AF_STATE);
+                if (afState == null && isPartial && !isTimedOut(AF_LOCK_TIMEOUT_MS)) break;
+                if (afState == null ||
+                        afState == SCaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                        afState == SCaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED ||
+                        isTimedOut(AF_LOCK_TIMEOUT_MS)) {
+                    moveTo(mIsAePrecaptureNeeded ? Phase.AE_PRECAPTURE : Phase.CAPTURE);
+                }
+                break;
+            case AE_PRECAPTURE:
+                Integer aeState = result.get(SCaptureResult.CONTROL_AE_STATE);
+                if (aeState == null && isPartial && !isTimedOut(AE_PRECAPTURE_TIMEOUT_MS)) break;
+                if (aeState == null ||
+                        aeState == SCaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
+                        aeState == SCaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED ||
+                        isTimedOut(AE_PRECAPTURE_TIMEOUT_MS)) {
+                    moveTo(Phase.AE_CONVERGE);
+                }
+                break;
+            case AE_CONVERGE:
+                aeState = result.get(SCaptureResult.CONTROL_AE_STATE);
+                if (aeState == null && isPartial && !isTimedOut(AE_CONVERGE_TIMEOUT_MS)) break;
+                if (aeState == null ||
+                        aeState != SCaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
+                        isTimedOut(AE_CONVERGE_TIMEOUT_MS)) {
+                    moveTo(Phase.CAPTURE);
+                }
+                break;
+            case CAPTURE:
+                //waiting for the image
+                break;
+        }
+    }
+
+    /**
+     * AF has been locked by the sequence, it should be unlocked after the still capture
+     */
+    boolean isAfLockNeeded() {
+        return mIsAfLockNeeded;
+    }
+
+    /**
+     * Still image has come, the sequence is finished
+     */
+    synchronized Result finish() {
+        if (mPhase != null) {
+            mPhaseDurationsMs[mPhase.ordinal()] = SystemClock.elapsedRealtime() - mPhaseStartedAt;
+            mPhase = null;
+        }
+        return new Result(mPhaseDurationsMs, mTimedOutPhases, SystemClock.elapsedRealtime() - mStartedAt);
+    }
+
+    private boolean isTimedOut(long timeoutMs) {
+        if (SystemClock.elapsedRealtime() - mPhaseStartedAt < timeoutMs) return false;
+        mTimedOutPhases[mPhase.ordinal()] = true;
+        return true;
+    }
+
+    private void moveTo(Phase phase) {
+        long now = SystemClock.elapsedRealtime();
+        if (mPhase != null) mPhaseDurationsMs[mPhase.ordinal()] = now - mPhaseStartedAt;
+        mPhase = phase;
+        mPhaseStartedAt = now;
+
+        switch (phase) {
+            case AF_LOCK:
+                mActions.triggerAf();
+                break;
+            case AE_PRECAPTURE:
+                mActions.triggerAePrecapture();
+                break;
+            case AE_CONVERGE:
+                //metering is in progress, nothing to send
+                break;
+            case CAPTURE:
+                mActions.captureStill();
+                break;
+        }
+    }
+
+    /**
+     * Time which the photo has spent in every phase
+     */
+    public static final class Result {
+        private final long[] phaseDurationsMs;
+        private final boolean[] timedOutPhases;
+        private final long totalMs;
+
+        private Result(long[] phaseDurationsMs, boolean[] timedOutPhases, long totalMs) {
+            this.phaseDurationsMs = Arrays.copyOf(phaseDurationsMs, phaseDurationsMs.length);
+            this.timedOutPhases = Arrays.copyOf(timedOutPhases, timedOutPhases.length);
+            this.totalMs = totalMs;
+        }
+
+        /**
+         * @return 0 if the phase has been skipped
+         */
+        public long getPhaseDurationMs(@NonNull Phase phase) {
+            return phaseDurationsMs[phase.ordinal()];
+        }
+
+        /**
+         * The next phase has been started by the timeout, e.g. AF could not lock
+         */
+        public boolean isTimedOut(@NonNull Phase phase) {
+            return timedOutPhases[phase.ordinal()];
+        }
+
+        /**
+         * Time from the shutter press to the still image
+         */
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("Precapture: total " + totalMs + " ms");
+            for (Phase phase : Phase.values()) {
+                builder.append(", ")
+                        .append(phase)
+                        .append(" ")
+                        .append(phaseDurationsMs[phase.ordinal()])
+                        .append(" ms");
+                if (timedOutPhases[phase.ordinal()]) builder.append(" (timeout)");
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.mobiledevpro.smcamera;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.samsung.android.sdk.camera.SCaptureResult;
+import com.samsung.android.sdk.camera.STotalCaptureResult;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * RAW_SENSOR output of still captures
+ * <p>
+ * DNG needs both the raw image and the capture result of the frame, they come separately
+ * and are paired by the sensor timestamp. The same timestamp links the DNG to the JPEG of the shot.
+ * Write throughput of DNG files is accumulated, a DNG is 20+ MB, so it's the bottleneck of RAW shooting.
+ * Capture-to-DNG latency (from the still request to the written file) is measured for every shot,
+ * its percentiles over the recent shots are the benchmark of RAW shooting on the device.
+ */
+public final class RawCapture {
+
+    //unpaired results and images which are kept, older ones are dropped
+    private static final int MAX_PENDING = 4;
+    //recent capture-to-DNG latencies for percentiles
+    private static final int LATENCY_SAMPLES = 64;
+
+    private final Map<Long, Image> mPendingImages = new LinkedHashMap<>();
+    private final Map<Long, STotalCaptureResult> mPendingResults = new LinkedHashMap<>();
+    //shots which are waiting for the second file, by sensor timestamp
+    private final Map<Long, Result.Builder> mPendingShots = new LinkedHashMap<>();
+
+    //write statistics
+    private long mWrittenBytes;
+    private long mWriteNs;
+    private int mWrittenCount;
+    private int mDroppedCount;
+    private final long[] mCaptureToDngMs = new long[LATENCY_SAMPLES];
+    private int mCaptureToDngCount;
+
+    /**
+     * Acquires raw images from the reader, called on the camera thread
+     *
+     * @return Frame which has both the image and the capture result, or null
+     */
+    @Nullable
+    synchronized RawFrame onImageAvailable(@NonNull ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            //all images are waiting for writing
+            mDroppedCount++;
+            return null;
+        }
+        if (image == null) return null;
+
+        long timestampNs = image.getTimestamp();
+        STotalCaptureResult result = mPendingResults.remove(timestampNs);
+        if (result != null) return new RawFrame(image, result);
+
+        mPendingImages.put(timestampNs, image);
+        if (mPendingImages.size() > MAX_PENDING) {
+            Iterator<Image> iterator = mPendingImages.values().iterator();
+            iterator.next().close();
+            iterator.remove();
+            mDroppedCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Sensor exposure of a still request with the raw output has started, called on the camera thread
+     *
+     * @param requestedAtNs {@link SystemClock#elapsedRealtimeNanos()} of the still request
+     */
+    synchronized void onCaptureStarted(long timestampNs, long requestedAtNs) {
+        getShot(timestampNs).setRequestedAt(requestedAtNs);
+    }
+
+    /**
+     * Capture result of a still request with the raw output
+     *
+     * @return Frame which has both the image and the capture result, or null
+     */
+    @Nullable
+    synchronized RawFrame onCaptureCompleted(@NonNull STotalCaptureResult result) {
+        Long timestampNs = result.get(SCaptureResult.SENSOR_TIMESTAMP);
+        if (timestampNs == null) return null;
+
+        Image image = mPendingImages.remove(timestampNs);
+        if (image != null) return new RawFrame(image, result);
+
+        mPendingResults.put(timestampNs, result);
+        if (mPendingResults.size() > MAX_PENDING) {
+            Iterator<STotalCaptureResult> iterator = mPendingResults.values().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        return null;
+    }
+
+    /**
+     * @return Result if the JPEG of the shot has been saved as well
+     */
+    @Nullable
+    synchronized Result onDngSaved(long timestampNs, @NonNull File file, @NonNull PhotoWriter.WriteStats stats) {
+        mWrittenBytes += stats.getBytes();
+        mWriteNs += stats.getWriteNs();
+        mWrittenCount++;
+        Result.Builder shot = getShot(timestampNs);
+        shot.setDng(file, stats);
+        long captureToDngMs = shot.getCaptureToDngMs();
+        if (captureToDngMs >= 0) {
+            mCaptureToDngMs[mCaptureToDngCount % LATENCY_SAMPLES] = captureToDngMs;
+            mCaptureToDngCount++;
+        }
+        return takeIfFinished(timestampNs);
+    }
+
+    /**
+     * @return Result if the DNG of the shot has been saved as well
+     */
+    @Nullable
+    synchronized Result onJpegSaved(long timestampNs, @NonNull File file) {
+        getShot(timestampNs).setJpeg(file);
+        return takeIfFinished(timestampNs);
+    }
+
+    /**
+     * Average write speed of all DNG files, time between writes is not counted
+     */
+    synchronized long getSustainedBytesPerSecond() {
+        return mWriteNs > 0 ? mWrittenBytes * 1000000000L / mWriteNs : 0;
+    }
+
+    /**
+     * Percentile of capture-to-DNG latency over the recent shots
+     *
+     * @param percentile From 0 to 100
+     * @return -1 if there are no measured shots
+     */
+    synchronized long getCaptureToDngPercentileMs(double percentile) {
+        int count = Math.min(mCaptureToDngCount, LATENCY_SAMPLES);
+        if (count == 0) return -1;
+        long[] latencies = Arrays.copyOf(mCaptureToDngMs, count);
+        Arrays.sort(latencies);
+        //nearest-rank method
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return latencies[Math.min(Math.max(rank - 1, 0), count - 1)];
+    }
+
+    /**
+     * Closes images which are not paired, e.g. when the camera is closed
+     */
+    synchronized void clear() {
+        for (Image image : mPendingImages.values()) {
+            image.close();
+        }
+        mPendingImages.clear();
+        mPendingResults.clear();
+        mPendingShots.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RAW: written " + mWrittenCount +
+                ", dropped " + mDroppedCount +
+                ", " + mWrittenBytes / (1024 * 1024) + " MB" +
+                ", sustained " + getSustainedBytesPerSecond() / (1024 * 1024) + " MB/s" +
+                ", capture to DNG p50 " + getCaptureToDngPercentileMs(50) + " ms" +
+                ", p90 " + getCaptureToDngPercentileMs(90) + " ms";
+    }
+
+    private Result.Builder getShot(long timestampNs) {
+        Result.Builder shot = mPendingShots.get(timestampNs);
+        if (shot == null) {
+            shot = new Result.Builder(timestampNs);
+            mPendingShots.put(timestampNs, shot);
+            if (mPendingShots.size() > MAX_PENDING) {
+                Iterator<Result.Builder> iterator = mPendingShots.values().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return shot;
+    }
+
+    private Result takeIfFinished(long timestampNs) {
+        Result.Builder shot = mPendingShots.get(timestampNs);
+        if (shot == null || !shot.isFinished()) return null;
+        mPendingShots.remove(timestampNs);
+        return shot.build(getSustainedBytesPerSecond(), getCaptureToDngPercentileMs(50), getCaptureToDngPercentileMs(90));
+    }
+
+    /**
+     * Raw image with its capture result, the image should be closed after writing
+     */
+    static class RawFrame {
+        private final Image image;
+        private final STotalCaptureResult result;
+
+        private RawFrame(Image image, STotalCaptureResult result) {
+            this.image = image;
+            this.result = result;
+        }
+
+        Image getImage() {
+            return image;
+        }
+
+        STotalCaptureResult getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * RAW+JPEG pair of a shot
+     */
+    public static final class Result {
+        private final long timestampNs;
+        private final File jpegFile;
+        private final File dngFile;
+        private final long dngBytes;
+        private final long dngLatencyMs;
+        private final long dngBytesPerSecond;
+        private final long sustainedBytesPerSecond;
+        private final long captureToDngMs;
+        private final long captureToDngP50Ms;
+        private final long captureToDngP90Ms;
+
+        private Result(long timestampNs,
+                       File jpegFile,
+                       File dngFile,
+                       long dngBytes,
+                       long dngLatencyMs,
+                       long dngBytesPerSecond,
+                       long sustainedBytesPerSecond,
+                       long captureToDngMs,
+                       long captureToDngP50Ms,
+                       long captureToDngP90Ms) {
+            this.timestampNs = timestampNs;
+            this.jpegFile = jpegFile;
+            this.dngFile = dngFile;
+            this.dngBytes = dngBytes;
+            this.dngLatencyMs = dngLatencyMs;
+            this.dngBytesPerSecond = dngBytesPerSecond;
+            this.sustainedBytesPerSecond = sustainedBytesPerSecond;
+            this.captureToDngMs = captureToDngMs;
+            this.captureToDngP50Ms = captureToDngP50Ms;
+            this.captureToDngP90Ms = captureToDngP90Ms;
+        }
+
+        /**
+         * Sensor timestamp which links the files
+         */
+        public long getTimestampNs() {
+            return timestampNs;
+        }
+
+        public File getJpegFile() {
+            return jpegFile;
+        }
+
+        public File getDngFile() {
+            return dngFile;
+        }
+
+        public long getDngBytes() {
+            return dngBytes;
+        }
+
+        /**
+         * Time from the submission of the DNG to the end of writing
+         */
+        public long getDngLatencyMs() {
+            return dngLatencyMs;
+        }
+
+        public long getDngBytesPerSecond() {
+            return dngBytesPerSecond;
+        }
+
+        /**
+         * Average write speed of all DNG files of the session
+         */
+        public long getSustainedBytesPerSecond() {
+            return sustainedBytesPerSecond;
+        }
+
+        /**
+         * Time from the still request to the end of the DNG writing, -1 if the capture start has not been reported
+         */
+        public long getCaptureToDngMs() {
+            return captureToDngMs;
+        }
+
+        /**
+         * Median capture-to-DNG latency of the recent shots of the session
+         */
+        public long getCaptureToDngP50Ms() {
+            return captureToDngP50Ms;
+        }
+
+        public long getCaptureToDngP90Ms() {
+            return captureToDngP90Ms;
+        }
+
+        @Override
+        public String toString() {
+            return "RAW+JPEG " + timestampNs + ": " + jpegFile.getName() + " + " + dngFile.getName() +
+                    String.format(Locale.US, ", DNG %.1f MB", dngBytes / (1024d * 1024d)) +
+                    ", latency " + dngLatencyMs + " ms" +
+                    ", " + dngBytesPerSecond / (1024 * 1024) + " MB/s" +
+                    " (sustained " + sustainedBytesPerSecond / (1024 * 1024) + " MB/s)" +
+                    ", capture to DNG " + captureToDngMs + " ms" +
+                    " (p50 " + captureToDngP50Ms + " ms, p90 " + captureToDngP90Ms + " ms)";
+        }
+
+        private static class Builder {
+            private final long timestampNs;
+            private File jpegFile;
+            private File dngFile;
+            private PhotoWriter.WriteStats dngStats;
+            private long requestedAtNs;
+            private long dngWrittenAtNs;
+
+            private Builder(long timestampNs) {
+                this.timestampNs = timestampNs;
+            }
+
+            private void setRequestedAt(long requestedAtNs) {
+                this.requestedAtNs = requestedAtNs;
+            }
+
+            private void setJpeg(File file) {
+                jpegFile = file;
+            }
+
+            private void setDng(File file, PhotoWriter.WriteStats stats) {
+                dngFile = file;
+                dngStats = stats;
+                dngWrittenAtNs = SystemClock.elapsedRealtimeNanos();
+            }
+
+            /**
+             * @return -1 if the request time or the DNG is not known
+             */
+            private long getCaptureToDngMs() {
+                if (requestedAtNs == 0 || dngFile == null) return -1;
+                return (dngWrittenAtNs - requestedAtNs) / 1000000;
+            }
+
+            private boolean isFinished() {
+                return jpegFile != null && dngFile != null;
+            }
+
+            private Result build(long sustainedBytesPerSecond, long captureToDngP50Ms, long captureToDngP90Ms) {
+                return new Result(
+                        timestampNs,
+                        jpegFile,
+                        dngFile,
+                        dngStats.getBytes(),
+                        dngStats.getLatencyMs(),
+                        dngStats.getBytesPerSecond(),
+                        sustainedBytesPerSecond,
+                        getCaptureToDngMs(),
+                        captureToDngP50Ms,
+                        captureToDngP90Ms
+                );
+            }
+        }
+    }
+}
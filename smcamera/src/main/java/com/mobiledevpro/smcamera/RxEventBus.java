@@ -3,6 +3,7 @@ package com.mobiledevpro.smcamera;
 
 import io.reactivex.Observable;
 import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
 
 /**
  * Rx Bus
@@ -16,7 +17,8 @@ import io.reactivex.subjects.PublishSubject;
 public class RxEventBus {
     private static RxEventBus sInstance;
 
-    private PublishSubject<Object> subject = PublishSubject.create();
+    //events are posted from UI, camera and control threads
+    private Subject<Object> subject = PublishSubject.create().toSerialized();
 
     public static RxEventBus getInstance() {
         if (sInstance == null) sInstance = new RxEventBus();
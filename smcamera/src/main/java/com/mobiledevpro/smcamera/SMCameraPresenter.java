@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.SurfaceTexture;
 import android.support.annotation.NonNull;
+import android.support.annotation.StringRes;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
@@ -16,7 +17,9 @@ import android.widget.Toast;
 import com.mobiledevpro.commons.helpers.BasePermissionsHelper;
 
 import java.io.File;
+import java.util.concurrent.CancellationException;
 
+import io.reactivex.Completable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
@@ -44,6 +47,7 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
     private boolean mIsAspectRationFull;
     private boolean mIsFlashlightOn;
     private CameraHelper mCameraHelper;
+    private CameraCommandQueue mCommandQueue;
     private CameraSettings mCameraSettings;
     private CompositeDisposable mSubscriptions = new CompositeDisposable();
 
@@ -57,6 +61,7 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
         Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.bindView(): ");
         mView = view;
         mCameraSettings = cameraSettings;
+        mIsFlashlightOn = cameraSettings.isFlashlightOn();
         mCameraPreview = mView.getCameraPreview();
 
         //set touch listener to draw metering area
@@ -79,6 +84,7 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
                 videoFilesDir,
                 photoFilesDir
         );
+        if (mCommandQueue == null) mCommandQueue = new CameraCommandQueue(mCameraHelper);
 
         //set screen brightness to max
         Window window = mView.getActivity().getWindow();
@@ -95,6 +101,8 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
         Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.unbindView(): ");
         unregisterRxEvents();
         stopCameraPreview();
+        if (mCommandQueue != null)
+            Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.unbindView(): commands: " + mCommandQueue);
         mView = null;
     }
 
@@ -134,16 +142,19 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
         mView.setRecordingState(mIsVideoRecording);
 
         //start/stop recording
-        mCameraHelper.startStopVideoRecording();
+        subscribe(mCommandQueue.startStopVideoRecording());
     }
 
     @Override
     public void onPhotoCaptureButtonClick() {
-        mCameraHelper.takePicture();
+        //result is handled by RxEventOnPhotoCaptureFinished, the helper takes a ZSL frame if the ring is running
+        subscribe(mCommandQueue.takePicture(), R.string.message_photo_capture_failed);
     }
 
     @Override
     public void onAspectRatioButtonClick() {
+        //output sizes cannot be changed while recording
+        if (mIsVideoRecording) return;
         mIsAspectRationFull = !mIsAspectRationFull;
         mCameraPreview.setAspectRatio(mIsAspectRationFull ? 16 : 4, mIsAspectRationFull ? 9 : 3);
         mView.setFullAspectRatio(mIsAspectRationFull);
@@ -153,12 +164,14 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
         } else {
             mCameraSettings.setAspectRatio((double) 4 / 3);
         }
+        subscribe(mCommandQueue.applySettings(mView.getActivity(), mCameraSettings));
     }
 
     @Override
     public void onFlashlightClick() {
         mIsFlashlightOn = !mIsFlashlightOn;
-        mCameraHelper.setFlashlightOn(mIsFlashlightOn);
+        mCameraSettings.setFlashlightOn(mIsFlashlightOn);
+        subscribe(mCommandQueue.setFlashlightOn(mView.getActivity(), mIsFlashlightOn));
         mView.setFlashLightOn(mIsFlashlightOn);
     }
 
@@ -176,6 +189,13 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
     }
 
     private void onCameraReady() {
+        CameraTrace.end(CameraTrace.Stage.CAMERA_READY_EVENT);
+        CameraTrace.end(CameraTrace.Stage.STARTUP);
+        if (CameraTrace.isEnabled()) {
+            Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.onCameraReady(): startup p50 " +
+                    CameraTrace.getStagePercentileMs(CameraTrace.Stage.STARTUP, 50) + " ms, p90 " +
+                    CameraTrace.getStagePercentileMs(CameraTrace.Stage.STARTUP, 90) + " ms");
+        }
         if (mView == null) return;
         mView.setIsCameraLoading(false);
         mView.setIsFlashlightAvailable(
@@ -183,6 +203,21 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
         );
     }
 
+    private void onCameraRestarted(CameraHelper.RxEventOnCameraRestarted event) {
+        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.onCameraRestarted(): " +
+                (event.isWarmRestart() ? "warm" : "full") + " restart " + event.getDurationMs() + " ms");
+    }
+
+    private void onVideoRecorderReady(CameraHelper.RxEventOnVideoRecorderReady event) {
+        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.onVideoRecorderReady(): stop to start " +
+                event.getStopToStartLatencyMs() + " ms" + (event.isDoubleBuffered() ? ", double-buffered" : ""));
+    }
+
+    private void onVideoFrameRateMeasured(CameraHelper.RxEventOnVideoFrameRateMeasured event) {
+        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.onVideoFrameRateMeasured(): " + event.getResult() +
+                (event.isHighSpeed() ? ", high speed" : ""));
+    }
+
     public void onVideoCaptureFinished(File outputVideoFile) {
         Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.onVideoCaptureFinished(): outputVideoFile: " + outputVideoFile.getAbsolutePath());
         if (outputVideoFile == null || mView == null) return;
@@ -218,38 +253,77 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
 
     private void startCameraPreview() {
         if (mView == null) return;
+        CameraTrace.beginLaunch();
+        CameraTrace.begin(CameraTrace.Stage.STARTUP);
         mView.setIsCameraLoading(true);
-        if (mCameraHelper != null) {
-            mCameraHelper.startCamera(
+        if (mCommandQueue != null) {
+            subscribe(mCommandQueue.start(
                     mView.getActivity(),
                     mCameraPreview,
                     mTextureWidth,
                     mTextureHeight,
                     mCameraSettings
-            );
+            ));
         }
     }
 
     private void stopCameraPreview() {
-        if (mView == null) return;
-        if (mCameraHelper != null)
-            mCameraHelper.stopCamera(mView.getActivity());
+        if (mView == null || mCommandQueue == null) return;
+        //screen can be returned soon, device is kept open for standby timeout then
+        boolean isStandby = mCameraSettings != null &&
+                mCameraSettings.getStandbyTimeoutMs() > 0 &&
+                !mView.getActivity().isFinishing();
+        //must be finished even if the view is unbound, so it's not added to subscriptions
+        (isStandby ? mCommandQueue.enterStandby(mView.getActivity()) : mCommandQueue.stop(mView.getActivity()))
+                    .subscribe(() -> {
+                    }, throwable -> Log.e(Constants.LOG_TAG_ERROR, "SMCameraPresenter.stopCameraPreview: " + throwable.getLocalizedMessage(), throwable));
     }
 
     private void restartCameraPreview() {
         if (mView == null) return;
         mView.setIsCameraLoading(true);
-        if (mCameraHelper != null) {
-            mCameraHelper.restartCamera(
+        if (mCommandQueue != null) {
+            //a run of size changes is coalesced into one restart
+            subscribe(mCommandQueue.restart(
                     mView.getActivity(),
                     mCameraPreview,
                     mTextureWidth,
                     mTextureHeight,
                     mCameraSettings
-            );
+            ));
         }
     }
 
+    /**
+     * Subscribes to camera call, errors are shown by camera helper, so they are logged only
+     */
+    private void subscribe(Completable completable) {
+        subscribe(completable, 0);
+    }
+
+    /**
+     * @param errorMessageResId Message of the failure which is shown to user, 0 - it's logged only
+     */
+    private void subscribe(Completable completable, @StringRes int errorMessageResId) {
+        if (mSubscriptions == null) mSubscriptions = new CompositeDisposable();
+        mSubscriptions.add(completable
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(() -> {
+                }, throwable -> {
+                    //command has been dropped by a later stop of the camera
+                    if (throwable instanceof CancellationException) {
+                        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.subscribe(): " + throwable.getLocalizedMessage());
+                        return;
+                    }
+                    Log.e(Constants.LOG_TAG_ERROR, "SMCameraPresenter.subscribe: " + throwable.getLocalizedMessage(), throwable);
+                    if (errorMessageResId != 0 && mView != null) {
+                        Toast.makeText(mView.getActivity(),
+                                mView.getActivity().getString(errorMessageResId, throwable.getLocalizedMessage()),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }));
+    }
+
     private boolean checkRuntimePermissions() {
         if (BasePermissionsHelper.isCaptureVideoPermissionsGranted(mView.getActivity()))
             return true;
@@ -271,7 +345,24 @@ public class SMCameraPresenter implements ISMCamera.Presenter, View.OnTouchListe
                     if (o instanceof CameraHelper.RxEventOnCameraReady) {
                         onCameraReady();
                     } else if (o instanceof CameraHelper.RxEventOnPhotoCaptureFinished) {
-                        onPhotoCaptureFinished(((CameraHelper.RxEventOnPhotoCaptureFinished) o).getOutputPhotoFile());
+                        CameraHelper.RxEventOnPhotoCaptureFinished event = (CameraHelper.RxEventOnPhotoCaptureFinished) o;
+                        if (event.getPrecaptureResult() != null) {
+                            Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.registerRxEvents(): " + event.getPrecaptureResult());
+                        }
+                        onPhotoCaptureFinished(event.getOutputPhotoFile());
+                    } else if (o instanceof CameraHelper.RxEventOnZslCaptureFinished) {
+                        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.registerRxEvents(): " +
+                                ((CameraHelper.RxEventOnZslCaptureFinished) o).getResult());
+                    } else if (o instanceof CameraHelper.RxEventOnCameraStartupFinished) {
+                        Log.d(Constants.LOG_TAG_DEBUG, "SMCameraPresenter.registerRxEvents(): time to first frame " +
+                                ((CameraHelper.RxEventOnCameraStartupFinished) o).getTimeToFirstFrameMs() + " ms, from process start " +
+                                CameraPrewarmer.getProcessStartToFirstFrameMs() + " ms");
+                    } else if (o instanceof CameraHelper.RxEventOnCameraRestarted) {
+                        onCameraRestarted((CameraHelper.RxEventOnCameraRestarted) o);
+                    } else if (o instanceof CameraHelper.RxEventOnVideoFrameRateMeasured) {
+                        onVideoFrameRateMeasured((CameraHelper.RxEventOnVideoFrameRateMeasured) o);
+                    } else if (o instanceof CameraHelper.RxEventOnVideoRecorderReady) {
+                        onVideoRecorderReady((CameraHelper.RxEventOnVideoRecorderReady) o);
                     } else if (o instanceof CameraHelper.RxEventOnVideoCaptureFinished) {
                         onVideoCaptureFinished(((CameraHelper.RxEventOnVideoCaptureFinished) o).getOutputVideoFile());
                     }
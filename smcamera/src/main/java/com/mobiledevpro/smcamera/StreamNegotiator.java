@@ -0,0 +1,292 @@
+package com.mobiledevpro.smcamera;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Range;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks preview, video and still sizes and the AE fps range from the stream configuration map
+ * <p>
+ * Frame duration of a request is the longest minimum frame duration of its outputs,
+ * so every output of the repeating request (preview, video, ZSL ring) should sustain the target frame rate
+ * and should have no stall. JPEG still has a stall, it's reported, and its minimum frame duration should fit
+ * into the frame as well, so the still capture doesn't slow down the video.
+ * If nothing sustains the target frame rate, the next lower AE fps range is tried.
+ * <p>
+ * Selection works on plain values of the cache only (no android.util types), so it's checked on the JVM
+ * against recorded configuration maps. Android types of the result are created by its public getters.
+ */
+public final class StreamNegotiator {
+
+    //the largest preview size which is guaranteed for every stream combination
+    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final double ASPECT_RATIO_TOLERANCE = 0.02;
+    private static final boolean STALL_ALLOWED = true;
+    private static final boolean STALL_NOT_ALLOWED = false;
+
+    private final List<CameraCharacteristicsCache.StreamConfig> mConfigs;
+    private final List<CameraCharacteristicsCache.FpsRange> mAeFpsRanges;
+
+    /**
+     * @param configs     Stream configurations of the camera
+     * @param aeFpsRanges CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES
+     */
+    StreamNegotiator(@NonNull List<CameraCharacteristicsCache.StreamConfig> configs,
+                     @NonNull List<CameraCharacteristicsCache.FpsRange> aeFpsRanges) {
+        mConfigs = configs;
+        mAeFpsRanges = aeFpsRanges;
+    }
+
+    /**
+     * @param aspectRatio          Width to height of all outputs
+     * @param targetFps            Desired frame rate of preview and video
+     * @param maxVideoHeight       Quality target of the video, e.g. 720 or 1080
+     * @param isStillAtPreviewRate Still output is a YUV stream of the repeating request (ZSL)
+     * @throws RuntimeException There is no video size for the aspect ratio
+     */
+    Result negotiate(double aspectRatio, int targetFps, int maxVideoHeight, boolean isStillAtPreviewRate) {
+        List<String> notes = new ArrayList<>();
+
+        for (int fps : getFpsCandidates(targetFps)) {
+            long frameDurationNs = 1000000000L / fps;
+
+            CameraCharacteristicsCache.StreamConfig video = findLargest(CameraCharacteristicsCache.FORMAT_PRIVATE,
+                    aspectRatio, Integer.MAX_VALUE, maxVideoHeight, frameDurationNs, STALL_NOT_ALLOWED);
+            if (video == null) {
+                notes.add(maxVideoHeight == Integer.MAX_VALUE
+                        ? "no video size at " + fps + " fps (any size)"
+                        : "no video size up to " + maxVideoHeight + "p at " + fps + " fps");
+                continue;
+            }
+
+            CameraCharacteristicsCache.StreamConfig preview = video;
+            if (video.getWidth() > MAX_PREVIEW_WIDTH || video.getHeight() > MAX_PREVIEW_HEIGHT) {
+                preview = findLargest(CameraCharacteristicsCache.FORMAT_PRIVATE,
+                        aspectRatio, MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, frameDurationNs, STALL_NOT_ALLOWED);
+                if (preview == null) {
+                    notes.add("no preview size at " + fps + " fps");
+                    continue;
+                }
+            }
+
+            int stillFormat = ImageFormat.JPEG;
+            CameraCharacteristicsCache.StreamConfig still = null;
+            if (isStillAtPreviewRate) {
+                still = findLargest(ImageFormat.YUV_420_888,
+                        aspectRatio, Integer.MAX_VALUE, Integer.MAX_VALUE, frameDurationNs, STALL_NOT_ALLOWED);
+                if (still != null) {
+                    stillFormat = ImageFormat.YUV_420_888;
+                } else {
+                    notes.add("no YUV still at " + fps + " fps, ZSL is not sustainable");
+                }
+            }
+            if (still == null) {
+                still = findLargest(ImageFormat.JPEG,
+                        aspectRatio, Integer.MAX_VALUE, Integer.MAX_VALUE, frameDurationNs, STALL_ALLOWED);
+            }
+            if (still == null) {
+                //the still frame is longer than the video frame, it's a dropped video frame on every photo
+                still = findLargest(ImageFormat.JPEG,
+                        aspectRatio, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, STALL_ALLOWED);
+                if (still != null) notes.add("JPEG still slows down the frame");
+            }
+            if (still == null) {
+                notes.add("no JPEG size, video size is used");
+                still = video;
+            }
+
+            if (fps != targetFps) notes.add("target " + targetFps + " fps is lowered to " + fps + " fps");
+            return new Result(
+                    preview,
+                    video,
+                    still,
+                    stillFormat,
+                    getAeFpsRange(fps),
+                    Math.max(video.getMinFrameDurationNs(), preview.getMinFrameDurationNs()),
+                    still.getStallDurationNs(),
+                    notes
+            );
+        }
+        if (maxVideoHeight != Integer.MAX_VALUE) {
+            //quality target is lowered rather than the camera is failed
+            Result result = negotiate(aspectRatio, targetFps, Integer.MAX_VALUE, isStillAtPreviewRate);
+            notes.add("video size is above " + maxVideoHeight + "p");
+            notes.addAll(result.getNotes());
+            return result.withNotes(notes);
+        }
+        throw new RuntimeException("Cannot configure camera streams. Error: " + notes);
+    }
+
+    /**
+     * Upper bounds of the AE fps ranges up to the target, the highest first
+     */
+    private List<Integer> getFpsCandidates(int targetFps) {
+        List<Integer> candidates = new ArrayList<>();
+        for (CameraCharacteristicsCache.FpsRange range : mAeFpsRanges) {
+            int fps = range.getUpper();
+            if (fps <= targetFps && !candidates.contains(fps)) candidates.add(fps);
+        }
+        Collections.sort(candidates, Collections.reverseOrder());
+        //the camera doesn't report ranges, so the target is tried as is
+        if (candidates.isEmpty()) candidates.add(targetFps);
+        return candidates;
+    }
+
+    /**
+     * Constant range if it's available (constant frame rate video), otherwise the range with the highest lower bound
+     */
+    private CameraCharacteristicsCache.FpsRange getAeFpsRange(int fps) {
+        CameraCharacteristicsCache.FpsRange best = null;
+        for (CameraCharacteristicsCache.FpsRange range : mAeFpsRanges) {
+            if (range.getUpper() != fps) continue;
+            if (best == null || range.getLower() > best.getLower()) best = range;
+        }
+        return best != null ? best : new CameraCharacteristicsCache.FpsRange(fps, fps);
+    }
+
+    /**
+     * @param maxFrameDurationNs Minimum frame duration of the output should fit into it
+     * @param isStallAllowed     False for outputs of the repeating request
+     */
+    @Nullable
+    private CameraCharacteristicsCache.StreamConfig findLargest(int format,
+                                                                double aspectRatio,
+                                                                int maxWidth,
+                                                                int maxHeight,
+                                                                long maxFrameDurationNs,
+                                                                boolean isStallAllowed) {
+        CameraCharacteristicsCache.StreamConfig largest = null;
+        for (CameraCharacteristicsCache.StreamConfig config : mConfigs) {
+            if (config.getFormat() != format ||
+                    config.getWidth() > maxWidth ||
+                    config.getHeight() > maxHeight ||
+                    config.getMinFrameDurationNs() > maxFrameDurationNs ||
+                    (!isStallAllowed && config.getStallDurationNs() > 0) ||
+                    Math.abs((double) config.getWidth() / config.getHeight() - aspectRatio) > ASPECT_RATIO_TOLERANCE)
+                continue;
+            if (largest == null ||
+                    (long) config.getWidth() * config.getHeight() > (long) largest.getWidth() * largest.getHeight()) {
+                largest = config;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Negotiated stream configuration
+     */
+    public static final class Result {
+        private final CameraCharacteristicsCache.StreamConfig preview;
+        private final CameraCharacteristicsCache.StreamConfig video;
+        private final CameraCharacteristicsCache.StreamConfig still;
+        private final int stillFormat;
+        private final CameraCharacteristicsCache.FpsRange fpsRange;
+        private final long frameDurationNs;
+        private final long stillStallNs;
+        private final List<String> notes;
+
+        private Result(CameraCharacteristicsCache.StreamConfig preview,
+                       CameraCharacteristicsCache.StreamConfig video,
+                       CameraCharacteristicsCache.StreamConfig still,
+                       int stillFormat,
+                       CameraCharacteristicsCache.FpsRange fpsRange,
+                       long frameDurationNs,
+                       long stillStallNs,
+                       List<String> notes) {
+            this.preview = preview;
+            this.video = video;
+            this.still = still;
+            this.stillFormat = stillFormat;
+            this.fpsRange = fpsRange;
+            this.frameDurationNs = frameDurationNs;
+            this.stillStallNs = stillStallNs;
+            this.notes = Collections.unmodifiableList(new ArrayList<>(notes));
+        }
+
+        private Result withNotes(List<String> notes) {
+            return new Result(preview, video, still, stillFormat, fpsRange, frameDurationNs, stillStallNs, notes);
+        }
+
+        public Size getPreviewSize() {
+            return new Size(preview.getWidth(), preview.getHeight());
+        }
+
+        public Size getVideoSize() {
+            return new Size(video.getWidth(), video.getHeight());
+        }
+
+        public Size getStillSize() {
+            return new Size(still.getWidth(), still.getHeight());
+        }
+
+        CameraCharacteristicsCache.StreamConfig getPreview() {
+            return preview;
+        }
+
+        CameraCharacteristicsCache.StreamConfig getVideo() {
+            return video;
+        }
+
+        CameraCharacteristicsCache.StreamConfig getStill() {
+            return still;
+        }
+
+        /**
+         * {@link ImageFormat#YUV_420_888} if the still is captured from the repeating request (ZSL), otherwise JPEG
+         */
+        public int getStillFormat() {
+            return stillFormat;
+        }
+
+        public Range<Integer> getFpsRange() {
+            return fpsRange.toRange();
+        }
+
+        CameraCharacteristicsCache.FpsRange getAeFpsRange() {
+            return fpsRange;
+        }
+
+        /**
+         * Minimum frame duration of the repeating request outputs
+         */
+        public long getFrameDurationNs() {
+            return frameDurationNs;
+        }
+
+        /**
+         * Extra time of the still capture, 0 for YUV
+         */
+        public long getStillStallNs() {
+            return stillStallNs;
+        }
+
+        /**
+         * Fallbacks which have been taken, empty if the request is satisfied as is
+         */
+        public List<String> getNotes() {
+            return notes;
+        }
+
+        @Override
+        public String toString() {
+            return "Streams: preview " + toString(preview) +
+                    ", video " + toString(video) +
+                    ", still " + toString(still) + (stillFormat == ImageFormat.YUV_420_888 ? " YUV" : " JPEG") +
+                    ", fps " + fpsRange +
+                    ", min frame " + frameDurationNs / 1000 + " us" +
+                    ", still stall " + stillStallNs / 1000000 + " ms" +
+                    (notes.isEmpty() ? "" : ", notes " + notes);
+        }
+
+        private static String toString(CameraCharacteristicsCache.StreamConfig config) {
+            return config.getWidth() + "x" + config.getHeight();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.mobiledevpro.smcamera;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Parameters of the video encoder, the encoder is recreated when they are changed
+ */
+public final class VideoEncoderConfig {
+
+    public enum Backend {
+        //MediaRecorder, the default one and the fallback of MEDIA_CODEC
+        MEDIA_RECORDER,
+        //MediaCodec with Surface input and MediaMuxer
+        MEDIA_CODEC
+    }
+
+    public enum Codec {
+        H264,
+        //API 24+ for MediaRecorder
+        HEVC
+    }
+
+    public enum BitrateMode {
+        VBR,
+        CBR
+    }
+
+    private final Backend backend;
+    private final Codec codec;
+    private final int profile;
+    private final int iFrameIntervalSec;
+    private final BitrateMode bitrateMode;
+    private final int bitrate;
+    private final int width;
+    private final int height;
+    private final int fps;
+    private final boolean isAudioEnabled;
+    private final int orientationHint;
+    private final boolean isTimestampRealtime;
+    private final int segmentDurationSec;
+    private final int preRollSec;
+    private final long preRollMaxBytes;
+
+    /**
+     * @param profile             MediaCodecInfo.CodecProfileLevel value, 0 - default profile of the codec
+     * @param bitrate             Bits per second, 0 - by the video size and frame rate
+     * @param isTimestampRealtime Camera frames are in the elapsedRealtimeNanos() time base
+     * @param segmentDurationSec  Loop recording segment duration, 0 - a single file
+     * @param preRollSec          Encoded video kept before the start of recording, 0 - no pre-roll
+     * @param preRollMaxBytes     Memory cap of the pre-roll buffer
+     */
+    VideoEncoderConfig(@NonNull Backend backend,
+                       @NonNull Codec codec,
+                       int profile,
+                       int iFrameIntervalSec,
+                       @NonNull BitrateMode bitrateMode,
+                       int bitrate,
+                       int width,
+                       int height,
+                       int fps,
+                       boolean isAudioEnabled,
+                       int orientationHint,
+                       boolean isTimestampRealtime,
+                       int segmentDurationSec,
+                       int preRollSec,
+                       long preRollMaxBytes) {
+        this.backend = backend;
+        this.codec = codec;
+        this.profile = profile;
+        this.iFrameIntervalSec = iFrameIntervalSec;
+        this.bitrateMode = bitrateMode;
+        this.bitrate = bitrate > 0 ? bitrate : getDefaultBitrate(width, height, fps);
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.isAudioEnabled = isAudioEnabled;
+        this.orientationHint = orientationHint;
+        this.isTimestampRealtime = isTimestampRealtime;
+        this.segmentDurationSec = segmentDurationSec;
+        this.preRollSec = preRollSec;
+        this.preRollMaxBytes = preRollMaxBytes;
+    }
+
+    Backend getBackend() {
+        return backend;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    int getProfile() {
+        return profile;
+    }
+
+    int getIFrameIntervalSec() {
+        return iFrameIntervalSec;
+    }
+
+    BitrateMode getBitrateMode() {
+        return bitrateMode;
+    }
+
+    int getBitrate() {
+        return bitrate;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getFps() {
+        return fps;
+    }
+
+    boolean isAudioEnabled() {
+        return isAudioEnabled;
+    }
+
+    int getOrientationHint() {
+        return orientationHint;
+    }
+
+    boolean isTimestampRealtime() {
+        return isTimestampRealtime;
+    }
+
+    int getSegmentDurationSec() {
+        return segmentDurationSec;
+    }
+
+    int getPreRollSec() {
+        return preRollSec;
+    }
+
+    long getPreRollMaxBytes() {
+        return preRollMaxBytes;
+    }
+
+    /**
+     * The same parameters with the MediaRecorder backend
+     */
+    VideoEncoderConfig toMediaRecorder() {
+        return new VideoEncoderConfig(Backend.MEDIA_RECORDER, codec, profile, iFrameIntervalSec, bitrateMode, bitrate,
+                width, height, fps, isAudioEnabled, orientationHint, isTimestampRealtime, segmentDurationSec,
+                preRollSec, preRollMaxBytes);
+    }
+
+    /**
+     * Bitrate table of the video size at 30 fps, it's scaled for high speed video
+     */
+    private static int getDefaultBitrate(int width, int height, int fps) {
+        int pixels = width * height;
+        int bitrate;
+        if (pixels >= 1920 * 1080) {
+            bitrate = 14000000;
+        } else if (pixels >= 1280 * 720) {
+            bitrate = 9730000;
+        } else if (pixels >= 640 * 480) {
+            bitrate = 2500000;
+        } else if (pixels >= 320 * 240) {
+            bitrate = 622000;
+        } else {
+            bitrate = 384000;
+        }
+        return fps > 30 ? (int) Math.min(Integer.MAX_VALUE, (long) bitrate * fps / 30) : bitrate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof VideoEncoderConfig)) return false;
+        VideoEncoderConfig config = (VideoEncoderConfig) o;
+        return backend == config.backend &&
+                codec == config.codec &&
+                profile == config.profile &&
+                iFrameIntervalSec == config.iFrameIntervalSec &&
+                bitrateMode == config.bitrateMode &&
+                bitrate == config.bitrate &&
+                width == config.width &&
+                height == config.height &&
+                fps == config.fps &&
+                isAudioEnabled == config.isAudioEnabled &&
+                orientationHint == config.orientationHint &&
+                isTimestampRealtime == config.isTimestampRealtime &&
+                segmentDurationSec == config.segmentDurationSec &&
+                preRollSec == config.preRollSec &&
+                preRollMaxBytes == config.preRollMaxBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = backend.hashCode();
+        result = 31 * result + codec.hashCode();
+        result = 31 * result + width * height;
+        result = 31 * result + fps;
+        result = 31 * result + bitrate;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return backend + " " + codec +
+                (profile > 0 ? " profile " + profile : "") +
+                " " + width + "x" + height + " @ " + fps + "FPS" +
+                ", " + bitrate / 1000 + " kbps " + bitrateMode +
+                ", I-frame " + iFrameIntervalSec + " s" +
+                ", audio " + isAudioEnabled +
+                (segmentDurationSec > 0 ? ", segments " + segmentDurationSec + " s" : "") +
+                (preRollSec > 0 ? ", pre-roll " + preRollSec + " s" : "");
+    }
+}
@@ -0,0 +1,290 @@
+package com.mobiledevpro.smcamera;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.samsung.android.sdk.camera.SCaptureResult;
+import com.samsung.android.sdk.camera.STotalCaptureResult;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Zero shutter lag capture
+ * <p>
+ * Every preview frame is also captured into a small ring of full size YUV images together
+ * with its capture result. On the shutter press the frame which is the closest to the press
+ * by sensor timestamp is taken from the ring and encoded, so there is no capture request latency.
+ * Several frames around the press can be taken as well, they are merged into one photo by {@link FrameMerger}.
+ * <p>
+ * If the sensor timestamps are not in the elapsedRealtime time base, the offset between the bases
+ * is estimated from the arrival time of frames (the smallest offset is the closest to the real one).
+ */
+public final class ZslCapture {
+
+    //capture results are kept a bit longer than images, they come in a different order
+    private static final int RESULTS_FACTOR = 2;
+
+    private final int mRingSize;
+    private final boolean mIsTimestampRealtime;
+
+    //oldest first
+    private final ArrayDeque<Image> mImages = new ArrayDeque<>();
+    private final ArrayDeque<STotalCaptureResult> mResults = new ArrayDeque<>();
+    private long mTimestampOffsetNs = Long.MAX_VALUE;
+    //frames which have been taken from the ring and are not released yet
+    private int mFramesInUse;
+    private boolean mIsCleared;
+    private Runnable mOnFramesReleased;
+
+    /**
+     * @param ringSize            Number of the recent frames, ImageReader should have 2 more images
+     * @param isTimestampRealtime SENSOR_INFO_TIMESTAMP_SOURCE is REALTIME
+     */
+    ZslCapture(int ringSize, boolean isTimestampRealtime) {
+        mRingSize = ringSize;
+        mIsTimestampRealtime = isTimestampRealtime;
+    }
+
+    /**
+     * ImageReader size for the ring
+     */
+    static int getMaxImages(int ringSize) {
+        //one image can be taken for encoding and one is needed to acquire the next frame
+        return ringSize + 2;
+    }
+
+    /**
+     * Called on the camera thread for every new frame
+     */
+    synchronized void onImageAvailable(@NonNull ImageReader reader) {
+        if (mIsCleared) return;
+        while (true) {
+            //the oldest frame is released before acquiring, so the reader always has a free slot,
+            //the ring is shorter while frames which have been taken are not released
+            while (!mImages.isEmpty() &&
+                    (mImages.size() >= mRingSize || mImages.size() + mFramesInUse > mRingSize)) {
+                mImages.poll().close();
+            }
+            Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                //all images are taken (encoding is slower than the frame rate), frame stays in the reader
+                return;
+            }
+            if (image == null) return;
+
+            mImages.add(image);
+            if (!mIsTimestampRealtime) {
+                mTimestampOffsetNs = Math.min(mTimestampOffsetNs, SystemClock.elapsedRealtimeNanos() - image.getTimestamp());
+            }
+        }
+    }
+
+    synchronized void onCaptureCompleted(@NonNull STotalCaptureResult result) {
+        mResults.add(result);
+        if (mResults.size() > mRingSize * RESULTS_FACTOR) mResults.poll();
+    }
+
+    /**
+     * Takes up to the count of frames which are the closest to the shutter press, they are removed from the ring.
+     * The closest one is the first. Every frame should be released when its image is not read anymore.
+     *
+     * @param shutterAtNs {@link SystemClock#elapsedRealtimeNanos()} of the shutter press
+     * @return Empty list if there are no frames yet or the ring is cleared
+     */
+    @NonNull
+    synchronized List<Frame> takeClosestFrames(long shutterAtNs, int count) {
+        List<Frame> frames = new ArrayList<>(count);
+        if (mIsCleared) return frames;
+        long shutterTimestampNs = toSensorTimestamp(shutterAtNs);
+
+        while (frames.size() < count && !mImages.isEmpty()) {
+            Image closest = null;
+            long closestDelta = Long.MAX_VALUE;
+            for (Image image : mImages) {
+                long delta = Math.abs(image.getTimestamp() - shutterTimestampNs);
+                if (delta < closestDelta) {
+                    closestDelta = delta;
+                    closest = image;
+                }
+            }
+            mImages.remove(closest);
+            mFramesInUse++;
+
+            frames.add(new Frame(
+                    this,
+                    closest,
+                    findResult(closest.getTimestamp()),
+                    closest.getTimestamp() - shutterTimestampNs
+            ));
+        }
+        return frames;
+    }
+
+    synchronized int getFrameCount() {
+        return mImages.size();
+    }
+
+    /**
+     * Releases frames of the ring, e.g. when the camera is closed. Frames which have been taken
+     * are still being encoded, so the ImageReader can be closed only after them.
+     *
+     * @param onFramesReleased Called when the taken frames are released, right now if there are none
+     */
+    void clear(@NonNull Runnable onFramesReleased) {
+        synchronized (this) {
+            mIsCleared = true;
+            Image image;
+            while ((image = mImages.poll()) != null) {
+                image.close();
+            }
+            mResults.clear();
+            if (mFramesInUse > 0) {
+                mOnFramesReleased = onFramesReleased;
+                return;
+            }
+        }
+        onFramesReleased.run();
+    }
+
+    private void onFrameReleased() {
+        Runnable onFramesReleased;
+        synchronized (this) {
+            if (--mFramesInUse > 0 || mOnFramesReleased == null) return;
+            onFramesReleased = mOnFramesReleased;
+            mOnFramesReleased = null;
+        }
+        onFramesReleased.run();
+    }
+
+    private long toSensorTimestamp(long realtimeNs) {
+        if (mIsTimestampRealtime || mTimestampOffsetNs == Long.MAX_VALUE) return realtimeNs;
+        return realtimeNs - mTimestampOffsetNs;
+    }
+
+    private STotalCaptureResult findResult(long timestampNs) {
+        Iterator<STotalCaptureResult> iterator = mResults.iterator();
+        while (iterator.hasNext()) {
+            STotalCaptureResult result = iterator.next();
+            Long sensorTimestamp = result.get(SCaptureResult.SENSOR_TIMESTAMP);
+            if (sensorTimestamp != null && sensorTimestamp == timestampNs) {
+                iterator.remove();
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Frame taken from the ring
+     */
+    static class Frame {
+        private final ZslCapture capture;
+        private final Image image;
+        private final STotalCaptureResult result;
+        private final long shutterToFrameNs;
+        private boolean isReleased;
+
+        private Frame(ZslCapture capture, Image image, STotalCaptureResult result, long shutterToFrameNs) {
+            this.capture = capture;
+            this.image = image;
+            this.result = result;
+            this.shutterToFrameNs = shutterToFrameNs;
+        }
+
+        Image getImage() {
+            return image;
+        }
+
+        /**
+         * Null if the capture result has not come yet or it has been removed from the ring
+         */
+        @Nullable
+        STotalCaptureResult getResult() {
+            return result;
+        }
+
+        long getShutterToFrameNs() {
+            return shutterToFrameNs;
+        }
+
+        /**
+         * Returns the image to the reader
+         */
+        void release() {
+            synchronized (this) {
+                if (isReleased) return;
+                isReleased = true;
+            }
+            image.close();
+            capture.onFrameReleased();
+        }
+    }
+
+    /**
+     * Result of the zero shutter lag capture
+     */
+    public static final class Result {
+        private final File file;
+        private final long shutterToFrameNs;
+        private final long frameDurationNs;
+        private final boolean hasCaptureResult;
+        private final int mergedFrames;
+
+        Result(File file, long shutterToFrameNs, long frameDurationNs, boolean hasCaptureResult, int mergedFrames) {
+            this.file = file;
+            this.shutterToFrameNs = shutterToFrameNs;
+            this.frameDurationNs = frameDurationNs;
+            this.hasCaptureResult = hasCaptureResult;
+            this.mergedFrames = mergedFrames;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Sensor timestamp of the frame minus the shutter press time,
+         * negative if the frame has been exposed before the press
+         */
+        public double getShutterToFrameDeltaMs() {
+            return shutterToFrameNs / 1000000d;
+        }
+
+        /**
+         * True if the delta is less than the frame duration
+         */
+        public boolean isSubFrameLatency() {
+            return frameDurationNs > 0 && Math.abs(shutterToFrameNs) < frameDurationNs;
+        }
+
+        public boolean hasCaptureResult() {
+            return hasCaptureResult;
+        }
+
+        /**
+         * Frames merged into the photo, 1 if the closest frame is encoded as it is
+         */
+        public int getMergedFrames() {
+            return mergedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return "ZSL: shutter to frame " + String.format(Locale.US, "%.2f", getShutterToFrameDeltaMs()) + " ms" +
+                    ", frame duration " + String.format(Locale.US, "%.2f", frameDurationNs / 1000000d) + " ms" +
+                    ", capture result " + hasCaptureResult +
+                    ", merged " + mergedFrames + " frames" +
+                    ", file " + file;
+        }
+    }
+}
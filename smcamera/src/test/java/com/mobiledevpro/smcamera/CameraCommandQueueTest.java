@@ -0,0 +1,296 @@
+package com.mobiledevpro.smcamera;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.TextureView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subjects.CompletableSubject;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Order, coalescing, cancellation and timeout of the queued commands against a helper
+ * which finishes every call only when the test completes it
+ */
+public class CameraCommandQueueTest {
+
+    private final TestScheduler mScheduler = new TestScheduler();
+    private FakeCameraHelper mHelper;
+    private CameraCommandQueue mQueue;
+
+    @Before
+    public void setUp() {
+        //command timeout runs on the computation scheduler
+        RxJavaPlugins.setComputationSchedulerHandler(scheduler -> mScheduler);
+        mHelper = new FakeCameraHelper();
+        mQueue = new CameraCommandQueue(mHelper);
+    }
+
+    @After
+    public void tearDown() {
+        RxJavaPlugins.reset();
+    }
+
+    @Test
+    public void runOfSettingsChangesIsCoalesced() {
+        TestObserver<Void> start = start();
+        TestObserver<Void> first = mQueue.applySettings(null, new CameraSettings().setAspectRatio(4d / 3)).test();
+        TestObserver<Void> flashlight = mQueue.setFlashlightOn(null, true).test();
+        TestObserver<Void> last = mQueue.applySettings(null, new CameraSettings().setAspectRatio(16d / 9)).test();
+
+        mHelper.finishCall();
+        mHelper.finishCall();
+
+        assertEquals(Arrays.asList("start", "settings 1.78 flashlight false"), mHelper.calls);
+        start.assertComplete();
+        first.assertComplete();
+        flashlight.assertComplete();
+        last.assertComplete();
+        assertEquals(2, mQueue.getCoalescedCount());
+    }
+
+    @Test
+    public void flashlightToggleIsAppliedOnTopOfPendingSettings() {
+        start();
+        mQueue.applySettings(null, new CameraSettings().setAspectRatio(4d / 3)).test();
+        mQueue.setFlashlightOn(null, true).test();
+
+        mHelper.finishCall();
+
+        assertEquals(Arrays.asList("start", "settings 1.33 flashlight true"), mHelper.calls);
+    }
+
+    @Test
+    public void toggleBetweenTwoSettingsChangesKeepsItsOrder() {
+        start();
+        mQueue.applySettings(null, new CameraSettings().setFlashlightOn(true)).test();
+        mQueue.startStopVideoRecording().test();
+        mQueue.applySettings(null, new CameraSettings().setFlashlightOn(false)).test();
+
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+
+        assertEquals(Arrays.asList(
+                "start",
+                "settings 1.78 flashlight true",
+                "toggle",
+                "settings 1.78 flashlight false"
+        ), mHelper.calls);
+        assertEquals(0, mQueue.getCoalescedCount());
+    }
+
+    @Test
+    public void restartsAreCoalescedOnlyAtTheTail() {
+        start();
+        TestObserver<Void> firstRestart = restart(640);
+        TestObserver<Void> picture = mQueue.takePicture().test();
+        TestObserver<Void> secondRestart = restart(800);
+        TestObserver<Void> thirdRestart = restart(1024);
+
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+
+        assertEquals(Arrays.asList("start", "restart 640", "picture", "restart 1024"), mHelper.calls);
+        firstRestart.assertComplete();
+        picture.assertComplete();
+        secondRestart.assertComplete();
+        thirdRestart.assertComplete();
+        assertEquals(1, mQueue.getCoalescedCount());
+    }
+
+    @Test
+    public void stopCancelsPendingStartAndRestartButKeepsSettings() {
+        start();
+        TestObserver<Void> secondStart = start();
+        TestObserver<Void> restart = restart(640);
+        TestObserver<Void> flashlight = mQueue.setFlashlightOn(null, true).test();
+        TestObserver<Void> stop = mQueue.stop(null).test();
+
+        secondStart.assertError(CancellationException.class);
+        restart.assertError(CancellationException.class);
+        assertEquals(2, mQueue.getCancelledCount());
+
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+
+        assertEquals(Arrays.asList("start", "flashlight true", "stop"), mHelper.calls);
+        flashlight.assertComplete();
+        stop.assertComplete();
+    }
+
+    @Test
+    public void failureIsDeliveredToTheCommandOnly() {
+        TestObserver<Void> start = start();
+        TestObserver<Void> picture = mQueue.takePicture().test();
+
+        mHelper.failCall(new RuntimeException("Camera is not ready"));
+        mHelper.finishCall();
+
+        start.assertError(RuntimeException.class);
+        picture.assertComplete();
+        assertEquals(Arrays.asList("start", "picture"), mHelper.calls);
+    }
+
+    @Test
+    public void stuckCommandTimesOutAndNextOneIsExecuted() {
+        TestObserver<Void> start = start();
+        TestObserver<Void> picture = mQueue.takePicture().test();
+
+        mScheduler.advanceTimeBy(14999, TimeUnit.MILLISECONDS);
+        start.assertNotTerminated();
+        mScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+
+        start.assertError(TimeoutException.class);
+        assertEquals(Arrays.asList("start", "picture"), mHelper.calls);
+        //late completion of the stuck call doesn't affect the queue
+        mHelper.finishCall();
+        picture.assertNotTerminated();
+        mHelper.finishCall();
+        picture.assertComplete();
+        assertEquals(2, mQueue.getExecutedCount());
+    }
+
+    @Test
+    public void burstGetsTimeoutPerFrame() {
+        TestObserver<Void> burst = mQueue.takeBurst(10, BurstCapture.Backpressure.PAUSE_CAPTURE).test();
+
+        mScheduler.advanceTimeBy(15000, TimeUnit.MILLISECONDS);
+        burst.assertNotTerminated();
+        mScheduler.advanceTimeBy(10000, TimeUnit.MILLISECONDS);
+
+        burst.assertError(TimeoutException.class);
+    }
+
+    @Test
+    public void countersReflectTheQueue() {
+        start();
+        mQueue.takePicture().test();
+        mQueue.startStopVideoRecording().test();
+        mQueue.applySettings(null, new CameraSettings()).test();
+        mQueue.applySettings(null, new CameraSettings()).test();
+
+        assertEquals(3, mQueue.getQueueDepth());
+        assertEquals(5, mQueue.getEnqueuedCount());
+        assertEquals(1, mQueue.getExecutedCount());
+
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+        mHelper.finishCall();
+
+        assertEquals(0, mQueue.getQueueDepth());
+        assertEquals(3, mQueue.getMaxQueueDepth());
+        assertEquals(4, mQueue.getExecutedCount());
+        assertEquals(1, mQueue.getCoalescedCount());
+        assertEquals(0, mQueue.getCancelledCount());
+    }
+
+    private TestObserver<Void> start() {
+        return mQueue.start(null, null, 1280, 720, new CameraSettings()).test();
+    }
+
+    private TestObserver<Void> restart(int textureWidth) {
+        return mQueue.restart(null, null, textureWidth, 720, new CameraSettings()).test();
+    }
+
+    /**
+     * Records the calls, every call is finished by the test in the order of the calls
+     */
+    private static class FakeCameraHelper implements ICameraHelperAsync {
+        private final List<String> calls = new ArrayList<>();
+        private final List<CompletableSubject> running = new ArrayList<>();
+
+        void finishCall() {
+            running.remove(0).onComplete();
+        }
+
+        void failCall(Throwable throwable) {
+            running.remove(0).onError(throwable);
+        }
+
+        private Completable call(String name) {
+            calls.add(name);
+            CompletableSubject subject = CompletableSubject.create();
+            running.add(subject);
+            return subject;
+        }
+
+        @Override
+        public Completable startCameraAsync(Context context, TextureView textureView, int textureWidth, int textureHeight, @NonNull CameraSettings cameraSettings) {
+            return call("start");
+        }
+
+        @Override
+        public Completable stopCameraAsync(Context context) {
+            return call("stop");
+        }
+
+        @Override
+        public Completable enterStandbyAsync(Context context) {
+            return call("standby");
+        }
+
+        @Override
+        public Completable restartCameraAsync(Context context, TextureView textureView, int textureWidth, int textureHeight, @NonNull CameraSettings cameraSettings) {
+            return call("restart " + textureWidth);
+        }
+
+        @Override
+        public Completable applySettingsAsync(Context context, @NonNull CameraSettings cameraSettings) {
+            return call(String.format(Locale.US, "settings %.2f flashlight %b",
+                    cameraSettings.getAspectRatio(), cameraSettings.isFlashlightOn()));
+        }
+
+        @Override
+        public Completable startStopVideoRecordingAsync() {
+            return call("toggle");
+        }
+
+        @Override
+        public Single<File> takePictureAsync() {
+            return call("picture").toSingleDefault(new File("photo.jpg"));
+        }
+
+        @Override
+        public Single<BurstCapture.Result> takeBurstAsync(int frameCount, @NonNull BurstCapture.Backpressure backpressure) {
+            return call("burst " + frameCount).andThen(Single.never());
+        }
+
+        @Override
+        public Single<ExposureBracket.Result> takeBracketAsync(@NonNull ExposureBracket bracket) {
+            return call("bracket").andThen(Single.never());
+        }
+
+        @Override
+        public Single<ZslCapture.Result> takeZslPictureAsync(long shutterAtNs) {
+            return call("zsl").andThen(Single.never());
+        }
+
+        @Override
+        public Completable setFlashlightOnAsync(boolean isOn) {
+            return call("flashlight " + isOn);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.mobiledevpro.smcamera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Megapixels per second of the whole merge (alignment included) on the JVM.
+ * It's a rough number for comparison of changes, the device is several times slower.
+ * <p>
+ * The timing takes a few seconds, so it's skipped by default: ./gradlew :smcamera:testDebugUnitTest -Pbenchmark
+ */
+public class FrameMergerBenchmarkTest {
+
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1536;
+    private static final int FRAME_COUNT = 4;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    @Test
+    public void megapixelsPerSecond() {
+        assumeTrue("Benchmark is run with -Pbenchmark", Boolean.getBoolean("smcamera.benchmark"));
+        Random random = new Random(7);
+        byte[] base = new byte[WIDTH * HEIGHT * 3 / 2];
+        random.nextBytes(base);
+        //a bit of structure, so the alignment search is not trivial
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                base[y * WIDTH + x] = (byte) ((base[y * WIDTH + x] & 0x3F) + ((x / 32 + y / 32) % 2) * 128);
+            }
+        }
+        List<FrameMerger.Frame> frames = new ArrayList<>();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            frames.add(new FrameMerger.Frame(Arrays.copyOf(base, base.length), WIDTH, HEIGHT));
+        }
+        byte[] output = new byte[base.length];
+        FrameMerger merger = new FrameMerger();
+
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            merger.merge(frames, FrameMerger.Mode.AVERAGE, output);
+        }
+        double[] megapixelsPerSecond = new double[RUNS];
+        FrameMerger.Result result = null;
+        for (int i = 0; i < RUNS; i++) {
+            result = merger.merge(frames, FrameMerger.Mode.AVERAGE, output);
+            megapixelsPerSecond[i] = result.getMegapixelsPerSecond();
+        }
+        Arrays.sort(megapixelsPerSecond);
+
+        System.out.println(String.format(Locale.US, "FrameMerger: %d x %.1f MP, median %.1f MP/s (min %.1f, max %.1f), %s",
+                FRAME_COUNT, WIDTH * HEIGHT / 1000000d,
+                megapixelsPerSecond[RUNS / 2], megapixelsPerSecond[0], megapixelsPerSecond[RUNS - 1], result));
+        assertTrue(megapixelsPerSecond[RUNS / 2] > 0);
+    }
+}
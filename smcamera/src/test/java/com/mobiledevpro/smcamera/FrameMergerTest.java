@@ -0,0 +1,226 @@
+package com.mobiledevpro.smcamera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Alignment and merge of synthetic frames: a smooth random scene which is shifted and (or) noised per frame
+ */
+public class FrameMergerTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void alignsShiftedFrames() {
+        Scene scene = new Scene(1);
+        int[][] shifts = {{0, 0}, {6, -4}, {-12, 10}, {20, 2}};
+        List<FrameMerger.Frame> frames = new ArrayList<>();
+        for (int[] shift : shifts) {
+            frames.add(new FrameMerger.Frame(scene.toNv21(shift[0], shift[1], 0, 0, null), WIDTH, HEIGHT));
+        }
+
+        FrameMerger.Result result = new FrameMerger().merge(frames, FrameMerger.Mode.AVERAGE, new byte[WIDTH * HEIGHT * 3 / 2]);
+
+        for (int i = 0; i < shifts.length; i++) {
+            assertEquals("X offset of frame " + i, shifts[i][0], result.getOffsetX(i));
+            assertEquals("Y offset of frame " + i, shifts[i][1], result.getOffsetY(i));
+        }
+    }
+
+    @Test
+    public void alignsFramesOfDifferentExposure() {
+        Scene scene = new Scene(2);
+        List<FrameMerger.Frame> frames = new ArrayList<>();
+        frames.add(new FrameMerger.Frame(scene.toNv21(0, 0, 0, 0, null), WIDTH, HEIGHT));
+        frames.add(new FrameMerger.Frame(scene.toNv21(-8, 6, -40, 0, null), WIDTH, HEIGHT));
+        frames.add(new FrameMerger.Frame(scene.toNv21(4, -10, 40, 0, null), WIDTH, HEIGHT));
+
+        FrameMerger.Result result = new FrameMerger().merge(frames, FrameMerger.Mode.EXPOSURE_FUSION, new byte[WIDTH * HEIGHT * 3 / 2]);
+
+        assertEquals(-8, result.getOffsetX(1));
+        assertEquals(6, result.getOffsetY(1));
+        assertEquals(4, result.getOffsetX(2));
+        assertEquals(-10, result.getOffsetY(2));
+    }
+
+    @Test
+    public void mergeOfIdenticalFramesIsTheFrame() {
+        byte[] nv21 = new Scene(3).toNv21(0, 0, 0, 0, null);
+        FrameMerger.Frame frame = new FrameMerger.Frame(nv21, WIDTH, HEIGHT);
+        byte[] output = new byte[nv21.length];
+
+        new FrameMerger().merge(Arrays.asList(frame, frame, frame), FrameMerger.Mode.AVERAGE, output);
+
+        assertArrayEquals(nv21, output);
+    }
+
+    @Test
+    public void averageReducesNoise() {
+        Scene scene = new Scene(4);
+        byte[] clean = scene.toNv21(0, 0, 0, 0, null);
+        Random noise = new Random(5);
+        List<FrameMerger.Frame> frames = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            frames.add(new FrameMerger.Frame(scene.toNv21(0, 0, 0, 4, noise), WIDTH, HEIGHT));
+        }
+        byte[] output = new byte[clean.length];
+
+        new FrameMerger().merge(frames, FrameMerger.Mode.AVERAGE, output);
+
+        double singleError = getLumaMse(clean, frames.get(0));
+        double mergedError = getLumaMse(clean, new FrameMerger.Frame(output, WIDTH, HEIGHT));
+        //4 frames of independent noise: the error is 4 times smaller in theory
+        assertTrue("Merged " + mergedError + ", single " + singleError, mergedError < singleError / 2);
+    }
+
+    @Test
+    public void yuv420PlanesWithStridesAreMergedLikeNv21() {
+        Scene scene = new Scene(6);
+        int[][] shifts = {{0, 0}, {4, 2}, {-6, 8}};
+        List<FrameMerger.Frame> nv21Frames = new ArrayList<>();
+        List<FrameMerger.Frame> planarFrames = new ArrayList<>();
+        List<FrameMerger.Frame> semiPlanarFrames = new ArrayList<>();
+        for (int[] shift : shifts) {
+            byte[] nv21 = scene.toNv21(shift[0], shift[1], 0, 0, null);
+            nv21Frames.add(new FrameMerger.Frame(nv21, WIDTH, HEIGHT));
+            planarFrames.add(toYuv420(nv21, WIDTH + 64, WIDTH / 2 + 32, 1));
+            semiPlanarFrames.add(toYuv420(nv21, WIDTH + 128, WIDTH + 128, 2));
+        }
+        FrameMerger merger = new FrameMerger();
+        byte[] expected = new byte[WIDTH * HEIGHT * 3 / 2];
+        merger.merge(nv21Frames, FrameMerger.Mode.AVERAGE, expected);
+
+        byte[] planar = new byte[expected.length];
+        FrameMerger.Result planarResult = merger.merge(planarFrames, FrameMerger.Mode.AVERAGE, planar);
+        byte[] semiPlanar = new byte[expected.length];
+        merger.merge(semiPlanarFrames, FrameMerger.Mode.AVERAGE, semiPlanar);
+
+        assertEquals(-6, planarResult.getOffsetX(2));
+        assertEquals(8, planarResult.getOffsetY(2));
+        assertArrayEquals(expected, planar);
+        assertArrayEquals(expected, semiPlanar);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPlanesSmallerThanStrides() {
+        FrameMerger.Frame.ofYuv420(WIDTH, HEIGHT,
+                new byte[WIDTH * HEIGHT], WIDTH + 64,
+                new byte[WIDTH * HEIGHT / 4], new byte[WIDTH * HEIGHT / 4], WIDTH / 2, 1);
+    }
+
+    /**
+     * Copies NV21 to YUV_420_888 planes like the ones of android.media.Image: padded rows,
+     * the last row is not padded, U and V of the semi-planar layout (pixel stride 2) are views of one buffer
+     */
+    static FrameMerger.Frame toYuv420(byte[] nv21, int yRowStride, int uvRowStride, int uvPixelStride) {
+        byte[] y = new byte[(HEIGHT - 1) * yRowStride + WIDTH];
+        for (int row = 0; row < HEIGHT; row++) {
+            System.arraycopy(nv21, row * WIDTH, y, row * yRowStride, WIDTH);
+        }
+        int uvSize = (HEIGHT / 2 - 1) * uvRowStride + (WIDTH / 2 - 1) * uvPixelStride + 1;
+        byte[] u = new byte[uvSize];
+        byte[] v = new byte[uvSize];
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                int source = WIDTH * HEIGHT + row * WIDTH + col * 2;
+                int target = row * uvRowStride + col * uvPixelStride;
+                v[target] = nv21[source];
+                u[target] = nv21[source + 1];
+                if (uvPixelStride == 2 && target + 1 < uvSize) {
+                    //interleaved neighbour, like in the shared buffer of NV21 camera output
+                    v[target + 1] = nv21[source + 1];
+                    u[target + 1] = col + 1 < WIDTH / 2 ? nv21[source + 2] : 0;
+                }
+            }
+        }
+        return FrameMerger.Frame.ofYuv420(WIDTH, HEIGHT, y, yRowStride, u, v, uvRowStride, uvPixelStride);
+    }
+
+    private static double getLumaMse(byte[] clean, FrameMerger.Frame frame) {
+        byte[] nv21 = new byte[clean.length];
+        new FrameMerger().merge(Arrays.asList(frame), FrameMerger.Mode.AVERAGE, nv21);
+        long sum = 0;
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int delta = (clean[i] & 0xFF) - (nv21[i] & 0xFF);
+            sum += delta * delta;
+        }
+        return (double) sum / (WIDTH * HEIGHT);
+    }
+
+    /**
+     * Smooth random texture (bilinear interpolation of random values on two grids) which is defined everywhere,
+     * so a shifted frame has content at the borders as well
+     */
+    static class Scene {
+        private static final int COARSE_CELL = 24;
+        private static final int FINE_CELL = 6;
+        private final long mSeed;
+
+        Scene(long seed) {
+            mSeed = seed;
+        }
+
+        /**
+         * Frame of the scene moved by the shift: pixel (x, y) of the frame is the scene point (x - shiftX, y - shiftY)
+         *
+         * @param noise Null - no noise
+         */
+        byte[] toNv21(int shiftX, int shiftY, int brightness, double noiseSigma, Random noise) {
+            byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    double value = getLuma(x - shiftX, y - shiftY) + brightness;
+                    if (noise != null) value += noise.nextGaussian() * noiseSigma;
+                    nv21[y * WIDTH + x] = clamp(value);
+                }
+            }
+            for (int y = 0; y < HEIGHT / 2; y++) {
+                for (int x = 0; x < WIDTH / 2; x++) {
+                    int index = WIDTH * HEIGHT + y * WIDTH + x * 2;
+                    double luma = getLuma(x * 2 - shiftX, y * 2 - shiftY);
+                    nv21[index] = clamp(128 + (luma - 128) / 4);
+                    nv21[index + 1] = clamp(128 - (luma - 128) / 6);
+                }
+            }
+            return nv21;
+        }
+
+        private double getLuma(int x, int y) {
+            return 128 + 80 * (interpolate(x, y, COARSE_CELL, 0) - 0.5) + 40 * (interpolate(x, y, FINE_CELL, 1) - 0.5);
+        }
+
+        private double interpolate(int x, int y, int cell, int grid) {
+            int cellX = Math.floorDiv(x, cell);
+            int cellY = Math.floorDiv(y, cell);
+            double fx = (double) (x - cellX * cell) / cell;
+            double fy = (double) (y - cellY * cell) / cell;
+            double top = getNode(cellX, cellY, grid) * (1 - fx) + getNode(cellX + 1, cellY, grid) * fx;
+            double bottom = getNode(cellX, cellY + 1, grid) * (1 - fx) + getNode(cellX + 1, cellY + 1, grid) * fx;
+            return top * (1 - fy) + bottom * fy;
+        }
+
+        /**
+         * Random value in [0, 1) of the grid node
+         */
+        private double getNode(int x, int y, int grid) {
+            long hash = mSeed * 0x9E3779B97F4A7C15L + grid * 0xC2B2AE3D27D4EB4FL + x * 0x165667B19E3779F9L + y * 0x27D4EB2F165667C5L;
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            return (hash >>> 11) / (double) (1L << 53);
+        }
+
+        private static byte clamp(double value) {
+            return (byte) Math.max(0, Math.min(255, (int) Math.round(value)));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mobiledevpro.smcamera;
+
+import android.graphics.ImageFormat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stream configuration map and AE fps ranges of a camera in the `dumpsys media.camera` format,
+ * a dump of a device can be pasted to the resources as is
+ */
+final class RecordedStreamMap {
+
+    private static final String KEY_FPS_RANGES = "android.control.aeAvailableTargetFpsRanges";
+    private static final String KEY_STREAM_CONFIGURATIONS = "android.scaler.availableStreamConfigurations";
+    private static final String KEY_MIN_FRAME_DURATIONS = "android.scaler.availableMinFrameDurations";
+    private static final String KEY_STALL_DURATIONS = "android.scaler.availableStallDurations";
+
+    //HAL pixel formats of the dump
+    private static final int HAL_FORMAT_BLOB = 33;
+
+    private final List<CameraCharacteristicsCache.StreamConfig> mStreamConfigs = new ArrayList<>();
+    private final List<CameraCharacteristicsCache.FpsRange> mAeFpsRanges = new ArrayList<>();
+
+    private RecordedStreamMap() {
+    }
+
+    /**
+     * @param resource File name in the stream_maps resources
+     */
+    static RecordedStreamMap load(String resource) throws IOException {
+        List<long[]> outputs = new ArrayList<>();
+        Map<String, Long> minFrameDurations = new HashMap<>();
+        Map<String, Long> stallDurations = new HashMap<>();
+        RecordedStreamMap map = new RecordedStreamMap();
+
+        try (InputStream input = RecordedStreamMap.class.getResourceAsStream("/stream_maps/" + resource)) {
+            if (input == null) throw new IOException("No resource " + resource);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+            String key = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (!line.startsWith("[")) {
+                    //a key line, values of the key are the lines in brackets which follow it
+                    key = line.split(" ")[0];
+                    continue;
+                }
+                String[] values = line.substring(1, line.indexOf(']')).trim().split("\\s+");
+                if (KEY_FPS_RANGES.equals(key)) {
+                    map.mAeFpsRanges.add(new CameraCharacteristicsCache.FpsRange(
+                            Integer.parseInt(values[0]), Integer.parseInt(values[1])));
+                } else if (KEY_STREAM_CONFIGURATIONS.equals(key)) {
+                    if ("OUTPUT".equals(values[3])) {
+                        outputs.add(new long[]{Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])});
+                    }
+                } else if (KEY_MIN_FRAME_DURATIONS.equals(key)) {
+                    minFrameDurations.put(values[0] + " " + values[1] + " " + values[2], Long.parseLong(values[3]));
+                } else if (KEY_STALL_DURATIONS.equals(key)) {
+                    stallDurations.put(values[0] + " " + values[1] + " " + values[2], Long.parseLong(values[3]));
+                }
+            }
+        }
+
+        for (long[] output : outputs) {
+            String id = output[0] + " " + output[1] + " " + output[2];
+            Long minFrameDurationNs = minFrameDurations.get(id);
+            Long stallDurationNs = stallDurations.get(id);
+            map.mStreamConfigs.add(new CameraCharacteristicsCache.StreamConfig(
+                    toImageFormat((int) output[0]),
+                    (int) output[1],
+                    (int) output[2],
+                    minFrameDurationNs == null ? 0 : minFrameDurationNs,
+                    stallDurationNs == null ? 0 : stallDurationNs));
+        }
+        return map;
+    }
+
+    List<CameraCharacteristicsCache.StreamConfig> getStreamConfigs() {
+        return mStreamConfigs;
+    }
+
+    List<CameraCharacteristicsCache.FpsRange> getAeFpsRanges() {
+        return mAeFpsRanges;
+    }
+
+    StreamNegotiator newNegotiator() {
+        return new StreamNegotiator(mStreamConfigs, mAeFpsRanges);
+    }
+
+    /**
+     * HAL formats are the ImageFormat values (RAW16, YUV_420_888, IMPLEMENTATION_DEFINED is FORMAT_PRIVATE)
+     * except BLOB which is JPEG
+     */
+    private static int toImageFormat(int halFormat) {
+        return halFormat == HAL_FORMAT_BLOB ? ImageFormat.JPEG : halFormat;
+    }
+}
@@ -0,0 +1,128 @@
+package com.mobiledevpro.smcamera;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stream negotiation against the configuration maps of FULL, LIMITED and LEGACY cameras
+ */
+public class StreamNegotiatorTest {
+
+    private static final double ASPECT_16_9 = 16d / 9;
+    private static final double ASPECT_4_3 = 4d / 3;
+
+    @Test
+    public void fullCameraSatisfiesRequestAsIs() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("full_4032x3024.txt").newNegotiator()
+                .negotiate(ASPECT_16_9, 30, 1080, false);
+
+        assertSize(1920, 1080, result.getVideo());
+        assertSize(1920, 1080, result.getPreview());
+        assertSize(4032, 2268, result.getStill());
+        assertEquals(ImageFormat.JPEG, result.getStillFormat());
+        //constant range is preferred for video
+        assertEquals(30, result.getAeFpsRange().getLower());
+        assertEquals(30, result.getAeFpsRange().getUpper());
+        assertTrue(result.getNotes().toString(), result.getNotes().isEmpty());
+    }
+
+    @Test
+    public void previewIsCappedForUhdVideo() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("full_4032x3024.txt").newNegotiator()
+                .negotiate(ASPECT_16_9, 30, 2160, false);
+
+        assertSize(3840, 2160, result.getVideo());
+        assertSize(1920, 1080, result.getPreview());
+        assertEquals(33333333, result.getFrameDurationNs());
+    }
+
+    @Test
+    public void zslTakesFullSizeYuvWhichSustainsFrameRate() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("full_4032x3024.txt").newNegotiator()
+                .negotiate(ASPECT_4_3, 30, 1080, true);
+
+        assertSize(1440, 1080, result.getVideo());
+        assertSize(4032, 3024, result.getStill());
+        assertEquals(ImageFormat.YUV_420_888, result.getStillFormat());
+        assertEquals(0, result.getStillStallNs());
+    }
+
+    @Test
+    public void jpegSlowerThanHighFrameRateIsReported() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("full_4032x3024.txt").newNegotiator()
+                .negotiate(ASPECT_16_9, 60, 1080, false);
+
+        assertSize(1920, 1080, result.getVideo());
+        assertEquals(60, result.getAeFpsRange().getUpper());
+        assertEquals(16666666, result.getFrameDurationNs());
+        assertSize(4032, 2268, result.getStill());
+        assertTrue(result.getNotes().toString(), result.getNotes().contains("JPEG still slows down the frame"));
+    }
+
+    @Test
+    public void zslFallsBackToSmallerYuvOnLimitedCamera() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("limited_4160x3120.txt").newNegotiator()
+                .negotiate(ASPECT_4_3, 30, 1080, true);
+
+        //full size YUV runs at 20 fps only
+        assertSize(3264, 2448, result.getStill());
+        assertEquals(ImageFormat.YUV_420_888, result.getStillFormat());
+        assertTrue(result.getNotes().toString(), result.getNotes().isEmpty());
+    }
+
+    @Test
+    public void targetFrameRateIsLoweredToAvailableRange() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("limited_4160x3120.txt").newNegotiator()
+                .negotiate(ASPECT_16_9, 60, 1080, false);
+
+        assertSize(1920, 1080, result.getVideo());
+        assertEquals(30, result.getAeFpsRange().getLower());
+        assertEquals(30, result.getAeFpsRange().getUpper());
+        assertTrue(result.getNotes().toString(), result.getNotes().contains("target 60 fps is lowered to 30 fps"));
+    }
+
+    @Test
+    public void qualityTargetIsRaisedOnLegacyCamera() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("legacy_2592x1944.txt").newNegotiator()
+                .negotiate(ASPECT_16_9, 30, 480, false);
+
+        assertSize(1280, 720, result.getVideo());
+        assertSize(1280, 720, result.getStill());
+        List<String> notes = result.getNotes();
+        assertTrue(notes.toString(), notes.contains("video size is above 480p"));
+    }
+
+    @Test
+    public void slowJpegOfLegacyCameraIsReported() throws Exception {
+        StreamNegotiator.Result result = RecordedStreamMap.load("legacy_2592x1944.txt").newNegotiator()
+                .negotiate(ASPECT_4_3, 30, 1080, false);
+
+        //5 MP JPEG takes 2 frames, the largest one which fits into the frame is taken
+        assertSize(1600, 1200, result.getStill());
+        assertEquals(33333333, result.getStillStallNs());
+    }
+
+    @Test
+    public void failsWithoutSizesOfAspectRatio() throws Exception {
+        StreamNegotiator negotiator = RecordedStreamMap.load("legacy_2592x1944.txt").newNegotiator();
+        try {
+            negotiator.negotiate(21d / 9, 30, 1080, false);
+            fail("Streams of 21:9 have been negotiated");
+        } catch (RuntimeException e) {
+            assertEquals(RuntimeException.class, e.getClass());
+            assertEquals("Cannot configure camera streams. Error: [no video size at 30 fps (any size), no video size at 15 fps (any size)]",
+                    e.getMessage());
+        }
+    }
+
+    private static void assertSize(int width, int height, CameraCharacteristicsCache.StreamConfig config) {
+        assertEquals(width + "x" + height, config.getWidth() + "x" + config.getHeight());
+    }
+}